@@ -0,0 +1,112 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import org.codehaus.mojo.animal_sniffer.IgnoreJRERequirement;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip stream, sync flushed after each chunk so that receivers (carbon-c-relay for example) can decode each batch
+ * as soon as it arrives.
+ *
+ * The stream is never finished, so there is no trailer and the CRC is not computed.
+ *
+ * Sync flush needs the {@link Deflater} API of Java 7, the codec is rejected on older JVMs.
+ */
+@ThreadSafe
+public class GzipStreamCodec implements StreamCodec {
+
+	private static final byte[] HEADER = {
+			0x1f, (byte) 0x8b, // magic
+			Deflater.DEFLATED, // method
+			0, // flags
+			0, 0, 0, 0, // modification time
+			0, // extra flags
+			(byte) 0xff // unknown OS
+	};
+
+	@Nonnull
+	@Override
+	public String getName() {
+		return "gzip";
+	}
+
+	@Nonnull
+	@Override
+	public StreamEncoder newEncoder() {
+		try {
+			Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch (NoSuchMethodException e) {
+			throw new UnsupportedOperationException("gzip compression needs Java 7 or later");
+		}
+		return new Encoder();
+	}
+
+	@NotThreadSafe
+	@IgnoreJRERequirement
+	private static final class Encoder implements StreamEncoder {
+		private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		private byte[] out = new byte[8192];
+		private boolean headerWritten = false;
+
+		@Nonnull
+		@Override
+		@IgnoreJRERequirement
+		public ByteBuffer encode(@Nonnull ByteBuffer raw) {
+			int length = 0;
+			if (!headerWritten) {
+				System.arraycopy(HEADER, 0, out, 0, HEADER.length);
+				length = HEADER.length;
+				headerWritten = true;
+			}
+
+			if (raw.hasArray()) {
+				deflater.setInput(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+			} else {
+				byte[] input = new byte[raw.remaining()];
+				raw.duplicate().get(input);
+				deflater.setInput(input);
+			}
+
+			// with SYNC_FLUSH, a full output buffer means there might be more output waiting
+			while (true) {
+				int available = out.length - length;
+				length += deflater.deflate(out, length, available, Deflater.SYNC_FLUSH);
+				if (length < out.length) break;
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+			return ByteBuffer.wrap(out, 0, length);
+		}
+
+		@Override
+		public void close() {
+			deflater.end();
+		}
+	}
+}
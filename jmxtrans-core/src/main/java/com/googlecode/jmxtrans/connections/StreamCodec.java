@@ -0,0 +1,44 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Compression applied by a {@link TcpTransport} to the byte stream of a connection.
+ *
+ * Implementations are discovered with a {@link java.util.ServiceLoader}: list them in
+ * <code>META-INF/services/com.googlecode.jmxtrans.connections.StreamCodec</code>, and refer to them by
+ * {@link #getName()} in the <code>compression</code> setting of output writers.
+ */
+public interface StreamCodec {
+
+	@Nonnull
+	String getName();
+
+	/**
+	 * Creates the encoder of a new connection, a new stream (header included) starts with each encoder.
+	 */
+	@Nonnull
+	StreamEncoder newEncoder();
+}
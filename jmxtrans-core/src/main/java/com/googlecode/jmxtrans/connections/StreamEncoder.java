@@ -0,0 +1,48 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stateful encoder of a single connection. Only used from the selector thread of the {@link TcpTransport}.
+ */
+public interface StreamEncoder {
+
+	/**
+	 * Encodes a chunk and flushes the encoder, so that the receiver can decode everything sent so far without waiting
+	 * for more data.
+	 *
+	 * @param raw not modified by the encoder.
+	 * @return the encoded bytes, only valid until the next call.
+	 */
+	@Nonnull
+	ByteBuffer encode(@Nonnull ByteBuffer raw) throws IOException;
+
+	/**
+	 * Releases the resources of the encoder, the stream is not terminated as the connection is already gone.
+	 */
+	void close();
+}
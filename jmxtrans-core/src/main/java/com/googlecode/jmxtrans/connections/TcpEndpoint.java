@@ -0,0 +1,75 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Outbound side of a TCP connection managed by a {@link TcpTransport}.
+ *
+ * Writers only enqueue bytes, connecting, writing and reconnecting are handled by the transport.
+ */
+public interface TcpEndpoint {
+
+	@Nonnull
+	InetSocketAddress getAddress();
+
+	/**
+	 * Queues bytes to be sent. The bytes are copied, the array can be reused as soon as this method returns.
+	 *
+	 * Bytes sent in a single call are never interleaved with bytes from another call, and are dropped as a whole if the
+	 * connection fails before any of them could be written.
+	 *
+	 * @throws IOException if the outbound buffer stays full for too long, or if the transport is closed.
+	 */
+	void send(@Nonnull byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * Waits until all queued bytes have been handed to the socket.
+	 *
+	 * @return false if bytes are still queued after the timeout.
+	 */
+	boolean awaitEmpty(long timeoutMillis) throws InterruptedException;
+
+	/**
+	 * Gives back the endpoint obtained from the transport. The connection is closed once all the writers sharing it
+	 * have released it, bytes still queued are lost: call {@link #awaitEmpty(long)} first to send them.
+	 */
+	void release();
+
+	long getPendingBytes();
+
+	boolean isConnected();
+
+	/**
+	 * Bytes handed to the socket, before compression.
+	 */
+	long getRawBytesSent();
+
+	/**
+	 * Bytes handed to the socket, after compression.
+	 */
+	long getEncodedBytesSent();
+}
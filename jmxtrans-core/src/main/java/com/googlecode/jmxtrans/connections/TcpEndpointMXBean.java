@@ -0,0 +1,65 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+/**
+ * Monitoring of a {@link TcpEndpoint}, registered by its {@link TcpTransport}.
+ */
+public interface TcpEndpointMXBean {
+
+	String getRemoteAddress();
+
+	/**
+	 * @return the name of the {@link StreamCodec}, or "none".
+	 */
+	String getCompression();
+
+	boolean isConnected();
+
+	long getPendingBytes();
+
+	long getRawBytesSent();
+
+	long getEncodedBytesSent();
+
+	/**
+	 * @return connections which failed to open, were closed by the server, or stalled.
+	 */
+	long getFailures();
+
+	/**
+	 * @return bytes dropped because the outbound buffer stayed full, or because the connection failed while they were
+	 * partially written.
+	 */
+	long getDroppedBytes();
+
+	/**
+	 * @return the cause of the last connection failure, or null.
+	 */
+	String getLastFailure();
+
+	/**
+	 * @return raw bytes divided by encoded bytes, 1 before anything has been sent.
+	 */
+	double getCompressionRatio();
+}
@@ -0,0 +1,670 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static java.nio.channels.SelectionKey.OP_CONNECT;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+
+/**
+ * Non blocking TCP transport shared by output writers.
+ *
+ * A single selector thread owns all the sockets. Writers enqueue bytes to a {@link TcpEndpoint}, one per remote
+ * address, and never wait for the network unless the outbound buffer of that endpoint is full:
+ *
+ * <ul>
+ *   <li>connections are opened when there is something to send, and reopened after a failure, with an exponential
+ *   backoff between <code>minReconnectDelayMillis</code> and <code>maxReconnectDelayMillis</code>;</li>
+ *   <li>once <code>highWatermark</code> bytes are queued for an endpoint, writers block until the queue drains
+ *   below <code>lowWatermark</code>, and get an {@link IOException} if that takes more than
+ *   <code>enqueueTimeoutMillis</code>;</li>
+ *   <li>a connection which has bytes to send but could not write any of them for <code>writeTimeoutMillis</code> is
+ *   considered dead, and is closed and reopened.</li>
+ * </ul>
+ *
+ * Each call to {@link #endpoint(InetSocketAddress, StreamCodec)} must be matched by a call to
+ * {@link TcpEndpoint#release()}, usually when the writer stops. The connection is closed, and its MBean unregistered,
+ * once all the writers using it have released it.
+ *
+ * Nothing is ever read from the sockets, the read side is only watched to detect connections closed by the server.
+ */
+@ThreadSafe
+public class TcpTransport implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(TcpTransport.class);
+
+	private static final long MAX_SELECT_MILLIS = 1000;
+	private static final String NO_COMPRESSION = "none";
+
+	private final long connectTimeoutMillis;
+	private final long minReconnectDelayMillis;
+	private final long maxReconnectDelayMillis;
+	private final long highWatermark;
+	private final long lowWatermark;
+	private final long enqueueTimeoutMillis;
+	private final long writeTimeoutMillis;
+
+	private final ConcurrentMap<EndpointKey, Connection> connections = new ConcurrentHashMap<EndpointKey, Connection>();
+	/** Connections released by all their writers, waiting for the selector thread to close them. */
+	private final Queue<Connection> releasedConnections = new ConcurrentLinkedQueue<Connection>();
+
+	/** Only used from the selector thread. */
+	private final ByteBuffer discardBuffer = ByteBuffer.allocate(1024);
+
+	private volatile Selector selector;
+	@GuardedBy("this")
+	private Thread selectorThread;
+	private volatile boolean started = false;
+	private volatile boolean closed = false;
+
+	private TcpTransport(Builder builder) {
+		checkArgument(builder.lowWatermark <= builder.highWatermark, "lowWatermark must not exceed highWatermark");
+		checkArgument(builder.minReconnectDelayMillis > 0, "minReconnectDelayMillis must be positive");
+		checkArgument(builder.writeTimeoutMillis > 0, "writeTimeoutMillis must be positive");
+		this.connectTimeoutMillis = builder.connectTimeoutMillis;
+		this.minReconnectDelayMillis = builder.minReconnectDelayMillis;
+		this.maxReconnectDelayMillis = Math.max(builder.minReconnectDelayMillis, builder.maxReconnectDelayMillis);
+		this.highWatermark = builder.highWatermark;
+		this.lowWatermark = builder.lowWatermark;
+		this.enqueueTimeoutMillis = builder.enqueueTimeoutMillis;
+		this.writeTimeoutMillis = builder.writeTimeoutMillis;
+	}
+
+	/**
+	 * Transport shared by all writers of this JVM, its selector thread is a daemon and is started on first use.
+	 */
+	public static TcpTransport shared() {
+		return SharedHolder.INSTANCE;
+	}
+
+	@Nonnull
+	public TcpEndpoint endpoint(@Nonnull InetSocketAddress address) {
+		return endpoint(address, null);
+	}
+
+	/**
+	 * @param codec compression of the stream, connections are shared only by writers using the same codec.
+	 */
+	@Nonnull
+	public TcpEndpoint endpoint(@Nonnull InetSocketAddress address, @Nullable StreamCodec codec) {
+		EndpointKey key = new EndpointKey(address, codec == null ? NO_COMPRESSION : codec.getName());
+		while (true) {
+			Connection connection = connections.get(key);
+			if (connection == null) {
+				Connection created = new Connection(key, codec);
+				connection = connections.putIfAbsent(key, created);
+				if (connection == null) {
+					connection = created;
+					register(connection);
+				}
+			}
+			if (connection.retain()) {
+				return connection;
+			}
+			// released by its last writer in the meantime
+			connections.remove(key, connection);
+		}
+	}
+
+	private void register(Connection connection) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(connection, connection.getObjectName());
+		} catch (Exception e) {
+			log.warn("Could not register MBean for endpoint {}", connection.getRemoteAddress(), e);
+		}
+	}
+
+	private void unregister(Connection connection) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(connection.getObjectName());
+		} catch (Exception e) {
+			log.debug("Could not unregister MBean for endpoint {}", connection.getRemoteAddress(), e);
+		}
+	}
+
+	/**
+	 * Stops the selector thread and closes all connections, bytes still queued are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		Thread thread;
+		synchronized (this) {
+			closed = true;
+			thread = selectorThread;
+		}
+		for (Connection connection : connections.values()) {
+			synchronized (connection) {
+				connection.notifyAll();
+			}
+			unregister(connection);
+		}
+		if (thread != null) {
+			selector.wakeup();
+			try {
+				thread.join(MAX_SELECT_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void ensureStarted() throws IOException {
+		if (closed) {
+			throw new IOException("TCP transport is closed");
+		}
+		if (started) {
+			return;
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("TCP transport is closed");
+			}
+			if (selectorThread == null) {
+				selector = Selector.open();
+				selectorThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						selectLoop();
+					}
+				}, "jmxtrans-tcp-transport");
+				selectorThread.setDaemon(true);
+				selectorThread.start();
+			}
+			started = true;
+		}
+	}
+
+	private void selectLoop() {
+		try {
+			while (!closed) {
+				try {
+					Connection releasedConnection;
+					while ((releasedConnection = releasedConnections.poll()) != null) {
+						releasedConnection.disconnect();
+					}
+					long now = System.currentTimeMillis();
+					long timeout = MAX_SELECT_MILLIS;
+					for (Connection connection : connections.values()) {
+						timeout = Math.min(timeout, connection.tick(now));
+					}
+					selector.select(Math.max(1, timeout));
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						((Connection) key.attachment()).onReady(key, System.currentTimeMillis());
+					}
+				} catch (ClosedSelectorException e) {
+					return;
+				} catch (IOException e) {
+					log.error("Unexpected error in TCP transport", e);
+				}
+			}
+		} finally {
+			for (Connection connection : connections.values()) {
+				connection.disconnect();
+			}
+			for (Connection connection : releasedConnections) {
+				connection.disconnect();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				log.warn("Could not close selector", e);
+			}
+		}
+	}
+
+	/**
+	 * The outbound queue is guarded by the connection itself, everything related to the socket is only accessed
+	 * from the selector thread.
+	 *
+	 * Chunks are encoded just before being written, so that a chunk that could not be written at all is encoded again
+	 * for the next connection.
+	 */
+	@ThreadSafe
+	private final class Connection implements TcpEndpoint, TcpEndpointMXBean {
+		@Nonnull private final EndpointKey key;
+		@Nonnull private final InetSocketAddress address;
+		@Nullable private final StreamCodec codec;
+
+		@GuardedBy("this") private final Deque<ByteBuffer> queue = new ArrayDeque<ByteBuffer>();
+		/** Raw bytes queued or being written. */
+		@GuardedBy("this") private long pending = 0;
+		@GuardedBy("this") private boolean saturated = false;
+		/** Writers using this endpoint, it is closed when the count gets back to 0. */
+		@GuardedBy("this") private int references = 0;
+		@GuardedBy("this") private boolean released = false;
+
+		private final AtomicLong rawBytesSent = new AtomicLong();
+		private final AtomicLong encodedBytesSent = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong droppedBytes = new AtomicLong();
+		private volatile String lastFailure;
+
+		private SocketChannel channel;
+		private SelectionKey selectionKey;
+		private StreamEncoder encoder;
+		private ByteBuffer currentRaw;
+		private ByteBuffer current;
+		private boolean connecting = false;
+		private long connectDeadline;
+		private long nextAttempt = 0;
+		private long reconnectDelay = minReconnectDelayMillis;
+		/** Last time bytes were written, or the queue was seen empty. */
+		private long lastProgress;
+		private volatile boolean connected = false;
+
+		private Connection(@Nonnull EndpointKey key, @Nullable StreamCodec codec) {
+			this.key = key;
+			this.address = key.address;
+			this.codec = codec;
+		}
+
+		private synchronized boolean retain() {
+			if (released) {
+				return false;
+			}
+			references++;
+			return true;
+		}
+
+		@Override
+		public void release() {
+			synchronized (this) {
+				if (released) {
+					return;
+				}
+				if (--references > 0) {
+					return;
+				}
+				released = true;
+				notifyAll();
+			}
+			connections.remove(key, this);
+			unregister(this);
+			releasedConnections.add(this);
+			if (started) {
+				selector.wakeup();
+			}
+		}
+
+		@Nonnull
+		@Override
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return address.getHostName() + ":" + address.getPort();
+		}
+
+		@Override
+		public String getCompression() {
+			return codec == null ? NO_COMPRESSION : codec.getName();
+		}
+
+		private ObjectName getObjectName() throws MalformedObjectNameException {
+			return new ObjectName("com.googlecode.jmxtrans:Type=TcpEndpoint"
+					+ ",Transport=" + Integer.toHexString(System.identityHashCode(TcpTransport.this))
+					+ ",Address=" + ObjectName.quote(getRemoteAddress())
+					+ ",Compression=" + getCompression());
+		}
+
+		@Override
+		public void send(@Nonnull byte[] data, int offset, int length) throws IOException {
+			checkPositionIndexes(offset, offset + length, data.length);
+			if (length == 0) return;
+			ensureStarted();
+			ByteBuffer copy = ByteBuffer.wrap(Arrays.copyOfRange(data, offset, offset + length));
+
+			synchronized (this) {
+				long deadline = System.currentTimeMillis() + enqueueTimeoutMillis;
+				while (saturated && !closed && !released) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						droppedBytes.addAndGet(length);
+						throw new IOException(String.format(
+								"Outbound buffer to %s is full (%d bytes pending), dropping %d bytes",
+								address, pending, length));
+					}
+					waitInterruptibly(remaining);
+				}
+				if (closed) {
+					throw new IOException("TCP transport is closed");
+				}
+				if (released) {
+					throw new IOException("Endpoint to " + address + " has been released");
+				}
+				queue.add(copy);
+				pending += length;
+				if (pending >= highWatermark) {
+					saturated = true;
+				}
+			}
+			selector.wakeup();
+		}
+
+		@Override
+		public synchronized boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			while (pending > 0 && !closed && !released) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) break;
+				wait(remaining);
+			}
+			return pending == 0;
+		}
+
+		@Override
+		public synchronized long getPendingBytes() {
+			return pending;
+		}
+
+		@Override
+		public boolean isConnected() {
+			return connected;
+		}
+
+		@Override
+		public long getRawBytesSent() {
+			return rawBytesSent.get();
+		}
+
+		@Override
+		public long getEncodedBytesSent() {
+			return encodedBytesSent.get();
+		}
+
+		@Override
+		public long getFailures() {
+			return failures.get();
+		}
+
+		@Override
+		public long getDroppedBytes() {
+			return droppedBytes.get();
+		}
+
+		@Override
+		public String getLastFailure() {
+			return lastFailure;
+		}
+
+		@Override
+		public double getCompressionRatio() {
+			long encoded = encodedBytesSent.get();
+			return encoded == 0 ? 1 : (double) rawBytesSent.get() / encoded;
+		}
+
+		private void waitInterruptibly(long millis) throws InterruptedIOException {
+			try {
+				wait(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for room in outbound buffer to " + address);
+			}
+		}
+
+		/**
+		 * Opens or times out connections, closes stalled connections and updates interest in writes.
+		 *
+		 * @return how long, in milliseconds, until this connection needs attention again.
+		 */
+		private long tick(long now) {
+			if (channel == null) {
+				if (getPendingBytes() == 0) return MAX_SELECT_MILLIS;
+				if (now < nextAttempt) return nextAttempt - now;
+				connect(now);
+				return channel == null ? nextAttempt - now : connectTimeoutMillis;
+			}
+			if (connecting) {
+				if (now >= connectDeadline) {
+					fail(new ConnectException("Connection timed out"), now);
+					return nextAttempt - now;
+				}
+				return connectDeadline - now;
+			}
+			if (getPendingBytes() == 0) {
+				lastProgress = now;
+			} else if (now - lastProgress >= writeTimeoutMillis) {
+				fail(new SocketTimeoutException("Could not write for " + (now - lastProgress) + "ms"), now);
+				return nextAttempt - now;
+			}
+			updateInterest();
+			return Math.min(MAX_SELECT_MILLIS, lastProgress + writeTimeoutMillis - now);
+		}
+
+		private void connect(long now) {
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.socket().setKeepAlive(true);
+				// resolve again on each attempt, the server might have moved
+				InetSocketAddress resolved = new InetSocketAddress(address.getHostName(), address.getPort());
+				if (resolved.isUnresolved()) {
+					throw new UnknownHostException(address.getHostName());
+				}
+				if (channel.connect(resolved)) {
+					selectionKey = channel.register(selector, OP_READ, this);
+					onConnected(now);
+				} else {
+					connecting = true;
+					connectDeadline = now + connectTimeoutMillis;
+					selectionKey = channel.register(selector, OP_CONNECT, this);
+				}
+			} catch (IOException e) {
+				fail(e, now);
+			}
+		}
+
+		private void onReady(SelectionKey readyKey, long now) {
+			try {
+				if (readyKey.isConnectable()) {
+					channel.finishConnect();
+					onConnected(now);
+				}
+				if (readyKey.isValid() && readyKey.isReadable()) {
+					discardBuffer.clear();
+					if (channel.read(discardBuffer) < 0) {
+						throw new EOFException("Connection closed by server");
+					}
+				}
+				if (readyKey.isValid() && readyKey.isWritable()) {
+					writePending(now);
+				}
+			} catch (IOException e) {
+				fail(e, now);
+			}
+		}
+
+		private void onConnected(long now) {
+			connecting = false;
+			connected = true;
+			lastProgress = now;
+			reconnectDelay = minReconnectDelayMillis;
+			encoder = codec == null ? null : codec.newEncoder();
+			log.info("Connected to {}", address);
+			updateInterest();
+		}
+
+		private void updateInterest() {
+			selectionKey.interestOps(getPendingBytes() > 0 ? OP_READ | OP_WRITE : OP_READ);
+		}
+
+		private void writePending(long now) throws IOException {
+			while (true) {
+				if (current == null) {
+					synchronized (this) {
+						currentRaw = queue.poll();
+					}
+					if (currentRaw == null) break;
+					current = encoder == null ? currentRaw.duplicate() : encoder.encode(currentRaw);
+				}
+				int written = channel.write(current);
+				if (written > 0) {
+					encodedBytesSent.addAndGet(written);
+					lastProgress = now;
+				}
+				if (current.hasRemaining()) break;
+
+				rawBytesSent.addAndGet(currentRaw.remaining());
+				chunkDone();
+			}
+			updateInterest();
+		}
+
+		/**
+		 * The current chunk is either written or dropped.
+		 */
+		private void chunkDone() {
+			synchronized (this) {
+				pending -= currentRaw.remaining();
+				if (saturated && pending <= lowWatermark) {
+					saturated = false;
+				}
+				notifyAll();
+			}
+			current = null;
+			currentRaw = null;
+		}
+
+		private void fail(IOException cause, long now) {
+			disconnect();
+			if (current != null) {
+				if (current.position() > 0) {
+					// the server has received part of this chunk, sending the rest would garble the stream
+					log.warn("Dropping {} bytes partially sent to {}", currentRaw.remaining(), address);
+					droppedBytes.addAndGet(currentRaw.remaining());
+					chunkDone();
+				} else {
+					synchronized (this) {
+						queue.addFirst(currentRaw);
+					}
+					current = null;
+					currentRaw = null;
+				}
+			}
+			failures.incrementAndGet();
+			lastFailure = cause.toString();
+			log.warn("Connection to {} failed ({}), retrying in {}ms", address, cause.toString(), reconnectDelay);
+			nextAttempt = now + reconnectDelay;
+			reconnectDelay = Math.min(reconnectDelay * 2, maxReconnectDelayMillis);
+		}
+
+		private void disconnect() {
+			connecting = false;
+			connected = false;
+			if (selectionKey != null) {
+				selectionKey.cancel();
+				selectionKey = null;
+			}
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					log.debug("Could not close connection to {}", address, e);
+				}
+				channel = null;
+			}
+			if (encoder != null) {
+				encoder.close();
+				encoder = null;
+			}
+		}
+	}
+
+	@EqualsAndHashCode
+	@RequiredArgsConstructor
+	private static final class EndpointKey {
+		@Nonnull private final InetSocketAddress address;
+		@Nonnull private final String compression;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	@NotThreadSafe
+	@Accessors(chain = true)
+	public static final class Builder {
+		@Setter private long connectTimeoutMillis = 5000;
+		@Setter private long minReconnectDelayMillis = 100;
+		@Setter private long maxReconnectDelayMillis = 30000;
+		@Setter private long highWatermark = 4 * 1024 * 1024;
+		@Setter private long lowWatermark = 1024 * 1024;
+		@Setter private long enqueueTimeoutMillis = 1000;
+		@Setter private long writeTimeoutMillis = 30000;
+
+		private Builder() {}
+
+		public TcpTransport build() {
+			return new TcpTransport(this);
+		}
+	}
+
+	private static final class SharedHolder {
+		private static final TcpTransport INSTANCE = builder().build();
+	}
+}
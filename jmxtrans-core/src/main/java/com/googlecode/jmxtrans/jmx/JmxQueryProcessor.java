@@ -27,6 +27,7 @@ import com.googlecode.jmxtrans.model.OutputWriter;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.model.results.TransformedResults;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -92,8 +93,10 @@ public class JmxQueryProcessor {
 	}
 
 	private void runOutputWritersForQuery(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		// writers sharing the same value transformation share the same transformed results
+		TransformedResults transformedResults = new TransformedResults(results);
 		for (OutputWriter writer : query.getOutputWriterInstances()) {
-			writer.doWrite(server, query, results);
+			transformedResults.writeTo(writer, server, query);
 		}
 		log.debug("Finished running outputWriters for query: {}", query);
 	}
@@ -26,6 +26,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.util.StringInterner;
 
 import javax.management.Attribute;
 import javax.management.ObjectInstance;
@@ -42,20 +43,26 @@ import java.util.Set;
 
 import static com.google.common.collect.ImmutableList.Builder;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.googlecode.jmxtrans.util.NumberUtils.normalize;
 
 public class JmxResultProcessor {
 
+	/**
+	 * Names are the same from one cycle to the next, interning them avoids keeping lots of duplicate strings alive.
+	 */
+	private static final StringInterner interner = StringInterner.shared();
+
 	private final Query query;
-	private final ObjectInstance objectInstance;
 	private final String className;
 	private final String objDomain;
+	private final String typeName;
 	private final List<Attribute> attributes;
 
 	public JmxResultProcessor(Query query, ObjectInstance objectInstance, List<Attribute> attributes, String className, String objDomain) {
 		this.query = query;
-		this.objectInstance = objectInstance;
-		this.className = className;
-		this.objDomain = objDomain;
+		this.className = interner.intern(className);
+		this.objDomain = interner.intern(objDomain);
+		this.typeName = interner.intern(objectInstance.getObjectName().getKeyPropertyListString());
 		this.attributes = attributes;
 	}
 
@@ -183,9 +190,14 @@ public class JmxResultProcessor {
 	}
 
 	/**
-	 * Builds up the base Result object
+	 * Builds up the base Result object. Values are normalized once here (see {@link com.googlecode.jmxtrans.util.NumberUtils#normalize(Object)})
+	 * so that output writers do not need to parse them again.
 	 */
 	private Result getNewResultObject(String attributeName, Map<String, Object> values) {
-		return new Result(System.currentTimeMillis(), attributeName, className, objDomain, query.getResultAlias(), objectInstance.getObjectName().getKeyPropertyListString(), values);
+		ImmutableMap.Builder<String, Object> normalizedValues = ImmutableMap.builder();
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			normalizedValues.put(interner.intern(entry.getKey()), normalize(entry.getValue()));
+		}
+		return new Result(System.currentTimeMillis(), interner.intern(attributeName), className, objDomain, query.getResultAlias(), typeName, normalizedValues.build());
 	}
 }
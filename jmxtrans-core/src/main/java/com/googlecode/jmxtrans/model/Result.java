@@ -22,8 +22,10 @@
  */
 package com.googlecode.jmxtrans.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.naming.typename.TypeNameValues;
 import lombok.Getter;
 
 import javax.annotation.Nonnull;
@@ -50,6 +52,8 @@ public class Result {
 	@Getter private final long epoch;
 	/** Specified as part of the query. */
 	@Getter private final String keyAlias;
+	/** Parsed form of the type name, lazily looked up in the shared cache. */
+	private volatile TypeNameValues typeNameValues;
 
 	public Result(long epoch, String attributeName, String className, String objDomain, String keyAlias, String typeName, Map<String, Object> values) {
 		this.className = className;
@@ -61,6 +65,18 @@ public class Result {
 		this.keyAlias = keyAlias;
 	}
 
+	@JsonIgnore
+	@Nonnull
+	public TypeNameValues getTypeNameValues() {
+		TypeNameValues parsed = typeNameValues;
+		if (parsed == null) {
+			// racy but idempotent, all threads get the same shared instance from the cache
+			parsed = TypeNameValues.of(typeName);
+			typeNameValues = parsed;
+		}
+		return parsed;
+	}
+
 	@Override
 	public String toString() {
 		return "Result [attributeName=" + attributeName + ", className=" + className + ", objDomain=" + objDomain + ", typeName=" + typeName + ", values=" + values + ", epoch="
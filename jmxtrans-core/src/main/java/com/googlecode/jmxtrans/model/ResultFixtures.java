@@ -66,6 +66,14 @@ public final class ResultFixtures {
 				ImmutableMap.<String, Object>of("ObjectPendingFinalizationCount", 10));
 	}
 
+	public static ImmutableList<Result> numericResults(int count) {
+		ImmutableList.Builder<Result> results = ImmutableList.builder();
+		for (int i = 0; i < count; i++) {
+			results.add(numericResult());
+		}
+		return results.build();
+	}
+
 	public static ImmutableList<Result> singleFalseResult() {
 		return ImmutableList.of(booleanFalseResult());
 	}
@@ -0,0 +1,202 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.naming;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Objects.equal;
+
+/**
+ * Builds the same keys as {@link KeyUtils#getKeyString(Server, Query, Result, Map.Entry, List, String)}, but caches
+ * them, as the same keys are built again at every query cycle.
+ *
+ * One instance is meant to be created per output writer, as the type names and root prefix of the writer are part of
+ * the keys. Keys only hold the strings, type names and flags the key string depends on, not the servers and queries themselves,
+ * so that servers and queries of replaced configurations can be garbage collected.
+ */
+@ThreadSafe
+public class CachedKeyStringBuilder {
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 64 * 1024;
+	private static final long EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+	@Nonnull private final ImmutableList<String> typeNames;
+	@Nullable private final String rootPrefix;
+	private final boolean replaceParentheses;
+
+	/** Root prefix and server alias, computing the alias requires parsing the server URL. */
+	private final LoadingCache<Server, String> serverPrefixes = CacheBuilder.newBuilder()
+			.weakKeys()
+			.build(new CacheLoader<Server, String>() {
+				@Override
+				public String load(@Nonnull Server server) {
+					return getServerPrefix(server);
+				}
+			});
+
+	private final Cache<Key, String> keys;
+
+	public CachedKeyStringBuilder(@Nullable List<String> typeNames, @Nullable String rootPrefix, boolean replaceParentheses) {
+		this(typeNames, rootPrefix, replaceParentheses, DEFAULT_MAXIMUM_SIZE);
+	}
+
+	public CachedKeyStringBuilder(@Nullable List<String> typeNames, @Nullable String rootPrefix, boolean replaceParentheses, long maximumSize) {
+		this.typeNames = typeNames == null ? ImmutableList.<String>of() : ImmutableList.copyOf(typeNames);
+		this.rootPrefix = rootPrefix;
+		this.replaceParentheses = replaceParentheses;
+		this.keys = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+				.build();
+	}
+
+	/**
+	 * Gets the key string, prefixed with the root prefix and the server alias.
+	 *
+	 * If parentheses replacement is enabled, parentheses are replaced by underscores, as graphite does not like them.
+	 */
+	public String getKeyString(Server server, Query query, Result result, Map.Entry<String, Object> values) {
+		String serverPrefix = serverPrefixes.getUnchecked(server);
+		Key key = new Key(serverPrefix, queryFlags(query), query.getTypeNames(), result, values.getKey());
+		String keyString = keys.getIfPresent(key);
+		if (keyString == null) {
+			keyString = serverPrefix + KeyUtils.getKeyString(query, result, values, typeNames);
+			if (replaceParentheses) {
+				keyString = keyString.replace('(', '_').replace(')', '_');
+			}
+			keys.put(key, keyString);
+		}
+		return keyString;
+	}
+
+	/**
+	 * The settings of a query which change its key strings.
+	 */
+	private static int queryFlags(Query query) {
+		return (query.isUseObjDomainAsKey() ? 1 : 0)
+				| (query.isAllowDottedKeys() ? 2 : 0)
+				| (query.isUseAllTypeNames() ? 4 : 0);
+	}
+
+	private String getServerPrefix(Server server) {
+		StringBuilder sb = new StringBuilder();
+		if (rootPrefix != null) {
+			sb.append(rootPrefix);
+			sb.append(".");
+		}
+		if (server.getAlias() != null) {
+			sb.append(server.getAlias());
+		} else {
+			sb.append(StringUtils.cleanupStr(server.getHost() + "_" + server.getPort()));
+		}
+		sb.append(".");
+		return sb.toString();
+	}
+
+	/**
+	 * Everything the key string depends on. Strings coming from results are usually interned, so comparing them is
+	 * cheap.
+	 */
+	private static final class Key {
+		private final String serverPrefix;
+		private final int queryFlags;
+		private final ImmutableSet<String> queryTypeNames;
+		private final String className;
+		private final String objDomain;
+		private final String keyAlias;
+		private final String typeName;
+		private final String attributeName;
+		private final String valueKey;
+		private final int hashCode;
+
+		private Key(String serverPrefix, int queryFlags, ImmutableSet<String> queryTypeNames, Result result, String valueKey) {
+			this.serverPrefix = serverPrefix;
+			this.queryFlags = queryFlags;
+			this.queryTypeNames = queryTypeNames;
+			this.className = result.getClassName();
+			this.objDomain = result.getObjDomain();
+			this.keyAlias = result.getKeyAlias();
+			this.typeName = result.getTypeName();
+			this.attributeName = result.getAttributeName();
+			this.valueKey = valueKey;
+			this.hashCode = computeHashCode();
+		}
+
+		private int computeHashCode() {
+			int result = serverPrefix.hashCode();
+			result = 31 * result + queryFlags;
+			result = 31 * result + queryTypeNames.hashCode();
+			result = 31 * result + hash(className);
+			result = 31 * result + hash(objDomain);
+			result = 31 * result + hash(keyAlias);
+			result = 31 * result + hash(typeName);
+			result = 31 * result + hash(attributeName);
+			result = 31 * result + hash(valueKey);
+			return result;
+		}
+
+		private static int hash(@Nullable String value) {
+			return value == null ? 0 : value.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return hashCode == other.hashCode
+					&& queryFlags == other.queryFlags
+					&& serverPrefix.equals(other.serverPrefix)
+					// the order of the type names of a query is the order of the key string
+					&& Iterables.elementsEqual(queryTypeNames, other.queryTypeNames)
+					&& equal(valueKey, other.valueKey)
+					&& equal(attributeName, other.attributeName)
+					&& equal(typeName, other.typeName)
+					&& equal(className, other.className)
+					&& equal(objDomain, other.objDomain)
+					&& equal(keyAlias, other.keyAlias);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+}
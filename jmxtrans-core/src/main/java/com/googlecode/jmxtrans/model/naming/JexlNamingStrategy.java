@@ -22,18 +22,27 @@
  */
 package com.googlecode.jmxtrans.model.naming;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.googlecode.jmxtrans.model.NamingStrategy;
 import com.googlecode.jmxtrans.model.Result;
-import com.googlecode.jmxtrans.model.naming.typename.TypeNameValue;
+import lombok.EqualsAndHashCode;
 import org.apache.commons.jexl2.Expression;
 import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
 import org.apache.commons.jexl2.JexlException;
 import org.apache.commons.jexl2.MapContext;
+import org.apache.commons.jexl2.Script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Map;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Naming strategy which uses an JEXL expression to format the name from the result, its class name, attribute name,
@@ -54,7 +63,13 @@ import java.util.Map;
  * <dt>result</dt>
  * <dd>the full Result object.</dd>
  * </dl>
+ * <p/>
+ * Names only depend on the class name, attribute name, type name and alias of the result, unless the expression uses
+ * the <code>result</code> variable. Names are memoized on those four values, as the same names are formatted again at
+ * every query cycle. Expressions which are simple concatenations of variables and literals are evaluated without
+ * going through JEXL at all.
  */
+@ThreadSafe
 public class JexlNamingStrategy implements NamingStrategy {
 	private static final Logger LOG = LoggerFactory.getLogger(JexlNamingStrategy.class);
 
@@ -66,16 +81,19 @@ public class JexlNamingStrategy implements NamingStrategy {
 	public static final String VAR__TYPENAME = "typename";
 	public static final String VAR__RESULT = "result";
 
+	public static final int MAX_MEMOIZED_NAMES = 64 * 1024;
+
 	protected JexlEngine jexl;
-	protected Expression parsedExpr;
+	protected volatile Expression parsedExpr;
 
+	/** Everything needed to evaluate the current expression, replaced as a whole when the expression changes. */
+	private volatile CompiledExpression compiledExpr;
 
 	/**
 	 * Create a new naming strategy using an JEXL expression and the default expression.
 	 */
 	public JexlNamingStrategy() throws JexlException {
-		jexl = new JexlEngine();
-		this.parsedExpr = jexl.createExpression(DEFAULT_EXPRESSION);
+		this(DEFAULT_EXPRESSION);
 	}
 
 	/**
@@ -85,7 +103,7 @@ public class JexlNamingStrategy implements NamingStrategy {
 	 */
 	public JexlNamingStrategy(String expr) throws JexlException {
 		jexl = new JexlEngine();
-		this.parsedExpr = jexl.createExpression(expr);
+		setExpression(expr);
 	}
 
 	/**
@@ -96,22 +114,17 @@ public class JexlNamingStrategy implements NamingStrategy {
 	 */
 	@Override
 	public String formatName(Result result) {
-		String formatted;
-		JexlContext context = new MapContext();
-
-		this.populateContext(context, result);
-		try {
-			formatted = (String) this.parsedExpr.evaluate(context);
-		} catch (JexlException jexlExc) {
-			LOG.error("error applying JEXL expression to query results", jexlExc);
-			formatted = null;
+		if (getClass() != JexlNamingStrategy.class) {
+			// sub classes might populate the context with anything, names can't be memoized
+			return evaluate(this.parsedExpr, result);
 		}
-
-		return formatted;
+		return this.compiledExpr.formatName(result);
 	}
 
 	public void setExpression(String expr) throws JexlException {
-		this.parsedExpr = this.jexl.createExpression(expr);
+		Expression expression = this.jexl.createExpression(expr);
+		this.compiledExpr = new CompiledExpression(expression, isMemoizable(expression), Concatenation.compile(expr));
+		this.parsedExpr = expression;
 	}
 
 	/**
@@ -125,8 +138,7 @@ public class JexlNamingStrategy implements NamingStrategy {
 		context.set(VAR__ATTRIBUTE_NAME, result.getAttributeName());
 		context.set(VAR__CLASSNAME_ALIAS, result.getKeyAlias());
 
-		Map<String, String> typeNameMap = TypeNameValue.extractMap(result.getTypeName());
-		context.set(VAR__TYPENAME, typeNameMap);
+		context.set(VAR__TYPENAME, result.getTypeNameValues().getMap());
 
 		String effectiveClassname = result.getKeyAlias();
 		if (effectiveClassname == null) {
@@ -136,4 +148,217 @@ public class JexlNamingStrategy implements NamingStrategy {
 
 		context.set(VAR__RESULT, result);
 	}
+
+	@Nullable
+	private String evaluate(Expression expression, Result result) {
+		JexlContext context = new MapContext();
+		this.populateContext(context, result);
+		return evaluate(expression, context);
+	}
+
+	@Nullable
+	private static String evaluate(Expression expression, JexlContext context) {
+		try {
+			return (String) expression.evaluate(context);
+		} catch (JexlException jexlExc) {
+			LOG.error("error applying JEXL expression to query results", jexlExc);
+			return null;
+		}
+	}
+
+	private boolean isMemoizable(Expression expression) {
+		if (!(expression instanceof Script)) return false;
+		for (List<String> variable : this.jexl.getVariables((Script) expression)) {
+			if (!variable.isEmpty() && VAR__RESULT.equals(variable.get(0))) return false;
+		}
+		return true;
+	}
+
+	@ThreadSafe
+	private static final class CompiledExpression {
+		@Nonnull private final Expression expression;
+		@Nullable private final Concatenation concatenation;
+		@Nullable private final Cache<NameKey, String> names;
+
+		private CompiledExpression(@Nonnull Expression expression, boolean memoizable, @Nullable Concatenation concatenation) {
+			this.expression = expression;
+			this.concatenation = concatenation;
+			this.names = memoizable
+					? CacheBuilder.newBuilder().maximumSize(MAX_MEMOIZED_NAMES).<NameKey, String>build()
+					: null;
+		}
+
+		@Nullable
+		public String formatName(Result result) {
+			if (names == null) return evaluate(result);
+
+			NameKey key = new NameKey(result);
+			String name = names.getIfPresent(key);
+			if (name == null) {
+				name = evaluate(result);
+				// failures are not memoized, so that they are still logged
+				if (name != null) names.put(key, name);
+			}
+			return name;
+		}
+
+		@Nullable
+		private String evaluate(Result result) {
+			if (concatenation != null) return concatenation.apply(result);
+			return JexlNamingStrategy.evaluate(expression, new ResultContext(result));
+		}
+	}
+
+	@EqualsAndHashCode
+	private static final class NameKey {
+		private final String className;
+		private final String attributeName;
+		private final String typeName;
+		private final String keyAlias;
+
+		private NameKey(Result result) {
+			this.className = result.getClassName();
+			this.attributeName = result.getAttributeName();
+			this.typeName = result.getTypeName();
+			this.keyAlias = result.getKeyAlias();
+		}
+	}
+
+	/**
+	 * Read only context, equivalent to the one built by {@link #populateContext(JexlContext, Result)}, without copying
+	 * the result into a map.
+	 */
+	private static final class ResultContext implements JexlContext {
+		@Nonnull private final Result result;
+
+		private ResultContext(@Nonnull Result result) {
+			this.result = result;
+		}
+
+		@Override
+		public Object get(String name) {
+			if (VAR__CLASSNAME.equals(name)) return result.getClassName();
+			if (VAR__ATTRIBUTE_NAME.equals(name)) return result.getAttributeName();
+			if (VAR__CLASSNAME_ALIAS.equals(name)) return result.getKeyAlias();
+			if (VAR__EFFECTIVE_CLASSNAME.equals(name)) return effectiveClassName(result);
+			if (VAR__TYPENAME.equals(name)) return result.getTypeNameValues().getMap();
+			if (VAR__RESULT.equals(name)) return result;
+			return null;
+		}
+
+		@Override
+		public void set(String name, Object value) {
+			throw new UnsupportedOperationException("Naming context is read only");
+		}
+
+		@Override
+		public boolean has(String name) {
+			return VAR__CLASSNAME.equals(name)
+					|| VAR__ATTRIBUTE_NAME.equals(name)
+					|| VAR__CLASSNAME_ALIAS.equals(name)
+					|| VAR__EFFECTIVE_CLASSNAME.equals(name)
+					|| VAR__TYPENAME.equals(name)
+					|| VAR__RESULT.equals(name);
+		}
+	}
+
+	private static String effectiveClassName(Result result) {
+		return result.getKeyAlias() != null ? result.getKeyAlias() : result.getClassName();
+	}
+
+	/**
+	 * An expression of the form <code>variable + 'literal' + typename.key + ...</code>, evaluated with a plain
+	 * {@link StringBuilder}.
+	 *
+	 * JEXL adds operands as numbers when both of them look like numbers, and only falls back to concatenation otherwise.
+	 * The expression is only compiled when its first addition involves a literal which can't be part of a number,
+	 * which guarantees that every addition is a concatenation (null operands being concatenated as empty strings).
+	 */
+	static final class Concatenation {
+		private static final Pattern OPERAND = Pattern.compile(
+				"\\s*(?:\"([^\"\\\\]*)\"|'([^'\\\\]*)'|(realclass|attribute|alias|class)|typename\\.([A-Za-z_][A-Za-z0-9_]*))\\s*");
+
+		private final ImmutableList<Operand> operands;
+
+		private Concatenation(ImmutableList<Operand> operands) {
+			this.operands = operands;
+		}
+
+		@Nullable
+		static Concatenation compile(String expression) {
+			ImmutableList.Builder<Operand> operands = ImmutableList.builder();
+			Matcher matcher = OPERAND.matcher(expression);
+			int position = 0;
+			while (true) {
+				matcher.region(position, expression.length());
+				if (!matcher.lookingAt()) return null;
+				operands.add(toOperand(matcher));
+				position = matcher.end();
+				if (position == expression.length()) break;
+				if (expression.charAt(position) != '+') return null;
+				position++;
+			}
+
+			ImmutableList<Operand> compiled = operands.build();
+			if (compiled.size() < 2) return null;
+			if (!isNeverNumeric(compiled.get(0)) && !isNeverNumeric(compiled.get(1))) return null;
+			return new Concatenation(compiled);
+		}
+
+		private static Operand toOperand(Matcher matcher) {
+			if (matcher.group(1) != null) return new Operand(matcher.group(1), null, null);
+			if (matcher.group(2) != null) return new Operand(matcher.group(2), null, null);
+			if (matcher.group(3) != null) return new Operand(null, matcher.group(3), null);
+			return new Operand(null, VAR__TYPENAME, matcher.group(4));
+		}
+
+		/**
+		 * Literals containing a character other than letters, digits, white spaces, signs and dots can't be parsed as
+		 * numbers, and neither can anything they are concatenated with.
+		 */
+		private static boolean isNeverNumeric(Operand operand) {
+			if (operand.literal == null) return false;
+			for (int i = 0; i < operand.literal.length(); i++) {
+				char c = operand.literal.charAt(i);
+				if (!Character.isLetterOrDigit(c) && !Character.isWhitespace(c) && c != '+' && c != '-' && c != '.') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		String apply(Result result) {
+			StringBuilder sb = new StringBuilder();
+			for (Operand operand : operands) {
+				String value;
+				if (operand.literal != null) {
+					value = operand.literal;
+				} else if (VAR__TYPENAME.equals(operand.variable)) {
+					value = result.getTypeNameValues().get(operand.typeNameKey);
+				} else if (VAR__CLASSNAME.equals(operand.variable)) {
+					value = result.getClassName();
+				} else if (VAR__ATTRIBUTE_NAME.equals(operand.variable)) {
+					value = result.getAttributeName();
+				} else if (VAR__CLASSNAME_ALIAS.equals(operand.variable)) {
+					value = result.getKeyAlias();
+				} else {
+					value = effectiveClassName(result);
+				}
+				if (value != null) sb.append(value);
+			}
+			return sb.toString();
+		}
+	}
+
+	private static final class Operand {
+		@Nullable private final String literal;
+		@Nullable private final String variable;
+		@Nullable private final String typeNameKey;
+
+		private Operand(@Nullable String literal, @Nullable String variable, @Nullable String typeNameKey) {
+			this.literal = literal;
+			this.variable = variable;
+			this.typeNameKey = typeNameKey;
+		}
+	}
 }
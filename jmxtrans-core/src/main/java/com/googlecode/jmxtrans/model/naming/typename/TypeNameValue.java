@@ -25,12 +25,8 @@ package com.googlecode.jmxtrans.model.naming.typename;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.Map;
 
-import static com.google.common.collect.Maps.newHashMap;
-
 @EqualsAndHashCode
 public class TypeNameValue {
 	@Getter private String key;
@@ -45,13 +41,8 @@ public class TypeNameValue {
 		this(key, "");
 	}
 
-	public static Iterable<TypeNameValue> extract(final String typeNameStr) {
-		return new Iterable<TypeNameValue>(){
-			@Override
-			public Iterator<TypeNameValue> iterator() {
-				return new TypeNameValuesIterator(typeNameStr);
-			}
-		};
+	public static Iterable<TypeNameValue> extract(String typeNameStr) {
+		return TypeNameValues.of(typeNameStr);
 	}
 
 	/**
@@ -65,59 +56,12 @@ public class TypeNameValue {
 	 * "name"  =>  "PS Eden Space"
 	 * "type"  =>  "MemoryPool"
 	 *
+	 * The returned Map is immutable and shared, see {@link TypeNameValues}.
+	 *
 	 * @param typeNameStr the type name str
 	 * @return Map<String, String> of type-name-key / value pairs.
 	 */
 	public static Map<String, String> extractMap(String typeNameStr) {
-		if (typeNameStr == null) {
-			return Collections.emptyMap();
-		}
-
-		Map<String, String> result = newHashMap();
-		for (TypeNameValue typeNameValue : extract(typeNameStr)) {
-			result.put(typeNameValue.getKey(), typeNameValue.getValue());
-		}
-		return result;
-	}
-
-	private static class TypeNameValuesIterator implements Iterator<TypeNameValue> {
-
-		private String[] tokens;
-		private int iterator;
-
-		public TypeNameValuesIterator(String typeNameStr) {
-			this.tokens = typeNameStr.split(",");
-			this.iterator = 0;
-			skipEmpty();
-		}
-
-		@Override
-		public boolean hasNext() {
-			return iterator < tokens.length;
-		}
-
-		@Override
-		public TypeNameValue next() {
-			String[] keyVal = tokens[iterator].split("=", 2);
-			TypeNameValue result;
-			if (keyVal.length > 1) {
-				result = new TypeNameValue(keyVal[0], keyVal[1]);
-			} else {
-				result = new TypeNameValue(keyVal[0]);
-			}
-			++iterator;
-			skipEmpty();
-			return result;
-		}
-
-		public void remove() {
-			throw new UnsupportedOperationException("remove");
-		}
-
-		private void skipEmpty() {
-			while (iterator < tokens.length && tokens[iterator].isEmpty()) {
-				++iterator;
-			}
-		}
+		return TypeNameValues.of(typeNameStr).getMap();
 	}
 }
@@ -0,0 +1,118 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.naming.typename;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import lombok.Getter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsed form of a type name (the key property list of an ObjectName), for example
+ * <code>name=PS Eden Space,type=MemoryPool</code>.
+ *
+ * Type names do not change from one query cycle to the next, so parsed type names are cached and shared.
+ */
+@Immutable
+@ThreadSafe
+public final class TypeNameValues implements Iterable<TypeNameValue> {
+
+	public static final int MAX_CACHED_TYPE_NAMES = 64 * 1024;
+	private static final long EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+	private static final TypeNameValues EMPTY = new TypeNameValues(ImmutableList.<TypeNameValue>of());
+
+	private static final LoadingCache<String, TypeNameValues> cache = CacheBuilder.newBuilder()
+			.maximumSize(MAX_CACHED_TYPE_NAMES)
+			.expireAfterAccess(EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES)
+			.build(new CacheLoader<String, TypeNameValues>() {
+				@Override
+				public TypeNameValues load(@Nonnull String typeNameStr) {
+					return parse(typeNameStr);
+				}
+			});
+
+	/** Key and values, in the order of the type name. */
+	@Nonnull @Getter private final ImmutableList<TypeNameValue> values;
+	/** Values by key, the last value wins if a key is repeated. */
+	@Nonnull @Getter private final ImmutableMap<String, String> map;
+
+	private TypeNameValues(@Nonnull ImmutableList<TypeNameValue> values) {
+		this.values = values;
+		Map<String, String> map = new LinkedHashMap<String, String>();
+		for (TypeNameValue value : values) {
+			map.put(value.getKey(), value.getValue());
+		}
+		this.map = ImmutableMap.copyOf(map);
+	}
+
+	/**
+	 * Returns the parsed form of the given type name, from the cache if it has already been parsed.
+	 */
+	@Nonnull
+	public static TypeNameValues of(@Nullable String typeNameStr) {
+		if (typeNameStr == null || typeNameStr.isEmpty()) return EMPTY;
+		return cache.getUnchecked(typeNameStr);
+	}
+
+	@Nullable
+	public String get(String key) {
+		return map.get(key);
+	}
+
+	@Override
+	public Iterator<TypeNameValue> iterator() {
+		return values.iterator();
+	}
+
+	private static TypeNameValues parse(String typeNameStr) {
+		ImmutableList.Builder<TypeNameValue> values = ImmutableList.builder();
+		int start = 0;
+		while (start <= typeNameStr.length()) {
+			int end = typeNameStr.indexOf(',', start);
+			if (end < 0) end = typeNameStr.length();
+			if (end > start) {
+				int equals = typeNameStr.indexOf('=', start);
+				if (equals >= 0 && equals < end) {
+					values.add(new TypeNameValue(typeNameStr.substring(start, equals), typeNameStr.substring(equals + 1, end)));
+				} else {
+					values.add(new TypeNameValue(typeNameStr.substring(start, end)));
+				}
+			}
+			start = end + 1;
+		}
+		return new TypeNameValues(values.build());
+	}
+
+}
@@ -51,7 +51,7 @@ public class TypeNameValuesStringBuilder {
 		if ((typeNames == null) || (typeNames.size() == 0)) {
 			return null;
 		}
-		Map<String, String> typeNameValueMap = TypeNameValue.extractMap(typeNameStr);
+		Map<String, String> typeNameValueMap = TypeNameValues.of(typeNameStr).getMap();
 		StringBuilder sb = new StringBuilder();
 		for (String key : typeNames) {
 			String result = typeNameValueMap.get(key);
@@ -35,7 +35,7 @@ public class UseAllTypeNameValuesStringBuilder extends TypeNameValuesStringBuild
 	@Override
 	public String build(List<String> typeNames, String typeNameStr) {
 		List<String> allTypeNames = new ArrayList<String>();
-		for (TypeNameValue typeNameValue : TypeNameValue.extract(typeNameStr)){
+		for (TypeNameValue typeNameValue : TypeNameValues.of(typeNameStr)){
 			if (typeNameValue.getValue() != null && !typeNameValue.getValue().isEmpty()) {
 				allTypeNames.add(typeNameValue.getKey());
 			}
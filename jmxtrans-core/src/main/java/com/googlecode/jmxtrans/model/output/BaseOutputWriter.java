@@ -36,9 +36,12 @@ import com.googlecode.jmxtrans.model.naming.typename.TypeNameValuesStringBuilder
 import com.googlecode.jmxtrans.model.results.BooleanAsNumberValueTransformer;
 import com.googlecode.jmxtrans.model.results.IdentityValueTransformer;
 import com.googlecode.jmxtrans.model.results.ResultValuesTransformer;
+import com.googlecode.jmxtrans.model.results.TransformingOutputWriter;
 import com.googlecode.jmxtrans.model.results.ValueTransformer;
+import com.googlecode.jmxtrans.model.results.ValueTransformerChain;
 import lombok.Getter;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.util.Collections;
@@ -46,7 +49,6 @@ import java.util.List;
 import java.util.Map;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.FluentIterable.from;
 import static com.google.common.collect.ImmutableList.copyOf;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveMap;
 import static com.googlecode.jmxtrans.model.output.Settings.getBooleanSetting;
@@ -59,7 +61,7 @@ import static com.googlecode.jmxtrans.model.output.Settings.getBooleanSetting;
  * @author jon
  */
 @NotThreadSafe
-public abstract class BaseOutputWriter implements OutputWriter, OutputWriterFactory {
+public abstract class BaseOutputWriter implements TransformingOutputWriter, OutputWriterFactory {
 
 	public static final String HOST = "host";
 	public static final String PORT = "port";
@@ -73,7 +75,8 @@ public abstract class BaseOutputWriter implements OutputWriter, OutputWriterFact
 	@Getter private ImmutableList<String> typeNames;
 	@Getter	private boolean debugEnabled;
 	private Map<String, Object> settings;
-	private final ValueTransformer valueTransformer;
+	@Getter @Nonnull private final ValueTransformer valueTransformer;
+	private final ResultValuesTransformer resultValuesTransformer;
 
 	@JsonCreator
 	public BaseOutputWriter(
@@ -100,10 +103,11 @@ public abstract class BaseOutputWriter implements OutputWriter, OutputWriterFact
 		booleanAsNumber = getBooleanSetting(this.settings, BOOLEAN_AS_NUMBER, booleanAsNumber);
 
 		if (booleanAsNumber) {
-			this.valueTransformer = new BooleanAsNumberValueTransformer(1, 0);
+			this.valueTransformer = ValueTransformerChain.of(new BooleanAsNumberValueTransformer(1, 0));
 		} else {
-			this.valueTransformer = new IdentityValueTransformer();
+			this.valueTransformer = ValueTransformerChain.of(new IdentityValueTransformer());
 		}
+		this.resultValuesTransformer = new ResultValuesTransformer(this.valueTransformer);
 	}
 
 	protected <T> T firstNonNull(@Nullable T first, @Nullable T second, @Nullable T third) {
@@ -157,7 +161,12 @@ public abstract class BaseOutputWriter implements OutputWriter, OutputWriterFact
 
 	@Override
 	public final void doWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		internalWrite(server, query, from(results).transform(new ResultValuesTransformer(valueTransformer)).toList());
+		internalWrite(server, query, resultValuesTransformer.transformAll(results));
+	}
+
+	@Override
+	public final void doWriteTransformed(Server server, Query query, ImmutableList<Result> transformedResults) throws Exception {
+		internalWrite(server, query, transformedResults);
 	}
 
 	protected abstract void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception;
@@ -0,0 +1,360 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import com.googlecode.jmxtrans.monitoring.MBeanRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Accumulates the items written by the queries of an output writer and hands them over to a {@link Sink} in one go.
+ * <p/>
+ * With a flush interval, a background flusher sends the pending items and queries keep accumulating items while a
+ * flush waits for the server; beyond {@code maxPendingItems}, items are dropped and counted. Without one, the items
+ * are sent by {@link #afterWrite()} from the thread of the query, and failures are reported to the caller.
+ * <p/>
+ * The {@link Counters} are registered as an MBean while the sender is started.
+ */
+@ThreadSafe
+public class BatchSender<T> {
+
+	private static final Logger log = LoggerFactory.getLogger(BatchSender.class);
+
+	/**
+	 * Sends a batch of items, recording the outcome of its requests in the {@link Counters} of the sender.
+	 */
+	public interface Sink<T> {
+		void send(List<T> items) throws Exception;
+	}
+
+	private final String name;
+	private final Sink<T> sink;
+	private final int flushIntervalInMillis;
+	private final int maxPendingItems;
+	private final Counters counters = new Counters();
+	@Nullable private final MBeanRegistration registration;
+
+	@GuardedBy("this")
+	private List<T> pending = new ArrayList<T>();
+	@GuardedBy("this")
+	private ScheduledExecutorService flusher;
+	private final Object flushLock = new Object();
+
+	private BatchSender(Builder<T> builder) {
+		this.name = builder.name;
+		this.sink = builder.sink;
+		this.flushIntervalInMillis = builder.flushIntervalInMillis;
+		this.maxPendingItems = builder.maxPendingItems;
+		this.registration = builder.owner == null ? null
+				: new MBeanRegistration(counters, builder.owner, builder.type, builder.key, builder.value);
+	}
+
+	public synchronized void start() throws LifecycleException {
+		if (registration != null) {
+			registration.register();
+		}
+		if (flushIntervalInMillis > 0 && flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					.setNameFormat(name + "-flusher-%d")
+					.setDaemon(true)
+					.build());
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Exception e) {
+						log.error("Could not send the pending items of {}", name, e);
+					}
+				}
+			}, flushIntervalInMillis, flushIntervalInMillis, MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Sends the items still pending before unregistering the counters.
+	 */
+	public void stop() throws LifecycleException {
+		synchronized (this) {
+			if (flusher != null) {
+				flusher.shutdown();
+				flusher = null;
+			}
+		}
+		try {
+			flush();
+		} catch (Exception e) {
+			log.warn("Could not send the last items of {}", name, e);
+		}
+		if (registration != null) {
+			registration.unregister();
+		}
+	}
+
+	/**
+	 * @return false if the item was dropped.
+	 */
+	public synchronized boolean add(T item) {
+		if (pending.size() >= maxPendingItems) {
+			counters.itemsDropped.incrementAndGet();
+			return false;
+		}
+		pending.add(item);
+		counters.pendingItems.set(pending.size());
+		return true;
+	}
+
+	/**
+	 * Queues items again for the next flush, typically after a transient failure of the server. Items queued
+	 * meanwhile count towards {@code maxPendingItems} as well, retried items beyond it are dropped.
+	 */
+	public synchronized void retry(Collection<T> items) {
+		for (T item : items) {
+			if (pending.size() >= maxPendingItems) {
+				counters.itemsDropped.incrementAndGet();
+				continue;
+			}
+			pending.add(item);
+			counters.itemsRetried.incrementAndGet();
+		}
+		counters.pendingItems.set(pending.size());
+	}
+
+	/**
+	 * To be called once a query has added its items: sends them when there is no background flusher.
+	 */
+	public void afterWrite() throws Exception {
+		if (flushIntervalInMillis <= 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sends all the pending items. Flushes are serialized, the sink never runs concurrently with itself.
+	 */
+	public void flush() throws Exception {
+		synchronized (flushLock) {
+			List<T> items;
+			synchronized (this) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				items = pending;
+				pending = new ArrayList<T>();
+				counters.pendingItems.set(0);
+			}
+			long start = System.nanoTime();
+			try {
+				sink.send(items);
+			} finally {
+				long duration = MILLISECONDS.convert(System.nanoTime() - start, NANOSECONDS);
+				counters.flushes.incrementAndGet();
+				counters.lastFlushDurationMillis.set(duration);
+				counters.totalFlushDurationMillis.addAndGet(duration);
+			}
+		}
+	}
+
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	public int getMaxPendingItems() {
+		return maxPendingItems;
+	}
+
+	public Counters getCounters() {
+		return counters;
+	}
+
+	public static <T> Builder<T> builder(String name, Sink<T> sink) {
+		return new Builder<T>(name, sink);
+	}
+
+	public static final class Builder<T> {
+		private final String name;
+		private final Sink<T> sink;
+		private int flushIntervalInMillis;
+		private int maxPendingItems = Integer.MAX_VALUE;
+		private Object owner;
+		private String type;
+		private String key;
+		private String value;
+
+		private Builder(String name, Sink<T> sink) {
+			this.name = checkNotNull(name);
+			this.sink = checkNotNull(sink);
+		}
+
+		public Builder<T> setFlushIntervalInMillis(int flushIntervalInMillis) {
+			this.flushIntervalInMillis = flushIntervalInMillis;
+			return this;
+		}
+
+		public Builder<T> setMaxPendingItems(int maxPendingItems) {
+			checkArgument(maxPendingItems > 0, "maxPendingItems must be positive");
+			this.maxPendingItems = maxPendingItems;
+			return this;
+		}
+
+		/**
+		 * Registers the counters under the given type while the sender is started, see {@link MBeanRegistration}.
+		 */
+		public Builder<T> setMBeanName(Object owner, String type, String key, String value) {
+			this.owner = checkNotNull(owner);
+			this.type = checkNotNull(type);
+			this.key = checkNotNull(key);
+			this.value = value;
+			return this;
+		}
+
+		public BatchSender<T> build() {
+			return new BatchSender<T>(this);
+		}
+	}
+
+	/**
+	 * The sink records the requests it sends, the sender records flushes and pending, retried and dropped items.
+	 * Requests may complete asynchronously, every {@link #requestStarted()} is followed by exactly one of
+	 * {@link #requestSucceeded(int)} or {@link #requestFailed(int, int)}.
+	 */
+	public static final class Counters implements BatchSenderMXBean {
+		private final AtomicLong flushes = new AtomicLong();
+		private final AtomicLong lastFlushDurationMillis = new AtomicLong();
+		private final AtomicLong totalFlushDurationMillis = new AtomicLong();
+		private final AtomicLong requestsSent = new AtomicLong();
+		private final AtomicLong requestsFailed = new AtomicLong();
+		private final AtomicInteger requestsInFlight = new AtomicInteger();
+		private final AtomicLong itemsSent = new AtomicLong();
+		private final AtomicLong itemsFailed = new AtomicLong();
+		private final AtomicLong itemsRetried = new AtomicLong();
+		private final AtomicLong itemsDropped = new AtomicLong();
+		private final AtomicInteger pendingItems = new AtomicInteger();
+
+		private Counters() {
+		}
+
+		public void requestStarted() {
+			requestsInFlight.incrementAndGet();
+		}
+
+		public void requestSucceeded(int items) {
+			requestsInFlight.decrementAndGet();
+			requestsSent.incrementAndGet();
+			itemsSent.addAndGet(items);
+		}
+
+		/**
+		 * @param sent items of the request stored by the server anyway.
+		 * @param failed items of the request given up on. Items sent again later are not counted here.
+		 */
+		public void requestFailed(int sent, int failed) {
+			requestsInFlight.decrementAndGet();
+			requestsSent.incrementAndGet();
+			requestsFailed.incrementAndGet();
+			itemsSent.addAndGet(sent);
+			itemsFailed.addAndGet(failed);
+		}
+
+		public void itemsFailed(int items) {
+			itemsFailed.addAndGet(items);
+		}
+
+		public void itemsDropped(int items) {
+			itemsDropped.addAndGet(items);
+		}
+
+		@Override
+		public long getFlushes() {
+			return flushes.get();
+		}
+
+		@Override
+		public long getLastFlushDurationMillis() {
+			return lastFlushDurationMillis.get();
+		}
+
+		@Override
+		public long getTotalFlushDurationMillis() {
+			return totalFlushDurationMillis.get();
+		}
+
+		@Override
+		public long getRequestsSent() {
+			return requestsSent.get();
+		}
+
+		@Override
+		public long getRequestsFailed() {
+			return requestsFailed.get();
+		}
+
+		@Override
+		public int getRequestsInFlight() {
+			return requestsInFlight.get();
+		}
+
+		@Override
+		public long getItemsSent() {
+			return itemsSent.get();
+		}
+
+		@Override
+		public long getItemsFailed() {
+			return itemsFailed.get();
+		}
+
+		@Override
+		public long getItemsRetried() {
+			return itemsRetried.get();
+		}
+
+		@Override
+		public long getItemsDropped() {
+			return itemsDropped.get();
+		}
+
+		@Override
+		public int getPendingItems() {
+			return pendingItems.get();
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.util.Map;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Shape and field names of the documents sent by document-store writers.
+ *
+ * <ul>
+ *   <li>{@value #PER_VALUE}: one document per value of a result, the historical shape and the default;</li>
+ *   <li>{@value #PER_RESULT}: one document per result (an ObjectName and an attribute), with all the values of the
+ *   result in a {@value #VALUES} sub-object. A composite such as <code>HeapMemoryUsage</code> then gives one
+ *   document instead of four.</li>
+ * </ul>
+ *
+ * Fields can be renamed, for example <code>{"server": "host"}</code>. Fields that are not renamed keep the name the
+ * writer always used, so documents stay compatible with existing indices and consumers unless explicitly configured
+ * otherwise.
+ */
+@Immutable
+public final class DocumentLayout {
+
+	public static final String PER_VALUE = "perValue";
+	public static final String PER_RESULT = "perResult";
+	public static final String VALUES = "values";
+
+	@Nonnull private final String shape;
+	@Nonnull private final ImmutableMap<String, String> fieldNames;
+
+	public DocumentLayout(@Nullable String shape, @Nullable Map<String, String> fieldNames) {
+		this.shape = firstNonNull(shape, PER_VALUE);
+		checkArgument(PER_VALUE.equals(this.shape) || PER_RESULT.equals(this.shape),
+				"Document shape must be %s or %s", PER_VALUE, PER_RESULT);
+		this.fieldNames = fieldNames == null ? ImmutableMap.<String, String>of() : ImmutableMap.copyOf(fieldNames);
+	}
+
+	public boolean isPerResult() {
+		return PER_RESULT.equals(shape);
+	}
+
+	/**
+	 * @return the configured name of a field, or its default name when it is not renamed.
+	 */
+	@Nonnull
+	public String field(@Nonnull String defaultName) {
+		String name = fieldNames.get(defaultName);
+		return name == null ? defaultName : name;
+	}
+
+	@Nonnull
+	public String getShape() {
+		return shape;
+	}
+
+	@Nonnull
+	public Map<String, String> getFieldNames() {
+		return fieldNames;
+	}
+}
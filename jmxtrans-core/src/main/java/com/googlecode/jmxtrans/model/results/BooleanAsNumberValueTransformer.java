@@ -22,8 +22,11 @@
  */
 package com.googlecode.jmxtrans.model.results;
 
+import lombok.EqualsAndHashCode;
+
 import javax.annotation.Nullable;
 
+@EqualsAndHashCode
 public class BooleanAsNumberValueTransformer implements ValueTransformer {
 
 	private final Number valueForTrue;
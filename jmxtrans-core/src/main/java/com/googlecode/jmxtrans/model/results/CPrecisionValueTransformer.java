@@ -22,20 +22,48 @@
  */
 package com.googlecode.jmxtrans.model.results;
 
+import lombok.EqualsAndHashCode;
+
 import javax.annotation.Nullable;
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+@EqualsAndHashCode
 public class CPrecisionValueTransformer implements ValueTransformer {
 
 	private static final BigDecimal C_PRECISION = new BigDecimal("1E-308");
+	private static final double C_PRECISION_DOUBLE = C_PRECISION.doubleValue();
 
 	@Nullable
 	@Override
 	public Object apply(Object input) {
 		if (input == null) return null;
-		if (!Number.class.isAssignableFrom(input.getClass())) return input;
+		if (!(input instanceof Number)) return input;
+
+		// primitive wrappers are compared without going through their String representation
+		if (input instanceof Double || input instanceof Float) {
+			if (Math.abs(((Number) input).doubleValue()) < C_PRECISION_DOUBLE) return 0;
+			return input;
+		}
+		if (input instanceof Long || input instanceof Integer || input instanceof Short || input instanceof Byte) {
+			if (((Number) input).longValue() == 0) return 0;
+			return input;
+		}
+
+		if (input instanceof AtomicLong || input instanceof AtomicInteger) {
+			if (((Number) input).longValue() == 0) return 0;
+			return input;
+		}
+		if (input instanceof BigInteger) {
+			if (((BigInteger) input).signum() == 0) return 0;
+			return input;
+		}
 
-		BigDecimal inputNumber = new BigDecimal(input.toString());
+		BigDecimal inputNumber = input instanceof BigDecimal
+				? (BigDecimal) input
+				: new BigDecimal(input.toString());
 
 		if (inputNumber.abs().compareTo(C_PRECISION) < 0) return 0;
 
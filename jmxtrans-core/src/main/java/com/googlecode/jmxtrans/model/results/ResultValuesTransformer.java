@@ -23,25 +23,61 @@
 package com.googlecode.jmxtrans.model.results;
 
 import com.google.common.base.Function;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.model.Result;
-import com.googlecode.jmxtrans.model.results.ValueTransformer;
+import lombok.Getter;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Map;
 
 public class ResultValuesTransformer implements Function<Result, Result> {
 
-	private final ValueTransformer valueTransformer;
+	@Nonnull @Getter private final ValueTransformer valueTransformer;
+	private final boolean identity;
 
 	public ResultValuesTransformer(ValueTransformer valueTransformer) {
-		this.valueTransformer = valueTransformer;
+		this.valueTransformer = ValueTransformerChain.of(valueTransformer);
+		this.identity = ValueTransformerChain.isIdentity(this.valueTransformer);
 	}
 
+	public boolean isIdentity() {
+		return identity;
+	}
+
+	/**
+	 * Transforms the values of a result in a single pass. The result itself is returned when no value is modified,
+	 * so identity transformations never copy anything.
+	 */
 	@Nullable
 	@Override
 	public Result apply(@Nullable Result input) {
-		if (input == null) {
-			return null;
+		if (input == null || identity) {
+			return input;
+		}
+
+		ImmutableMap<String, Object> values = input.getValues();
+		ImmutableMap.Builder<String, Object> transformed = null;
+		int index = 0;
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			Object value = entry.getValue();
+			Object transformedValue = valueTransformer.apply(value);
+			if (transformed == null && transformedValue != value) {
+				// first modified value: copy the values we have already seen
+				transformed = ImmutableMap.builder();
+				for (Map.Entry<String, Object> previous : values.entrySet().asList().subList(0, index)) {
+					transformed.put(previous);
+				}
+			}
+			if (transformed != null) {
+				transformed.put(entry.getKey(), transformedValue);
+			}
+			index++;
+		}
+
+		if (transformed == null) {
+			return input;
 		}
 		return new Result(
 				input.getEpoch(),
@@ -50,8 +86,27 @@ public class ResultValuesTransformer implements Function<Result, Result> {
 				input.getObjDomain(),
 				input.getKeyAlias(),
 				input.getTypeName(),
-				Maps.transformValues(input.getValues(), valueTransformer)
+				transformed.build()
 		);
 	}
 
+	/**
+	 * Transforms a batch of results. The batch itself is returned when no result is modified.
+	 */
+	@Nonnull
+	public ImmutableList<Result> transformAll(@Nonnull ImmutableList<Result> results) {
+		if (identity) {
+			return results;
+		}
+
+		ImmutableList.Builder<Result> transformed = ImmutableList.builder();
+		boolean modified = false;
+		for (Result result : results) {
+			Result transformedResult = apply(result);
+			modified |= transformedResult != result;
+			transformed.add(transformedResult);
+		}
+		return modified ? transformed.build() : results;
+	}
+
 }
@@ -0,0 +1,72 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.results;
+
+import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.model.OutputWriter;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.Map;
+
+import static com.google.common.collect.Maps.newHashMap;
+
+/**
+ * A batch of results shared by all the output writers of a query.
+ *
+ * Each distinct transformation is applied at most once to the batch, whatever the number of writers using it. Writers
+ * which do not expose their transformation receive the raw batch.
+ */
+@NotThreadSafe
+public class TransformedResults {
+
+	@Nonnull private final ImmutableList<Result> results;
+	@Nonnull private final Map<ValueTransformer, ImmutableList<Result>> transformed = newHashMap();
+
+	public TransformedResults(@Nonnull ImmutableList<Result> results) {
+		this.results = results;
+	}
+
+	@Nonnull
+	public ImmutableList<Result> transformedWith(@Nonnull ValueTransformer valueTransformer) {
+		ImmutableList<Result> transformedResults = transformed.get(valueTransformer);
+		if (transformedResults == null) {
+			transformedResults = new ResultValuesTransformer(valueTransformer).transformAll(results);
+			transformed.put(valueTransformer, transformedResults);
+		}
+		return transformedResults;
+	}
+
+	public void writeTo(@Nonnull OutputWriter writer, Server server, Query query) throws Exception {
+		if (writer instanceof TransformingOutputWriter) {
+			TransformingOutputWriter transformingWriter = (TransformingOutputWriter) writer;
+			transformingWriter.doWriteTransformed(server, query, transformedWith(transformingWriter.getValueTransformer()));
+		} else {
+			writer.doWrite(server, query, results);
+		}
+	}
+
+}
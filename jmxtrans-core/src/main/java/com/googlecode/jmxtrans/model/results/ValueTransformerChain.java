@@ -0,0 +1,94 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.results;
+
+import com.google.common.collect.ImmutableList;
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Composes several {@link ValueTransformer}s so that they are applied in a single pass over the values.
+ *
+ * Identity transformers are dropped and nested chains are flattened, so that an empty chain can be detected and the
+ * transformation skipped altogether.
+ */
+@Immutable
+@ThreadSafe
+@EqualsAndHashCode
+public final class ValueTransformerChain implements ValueTransformer {
+
+	private static final ValueTransformer IDENTITY = new IdentityValueTransformer();
+
+	private final ImmutableList<ValueTransformer> transformers;
+
+	private ValueTransformerChain(ImmutableList<ValueTransformer> transformers) {
+		this.transformers = transformers;
+	}
+
+	public static ValueTransformer of(ValueTransformer... transformers) {
+		return of(asList(transformers));
+	}
+
+	/**
+	 * Builds the cheapest transformer equivalent to applying all the given transformers in order.
+	 */
+	public static ValueTransformer of(Iterable<? extends ValueTransformer> transformers) {
+		ImmutableList.Builder<ValueTransformer> flattened = ImmutableList.builder();
+		addAll(flattened, transformers);
+		ImmutableList<ValueTransformer> chain = flattened.build();
+
+		if (chain.isEmpty()) return IDENTITY;
+		if (chain.size() == 1) return chain.get(0);
+		return new ValueTransformerChain(chain);
+	}
+
+	private static void addAll(ImmutableList.Builder<ValueTransformer> accumulator, Iterable<? extends ValueTransformer> transformers) {
+		for (ValueTransformer transformer : transformers) {
+			if (transformer instanceof ValueTransformerChain) {
+				addAll(accumulator, ((ValueTransformerChain) transformer).transformers);
+			} else if (!isIdentity(transformer)) {
+				accumulator.add(transformer);
+			}
+		}
+	}
+
+	public static boolean isIdentity(@Nullable ValueTransformer transformer) {
+		return transformer == null || transformer instanceof IdentityValueTransformer;
+	}
+
+	@Nullable
+	@Override
+	public Object apply(@Nullable Object input) {
+		Object value = input;
+		for (ValueTransformer transformer : transformers) {
+			value = transformer.apply(value);
+		}
+		return value;
+	}
+
+}
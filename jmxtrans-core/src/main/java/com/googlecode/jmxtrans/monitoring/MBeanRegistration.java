@@ -0,0 +1,91 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.monitoring;
+
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Registers the MBean of an output writer in the platform MBean server, as
+ * <code>com.googlecode.jmxtrans:Type=&lt;type&gt;,&lt;key&gt;=&lt;value&gt;,Name=&lt;class&gt;@&lt;identity&gt;</code>.
+ * The name of the owner keeps the MBeans of two writers sending to the same
+ * destination apart.
+ */
+@ThreadSafe
+public class MBeanRegistration {
+
+	private final Object mbean;
+	private final Object owner;
+	private final String type;
+	private final String key;
+	private final String value;
+
+	@GuardedBy("this")
+	private ObjectName objectName;
+
+	public MBeanRegistration(Object mbean, Object owner, String type, String key, String value) {
+		this.mbean = mbean;
+		this.owner = owner;
+		this.type = type;
+		this.key = key;
+		this.value = value;
+	}
+
+	/**
+	 * Does nothing if the MBean is already registered.
+	 */
+	public synchronized void register() throws LifecycleException {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			objectName = new ObjectName("com.googlecode.jmxtrans:Type=" + type
+					+ "," + key + "=" + ObjectName.quote(String.valueOf(value))
+					+ ",Name=" + owner.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(owner)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+		} catch (Exception e) {
+			objectName = null;
+			throw new LifecycleException(e);
+		}
+	}
+
+	/**
+	 * Does nothing if the MBean is not registered.
+	 */
+	public synchronized void unregister() throws LifecycleException {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			throw new LifecycleException(e);
+		} finally {
+			objectName = null;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GzipStreamCodecTest {
+
+	private final StreamEncoder encoder = new GzipStreamCodec().newEncoder();
+
+	@Test
+	public void eachChunkCanBeDecodedAsSoonAsItIsReceived() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+		append(stream, encoder.encode(ByteBuffer.wrap(bytes("servers.host.metric 10 0\n"))));
+		assertThat(decode(stream.toByteArray(), 25)).isEqualTo("servers.host.metric 10 0\n");
+
+		append(stream, encoder.encode(ByteBuffer.wrap(bytes("servers.host.metric 11 60\n"))));
+		assertThat(decode(stream.toByteArray(), 51)).isEqualTo("servers.host.metric 10 0\nservers.host.metric 11 60\n");
+	}
+
+	@Test
+	public void repetitiveLinesAreCompressed() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			lines.append("servers.host_example_net.java_lang.type_Memory.HeapMemoryUsage_used ").append(i).append(" 0\n");
+		}
+		byte[] raw = bytes(lines.toString());
+
+		ByteBuffer encoded = encoder.encode(ByteBuffer.wrap(raw));
+
+		assertThat(encoded.remaining()).isLessThan(raw.length / 10);
+	}
+
+	@Test
+	public void outputLargerThanBufferIsNotTruncated() throws IOException {
+		byte[] raw = new byte[100000];
+		new Random(42).nextBytes(raw);
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		append(stream, encoder.encode(ByteBuffer.wrap(raw)));
+
+		byte[] decoded = new byte[raw.length];
+		new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(stream.toByteArray()))).readFully(decoded);
+		assertThat(decoded).isEqualTo(raw);
+	}
+
+	@Test
+	public void rawChunkIsNotModified() throws IOException {
+		ByteBuffer raw = ByteBuffer.wrap(bytes("line\n"));
+
+		encoder.encode(raw);
+
+		assertThat(raw.position()).isEqualTo(0);
+		assertThat(raw.remaining()).isEqualTo(5);
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	private static void append(ByteArrayOutputStream stream, ByteBuffer encoded) {
+		stream.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+	}
+
+	/**
+	 * The stream is never finished, only read what we know has been sent.
+	 */
+	private static String decode(byte[] stream, int length) throws IOException {
+		byte[] decoded = new byte[length];
+		new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(stream))).readFully(decoded);
+		return new String(decoded, UTF_8);
+	}
+}
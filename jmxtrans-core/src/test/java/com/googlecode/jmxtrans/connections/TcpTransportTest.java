@@ -0,0 +1,289 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.connections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TcpTransportTest {
+
+	private ServerSocket server;
+	private TcpTransport transport;
+
+	@Before
+	public void startServer() throws IOException {
+		server = new ServerSocket(0);
+		server.setSoTimeout(5000);
+		transport = TcpTransport.builder()
+				.setMinReconnectDelayMillis(10)
+				.setMaxReconnectDelayMillis(50)
+				.build();
+	}
+
+	@After
+	public void stop() throws IOException {
+		transport.close();
+		server.close();
+	}
+
+	@Test
+	public void endpointsAreSharedByAddress() {
+		assertThat(transport.endpoint(serverAddress())).isSameAs(transport.endpoint(serverAddress()));
+	}
+
+	@Test
+	public void bytesAreSentToServer() throws Exception {
+		TcpEndpoint endpoint = transport.endpoint(serverAddress());
+		endpoint.send(bytes("first\n"), 0, 6);
+		endpoint.send(bytes("xsecond\nx"), 1, 7);
+
+		Socket socket = server.accept();
+		try {
+			BufferedReader in = reader(socket);
+			assertThat(in.readLine()).isEqualTo("first");
+			assertThat(in.readLine()).isEqualTo("second");
+		} finally {
+			socket.close();
+		}
+		assertThat(endpoint.awaitEmpty(1000)).isTrue();
+	}
+
+	@Test
+	public void reconnectsWhenConnectionIsClosedByServer() throws Exception {
+		TcpEndpoint endpoint = transport.endpoint(serverAddress());
+		endpoint.send(bytes("first\n"), 0, 6);
+		Socket first = server.accept();
+		assertThat(reader(first).readLine()).isEqualTo("first");
+		first.close();
+		waitUntilDisconnected(endpoint);
+
+		endpoint.send(bytes("second\n"), 0, 7);
+
+		Socket second = server.accept();
+		try {
+			assertThat(reader(second).readLine()).isEqualTo("second");
+		} finally {
+			second.close();
+		}
+	}
+
+	@Test
+	public void bytesAreQueuedUntilServerIsAvailable() throws Exception {
+		int port = server.getLocalPort();
+		server.close();
+		TcpEndpoint endpoint = transport.endpoint(new InetSocketAddress("localhost", port));
+
+		endpoint.send(bytes("queued\n"), 0, 7);
+		Thread.sleep(100);
+		assertThat(endpoint.getPendingBytes()).isEqualTo(7);
+
+		server = new ServerSocket(port);
+		server.setSoTimeout(5000);
+		Socket socket = server.accept();
+		try {
+			assertThat(reader(socket).readLine()).isEqualTo("queued");
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void compressedStreamIsSentToServer() throws Exception {
+		TcpEndpoint endpoint = transport.endpoint(serverAddress(), new GzipStreamCodec());
+		endpoint.send(bytes("first\n"), 0, 6);
+
+		Socket socket = server.accept();
+		try {
+			// GZIPInputStream always claims to have data available, which makes readers block on read ahead
+			DataInputStream in = new DataInputStream(new GZIPInputStream(socket.getInputStream()));
+			byte[] first = new byte[6];
+			in.readFully(first);
+			assertThat(first).isEqualTo(bytes("first\n"));
+			endpoint.send(bytes("second\n"), 0, 7);
+			byte[] second = new byte[7];
+			in.readFully(second);
+			assertThat(second).isEqualTo(bytes("second\n"));
+			assertThat(endpoint.awaitEmpty(5000)).isTrue();
+		} finally {
+			socket.close();
+		}
+		assertThat(endpoint.getRawBytesSent()).isEqualTo(13);
+		assertThat(endpoint.getEncodedBytesSent()).isGreaterThan(0);
+	}
+
+	@Test
+	public void endpointsAreNotSharedAcrossCompressions() {
+		assertThat(transport.endpoint(serverAddress(), new GzipStreamCodec()))
+				.isNotSameAs(transport.endpoint(serverAddress()))
+				.isSameAs(transport.endpoint(serverAddress(), new GzipStreamCodec()));
+	}
+
+	@Test
+	public void endpointsAreMonitored() throws Exception {
+		TcpEndpoint endpoint = transport.endpoint(serverAddress());
+		endpoint.send(bytes("line\n"), 0, 5);
+		server.accept().close();
+		assertThat(endpoint.awaitEmpty(5000)).isTrue();
+
+		Set<ObjectName> names = ManagementFactory.getPlatformMBeanServer().queryNames(
+				new ObjectName("com.googlecode.jmxtrans:Type=TcpEndpoint,*"), null);
+		boolean found = false;
+		for (ObjectName name : names) {
+			if (name.getKeyProperty("Address").equals(ObjectName.quote("localhost:" + server.getLocalPort()))) {
+				found = true;
+				assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "RawBytesSent")).isEqualTo(5L);
+				assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Compression")).isEqualTo("none");
+			}
+		}
+		assertThat(found).isTrue();
+	}
+
+	@Test
+	public void endpointsAreClosedOnceReleasedByAllWriters() throws Exception {
+		TcpEndpoint first = transport.endpoint(serverAddress());
+		TcpEndpoint second = transport.endpoint(serverAddress());
+		first.send(bytes("line\n"), 0, 5);
+
+		Socket socket = server.accept();
+		try {
+			BufferedReader in = reader(socket);
+			assertThat(in.readLine()).isEqualTo("line");
+
+			first.release();
+			assertThat(endpointNames()).hasSize(1);
+			second.release();
+			assertThat(endpointNames()).isEmpty();
+			assertThat(in.readLine()).isNull();
+		} finally {
+			socket.close();
+		}
+		assertThat(transport.endpoint(serverAddress())).isNotSameAs(first);
+	}
+
+	@Test(expected = IOException.class)
+	public void sendFailsOnceEndpointIsReleased() throws Exception {
+		TcpEndpoint endpoint = transport.endpoint(serverAddress());
+		endpoint.release();
+
+		endpoint.send(bytes("line\n"), 0, 5);
+	}
+
+	@Test
+	public void stalledConnectionsAreClosed() throws Exception {
+		TcpTransport stallingTransport = TcpTransport.builder()
+				.setMinReconnectDelayMillis(10)
+				.setWriteTimeoutMillis(200)
+				.build();
+		try {
+			TcpEndpoint endpoint = stallingTransport.endpoint(serverAddress());
+			endpoint.send(bytes("line\n"), 0, 5);
+			// never read, so that the socket buffers fill up
+			Socket socket = server.accept();
+			try {
+				byte[] chunk = new byte[1024 * 1024];
+				long deadline = System.currentTimeMillis() + 20000;
+				while (((TcpEndpointMXBean) endpoint).getFailures() == 0 && System.currentTimeMillis() < deadline) {
+					try {
+						endpoint.send(chunk, 0, chunk.length);
+					} catch (IOException e) {
+						// outbound buffer is full
+					}
+				}
+				assertThat(((TcpEndpointMXBean) endpoint).getLastFailure()).contains("Could not write");
+			} finally {
+				socket.close();
+			}
+		} finally {
+			stallingTransport.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void sendFailsWhenOutboundBufferStaysFull() throws Exception {
+		int port = server.getLocalPort();
+		server.close();
+		TcpTransport smallTransport = TcpTransport.builder()
+				.setHighWatermark(10)
+				.setLowWatermark(5)
+				.setEnqueueTimeoutMillis(50)
+				.build();
+		try {
+			TcpEndpoint endpoint = smallTransport.endpoint(new InetSocketAddress("localhost", port));
+			endpoint.send(new byte[10], 0, 10);
+			endpoint.send(new byte[1], 0, 1);
+		} finally {
+			smallTransport.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void sendFailsOnceTransportIsClosed() throws Exception {
+		transport.close();
+
+		transport.endpoint(serverAddress()).send(bytes("line\n"), 0, 5);
+	}
+
+	private Set<ObjectName> endpointNames() throws Exception {
+		return ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName(
+				"com.googlecode.jmxtrans:Type=TcpEndpoint,Address=" + ObjectName.quote("localhost:" + server.getLocalPort()) + ",*"),
+				null);
+	}
+
+	private InetSocketAddress serverAddress() {
+		return new InetSocketAddress("localhost", server.getLocalPort());
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(UTF_8);
+	}
+
+	private static BufferedReader reader(Socket socket) throws IOException {
+		socket.setSoTimeout(5000);
+		return new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF_8));
+	}
+
+	private static void waitUntilDisconnected(TcpEndpoint endpoint) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (endpoint.isConnected() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertThat(endpoint.isConnected()).isFalse();
+	}
+}
@@ -249,6 +249,43 @@ public class JmxResultProcessorTest {
 		assertThat(result.getValues()).isEqualTo(ImmutableMap.of("1", "value1", "2", "value2"));
 	}
 
+	@Test
+	public void numericValuesAreNormalized() throws MalformedObjectNameException {
+		Attribute mapAttribute = new Attribute("map", ImmutableMap.of("string", "42", "decimal", "4.2", "text", "value"));
+
+		List<Result> results = new JmxResultProcessor(
+				query,
+				new ObjectInstance("java.lang:type=Memory", "java.lang.SomeClass"),
+				ImmutableList.of(mapAttribute),
+				"java.lang.SomeClass",
+				TEST_DOMAIN_NAME
+		).getResults();
+
+		assertThat(results).hasSize(1);
+		assertThat(results.get(0).getValues()).isEqualTo(ImmutableMap.of("string", 42L, "decimal", 4.2, "text", "value"));
+	}
+
+	@Test
+	public void namesAreSharedBetweenCycles() throws MalformedObjectNameException {
+		Result first = processSingleAttribute();
+		Result second = processSingleAttribute();
+
+		assertThat(second.getClassName()).isSameAs(first.getClassName());
+		assertThat(second.getObjDomain()).isSameAs(first.getObjDomain());
+		assertThat(second.getTypeName()).isSameAs(first.getTypeName());
+		assertThat(second.getAttributeName()).isSameAs(first.getAttributeName());
+	}
+
+	private Result processSingleAttribute() throws MalformedObjectNameException {
+		String className = new String("java.lang.SomeClass");
+		return new JmxResultProcessor(
+				query,
+				new ObjectInstance(className + ":type=Some", className),
+				ImmutableList.of(new Attribute(new String("SomeAttribute"), 1)),
+				className,
+				new String(TEST_DOMAIN_NAME)).getResults().get(0);
+	}
+
 	public ObjectInstance getRuntime() throws MalformedObjectNameException, InstanceNotFoundException {
 		return ManagementFactory.getPlatformMBeanServer().getObjectInstance(
 				new ObjectName("java.lang", "type", "Runtime"));
@@ -0,0 +1,94 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.naming;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResult;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CachedKeyStringBuilderTest {
+
+	private final Server server = dummyServer();
+	private final Query query = dummyQuery();
+
+	@Test
+	public void buildsSameKeysAsKeyUtils() {
+		ImmutableList<String> typeNames = ImmutableList.of("type");
+		Result result = numericResult();
+		Map.Entry<String, Object> value = result.getValues().entrySet().iterator().next();
+
+		CachedKeyStringBuilder withPrefix = new CachedKeyStringBuilder(typeNames, "servers", false);
+		CachedKeyStringBuilder withoutPrefix = new CachedKeyStringBuilder(typeNames, null, false);
+
+		assertThat(withPrefix.getKeyString(server, query, result, value))
+				.isEqualTo(KeyUtils.getKeyString(server, query, result, value, typeNames, "servers"));
+		assertThat(withoutPrefix.getKeyString(server, query, result, value))
+				.isEqualTo(KeyUtils.getKeyString(server, query, result, value, typeNames, null));
+	}
+
+	@Test
+	public void keysAreCached() {
+		CachedKeyStringBuilder keyStringBuilder = new CachedKeyStringBuilder(ImmutableList.<String>of(), "servers", false);
+		Result result = numericResult();
+		Map.Entry<String, Object> value = result.getValues().entrySet().iterator().next();
+
+		String first = keyStringBuilder.getKeyString(server, query, result, value);
+		String second = keyStringBuilder.getKeyString(server, query, numericResult(), value);
+
+		assertThat(second).isSameAs(first);
+	}
+
+	@Test
+	public void equalServersAndQueriesShareKeys() {
+		CachedKeyStringBuilder keyStringBuilder = new CachedKeyStringBuilder(ImmutableList.<String>of(), "servers", false);
+		Result result = numericResult();
+		Map.Entry<String, Object> value = result.getValues().entrySet().iterator().next();
+
+		String first = keyStringBuilder.getKeyString(server, query, result, value);
+		String second = keyStringBuilder.getKeyString(dummyServer(), dummyQuery(), result, value);
+
+		assertThat(second).isSameAs(first);
+	}
+
+	@Test
+	public void parenthesesAreReplaced() {
+		CachedKeyStringBuilder keyStringBuilder = new CachedKeyStringBuilder(ImmutableList.<String>of(), "servers", true);
+		Result result = new Result(0, "Usage", "sun.management.MemoryImpl", "java.lang", null, "type=Memory",
+				ImmutableMap.<String, Object>of("Usage(max)", 10));
+		Map.Entry<String, Object> value = result.getValues().entrySet().iterator().next();
+
+		assertThat(keyStringBuilder.getKeyString(server, query, result, value))
+				.isEqualTo("servers.host_example_net_4321.sun_management_MemoryImpl.Usage_max_");
+	}
+
+}
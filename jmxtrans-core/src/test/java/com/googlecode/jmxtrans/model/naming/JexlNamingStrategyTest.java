@@ -0,0 +1,98 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.naming;
+
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.Result;
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+import org.junit.Test;
+
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResult;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JexlNamingStrategyTest {
+
+	private static final Result RESULT_WITHOUT_ALIAS = new Result(0, "HeapMemoryUsage", "sun.management.MemoryImpl",
+			"java.lang", null, "type=Memory,name=Heap", ImmutableMap.<String, Object>of("used", 10));
+
+	@Test
+	public void defaultExpressionUsesClassAndAttribute() {
+		JexlNamingStrategy strategy = new JexlNamingStrategy();
+
+		assertThat(strategy.formatName(RESULT_WITHOUT_ALIAS)).isEqualTo("sun.management.MemoryImpl.HeapMemoryUsage");
+		assertThat(strategy.formatName(numericResult()))
+				.isEqualTo("ObjectPendingFinalizationCount.ObjectPendingFinalizationCount");
+	}
+
+	@Test
+	public void expressionCanBeChanged() {
+		JexlNamingStrategy strategy = new JexlNamingStrategy();
+		strategy.formatName(RESULT_WITHOUT_ALIAS);
+
+		strategy.setExpression("attribute");
+
+		assertThat(strategy.formatName(RESULT_WITHOUT_ALIAS)).isEqualTo("HeapMemoryUsage");
+	}
+
+	@Test
+	public void expressionCanUseResult() {
+		JexlNamingStrategy strategy = new JexlNamingStrategy("attribute + '_' + result.epoch");
+
+		assertThat(strategy.formatName(RESULT_WITHOUT_ALIAS)).isEqualTo("HeapMemoryUsage_0");
+		assertThat(strategy.formatName(new Result(1, "HeapMemoryUsage", "sun.management.MemoryImpl",
+				"java.lang", null, "type=Memory,name=Heap", ImmutableMap.<String, Object>of())))
+				.isEqualTo("HeapMemoryUsage_1");
+	}
+
+	@Test
+	public void concatenationsAreEvaluatedLikeJexl() {
+		String[] expressions = {
+				"realclass + '_' + attribute",
+				"alias + '::' + typename.name + '/' + class",
+				"typename.missing + \"_\" + typename.type + '.' + attribute",
+		};
+		for (String expression : expressions) {
+			JexlNamingStrategy.Concatenation concatenation = JexlNamingStrategy.Concatenation.compile(expression);
+			assertThat(concatenation).isNotNull();
+			for (Result result : new Result[] {RESULT_WITHOUT_ALIAS, numericResult()}) {
+				assertThat(concatenation.apply(result)).isEqualTo(evaluateWithJexl(expression, result));
+			}
+		}
+	}
+
+	@Test
+	public void ambiguousExpressionsAreNotCompiled() {
+		assertThat(JexlNamingStrategy.Concatenation.compile(JexlNamingStrategy.DEFAULT_EXPRESSION)).isNull();
+		assertThat(JexlNamingStrategy.Concatenation.compile("attribute + alias + '_'")).isNull();
+		assertThat(JexlNamingStrategy.Concatenation.compile("attribute.toUpperCase() + '_'")).isNull();
+		assertThat(JexlNamingStrategy.Concatenation.compile("attribute")).isNull();
+	}
+
+	private String evaluateWithJexl(String expression, Result result) {
+		MapContext context = new MapContext();
+		new JexlNamingStrategy().populateContext(context, result);
+		return (String) new JexlEngine().createExpression(expression).evaluate(context);
+	}
+
+}
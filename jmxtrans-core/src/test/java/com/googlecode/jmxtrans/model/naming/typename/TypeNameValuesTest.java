@@ -0,0 +1,56 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.naming.typename;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TypeNameValuesTest {
+
+	@Test
+	public void parsedTypeNamesAreShared() {
+		TypeNameValues first = TypeNameValues.of("name=PS Eden Space,type=MemoryPool");
+		TypeNameValues second = TypeNameValues.of(new String("name=PS Eden Space,type=MemoryPool"));
+
+		assertThat(second).isSameAs(first);
+		assertThat(first.getMap()).isEqualTo(ImmutableMap.of("name", "PS Eden Space", "type", "MemoryPool"));
+	}
+
+	@Test
+	public void lastValueWinsForRepeatedKeys() {
+		TypeNameValues typeNameValues = TypeNameValues.of("key=value1,key=value2,other=a=b");
+
+		assertThat(typeNameValues.getValues()).hasSize(3);
+		assertThat(typeNameValues.get("key")).isEqualTo("value2");
+		assertThat(typeNameValues.get("other")).isEqualTo("a=b");
+	}
+
+	@Test
+	public void nullTypeNameIsEmpty() {
+		assertThat(TypeNameValues.of(null)).isEmpty();
+		assertThat(TypeNameValues.of(null).getMap()).isEmpty();
+	}
+
+}
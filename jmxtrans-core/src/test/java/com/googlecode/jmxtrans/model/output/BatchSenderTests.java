@@ -0,0 +1,128 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchSenderTests {
+
+	private final List<List<String>> batches = new ArrayList<List<String>>();
+
+	private final BatchSender.Sink<String> sink = new BatchSender.Sink<String>() {
+		@Override
+		public void send(List<String> items) {
+			batches.add(items);
+		}
+	};
+
+	@Test
+	public void itemsAreSentAfterEachWriteWithoutFlushInterval() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", sink).build();
+
+		sender.add("a");
+		sender.add("b");
+		sender.afterWrite();
+		sender.afterWrite();
+
+		assertThat(batches).hasSize(1);
+		assertThat(batches.get(0)).containsExactly("a", "b");
+		assertThat(sender.getCounters().getFlushes()).isEqualTo(1);
+		assertThat(sender.getCounters().getPendingItems()).isEqualTo(0);
+	}
+
+	@Test
+	public void itemsAreKeptForTheFlusherWithFlushInterval() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", sink).setFlushIntervalInMillis(60000).build();
+
+		sender.add("a");
+		sender.afterWrite();
+
+		assertThat(batches).isEmpty();
+		assertThat(sender.getCounters().getPendingItems()).isEqualTo(1);
+	}
+
+	@Test
+	public void itemsBeyondMaxPendingAreDropped() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", sink).setMaxPendingItems(2).build();
+
+		assertThat(sender.add("a")).isTrue();
+		assertThat(sender.add("b")).isTrue();
+		assertThat(sender.add("c")).isFalse();
+		sender.flush();
+
+		assertThat(batches.get(0)).containsExactly("a", "b");
+		assertThat(sender.getCounters().getItemsDropped()).isEqualTo(1);
+	}
+
+	@Test
+	public void retriedItemsBeyondMaxPendingAreDropped() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", sink).setMaxPendingItems(2).build();
+
+		sender.add("a");
+		sender.retry(Arrays.asList("b", "c"));
+		sender.flush();
+
+		assertThat(batches.get(0)).containsExactly("a", "b");
+		assertThat(sender.getCounters().getItemsRetried()).isEqualTo(1);
+		assertThat(sender.getCounters().getItemsDropped()).isEqualTo(1);
+	}
+
+	@Test(expected = IOException.class)
+	public void failuresOfSynchronousFlushesAreReported() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", new BatchSender.Sink<String>() {
+			@Override
+			public void send(List<String> items) throws IOException {
+				throw new IOException("down");
+			}
+		}).build();
+
+		sender.add("a");
+		sender.afterWrite();
+	}
+
+	@Test
+	public void pendingItemsAreSentAndCountersUnregisteredOnStop() throws Exception {
+		BatchSender<String> sender = BatchSender.builder("test", sink)
+				.setFlushIntervalInMillis(60000)
+				.setMBeanName(this, "BatchSenderTests", "Test", "stop")
+				.build();
+		ObjectName pattern = new ObjectName("com.googlecode.jmxtrans:Type=BatchSenderTests,*");
+
+		sender.start();
+		assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null)).hasSize(1);
+		sender.add("a");
+		sender.stop();
+
+		assertThat(batches.get(0)).containsExactly("a");
+		assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(pattern, null)).isEmpty();
+	}
+}
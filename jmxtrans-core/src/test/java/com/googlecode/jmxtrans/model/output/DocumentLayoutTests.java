@@ -0,0 +1,54 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DocumentLayoutTests {
+
+	@Test
+	public void defaultLayoutKeepsOneDocumentPerValueAndFieldNames() {
+		DocumentLayout layout = new DocumentLayout(null, null);
+
+		assertThat(layout.isPerResult()).isFalse();
+		assertThat(layout.getShape()).isEqualTo(DocumentLayout.PER_VALUE);
+		assertThat(layout.field("server")).isEqualTo("server");
+	}
+
+	@Test
+	public void fieldsCanBeRenamed() {
+		DocumentLayout layout = new DocumentLayout(DocumentLayout.PER_RESULT, ImmutableMap.of("server", "host"));
+
+		assertThat(layout.isPerResult()).isTrue();
+		assertThat(layout.field("server")).isEqualTo("host");
+		assertThat(layout.field("port")).isEqualTo("port");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownShapeIsRejected() {
+		new DocumentLayout("perMBean", null);
+	}
+}
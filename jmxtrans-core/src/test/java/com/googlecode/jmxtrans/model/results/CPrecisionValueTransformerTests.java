@@ -24,6 +24,9 @@ package com.googlecode.jmxtrans.model.results;
 
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CPrecisionValueTransformerTests {
@@ -52,6 +55,22 @@ public class CPrecisionValueTransformerTests {
 		assertThat(transformed).isEqualTo(0);
 	}
 
+	@Test
+	public void bigDecimalBelowPrecisionIsTransformedToZero() {
+		ValueTransformer transformer = new CPrecisionValueTransformer();
+		Object transformed = transformer.apply(new BigDecimal("1E-400"));
+
+		assertThat(transformed).isEqualTo(0);
+	}
+
+	@Test
+	public void bigIntegerIsNotTransformed() {
+		ValueTransformer transformer = new CPrecisionValueTransformer();
+		Object transformed = transformer.apply(BigInteger.TEN);
+
+		assertThat(transformed).isEqualTo(BigInteger.TEN);
+	}
+
 	@Test
 	public void nonNumberIsReturnedUnmodified() {
 		ValueTransformer transformer = new CPrecisionValueTransformer();
@@ -0,0 +1,71 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.results;
+
+import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.model.Result;
+import org.junit.Test;
+
+import static com.googlecode.jmxtrans.model.ResultFixtures.booleanTrueResult;
+import static com.googlecode.jmxtrans.model.ResultFixtures.dummyResults;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResult;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultValuesTransformerTests {
+
+	@Test
+	public void identityDoesNotCopyResults() {
+		ImmutableList<Result> results = dummyResults();
+
+		ImmutableList<Result> transformed = new ResultValuesTransformer(new IdentityValueTransformer()).transformAll(results);
+
+		assertThat(transformed).isSameAs(results);
+	}
+
+	@Test
+	public void unmodifiedResultIsNotCopied() {
+		Result result = numericResult();
+
+		Result transformed = new ResultValuesTransformer(new BooleanAsNumberValueTransformer(1, 0)).apply(result);
+
+		assertThat(transformed).isSameAs(result);
+	}
+
+	@Test
+	public void modifiedValuesAreTransformed() {
+		Result transformed = new ResultValuesTransformer(new BooleanAsNumberValueTransformer(1, 0)).apply(booleanTrueResult());
+
+		assertThat(transformed.getValues()).containsEntry("Verbose", 1);
+	}
+
+	@Test
+	public void transformationIsSharedBetweenEquivalentTransformers() {
+		TransformedResults transformedResults = new TransformedResults(ImmutableList.of(booleanTrueResult()));
+
+		ImmutableList<Result> first = transformedResults.transformedWith(new BooleanAsNumberValueTransformer(1, 0));
+		ImmutableList<Result> second = transformedResults.transformedWith(new BooleanAsNumberValueTransformer(1, 0));
+
+		assertThat(second).isSameAs(first);
+	}
+
+}
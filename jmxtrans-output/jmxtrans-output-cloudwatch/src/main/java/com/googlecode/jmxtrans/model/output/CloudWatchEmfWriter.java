@@ -0,0 +1,414 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.ContextBase;
+import ch.qos.logback.core.encoder.LayoutWrappingEncoder;
+import ch.qos.logback.core.layout.EchoLayout;
+import ch.qos.logback.core.rolling.FixedWindowRollingPolicy;
+import ch.qos.logback.core.rolling.RollingFileAppender;
+import ch.qos.logback.core.rolling.SizeBasedTriggeringPolicy;
+import ch.qos.logback.core.util.FileSize;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.model.ValidationException;
+import com.googlecode.jmxtrans.model.naming.typename.TypeNameValues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+/**
+ * Writes data as <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html">
+ * CloudWatch Embedded Metric Format</a> JSON lines, to be shipped to CloudWatch by a local agent (CloudWatch agent,
+ * Fluent Bit, the Lambda or ECS log drivers...). No network call is made by the writer itself.
+ *
+ * The values of a query which share the same dimensions are packed in the same line, up to
+ * {@value #MAX_METRICS_PER_LINE} metrics per line, a metric name appearing twice starting a new line. All the lines
+ * of a query carry the same timestamp. The dimensions are the server (its alias, or its host if it has
+ * no alias) and the values of the configured type names found in the type name of the result.
+ *
+ * Settings:
+ * <ul>
+ * <li>"{@code namespace}": CloudWatch namespace of the metrics. Mandatory.</li>
+ * <li>"{@code outputFile}": file the lines are appended to. Optional, lines are written to stdout if absent. The
+ * file is written and rolled by a logback {@link RollingFileAppender}, the rolled files being named
+ * <code>outputFile.1</code> to <code>outputFile.maxLogBackupFiles</code>.</li>
+ * <li>"{@code maxLogFileSize}": size at which the output file is rolled, e.g. <code>10MB</code>. Optional, default
+ * value: {@value #DEFAULT_MAX_LOG_FILE_SIZE}.</li>
+ * <li>"{@code maxLogBackupFiles}": number of rolled files kept. Optional, default value:
+ * {@value #DEFAULT_MAX_LOG_BACKUP_FILES}.</li>
+ * </ul>
+ */
+public class CloudWatchEmfWriter extends BaseOutputWriter {
+
+	/** Limit of the format on the number of metrics of a single directive. */
+	public static final int MAX_METRICS_PER_LINE = 100;
+	/** Limit of the format on the number of dimensions of a dimension set. */
+	public static final int MAX_DIMENSIONS = 30;
+	public static final String DEFAULT_MAX_LOG_FILE_SIZE = "10MB";
+	public static final int DEFAULT_MAX_LOG_BACKUP_FILES = 10;
+	public static final String SERVER_DIMENSION = "Server";
+
+	private final String namespace;
+	private final String outputFile;
+	private final String maxLogFileSize;
+	private final int maxLogBackupFiles;
+
+	private static final Context context = new ContextBase();
+
+	private final JsonFactory jsonFactory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+	private RollingFileAppender<String> fileAppender;
+	private PrintStream stdout = System.out;
+
+	@JsonCreator
+	public CloudWatchEmfWriter(
+			@JsonProperty("typeNames") ImmutableList<String> typeNames,
+			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
+			@JsonProperty("debug") Boolean debugEnabled,
+			@JsonProperty("namespace") String namespace,
+			@JsonProperty("outputFile") String outputFile,
+			@JsonProperty("maxLogFileSize") String maxLogFileSize,
+			@JsonProperty("maxLogBackupFiles") Integer maxLogBackupFiles,
+			@JsonProperty("settings") Map<String, Object> settings) {
+		super(typeNames, booleanAsNumber, debugEnabled, settings);
+		this.namespace = MoreObjects.firstNonNull(namespace, (String) getSettings().get("namespace"));
+		if (isNullOrEmpty(this.namespace)) throw new IllegalArgumentException("namespace cannot be null or empty");
+		this.outputFile = outputFile != null ? outputFile : (String) getSettings().get("outputFile");
+		this.maxLogFileSize = firstNonNull(
+				maxLogFileSize,
+				(String) getSettings().get("maxLogFileSize"),
+				DEFAULT_MAX_LOG_FILE_SIZE);
+		this.maxLogBackupFiles = firstNonNull(
+				maxLogBackupFiles,
+				Settings.getIntegerSetting(getSettings(), "maxLogBackupFiles", null),
+				DEFAULT_MAX_LOG_BACKUP_FILES);
+		checkArgument(FileSize.valueOf(this.maxLogFileSize).getSize() > 0, "maxLogFileSize must be positive");
+		checkArgument(this.maxLogBackupFiles > 0, "maxLogBackupFiles must be positive");
+	}
+
+	@Override
+	public void validateSetup(Server server, Query query) throws ValidationException {
+	}
+
+	@Override
+	public synchronized void start() {
+		if (outputFile != null && fileAppender == null) {
+			fileAppender = buildAppender();
+		}
+	}
+
+	/**
+	 * Same rollover as the log4j appender of {@code KeyOutWriter}: numbered backups, the oldest one being deleted.
+	 */
+	private RollingFileAppender<String> buildAppender() {
+		LayoutWrappingEncoder<String> encoder = new LayoutWrappingEncoder<String>();
+		EchoLayout<String> layout = new EchoLayout<String>();
+		layout.setContext(context);
+		layout.start();
+		encoder.setLayout(layout);
+		encoder.setCharset(UTF_8);
+		encoder.setContext(context);
+		encoder.start();
+
+		RollingFileAppender<String> appender = new RollingFileAppender<String>();
+		appender.setContext(context);
+		appender.setName(outputFile);
+		appender.setFile(outputFile);
+		appender.setAppend(true);
+		appender.setEncoder(encoder);
+
+		FixedWindowRollingPolicy rollingPolicy = new FixedWindowRollingPolicy();
+		rollingPolicy.setContext(context);
+		rollingPolicy.setFileNamePattern(outputFile + ".%i");
+		rollingPolicy.setMinIndex(1);
+		rollingPolicy.setMaxIndex(maxLogBackupFiles);
+		rollingPolicy.setParent(appender);
+		appender.setRollingPolicy(rollingPolicy);
+
+		SizeBasedTriggeringPolicy<String> triggeringPolicy = new SizeBasedTriggeringPolicy<String>(maxLogFileSize);
+		triggeringPolicy.setContext(context);
+		appender.setTriggeringPolicy(triggeringPolicy);
+
+		rollingPolicy.start();
+		triggeringPolicy.start();
+		appender.start();
+		return appender;
+	}
+
+	@Override
+	public synchronized void stop() throws LifecycleException {
+		if (fileAppender != null) {
+			fileAppender.stop();
+			fileAppender = null;
+		}
+	}
+
+	@Override
+	protected void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		if (results.isEmpty()) return;
+		String serverName = server.getAlias() != null ? server.getAlias() : server.getHost();
+		long timestamp = timestamp(results);
+
+		// values sharing dimensions go in the same line
+		Map<Map<String, String>, Map<String, Number>> lines = new LinkedHashMap<Map<String, String>, Map<String, Number>>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (Result result : results) {
+			Map<String, Object> resultValues = result.getValues();
+			if (resultValues == null) continue;
+
+			Map<String, String> dimensions = dimensions(serverName, result);
+			Map<String, Number> metrics = lines.get(dimensions);
+			if (metrics == null) {
+				metrics = new LinkedHashMap<String, Number>();
+				lines.put(dimensions, metrics);
+			}
+
+			for (Map.Entry<String, Object> values : resultValues.entrySet()) {
+				if (!isWritable(values.getValue())) continue;
+				String name = metricName(result, values.getKey());
+				// the same name can come from several MBeans the dimensions do not tell apart,
+				// each value gets a line of its own rather than overwriting the others
+				if (metrics.size() == MAX_METRICS_PER_LINE || metrics.containsKey(name)) {
+					writeLine(out, dimensions, timestamp, metrics);
+					metrics.clear();
+				}
+				metrics.put(name, (Number) values.getValue());
+			}
+		}
+
+		for (Map.Entry<Map<String, String>, Map<String, Number>> line : lines.entrySet()) {
+			if (!line.getValue().isEmpty()) {
+				writeLine(out, line.getKey(), timestamp, line.getValue());
+			}
+		}
+
+		if (out.size() > 0) append(out.toByteArray());
+	}
+
+	/**
+	 * Results of a query are stamped one by one while they are read, all the lines of the query get the time
+	 * the first of them was read.
+	 */
+	private static long timestamp(ImmutableList<Result> results) {
+		long timestamp = Long.MAX_VALUE;
+		for (Result result : results) {
+			timestamp = Math.min(timestamp, result.getEpoch());
+		}
+		return timestamp;
+	}
+
+	private Map<String, String> dimensions(String serverName, Result result) {
+		ImmutableMap.Builder<String, String> dimensions = ImmutableMap.builder();
+		dimensions.put(SERVER_DIMENSION, serverName);
+		int count = 1;
+		TypeNameValues typeNameValues = TypeNameValues.of(result.getTypeName());
+		for (String typeName : getTypeNames()) {
+			String value = typeNameValues.get(typeName);
+			if (isNullOrEmpty(value) || SERVER_DIMENSION.equals(typeName)) continue;
+			if (count++ == MAX_DIMENSIONS) break;
+			dimensions.put(typeName, value);
+		}
+		return dimensions.build();
+	}
+
+	private static String metricName(Result result, String valueKey) {
+		// Sometimes the attribute name and the key of the value are the same
+		if (result.getAttributeName().equals(valueKey)) {
+			return result.getAttributeName();
+		}
+		return result.getAttributeName() + "_" + valueKey;
+	}
+
+	private static boolean isWritable(Object value) {
+		if (!(value instanceof Number)) return false;
+		if (value instanceof Double || value instanceof Float) {
+			// NaN and infinities cannot be written in JSON
+			double doubleValue = ((Number) value).doubleValue();
+			return !Double.isNaN(doubleValue) && !Double.isInfinite(doubleValue);
+		}
+		return true;
+	}
+
+	private void writeLine(
+			OutputStream out, Map<String, String> dimensions, long epoch, Map<String, Number> metrics)
+			throws IOException {
+		JsonGenerator g = jsonFactory.createGenerator(out);
+		g.writeStartObject();
+
+		g.writeObjectFieldStart("_aws");
+		g.writeNumberField("Timestamp", epoch);
+		g.writeArrayFieldStart("CloudWatchMetrics");
+		g.writeStartObject();
+		g.writeStringField("Namespace", namespace);
+		g.writeArrayFieldStart("Dimensions");
+		g.writeStartArray();
+		for (String dimension : dimensions.keySet()) {
+			g.writeString(dimension);
+		}
+		g.writeEndArray();
+		g.writeEndArray();
+		g.writeArrayFieldStart("Metrics");
+		for (String name : metrics.keySet()) {
+			g.writeStartObject();
+			g.writeStringField("Name", name);
+			g.writeEndObject();
+		}
+		g.writeEndArray();
+		g.writeEndObject();
+		g.writeEndArray();
+		g.writeEndObject();
+
+		for (Map.Entry<String, String> dimension : dimensions.entrySet()) {
+			g.writeStringField(dimension.getKey(), dimension.getValue());
+		}
+		for (Map.Entry<String, Number> metric : metrics.entrySet()) {
+			Number value = metric.getValue();
+			g.writeFieldName(metric.getKey());
+			if (value instanceof Double || value instanceof Float) {
+				g.writeNumber(value.doubleValue());
+			} else {
+				g.writeNumber(value.longValue());
+			}
+		}
+
+		g.writeEndObject();
+		g.close();
+		out.write('\n');
+	}
+
+	private synchronized void append(byte[] lines) throws IOException {
+		if (outputFile == null) {
+			stdout.write(lines);
+			stdout.flush();
+			return;
+		}
+		if (fileAppender == null) start();
+		// one event per query, without its last line separator which the layout adds back
+		fileAppender.doAppend(new String(lines, 0, lines.length - 1, UTF_8));
+	}
+
+	@VisibleForTesting
+	synchronized void setStdout(PrintStream stdout) {
+		this.stdout = stdout;
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	public String getOutputFile() {
+		return outputFile;
+	}
+
+	public String getMaxLogFileSize() {
+		return maxLogFileSize;
+	}
+
+	public int getMaxLogBackupFiles() {
+		return maxLogBackupFiles;
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+		private final ImmutableList.Builder<String> typeNames = ImmutableList.builder();
+		private boolean booleanAsNumber;
+		private Boolean debugEnabled;
+		private String namespace;
+		private String outputFile;
+		private String maxLogFileSize;
+		private Integer maxLogBackupFiles;
+
+		private Builder() {
+		}
+
+		public Builder addTypeName(String typeName) {
+			typeNames.add(typeName);
+			return this;
+		}
+
+		public Builder setBooleanAsNumber(boolean booleanAsNumber) {
+			this.booleanAsNumber = booleanAsNumber;
+			return this;
+		}
+
+		public Builder setDebugEnabled(boolean debugEnabled) {
+			this.debugEnabled = debugEnabled;
+			return this;
+		}
+
+		public Builder setNamespace(String namespace) {
+			this.namespace = namespace;
+			return this;
+		}
+
+		public Builder setOutputFile(String outputFile) {
+			this.outputFile = outputFile;
+			return this;
+		}
+
+		public Builder setMaxLogFileSize(String maxLogFileSize) {
+			this.maxLogFileSize = maxLogFileSize;
+			return this;
+		}
+
+		public Builder setMaxLogBackupFiles(int maxLogBackupFiles) {
+			this.maxLogBackupFiles = maxLogBackupFiles;
+			return this;
+		}
+
+		public CloudWatchEmfWriter build() {
+			return new CloudWatchEmfWriter(
+					typeNames.build(),
+					booleanAsNumber,
+					debugEnabled,
+					namespace,
+					outputFile,
+					maxLogFileSize,
+					maxLogBackupFiles,
+					null);
+		}
+	}
+}
@@ -22,18 +22,25 @@
  */
 package com.googlecode.jmxtrans.model.output;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.InstanceProfileCredentialsProvider;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
@@ -44,24 +51,62 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
  * Writes data to <a href="http://aws.amazon.com/cloudwatch/">AWS CloudWatch</a> using the AWS Java SDK
  *
+ * Datums are sent with the asynchronous client, in requests of at most {@code maxDatumsPerRequest} datums, so that
+ * the collection threads never wait for CloudWatch.
+ *
+ * Settings:
+ * <ul>
+ * <li>"{@code namespace}": CloudWatch namespace of the metrics. Mandatory.</li>
+ * <li>"{@code maxDatumsPerRequest}": datums are split in PutMetricData requests of at most this size. Optional,
+ * default value: {@value #DEFAULT_MAX_DATUMS_PER_REQUEST}, the limit of the API.</li>
+ * <li>"{@code maxConcurrentRequests}": number of requests sent at the same time. Optional, default value:
+ * {@value #DEFAULT_MAX_CONCURRENT_REQUESTS}.</li>
+ * <li>"{@code maxPendingRequests}": maximum number of requests waiting for CloudWatch, the datums of further requests
+ * are dropped. Optional, default value: {@value #DEFAULT_MAX_PENDING_REQUESTS}.</li>
+ * <li>"{@code aggregateCycles}": when greater than 1, the values of this many cycles are sent as a single
+ * {@link StatisticSet} datum per metric instead of one datum per value. Optional, default value:
+ * {@value #DEFAULT_AGGREGATE_CYCLES}.</li>
+ * </ul>
+ *
  * @author <a href="mailto:sascha.moellering@gmail.com">Sascha Moellering</a>
  */
 public class CloudWatchWriter extends BaseOutputWriter {
 
 	private static final Logger log = LoggerFactory.getLogger(CloudWatchWriter.class);
 
-	private AmazonCloudWatchClient cloudWatchClient;
+	public static final int DEFAULT_MAX_DATUMS_PER_REQUEST = 20;
+	public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 1000;
+	public static final int DEFAULT_AGGREGATE_CYCLES = 1;
+
+	private static final long STOP_TIMEOUT_IN_SECONDS = 30;
+
+	private volatile AmazonCloudWatchAsync cloudWatchClient;
+	private boolean ownsClient;
 	private String namespace;
+	private final int maxDatumsPerRequest;
+	private final int maxConcurrentRequests;
+	private final int maxPendingRequests;
+	private final int aggregateCycles;
 
 	private final ObjectToDouble toDoubleConverter = new ObjectToDouble();
+	private final Map<String, Aggregate> aggregates = new HashMap<String, Aggregate>();
+	private final Semaphore pendingRequests;
+
+	private final BatchSender<MetricDatum> sender;
 
 	@JsonCreator
 	public CloudWatchWriter(
@@ -69,38 +114,110 @@ public class CloudWatchWriter extends BaseOutputWriter {
 			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
 			@JsonProperty("debug") Boolean debugEnabled,
 			@JsonProperty("namespace") String namespace,
+			@JsonProperty("maxDatumsPerRequest") Integer maxDatumsPerRequest,
+			@JsonProperty("maxConcurrentRequests") Integer maxConcurrentRequests,
+			@JsonProperty("maxPendingRequests") Integer maxPendingRequests,
+			@JsonProperty("aggregateCycles") Integer aggregateCycles,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.namespace = MoreObjects.firstNonNull(namespace, (String) getSettings().get("namespace"));
 		if (isNullOrEmpty(this.namespace)) throw new IllegalArgumentException("namespace cannot be null or empty");
+		this.maxDatumsPerRequest = firstNonNull(
+				maxDatumsPerRequest,
+				Settings.getIntegerSetting(getSettings(), "maxDatumsPerRequest", null),
+				DEFAULT_MAX_DATUMS_PER_REQUEST);
+		checkArgument(this.maxDatumsPerRequest > 0, "maxDatumsPerRequest must be positive");
+		this.maxConcurrentRequests = firstNonNull(
+				maxConcurrentRequests,
+				Settings.getIntegerSetting(getSettings(), "maxConcurrentRequests", null),
+				DEFAULT_MAX_CONCURRENT_REQUESTS);
+		checkArgument(this.maxConcurrentRequests > 0, "maxConcurrentRequests must be positive");
+		this.maxPendingRequests = firstNonNull(
+				maxPendingRequests,
+				Settings.getIntegerSetting(getSettings(), "maxPendingRequests", null),
+				DEFAULT_MAX_PENDING_REQUESTS);
+		checkArgument(this.maxPendingRequests > 0, "maxPendingRequests must be positive");
+		this.aggregateCycles = firstNonNull(
+				aggregateCycles,
+				Settings.getIntegerSetting(getSettings(), "aggregateCycles", null),
+				DEFAULT_AGGREGATE_CYCLES);
+		checkArgument(this.aggregateCycles > 0, "aggregateCycles must be positive");
+		this.pendingRequests = new Semaphore(this.maxPendingRequests);
+		this.sender = BatchSender.builder("cloudwatch", new BatchSender.Sink<MetricDatum>() {
+			@Override
+			public void send(List<MetricDatum> datums) {
+				sendAsync(datums);
+			}
+		})
+				.setMBeanName(this, "CloudWatchWriter", "Namespace", this.namespace)
+				.build();
 	}
 
 	@JsonIgnore
 	@VisibleForTesting
-	void setCloudWatchClient(AmazonCloudWatchClient cloudWatchClient) {
+	void setCloudWatchClient(AmazonCloudWatchAsync cloudWatchClient) {
 		this.cloudWatchClient = cloudWatchClient;
 	}
 
 	@Override
-	public void validateSetup(Server server, Query query) throws ValidationException {
+	public synchronized void validateSetup(Server server, Query query) throws ValidationException {
 		if (cloudWatchClient == null) {
 
 			// Configuring the CloudWatch client
 			// Credentials are loaded from the Amazon EC2 Instance Metadata Service
 
-			cloudWatchClient = new AmazonCloudWatchClient(new InstanceProfileCredentialsProvider());
 			Region awsRegion = Regions.getCurrentRegion();
 			if (awsRegion == null) throw new ValidationException("Problems getting metadata", query);
-			cloudWatchClient.setRegion(awsRegion);
+			AmazonCloudWatchAsyncClient client = new AmazonCloudWatchAsyncClient(
+					new InstanceProfileCredentialsProvider(),
+					new ClientConfiguration().withMaxConnections(maxConcurrentRequests),
+					Executors.newFixedThreadPool(maxConcurrentRequests, new ThreadFactoryBuilder()
+							.setNameFormat("cloudwatch-sender-%d")
+							.setDaemon(true)
+							.build()));
+			client.setRegion(awsRegion);
+			cloudWatchClient = client;
+			ownsClient = true;
 		}
 	}
 
 	@Override
-	protected void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		PutMetricDataRequest metricDataRequest = new PutMetricDataRequest();
-		metricDataRequest.setNamespace(namespace);
-		List<MetricDatum> metricDatumList = new ArrayList<MetricDatum>();
+	public void start() throws LifecycleException {
+		sender.start();
+	}
+
+	@Override
+	public void stop() throws LifecycleException {
+		// partial aggregates would be lost otherwise
+		synchronized (aggregates) {
+			for (Aggregate aggregate : aggregates.values()) {
+				sender.add(aggregate.toDatum());
+			}
+			aggregates.clear();
+		}
+		sender.stop();
+
+		try {
+			if (pendingRequests.tryAcquire(maxPendingRequests, STOP_TIMEOUT_IN_SECONDS, SECONDS)) {
+				pendingRequests.release(maxPendingRequests);
+			} else {
+				log.warn("Requests to CloudWatch still pending after {} seconds", STOP_TIMEOUT_IN_SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (this) {
+			if (ownsClient) {
+				cloudWatchClient.shutdown();
+				cloudWatchClient = null;
+				ownsClient = false;
+			}
+		}
+	}
 
+	@Override
+	protected void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
 		// Iterating through the list of query results
 
 		for (Result result : results) {
@@ -108,7 +225,7 @@ public class CloudWatchWriter extends BaseOutputWriter {
 			if (resultValues != null) {
 				for (Map.Entry<String, Object> values : resultValues.entrySet()) {
 					try {
-						metricDatumList.add(processResult(result, values));
+						processResult(result, values);
 					} catch (IllegalArgumentException iae) {
 						log.error("Could not convert result to double", iae);
 					}
@@ -116,23 +233,68 @@ public class CloudWatchWriter extends BaseOutputWriter {
 			}
 		}
 
-		metricDataRequest.setMetricData(metricDatumList);
-		cloudWatchClient.putMetricData(metricDataRequest);
+		sender.afterWrite();
 	}
 
-	private MetricDatum processResult(Result result, Map.Entry<String, Object> values) {
+	private void processResult(Result result, Map.Entry<String, Object> values) {
 		// Sometimes the attribute name and the key of the value are the same
-		MetricDatum metricDatum = new MetricDatum();
+		String metricName;
 		if (result.getAttributeName().equals(values.getKey())) {
-			metricDatum.setMetricName(result.getAttributeName());
+			metricName = result.getAttributeName();
 		} else {
-			metricDatum.setMetricName(result.getAttributeName() + "_" + values.getKey());
+			metricName = result.getAttributeName() + "_" + values.getKey();
 		}
 
 		// Converts the Objects to Double-values for CloudWatch
-		metricDatum.setValue(toDoubleConverter.apply(values.getValue()));
-		metricDatum.setTimestamp(new Date());
-		return metricDatum;
+		double value = toDoubleConverter.apply(values.getValue());
+
+		if (aggregateCycles == 1) {
+			sender.add(new MetricDatum()
+					.withMetricName(metricName)
+					.withValue(value)
+					.withTimestamp(new Date(result.getEpoch())));
+			return;
+		}
+
+		synchronized (aggregates) {
+			Aggregate aggregate = aggregates.get(metricName);
+			if (aggregate == null) {
+				aggregate = new Aggregate(metricName);
+				aggregates.put(metricName, aggregate);
+			}
+			aggregate.add(value, result.getEpoch());
+			if (aggregate.sampleCount >= aggregateCycles) {
+				sender.add(aggregate.toDatum());
+				aggregates.remove(metricName);
+			}
+		}
+	}
+
+	private void sendAsync(List<MetricDatum> metricDatumList) {
+		for (List<MetricDatum> chunk : Lists.partition(metricDatumList, maxDatumsPerRequest)) {
+			if (!pendingRequests.tryAcquire()) {
+				log.warn("Too many pending requests to CloudWatch, dropping {} datums", chunk.size());
+				sender.getCounters().itemsDropped(chunk.size());
+				continue;
+			}
+			PutMetricDataRequest metricDataRequest = new PutMetricDataRequest()
+					.withNamespace(namespace)
+					// the partition is a view on the whole list
+					.withMetricData(new ArrayList<MetricDatum>(chunk));
+			sender.getCounters().requestStarted();
+			try {
+				cloudWatchClient.putMetricDataAsync(metricDataRequest, new ResultHandler(chunk.size()));
+			} catch (RuntimeException e) {
+				pendingRequests.release();
+				sender.getCounters().requestFailed(0, chunk.size());
+				log.error("Could not send datums to CloudWatch", e);
+			}
+		}
+	}
+
+	@VisibleForTesting
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
 	}
 
 	public static Builder builder() {
@@ -144,6 +306,10 @@ public class CloudWatchWriter extends BaseOutputWriter {
 		private boolean booleanAsNumber;
 		private Boolean debugEnabled;
 		private String namespace;
+		private Integer maxDatumsPerRequest;
+		private Integer maxConcurrentRequests;
+		private Integer maxPendingRequests;
+		private Integer aggregateCycles;
 
 		private Builder() {
 		}
@@ -173,14 +339,94 @@ public class CloudWatchWriter extends BaseOutputWriter {
 			return this;
 		}
 
+		public Builder setMaxDatumsPerRequest(int maxDatumsPerRequest) {
+			this.maxDatumsPerRequest = maxDatumsPerRequest;
+			return this;
+		}
+
+		public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+			this.maxConcurrentRequests = maxConcurrentRequests;
+			return this;
+		}
+
+		public Builder setMaxPendingRequests(int maxPendingRequests) {
+			this.maxPendingRequests = maxPendingRequests;
+			return this;
+		}
+
+		public Builder setAggregateCycles(int aggregateCycles) {
+			this.aggregateCycles = aggregateCycles;
+			return this;
+		}
+
 		public CloudWatchWriter build() {
 			return new CloudWatchWriter(
 					typeNames.build(),
 					booleanAsNumber,
 					debugEnabled,
 					namespace,
+					maxDatumsPerRequest,
+					maxConcurrentRequests,
+					maxPendingRequests,
+					aggregateCycles,
 					null);
 		}
 
 	}
+
+	private final class ResultHandler implements AsyncHandler<PutMetricDataRequest, Void> {
+		private final int datums;
+
+		private ResultHandler(int datums) {
+			this.datums = datums;
+		}
+
+		@Override
+		public void onError(Exception exception) {
+			pendingRequests.release();
+			sender.getCounters().requestFailed(0, datums);
+			log.error("Could not send datums to CloudWatch", exception);
+		}
+
+		@Override
+		public void onSuccess(PutMetricDataRequest request, Void result) {
+			pendingRequests.release();
+			sender.getCounters().requestSucceeded(datums);
+		}
+	}
+
+	/**
+	 * Values of a metric over several cycles, sent as a single {@link StatisticSet}.
+	 */
+	private static final class Aggregate {
+		private final String metricName;
+		private double minimum = Double.POSITIVE_INFINITY;
+		private double maximum = Double.NEGATIVE_INFINITY;
+		private double sum;
+		private int sampleCount;
+		private long lastEpoch;
+
+		private Aggregate(String metricName) {
+			this.metricName = metricName;
+		}
+
+		private void add(double value, long epoch) {
+			minimum = Math.min(minimum, value);
+			maximum = Math.max(maximum, value);
+			sum += value;
+			sampleCount++;
+			lastEpoch = Math.max(lastEpoch, epoch);
+		}
+
+		private MetricDatum toDatum() {
+			return new MetricDatum()
+					.withMetricName(metricName)
+					.withStatisticValues(new StatisticSet()
+							.withMinimum(minimum)
+							.withMaximum(maximum)
+							.withSum(sum)
+							.withSampleCount((double) sampleCount))
+					.withTimestamp(new Date(lastEpoch));
+		}
+	}
 }
@@ -0,0 +1,193 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CloudWatchEmfWriterTests {
+
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+	private Server server;
+	private Query query;
+
+	@Before
+	public void createServerAndQuery() {
+		server = Server.builder().setHost("localhost").setPort("123").setAlias("app1").build();
+		query = Query.builder().setObj("test").build();
+	}
+
+	@Test
+	public void valuesOfAResultArePackedInOneLine() throws Exception {
+		CloudWatchEmfWriter writer = stdoutWriter(CloudWatchEmfWriter.builder()
+				.setNamespace("testNS")
+				.addTypeName("type")
+				.addTypeName("name"));
+
+		writer.doWrite(server, query, ImmutableList.of(new Result(1000, "HeapMemoryUsage", "className", "objDomain",
+				null, "type=Memory", ImmutableMap.<String, Object>of("used", 10L, "max", 2.5, "text", "ignored"))));
+
+		List<JsonNode> lines = lines(new String(stdout.toByteArray(), UTF_8));
+		assertThat(lines).hasSize(1);
+		JsonNode line = lines.get(0);
+		JsonNode directive = line.get("_aws").get("CloudWatchMetrics").get(0);
+		assertThat(line.get("_aws").get("Timestamp").asLong()).isEqualTo(1000);
+		assertThat(directive.get("Namespace").asText()).isEqualTo("testNS");
+		assertThat(directive.get("Dimensions").toString()).isEqualTo("[[\"Server\",\"type\"]]");
+		assertThat(directive.get("Metrics").toString())
+				.isEqualTo("[{\"Name\":\"HeapMemoryUsage_used\"},{\"Name\":\"HeapMemoryUsage_max\"}]");
+		assertThat(line.get("Server").asText()).isEqualTo("app1");
+		assertThat(line.get("type").asText()).isEqualTo("Memory");
+		assertThat(line.get("HeapMemoryUsage_used").asLong()).isEqualTo(10);
+		assertThat(line.get("HeapMemoryUsage_max").asDouble()).isEqualTo(2.5);
+		assertThat(line.has("HeapMemoryUsage_text")).isFalse();
+	}
+
+	@Test
+	public void linesAreSplitAtTheMetricsLimit() throws Exception {
+		CloudWatchEmfWriter writer = stdoutWriter(CloudWatchEmfWriter.builder().setNamespace("testNS"));
+
+		writer.doWrite(server, query, ImmutableList.of(resultWithValues(250, 1000)));
+
+		List<JsonNode> lines = lines(new String(stdout.toByteArray(), UTF_8));
+		assertThat(lines).hasSize(3);
+		assertThat(lines.get(0).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size()).isEqualTo(100);
+		assertThat(lines.get(1).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size()).isEqualTo(100);
+		assertThat(lines.get(2).get("_aws").get("CloudWatchMetrics").get(0).get("Metrics").size()).isEqualTo(50);
+	}
+
+	@Test
+	public void valuesOfAQueryShareOneTimestamp() throws Exception {
+		CloudWatchEmfWriter writer = stdoutWriter(CloudWatchEmfWriter.builder().setNamespace("testNS"));
+
+		writer.doWrite(server, query, ImmutableList.of(
+				new Result(1002, "HeapMemoryUsage", "className", "objDomain", null, "type=Memory",
+						ImmutableMap.<String, Object>of("used", 10L)),
+				new Result(1000, "NonHeapMemoryUsage", "className", "objDomain", null, "type=Memory",
+						ImmutableMap.<String, Object>of("used", 20L))));
+
+		List<JsonNode> lines = lines(new String(stdout.toByteArray(), UTF_8));
+		assertThat(lines).hasSize(1);
+		assertThat(lines.get(0).get("_aws").get("Timestamp").asLong()).isEqualTo(1000);
+		assertThat(lines.get(0).get("HeapMemoryUsage_used").asLong()).isEqualTo(10);
+		assertThat(lines.get(0).get("NonHeapMemoryUsage_used").asLong()).isEqualTo(20);
+	}
+
+	@Test
+	public void valuesWithTheSameNameAndDimensionsAreWrittenOnDifferentLines() throws Exception {
+		CloudWatchEmfWriter writer = stdoutWriter(CloudWatchEmfWriter.builder().setNamespace("testNS"));
+
+		writer.doWrite(server, query, ImmutableList.of(
+				new Result(1000, "CollectionCount", "className", "objDomain", null, "type=GarbageCollector,name=Copy",
+						ImmutableMap.<String, Object>of("CollectionCount", 3L)),
+				new Result(1000, "CollectionCount", "className", "objDomain", null, "type=GarbageCollector,name=MarkSweepCompact",
+						ImmutableMap.<String, Object>of("CollectionCount", 5L))));
+
+		List<JsonNode> lines = lines(new String(stdout.toByteArray(), UTF_8));
+		assertThat(lines).hasSize(2);
+		assertThat(lines.get(0).get("CollectionCount").asLong()).isEqualTo(3);
+		assertThat(lines.get(1).get("CollectionCount").asLong()).isEqualTo(5);
+		assertThat(lines.get(1).get("_aws").get("Timestamp").asLong()).isEqualTo(1000);
+	}
+
+	@Test
+	public void outputFileIsRolled() throws Exception {
+		File output = new File(folder.getRoot(), "emf/metrics.log");
+		CloudWatchEmfWriter writer = CloudWatchEmfWriter.builder()
+				.setNamespace("testNS")
+				.setOutputFile(output.getPath())
+				.setMaxLogFileSize("1KB")
+				.setMaxLogBackupFiles(2)
+				.build();
+		writer.start();
+		try {
+			// logback only checks the size of the file every few events
+			for (int i = 0; i < 500; i++) {
+				writer.doWrite(server, query, ImmutableList.of(resultWithValues(10, i)));
+			}
+		} finally {
+			writer.stop();
+		}
+
+		assertThat(output).exists();
+		assertThat(new File(output.getPath() + ".1")).exists();
+		assertThat(new File(output.getPath() + ".2")).exists();
+		assertThat(new File(output.getPath() + ".3")).doesNotExist();
+		for (File file : new File[]{output, new File(output.getPath() + ".1"), new File(output.getPath() + ".2")}) {
+			// only whole lines in each file
+			assertThat(lines(Files.toString(file, UTF_8))).isNotEmpty();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void fileSizesAreParsedByLogback() {
+		CloudWatchEmfWriter.builder()
+				.setNamespace("testNS")
+				.setMaxLogFileSize("10 furlongs")
+				.build();
+	}
+
+	private CloudWatchEmfWriter stdoutWriter(CloudWatchEmfWriter.Builder builder) {
+		CloudWatchEmfWriter writer = builder.build();
+		writer.setStdout(new PrintStream(stdout));
+		return writer;
+	}
+
+	private List<JsonNode> lines(String output) throws Exception {
+		List<JsonNode> lines = new ArrayList<JsonNode>();
+		for (String line : output.split("\n")) {
+			if (!line.isEmpty()) lines.add(mapper.readTree(line));
+		}
+		return lines;
+	}
+
+	private static Result resultWithValues(int count, long epoch) {
+		ImmutableMap.Builder<String, Object> values = ImmutableMap.builder();
+		for (int i = 0; i < count; i++) {
+			values.put("key" + i, i);
+		}
+		return new Result(epoch, "attributeName", "className", "objDomain", null, "type=Memory", values.build());
+	}
+}
@@ -24,27 +24,49 @@ package com.googlecode.jmxtrans.model.output;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsync;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchAsyncClient;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
 import com.googlecode.jmxtrans.util.JsonUtils;
 import com.googlecode.jmxtrans.model.JmxProcess;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -55,7 +77,7 @@ import static org.mockito.Mockito.verify;
 @RunWith(MockitoJUnitRunner.class)
 public class CloudWatchWriterTests {
 
-	@Mock private AmazonCloudWatchClient cloudWatchClient;
+	@Mock private AmazonCloudWatchAsync cloudWatchClient;
 	@Captor private ArgumentCaptor<PutMetricDataRequest> requestCaptor;
 	private CloudWatchWriter writer;
 
@@ -69,6 +91,21 @@ public class CloudWatchWriterTests {
 		writer.setCloudWatchClient(cloudWatchClient);
 	}
 
+	@Before
+	@SuppressWarnings("unchecked")
+	public void completeRequests() {
+		doAnswer(new Answer<Object>() {
+			@Override
+			public Object answer(InvocationOnMock invocation) throws Throwable {
+				PutMetricDataRequest request = (PutMetricDataRequest) invocation.getArguments()[0];
+				AsyncHandler<PutMetricDataRequest, Void> handler =
+						(AsyncHandler<PutMetricDataRequest, Void>) invocation.getArguments()[1];
+				handler.onSuccess(request, null);
+				return null;
+			}
+		}).when(cloudWatchClient).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+	}
+
 	@Before
 	public void createServerQueryAndResult() {
 		server = Server.builder().setHost("localhost").setPort("123").build();
@@ -80,9 +117,10 @@ public class CloudWatchWriterTests {
 	}
 
 	@Test
+	@SuppressWarnings("unchecked")
 	public void testValidationWithoutSettings() throws Exception {
 		writer.doWrite(server, query, results);
-		verify(cloudWatchClient).putMetricData(requestCaptor.capture());
+		verify(cloudWatchClient).putMetricDataAsync(requestCaptor.capture(), any(AsyncHandler.class));
 
 		PutMetricDataRequest request = requestCaptor.getValue();
 
@@ -93,6 +131,115 @@ public class CloudWatchWriterTests {
 		MetricDatum metricDatum = request.getMetricData().get(0);
 		assertThat(metricDatum.getMetricName()).isEqualTo("attributeName_key");
 		assertThat(metricDatum.getValue()).isEqualTo(1);
+		assertThat(metricDatum.getTimestamp()).isEqualTo(new Date(1));
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(1);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void requestsAreSplitToTheDatumLimit() throws Exception {
+		writer.doWrite(server, query, ImmutableList.of(resultWithValues(45, 1)));
+
+		verify(cloudWatchClient, times(3)).putMetricDataAsync(requestCaptor.capture(), any(AsyncHandler.class));
+		List<PutMetricDataRequest> requests = requestCaptor.getAllValues();
+		assertThat(requests.get(0).getMetricData()).hasSize(20);
+		assertThat(requests.get(1).getMetricData()).hasSize(20);
+		assertThat(requests.get(2).getMetricData()).hasSize(5);
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(3);
+		assertThat(writer.getCounters().getRequestsInFlight()).isEqualTo(0);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void cyclesAreAggregatedInStatisticSets() throws Exception {
+		writer = CloudWatchWriter.builder().setNamespace("testNS").setAggregateCycles(3).build();
+		writer.setCloudWatchClient(cloudWatchClient);
+
+		writer.doWrite(server, query, ImmutableList.of(resultWithValue(1000, 1)));
+		writer.doWrite(server, query, ImmutableList.of(resultWithValue(2000, 6)));
+		verify(cloudWatchClient, never()).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+
+		writer.doWrite(server, query, ImmutableList.of(resultWithValue(3000, 2)));
+		verify(cloudWatchClient).putMetricDataAsync(requestCaptor.capture(), any(AsyncHandler.class));
+
+		MetricDatum metricDatum = requestCaptor.getValue().getMetricData().get(0);
+		assertThat(metricDatum.getMetricName()).isEqualTo("attributeName_key");
+		assertThat(metricDatum.getValue()).isNull();
+		assertThat(metricDatum.getStatisticValues()).isEqualTo(new StatisticSet()
+				.withMinimum(1.0)
+				.withMaximum(6.0)
+				.withSum(9.0)
+				.withSampleCount(3.0));
+		assertThat(metricDatum.getTimestamp()).isEqualTo(new Date(3000));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void partialAggregatesAreSentOnStop() throws Exception {
+		writer = CloudWatchWriter.builder().setNamespace("testNS").setAggregateCycles(10).build();
+		writer.setCloudWatchClient(cloudWatchClient);
+
+		writer.doWrite(server, query, ImmutableList.of(resultWithValue(1000, 4)));
+		writer.stop();
+
+		verify(cloudWatchClient).putMetricDataAsync(requestCaptor.capture(), any(AsyncHandler.class));
+		assertThat(requestCaptor.getValue().getMetricData().get(0).getStatisticValues().getSampleCount()).isEqualTo(1.0);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void datumsAreDroppedWhenTooManyRequestsArePending() throws Exception {
+		writer = CloudWatchWriter.builder().setNamespace("testNS").setMaxPendingRequests(1).build();
+		AmazonCloudWatchAsync neverCompletes = mock(AmazonCloudWatchAsync.class);
+		writer.setCloudWatchClient(neverCompletes);
+
+		writer.doWrite(server, query, ImmutableList.of(resultWithValues(30, 1)));
+
+		verify(neverCompletes).putMetricDataAsync(any(PutMetricDataRequest.class), any(AsyncHandler.class));
+		assertThat(writer.getCounters().getItemsDropped()).isEqualTo(10);
+		assertThat(writer.getCounters().getRequestsInFlight()).isEqualTo(1);
+	}
+
+	@Test
+	public void datumsAreSentToCloudWatchEndpoint() throws Exception {
+		final List<String> requestBodies = new CopyOnWriteArrayList<String>();
+		HttpServer stub = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		stub.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requestBodies.add(URLDecoder.decode(new String(ByteStreams.toByteArray(exchange.getRequestBody()), UTF_8), "UTF-8"));
+				byte[] response = ("<PutMetricDataResponse xmlns=\"http://monitoring.amazonaws.com/doc/2010-08-01/\">"
+						+ "<ResponseMetadata><RequestId>stub</RequestId></ResponseMetadata>"
+						+ "</PutMetricDataResponse>").getBytes(UTF_8);
+				exchange.getResponseHeaders().add("Content-Type", "text/xml");
+				exchange.sendResponseHeaders(200, response.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(response);
+				out.close();
+			}
+		});
+		stub.start();
+		AmazonCloudWatchAsyncClient client = new AmazonCloudWatchAsyncClient(new BasicAWSCredentials("access", "secret"));
+		try {
+			client.setEndpoint("http://localhost:" + stub.getAddress().getPort());
+			writer.setCloudWatchClient(client);
+
+			writer.doWrite(server, query, ImmutableList.of(resultWithValues(25, 1000)));
+			writer.stop();
+
+			assertThat(requestBodies).hasSize(2);
+			assertThat(writer.getCounters().getItemsSent()).isEqualTo(25);
+			assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(0);
+			for (String body : requestBodies) {
+				assertThat(body)
+						.contains("Action=PutMetricData")
+						.contains("Namespace=testNS")
+						.contains("MetricData.member.1.Timestamp=1970-01-01T00:00:01");
+			}
+		} finally {
+			client.shutdown();
+			stub.stop(0);
+		}
 	}
 
 	@Test
@@ -102,4 +249,16 @@ public class CloudWatchWriterTests {
 		assertThat(process.getName()).isEqualTo("cloud-watch.json");
 	}
 
-}
\ No newline at end of file
+	private static Result resultWithValue(long epoch, int value) {
+		return new Result(epoch, "attributeName", "className", "objDomain", null, "typeName", ImmutableMap.of("key", (Object) value));
+	}
+
+	private static Result resultWithValues(int count, long epoch) {
+		ImmutableMap.Builder<String, Object> values = ImmutableMap.builder();
+		for (int i = 0; i < count; i++) {
+			values.put("key" + i, i);
+		}
+		return new Result(epoch, "attributeName", "className", "objDomain", null, "typeName", values.build());
+	}
+
+}
@@ -0,0 +1,186 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.util.NumberUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Encodes datapoints as frames of the Graphite pickle protocol: a 4 bytes, big endian, length header followed by
+ * a pickle (protocol 2) of a list of <code>(path, (timestamp, value))</code> tuples.
+ *
+ * Only the handful of opcodes needed for that structure are used, and no memo, which keeps encoding a simple append
+ * to a {@link LineBuffer}.
+ */
+@NotThreadSafe
+class GraphitePickleEncoder {
+
+	private static final int PROTO = 0x80;
+	private static final int EMPTY_LIST = ']';
+	private static final int MARK = '(';
+	private static final int BINUNICODE = 'X';
+	private static final int BININT = 'J';
+	private static final int LONG1 = 0x8a;
+	private static final int BINFLOAT = 'G';
+	private static final int TUPLE2 = 0x86;
+	private static final int APPENDS = 'e';
+	private static final int STOP = '.';
+
+	private static final int HEADER_LENGTH = 4;
+
+	private final LineBuffer frame;
+	private int datapoints = 0;
+
+	GraphitePickleEncoder(int initialCapacity) {
+		this.frame = new LineBuffer(initialCapacity);
+	}
+
+	/**
+	 * Adds a datapoint to the current frame.
+	 *
+	 * @return false if the value is not numeric, nothing is added then.
+	 */
+	boolean add(@Nonnull String path, long epochSeconds, @Nonnull Object value) {
+		Object number = value instanceof String ? NumberUtils.parseNumber((String) value) : value;
+		if (!(number instanceof Number)) {
+			return false;
+		}
+
+		if (datapoints == 0) {
+			frame.reset();
+			appendPlaceholder();
+			frame.appendByte(PROTO).appendByte(2);
+			frame.appendByte(EMPTY_LIST);
+			frame.appendByte(MARK);
+		}
+
+		frame.appendByte(BINUNICODE);
+		int lengthIndex = frame.length();
+		appendPlaceholder();
+		frame.append(path);
+		setIntLittleEndian(lengthIndex, frame.length() - lengthIndex - 4);
+
+		appendInteger(epochSeconds);
+		appendValue((Number) number);
+		frame.appendByte(TUPLE2);
+		frame.appendByte(TUPLE2);
+
+		datapoints++;
+		return true;
+	}
+
+	int size() {
+		return datapoints;
+	}
+
+	/**
+	 * Drops the datapoints of the current frame.
+	 */
+	void reset() {
+		datapoints = 0;
+	}
+
+	/**
+	 * Completes the current frame. The frame is valid until the next call to {@link #add(String, long, Object)},
+	 * which starts a new one.
+	 */
+	@Nonnull
+	LineBuffer finish() {
+		checkState(datapoints > 0, "Frame is empty");
+		frame.appendByte(APPENDS);
+		frame.appendByte(STOP);
+
+		int payloadLength = frame.length() - HEADER_LENGTH;
+		frame.setByte(0, payloadLength >>> 24);
+		frame.setByte(1, payloadLength >>> 16);
+		frame.setByte(2, payloadLength >>> 8);
+		frame.setByte(3, payloadLength);
+
+		datapoints = 0;
+		return frame;
+	}
+
+	private void appendValue(Number value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicLong || value instanceof AtomicInteger) {
+			appendInteger(value.longValue());
+		} else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+			appendInteger(value.longValue());
+		} else if (value instanceof Double) {
+			appendFloat(value.doubleValue());
+		} else {
+			// parse the String representation, as carbon would for the plain text protocol (3.14f is 3.14, not
+			// 3.140000104904175)
+			appendFloat(Double.parseDouble(value.toString()));
+		}
+	}
+
+	private void appendInteger(long value) {
+		if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+			frame.appendByte(BININT);
+			appendIntLittleEndian((int) value);
+		} else {
+			frame.appendByte(LONG1);
+			frame.appendByte(8);
+			for (int i = 0; i < 8; i++) {
+				frame.appendByte((int) (value >>> (8 * i)));
+			}
+		}
+	}
+
+	private void appendFloat(double value) {
+		frame.appendByte(BINFLOAT);
+		long bits = Double.doubleToLongBits(value);
+		for (int i = 7; i >= 0; i--) {
+			frame.appendByte((int) (bits >>> (8 * i)));
+		}
+	}
+
+	private void appendPlaceholder() {
+		for (int i = 0; i < 4; i++) {
+			frame.appendByte(0);
+		}
+	}
+
+	private void appendIntLittleEndian(int value) {
+		frame.appendByte(value);
+		frame.appendByte(value >>> 8);
+		frame.appendByte(value >>> 16);
+		frame.appendByte(value >>> 24);
+	}
+
+	private void setIntLittleEndian(int index, int value) {
+		frame.setByte(index, value);
+		frame.setByte(index + 1, value >>> 8);
+		frame.setByte(index + 2, value >>> 16);
+		frame.setByte(index + 3, value >>> 24);
+	}
+}
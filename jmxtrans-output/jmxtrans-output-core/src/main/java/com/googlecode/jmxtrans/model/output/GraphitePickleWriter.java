@@ -0,0 +1,260 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import com.googlecode.jmxtrans.model.OutputWriter;
+import com.googlecode.jmxtrans.model.OutputWriterFactory;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.model.ValidationException;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.model.output.support.ResultTransformerOutputWriter;
+import com.googlecode.jmxtrans.util.OnlyOnceLogger;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.MoreObjects.firstNonNull;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.googlecode.jmxtrans.util.NumberUtils.isNumeric;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Sends metrics to Graphite using the pickle protocol (usually port 2004).
+ *
+ * Datapoints are accumulated across queries and sent in frames of at most <code>maxDatapointsPerFrame</code>
+ * datapoints. Incomplete frames are sent every <code>flushIntervalMillis</code>, or at the end of each batch of
+ * results if the flush interval is 0. Carbon refuses frames larger than 1MB, which leaves plenty of room for the
+ * default of 500 datapoints.
+ */
+public class GraphitePickleWriter implements OutputWriterFactory {
+	private static final Logger log = LoggerFactory.getLogger(GraphitePickleWriter.class);
+
+	private static final String DEFAULT_ROOT_PREFIX = "servers";
+	private static final int DEFAULT_MAX_DATAPOINTS_PER_FRAME = 500;
+	private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+	private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+	@Getter private final ImmutableList<String> typeNames;
+	@Getter private final boolean booleanAsNumber;
+	@Getter private final String rootPrefix;
+	private final InetSocketAddress graphiteServer;
+	@Getter private final int maxDatapointsPerFrame;
+	@Getter private final long flushIntervalMillis;
+
+	@GuardedBy("this")
+	private OutputWriter outputWriter;
+
+	@JsonCreator
+	public GraphitePickleWriter(
+			@JsonProperty("typeNames") ImmutableList<String> typeNames,
+			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
+			@JsonProperty("rootPrefix") String rootPrefix,
+			@JsonProperty("host") String host,
+			@JsonProperty("port") Integer port,
+			@JsonProperty("maxDatapointsPerFrame") Integer maxDatapointsPerFrame,
+			@JsonProperty("flushIntervalMillis") Long flushIntervalMillis) {
+		this.typeNames = firstNonNull(typeNames, ImmutableList.<String>of());
+		this.booleanAsNumber = booleanAsNumber;
+		this.rootPrefix = firstNonNull(rootPrefix, DEFAULT_ROOT_PREFIX);
+		this.graphiteServer = new InetSocketAddress(
+				checkNotNull(host, "Host cannot be null."),
+				checkNotNull(port, "Port cannot be null."));
+		this.maxDatapointsPerFrame = firstNonNull(maxDatapointsPerFrame, DEFAULT_MAX_DATAPOINTS_PER_FRAME);
+		checkArgument(this.maxDatapointsPerFrame > 0, "maxDatapointsPerFrame must be positive");
+		this.flushIntervalMillis = firstNonNull(flushIntervalMillis, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	public String getHost() {
+		return graphiteServer.getHostName();
+	}
+
+	public int getPort() {
+		return graphiteServer.getPort();
+	}
+
+	/**
+	 * Datapoints are buffered across queries, so all queries share the same output writer.
+	 */
+	@Override
+	public synchronized OutputWriter create() {
+		if (outputWriter == null) {
+			outputWriter = ResultTransformerOutputWriter.booleanToNumber(
+					booleanAsNumber,
+					new W(new CachedKeyStringBuilder(typeNames, rootPrefix, true), TcpTransport.shared().endpoint(graphiteServer),
+							maxDatapointsPerFrame, flushIntervalMillis));
+		}
+		return outputWriter;
+	}
+
+	@ThreadSafe
+	public static class W implements OutputWriter {
+		private final OnlyOnceLogger onlyOnceLogger = new OnlyOnceLogger(log);
+
+		@Nonnull private final CachedKeyStringBuilder keyStringBuilder;
+		@Nonnull private final TcpEndpoint endpoint;
+		private final int maxDatapointsPerFrame;
+		private final long flushIntervalMillis;
+
+		@GuardedBy("this")
+		private final GraphitePickleEncoder encoder = new GraphitePickleEncoder(16 * 1024);
+		@GuardedBy("this")
+		private ScheduledExecutorService flusher;
+
+		public W(
+				@Nonnull CachedKeyStringBuilder keyStringBuilder,
+				@Nonnull TcpEndpoint endpoint,
+				int maxDatapointsPerFrame,
+				long flushIntervalMillis) {
+			this.keyStringBuilder = keyStringBuilder;
+			this.endpoint = endpoint;
+			this.maxDatapointsPerFrame = maxDatapointsPerFrame;
+			this.flushIntervalMillis = flushIntervalMillis;
+		}
+
+		@Override
+		public synchronized void start() throws LifecycleException {
+			if (flushIntervalMillis > 0 && flusher == null) {
+				flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+						.setNameFormat("graphite-pickle-flusher-%d")
+						.setDaemon(true)
+						.build());
+				flusher.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							flush();
+						} catch (Exception e) {
+							log.error("Could not send datapoints to Graphite", e);
+						}
+					}
+				}, flushIntervalMillis, flushIntervalMillis, MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void stop() throws LifecycleException {
+			synchronized (this) {
+				if (flusher != null) {
+					flusher.shutdown();
+					flusher = null;
+				}
+			}
+			try {
+				flush();
+				if (!endpoint.awaitEmpty(STOP_TIMEOUT_MILLIS)) {
+					log.warn("Could not send last datapoints to Graphite within {}ms", STOP_TIMEOUT_MILLIS);
+				}
+			} catch (IOException e) {
+				log.error("Could not send last datapoints to Graphite", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				endpoint.release();
+			}
+		}
+
+		@Override
+		public synchronized void doWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+			for (Result result : results) {
+				log.debug("Query result: {}", result);
+				Map<String, Object> resultValues = result.getValues();
+				if (resultValues != null) {
+					for (Entry<String, Object> values : resultValues.entrySet()) {
+						Object value = values.getValue();
+						if (isNumeric(value) && encoder.add(
+								keyStringBuilder.getKeyString(server, query, result, values), result.getEpoch() / 1000, value)) {
+							if (encoder.size() >= maxDatapointsPerFrame) {
+								sendFrame();
+							}
+						} else {
+							onlyOnceLogger.infoOnce("Unable to submit non-numeric value to Graphite: [{}] from result [{}]", value, result);
+						}
+					}
+				}
+			}
+			if (flushIntervalMillis <= 0) {
+				flush();
+			}
+		}
+
+		/**
+		 * Sends the datapoints waiting in an incomplete frame, if any.
+		 */
+		public synchronized void flush() throws IOException {
+			if (encoder.size() > 0) {
+				sendFrame();
+			}
+		}
+
+		/**
+		 * The frame is dropped if the transport cannot take it, there is no point in accumulating more than a few
+		 * seconds of datapoints in memory while Graphite is not available.
+		 */
+		@GuardedBy("this")
+		private void sendFrame() throws IOException {
+			int datapoints = encoder.size();
+			try {
+				LineBuffer frame = encoder.finish();
+				endpoint.send(frame.array(), 0, frame.length());
+				log.debug("Sent frame of {} datapoints to Graphite", datapoints);
+			} finally {
+				encoder.reset();
+			}
+		}
+
+		@Override
+		public Map<String, Object> getSettings() {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public void setSettings(Map<String, Object> settings) {
+		}
+
+		@Override
+		public void validateSetup(Server server, Query query) throws ValidationException {
+		}
+	}
+}
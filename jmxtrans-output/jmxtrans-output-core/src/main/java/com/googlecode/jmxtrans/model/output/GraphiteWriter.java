@@ -25,27 +25,33 @@ package com.googlecode.jmxtrans.model.output;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.StreamCodecs;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import com.googlecode.jmxtrans.model.naming.KeyUtils;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.model.output.support.LineBufferPool;
+import com.googlecode.jmxtrans.model.output.support.LineDialects;
 import com.googlecode.jmxtrans.util.OnlyOnceLogger;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
-import static com.google.common.base.Charsets.UTF_8;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 import static com.googlecode.jmxtrans.util.NumberUtils.isNumeric;
 
@@ -62,14 +68,21 @@ public class GraphiteWriter extends BaseOutputWriter {
 	private static final Logger log = LoggerFactory.getLogger(GraphiteWriter.class);
 
 	private static final String DEFAULT_ROOT_PREFIX = "servers";
+	/** Hand the buffer to the transport each time it reaches this size, to keep it small on large batches. */
+	private static final int FLUSH_THRESHOLD = 8192;
 
-	private GenericKeyedObjectPool<InetSocketAddress, Socket> pool;
+	private TcpTransport transport = TcpTransport.shared();
 
 	private final String rootPrefix;
 	private final InetSocketAddress address;
+	@Nullable private final StreamCodec compression;
+	private final CachedKeyStringBuilder keyStringBuilder;
 
 	private final OnlyOnceLogger onlyOnceLogger = new OnlyOnceLogger(log);
 
+	@GuardedBy("this")
+	private TcpEndpoint endpoint;
+
 	@JsonCreator
 	public GraphiteWriter(
 			@JsonProperty("typeNames") ImmutableList<String> typeNames,
@@ -78,6 +91,7 @@ public class GraphiteWriter extends BaseOutputWriter {
 			@JsonProperty("rootPrefix") String rootPrefix,
 			@JsonProperty("host") String host,
 			@JsonProperty("port") Integer port,
+			@JsonProperty("compression") String compression,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.rootPrefix = resolveProps(
@@ -99,21 +113,36 @@ public class GraphiteWriter extends BaseOutputWriter {
 			throw new NullPointerException("Port cannot be null.");
 		}
 		this.address = new InetSocketAddress(host, port);
+		if (compression == null) {
+			compression = (String) getSettings().get("compression");
+		}
+		this.compression = compression == null ? null : StreamCodecs.forName(compression);
+		this.keyStringBuilder = new CachedKeyStringBuilder(getTypeNames(), this.rootPrefix, true);
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
 	}
 
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		Socket socket = null;
-		PrintWriter writer = null;
+	@Override
+	public synchronized void stop() throws LifecycleException {
+		if (endpoint != null) {
+			endpoint.release();
+			endpoint = null;
+		}
+	}
 
-		try {
-			socket = pool.borrowObject(address);
-			writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8), true);
+	private synchronized TcpEndpoint endpoint() {
+		if (endpoint == null) {
+			endpoint = transport.endpoint(address, compression);
+		}
+		return endpoint;
+	}
 
-			List<String> typeNames = this.getTypeNames();
+	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		TcpEndpoint endpoint = endpoint();
+		LineBuffer buffer = LineBufferPool.shared().acquire();
 
+		try {
 			for (Result result : results) {
 				log.debug("Query result: {}", result);
 				Map<String, Object> resultValues = result.getValues();
@@ -121,25 +150,27 @@ public class GraphiteWriter extends BaseOutputWriter {
 					for (Entry<String, Object> values : resultValues.entrySet()) {
 						Object value = values.getValue();
 						if (isNumeric(value)) {
-
-							String line = KeyUtils.getKeyString(server, query, result, values, typeNames, rootPrefix)
-									.replaceAll("[()]", "_") + " " + value.toString() + " "
-									+ result.getEpoch() / 1000 + "\n";
-							log.debug("Graphite Message: {}", line);
-							writer.write(line);
+							int start = buffer.length();
+							LineDialects.graphite().append(
+									buffer, keyStringBuilder.getKeyString(server, query, result, values), value, result.getEpoch());
+							if (log.isDebugEnabled()) {
+								log.debug("Graphite Message: {}", buffer.toString(start, buffer.length()));
+							}
 						} else {
 							onlyOnceLogger.infoOnce("Unable to submit non-numeric value to Graphite: [{}] from result [{}]", value, result);
 						}
 					}
 				}
+				if (buffer.length() >= FLUSH_THRESHOLD) {
+					endpoint.send(buffer.array(), 0, buffer.length());
+					buffer.reset();
+				}
 			}
+			endpoint.send(buffer.array(), 0, buffer.length());
+		} catch (IOException e) {
+			log.error("Error sending metrics to Graphite", e);
 		} finally {
-			if (writer != null && writer.checkError()) {
-				log.error("Error writing to Graphite, clearing Graphite socket pool");
-				pool.invalidateObject(address, socket);
-			} else {
-				pool.returnObject(address, socket);
-			}
+			LineBufferPool.shared().release(buffer);
 		}
 	}
 
@@ -152,8 +183,8 @@ public class GraphiteWriter extends BaseOutputWriter {
 	}
 
 	@Inject
-	public void setPool(GenericKeyedObjectPool<InetSocketAddress, Socket> pool) {
-		this.pool = pool;
+	public void setTransport(TcpTransport transport) {
+		this.transport = transport;
 	}
 
 	public static Builder builder() {
@@ -167,6 +198,7 @@ public class GraphiteWriter extends BaseOutputWriter {
 		private String rootPrefix;
 		private String host;
 		private Integer port;
+		private String compression;
 
 		private Builder() {}
 
@@ -205,6 +237,11 @@ public class GraphiteWriter extends BaseOutputWriter {
 			return this;
 		}
 
+		public Builder setCompression(String compression) {
+			this.compression = compression;
+			return this;
+		}
+
 		public GraphiteWriter build() {
 			return new GraphiteWriter(
 					typeNames.build(),
@@ -213,6 +250,7 @@ public class GraphiteWriter extends BaseOutputWriter {
 					rootPrefix,
 					host,
 					port,
+					compression,
 					null
 			);
 		}
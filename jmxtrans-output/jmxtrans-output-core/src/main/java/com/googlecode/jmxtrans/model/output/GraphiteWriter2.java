@@ -25,12 +25,15 @@ package com.googlecode.jmxtrans.model.output;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.StreamCodecs;
 import com.googlecode.jmxtrans.model.OutputWriter;
 import com.googlecode.jmxtrans.model.OutputWriterFactory;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
-import com.googlecode.jmxtrans.model.naming.KeyUtils;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.LineDialects;
 import com.googlecode.jmxtrans.model.output.support.ResultTransformerOutputWriter;
 import com.googlecode.jmxtrans.model.output.support.TcpOutputWriter;
 import com.googlecode.jmxtrans.model.output.support.WriterBasedOutputWriter;
@@ -39,6 +42,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.io.Writer;
@@ -67,6 +72,14 @@ public class GraphiteWriter2 implements OutputWriterFactory {
 	private final InetSocketAddress graphiteServer;
 	private final ImmutableList<String> typeNames;
 	private final boolean booleanAsNumber;
+	@Nullable private final StreamCodec compression;
+	private final W writer;
+
+	/**
+	 * Created once: the output writer holds a reference on the shared TCP endpoint until it is stopped.
+	 */
+	@GuardedBy("this")
+	private OutputWriter outputWriter;
 
 	@JsonCreator
 	public GraphiteWriter2(
@@ -74,7 +87,8 @@ public class GraphiteWriter2 implements OutputWriterFactory {
 			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
 			@JsonProperty("rootPrefix") String rootPrefix,
 			@JsonProperty("host") String host,
-			@JsonProperty("port") Integer port) {
+			@JsonProperty("port") Integer port,
+			@JsonProperty("compression") String compression) {
 		this.typeNames = typeNames;
 		this.booleanAsNumber = booleanAsNumber;
 		this.rootPrefix = firstNonNull(rootPrefix, DEFAULT_ROOT_PREFIX);
@@ -82,28 +96,35 @@ public class GraphiteWriter2 implements OutputWriterFactory {
 		this.graphiteServer = new InetSocketAddress(
 				checkNotNull(host, "Host cannot be null."),
 				checkNotNull(port, "Port cannot be null."));
+		this.compression = compression == null ? null : StreamCodecs.forName(compression);
+		this.writer = new W(typeNames, this.rootPrefix);
 	}
 
+	/**
+	 * All the query runs share the same output writer, and with it the key cache and the TCP endpoint.
+	 */
 	@Override
-	public OutputWriter create() {
-		return ResultTransformerOutputWriter.booleanToNumber(
-				booleanAsNumber,
-				TcpOutputWriter.builder(graphiteServer, new W(typeNames, rootPrefix))
-						.setCharset(UTF_8)
-						.build()
-		);
+	public synchronized OutputWriter create() {
+		if (outputWriter == null) {
+			outputWriter = ResultTransformerOutputWriter.booleanToNumber(
+					booleanAsNumber,
+					TcpOutputWriter.builder(graphiteServer, writer)
+							.setCharset(UTF_8)
+							.setCompression(compression)
+							.build()
+			);
+		}
+		return outputWriter;
 	}
 
 	@ThreadSafe
 	public static class W implements WriterBasedOutputWriter {
 		private final OnlyOnceLogger onlyOnceLogger = new OnlyOnceLogger(log);
 
-		private final ImmutableList<String> typeNames;
-		private final String rootPrefix;
+		private final CachedKeyStringBuilder keyStringBuilder;
 
 		public W(ImmutableList<String> typeNames, String rootPrefix) {
-			this.typeNames = typeNames;
-			this.rootPrefix = rootPrefix;
+			this.keyStringBuilder = new CachedKeyStringBuilder(typeNames, rootPrefix, true);
 		}
 
 		@Override
@@ -121,11 +142,11 @@ public class GraphiteWriter2 implements OutputWriterFactory {
 						Object value = values.getValue();
 						if (isNumeric(value)) {
 
-							String line = KeyUtils.getKeyString(server, query, result, values, typeNames, rootPrefix)
-									.replaceAll("[()]", "_") + " " + value.toString() + " "
-									+ result.getEpoch() / 1000 + "\n";
-							log.debug("Graphite Message: {}", line);
-							writer.write(line);
+							String key = keyStringBuilder.getKeyString(server, query, result, values);
+							if (log.isDebugEnabled()) {
+								log.debug("Graphite Message: {} {} {}", key, value, result.getEpoch() / 1000);
+							}
+							LineDialects.graphite().append(writer, key, value, result.getEpoch());
 						} else {
 							onlyOnceLogger.infoOnce("Unable to submit non-numeric value to Graphite: [{}] from result [{}]", value, result);
 						}
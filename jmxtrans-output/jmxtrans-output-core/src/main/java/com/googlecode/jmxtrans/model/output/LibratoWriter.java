@@ -32,19 +32,22 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.naming.KeyUtils;
 import com.googlecode.jmxtrans.model.naming.StringUtils;
+import com.googlecode.jmxtrans.model.output.support.HttpUrlConnections;
 import com.googlecode.jmxtrans.util.NumberUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.NullOutputStream;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
@@ -54,6 +57,9 @@ import java.net.URL;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * This writer is a port of the LibratoWriter from the embedded-jmxtrans
@@ -72,6 +78,16 @@ import java.util.concurrent.TimeUnit;
  * <li>"{@code token}": Librato token. Mandatory</li>
  * <li>"{@code libratoApiTimeoutInMillis}": read timeout of the calls to Librato
  * HTTP API. Optional, default value: 1000.</li>
+ * <li>"{@code flushIntervalInMillis}": interval of the {@link BatchSender}
+ * sending the gauges of all queries, 0 to send them at the end of each query.
+ * Optional, default value: {@value #DEFAULT_FLUSH_INTERVAL_IN_MILLIS}.</li>
+ * <li>"{@code maxMeasurementsPerRequest}": gauges are split in requests of at
+ * most this many measurements. Optional, default value:
+ * {@value #DEFAULT_MAX_MEASUREMENTS_PER_REQUEST}.</li>
+ * <li>"{@code maxPendingMeasurements}": maximum number of pending gauges.
+ * Optional, default value: {@value #DEFAULT_MAX_PENDING_MEASUREMENTS}.</li>
+ * <li>"{@code gzip}": compress requests. Optional, default value:
+ * <code>true</code>.</li>
  * </ul>
  *
  * @author <a href="mailto:cleclerc@cloudbees.com">Cyrille Le Clerc</a>
@@ -85,6 +101,14 @@ public class LibratoWriter extends BaseOutputWriter {
 	public final static String SETTING_PROXY_PORT = "proxyPort";
 	public static final String DEFAULT_LIBRATO_API_URL = "https://metrics-api.librato.com/v1/metrics";
 	public static final String SETTING_LIBRATO_API_TIMEOUT_IN_MILLIS = "libratoApiTimeoutInMillis";
+	public static final String SETTING_FLUSH_INTERVAL_IN_MILLIS = "flushIntervalInMillis";
+	public static final String SETTING_MAX_MEASUREMENTS_PER_REQUEST = "maxMeasurementsPerRequest";
+	public static final String SETTING_MAX_PENDING_MEASUREMENTS = "maxPendingMeasurements";
+	public static final String SETTING_GZIP = "gzip";
+	public static final int DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 1000;
+	/** Librato recommends to keep requests under 300 measurements. */
+	public static final int DEFAULT_MAX_MEASUREMENTS_PER_REQUEST = 300;
+	public static final int DEFAULT_MAX_PENDING_MEASUREMENTS = 100000;
 
 	private final org.slf4j.Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -106,6 +130,16 @@ public class LibratoWriter extends BaseOutputWriter {
 	private final String proxyHost;
 	private final Integer proxyPort;
 	private Proxy proxy;
+
+	private final int flushIntervalInMillis;
+	private final int maxMeasurementsPerRequest;
+	private final int maxPendingMeasurements;
+	private final boolean gzip;
+
+	private final BatchSender<Gauge> sender;
+
+	/** Request body, reused by flushes. */
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
 	
 	@VisibleForTesting
 	final String httpUserAgent;
@@ -121,6 +155,10 @@ public class LibratoWriter extends BaseOutputWriter {
 			@JsonProperty("token") String token,
 			@JsonProperty("proxyHost") String proxyHost,
 			@JsonProperty("proxyPort") Integer proxyPort,
+			@JsonProperty("flushIntervalInMillis") Integer flushIntervalInMillis,
+			@JsonProperty("maxMeasurementsPerRequest") Integer maxMeasurementsPerRequest,
+			@JsonProperty("maxPendingMeasurements") Integer maxPendingMeasurements,
+			@JsonProperty("gzip") Boolean gzip,
 			@JsonProperty("settings") Map<String, Object> settings) throws MalformedURLException {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.url = MoreObjects.firstNonNull(
@@ -147,58 +185,106 @@ public class LibratoWriter extends BaseOutputWriter {
 		} else {
 			this.proxy = null;
 		}
+		this.flushIntervalInMillis = MoreObjects.firstNonNull(
+				flushIntervalInMillis,
+				Settings.getIntSetting(getSettings(), SETTING_FLUSH_INTERVAL_IN_MILLIS, DEFAULT_FLUSH_INTERVAL_IN_MILLIS));
+		this.maxMeasurementsPerRequest = MoreObjects.firstNonNull(
+				maxMeasurementsPerRequest,
+				Settings.getIntSetting(getSettings(), SETTING_MAX_MEASUREMENTS_PER_REQUEST, DEFAULT_MAX_MEASUREMENTS_PER_REQUEST));
+		checkArgument(this.maxMeasurementsPerRequest > 0, "maxMeasurementsPerRequest must be positive");
+		this.maxPendingMeasurements = MoreObjects.firstNonNull(
+				maxPendingMeasurements,
+				Settings.getIntSetting(getSettings(), SETTING_MAX_PENDING_MEASUREMENTS, DEFAULT_MAX_PENDING_MEASUREMENTS));
+		this.gzip = MoreObjects.firstNonNull(
+				gzip,
+				Settings.getBooleanSetting(getSettings(), SETTING_GZIP, true));
 		this.httpUserAgent =
 				"jmxtrans-standalone/1 " + "(" +
 						System.getProperty("java.vm.name") + "/" + System.getProperty("java.version") + "; " +
 						System.getProperty("os.name") + "-" + System.getProperty("os.arch") + "/" + System.getProperty("os.version")
 						+ ")";
+		this.sender = BatchSender.builder("librato", new BatchSender.Sink<Gauge>() {
+			@Override
+			public void send(List<Gauge> gauges) {
+				for (List<Gauge> request : Lists.partition(gauges, LibratoWriter.this.maxMeasurementsPerRequest)) {
+					writeToLibrato(request);
+				}
+			}
+		})
+				.setFlushIntervalInMillis(this.flushIntervalInMillis)
+				.setMaxPendingItems(this.maxPendingMeasurements)
+				.setMBeanName(this, "LibratoWriter", "Username", this.username)
+				.build();
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
 		logger.info("Start Librato writer connected to '{}', proxy {} with username '{}' ...", url, proxy, username);
 	}
 
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		logger.debug("Export to '{}', proxy {} metrics {}", url, proxy, query);
-		writeToLibrato(server, query, results);
+	@Override
+	public void start() throws LifecycleException {
+		sender.start();
 	}
 
-	private void serialize(Server server, Query query, List<Result> results, OutputStream outputStream) throws IOException {
-		JsonGenerator g = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8);
-		g.writeStartObject();
-		g.writeArrayFieldStart("counters");
-		g.writeEndArray();
+	@Override
+	public void stop() throws LifecycleException {
+		sender.stop();
+	}
 
+	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		logger.debug("Export to '{}', proxy {} metrics {}", url, proxy, query);
 		String source = getSource(server);
-
-		g.writeArrayFieldStart("gauges");
 		List<String> typeNames = getTypeNames();
 		for (Result result : results) {
 			Map<String, Object> resultValues = result.getValues();
 			if (resultValues != null) {
 				for (Map.Entry<String, Object> values : resultValues.entrySet()) {
 					if (NumberUtils.isNumeric(values.getValue())) {
-						g.writeStartObject();
-						g.writeStringField("name", KeyUtils.getKeyString(query, result, values, typeNames));
-						if (source != null && !source.isEmpty()) {
-							g.writeStringField("source", source);
-						}
-						g.writeNumberField("measure_time", TimeUnit.SECONDS.convert(result.getEpoch(), TimeUnit.MILLISECONDS));
-						Object value = values.getValue();
-						if (value instanceof Integer) {
-							g.writeNumberField("value", (Integer) value);
-						} else if (value instanceof Long) {
-							g.writeNumberField("value", (Long) value);
-						} else if (value instanceof Float) {
-							g.writeNumberField("value", (Float) value);
-						} else if (value instanceof Double) {
-							g.writeNumberField("value", (Double) value);
-						}
-						g.writeEndObject();
+						sender.add(new Gauge(
+								KeyUtils.getKeyString(query, result, values, typeNames),
+								source,
+								TimeUnit.SECONDS.convert(result.getEpoch(), TimeUnit.MILLISECONDS),
+								values.getValue()));
 					}
 				}
 			}
 		}
+		sender.afterWrite();
+	}
+
+	/**
+	 * Sends all the pending gauges.
+	 */
+	public void flush() throws Exception {
+		sender.flush();
+	}
+
+	private void serialize(List<Gauge> gauges, OutputStream outputStream) throws IOException {
+		JsonGenerator g = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8);
+		g.writeStartObject();
+		g.writeArrayFieldStart("counters");
+		g.writeEndArray();
+
+		g.writeArrayFieldStart("gauges");
+		for (Gauge gauge : gauges) {
+			g.writeStartObject();
+			g.writeStringField("name", gauge.name);
+			if (gauge.source != null && !gauge.source.isEmpty()) {
+				g.writeStringField("source", gauge.source);
+			}
+			g.writeNumberField("measure_time", gauge.measureTime);
+			Object value = gauge.value;
+			if (value instanceof Integer) {
+				g.writeNumberField("value", (Integer) value);
+			} else if (value instanceof Long) {
+				g.writeNumberField("value", (Long) value);
+			} else if (value instanceof Float) {
+				g.writeNumberField("value", (Float) value);
+			} else if (value instanceof Double) {
+				g.writeNumberField("value", (Double) value);
+			}
+			g.writeEndObject();
+		}
 		g.writeEndArray();
 		g.writeEndObject();
 		g.flush();
@@ -206,9 +292,15 @@ public class LibratoWriter extends BaseOutputWriter {
 
 	}
 
-	private void writeToLibrato(Server server, Query query, List<Result> results) {
+	private void writeToLibrato(List<Gauge> gauges) {
 		HttpURLConnection urlConnection = null;
+		sender.getCounters().requestStarted();
 		try {
+			body.reset();
+			OutputStream out = gzip ? new GZIPOutputStream(body) : body;
+			serialize(gauges, out);
+			out.close();
+
 			if (proxy == null) {
 				urlConnection = (HttpURLConnection) url.openConnection();
 			} else {
@@ -219,30 +311,36 @@ public class LibratoWriter extends BaseOutputWriter {
 			urlConnection.setDoOutput(true);
 			urlConnection.setReadTimeout(libratoApiTimeoutInMillis);
 			urlConnection.setRequestProperty("content-type", "application/json; charset=utf-8");
+			if (gzip) {
+				urlConnection.setRequestProperty("content-encoding", "gzip");
+			}
 			urlConnection.setRequestProperty("Authorization", "Basic " + basicAuthentication);
 			urlConnection.setRequestProperty("User-Agent", httpUserAgent);
+			urlConnection.setFixedLengthStreamingMode(body.size());
 
-			serialize(server, query, results, urlConnection.getOutputStream());
+			OutputStream requestStream = urlConnection.getOutputStream();
+			try {
+				body.writeTo(requestStream);
+			} finally {
+				requestStream.close();
+			}
 			int responseCode = urlConnection.getResponseCode();
-			if (responseCode != 200) {
+			if (responseCode / 100 != 2) {
 				logger.warn("Failure {}:'{}' to send result to Librato server '{}' with proxy {}, username {}", responseCode, urlConnection.getResponseMessage(), url, proxy, username);
+				sender.getCounters().requestFailed(0, gauges.size());
+				return;
 			}
 			if (logger.isTraceEnabled()) {
 				IOUtils.copy(urlConnection.getInputStream(), System.out);
 			}
+			sender.getCounters().requestSucceeded(gauges.size());
 		} catch (Exception e) {
 			logger.warn("Failure to send result to Librato server '{}' with proxy {}, username {}", url, proxy, username, e);
+			sender.getCounters().requestFailed(0, gauges.size());
 		} finally {
 			if (urlConnection != null) {
 				try {
-					InputStream in = urlConnection.getInputStream();
-					IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
-					IOUtils.closeQuietly(in);
-					InputStream err = urlConnection.getErrorStream();
-					if (err != null) {
-						IOUtils.copy(err, NullOutputStream.NULL_OUTPUT_STREAM);
-						IOUtils.closeQuietly(err);
-					}
+					HttpUrlConnections.drain(urlConnection);
 				} catch (IOException e) {
 					logger.warn("Exception flushing http connection", e);
 				}
@@ -282,4 +380,38 @@ public class LibratoWriter extends BaseOutputWriter {
 	public Integer getProxyPort() {
 		return proxyPort;
 	}
+
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	public int getMaxMeasurementsPerRequest() {
+		return maxMeasurementsPerRequest;
+	}
+
+	public int getMaxPendingMeasurements() {
+		return maxPendingMeasurements;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
+	}
+
+	private static final class Gauge {
+		private final String name;
+		@Nullable private final String source;
+		private final long measureTime;
+		private final Object value;
+
+		private Gauge(String name, @Nullable String source, long measureTime, Object value) {
+			this.name = name;
+			this.source = source;
+			this.measureTime = measureTime;
+			this.value = value;
+		}
+	}
 }
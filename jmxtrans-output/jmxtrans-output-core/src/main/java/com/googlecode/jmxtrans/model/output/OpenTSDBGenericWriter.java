@@ -35,20 +35,16 @@ import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.naming.ClassAttributeNamingStrategy;
 import com.googlecode.jmxtrans.model.naming.JexlNamingStrategy;
-import com.googlecode.jmxtrans.model.naming.typename.TypeNameValue;
-import com.googlecode.jmxtrans.util.NumberUtils;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.model.output.support.LineBufferPool;
 import org.apache.commons.jexl2.JexlException;
-import org.apache.commons.lang.StringUtils;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Charsets.US_ASCII;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 
 /**
@@ -61,7 +57,8 @@ import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 	public static final boolean DEFAULT_MERGE_TYPE_NAMES_TAGS = true;
 
-	private static final Logger log = LoggerFactory.getLogger(OpenTSDBGenericWriter.class);
+	private static final byte[] NO_PREFIX = new byte[0];
+	private static final byte NEWLINE = '\n';
 
 	protected final String host;
 	protected final Integer port;
@@ -73,6 +70,8 @@ public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 	protected final boolean addHostnameTag;
 	protected final String hostnameTag;
 
+	final OpenTSDBLineEncoder lineEncoder;
+
 	@JsonCreator
 	public OpenTSDBGenericWriter(
 			@JsonProperty("typeNames") ImmutableList<String> typeNames,
@@ -122,6 +121,9 @@ public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 		} else {
 			hostnameTag = null;
 		}
+
+		this.lineEncoder = new OpenTSDBLineEncoder(
+				metricNameStrategy, hostnameTag, this.tags, this.tagName, getTypeNames(), this.mergeTypeNamesTags);
 	}
 
 	/**
@@ -163,126 +165,19 @@ public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 	}
 
 	/**
-	 * Add tags to the given result string, including a "host" tag with the name of the server and all of the tags
-	 * defined in the "settings" entry in the configuration file within the "tag" element.
-	 *
-	 * @param resultString - the string containing the metric name, timestamp, value, and possibly other content.
-	 */
-	void addTags(StringBuilder resultString) {
-		if (addHostnameTag && hostnameTag != null) {
-			addTag(resultString, "host", hostnameTag);
-		}
-
-		if (tags != null) {
-			// Add the constant tag names and values.
-			for (Map.Entry<String, String> tagEntry : tags.entrySet()) {
-				addTag(resultString, tagEntry.getKey(), tagEntry.getValue());
-			}
-		}
-	}
-
-	/**
-	 * Add one tag, with the provided name and value, to the given result string.
+	 * Send a single metric line, encoded as ASCII. The default implementation decodes the line and delegates to
+	 * {@link #sendOutput(String)}, subclasses writing bytes should override this method instead.
 	 *
-	 * @param resultString - the string containing the metric name, timestamp, value, and possibly other content.
-	 * @return String - the new result string with the tag appended.
+	 * @param data   - buffer containing the metric line; only valid until this method returns.
+	 * @param offset - start of the metric line in the buffer.
+	 * @param length - length of the metric line, excluding the trailing newline character.
 	 */
-	void addTag(StringBuilder resultString, String tagName, String tagValue) {
-		resultString.append(" ");
-		resultString.append(sanitizeString(tagName));
-		resultString.append("=");
-		resultString.append(sanitizeString(tagValue));
-	}
+	protected void sendOutput(byte[] data, int offset, int length) throws IOException {
+		String metricLine = new String(data, offset, length, US_ASCII);
+		if (isDebugEnabled())
+			System.out.println(metricLine);
 
-	/**
-	 * Format the result string given the class name and attribute name of the source value, the timestamp, and the
-	 * value.
-	 *
-	 * @param epoch - the timestamp of the metric.
-	 * @param value - value of the attribute to use as the metric value.
-	 * @return String - the formatted result string.
-	 */
-	void formatResultString(StringBuilder resultString, String metricName, long epoch, Object value) {
-		resultString.append(sanitizeString(metricName));
-		resultString.append(" ");
-		resultString.append(Long.toString(epoch));
-		resultString.append(" ");
-		resultString.append(sanitizeString(value.toString()));
-	}
-
-	/**
-	 * Parse one of the results of a Query and return a list of strings containing metric details ready for sending to
-	 * OpenTSDB.
-	 *
-	 * @param result - one results from the Query.
-	 * @return List<String> - the list of strings containing metric details ready for sending to OpenTSDB.
-	 */
-	List<String> resultParser(Result result) {
-		List<String> resultStrings = new LinkedList<String>();
-		Map<String, Object> values = result.getValues();
-
-		String attributeName = result.getAttributeName();
-
-		if (values.containsKey(attributeName) && values.size() == 1) {
-			processOneMetric(resultStrings, result, values.get(attributeName), null, null);
-		} else {
-			for (Map.Entry<String, Object> valueEntry : values.entrySet()) {
-				processOneMetric(resultStrings, result, valueEntry.getValue(), tagName, valueEntry.getKey());
-			}
-		}
-		return resultStrings;
-	}
-
-	/**
-	 * Process a single metric from the given JMX query result with the specified value.
-	 */
-	protected void processOneMetric(List<String> resultStrings, Result result, Object value, String addTagName,
-									String addTagValue) {
-		String metricName = this.metricNameStrategy.formatName(result);
-
-		//
-		// Skip any non-numeric values since OpenTSDB only supports numeric metrics.
-		//
-		if (NumberUtils.isNumeric(value)) {
-			StringBuilder resultString = new StringBuilder();
-
-			formatResultString(resultString, metricName, result.getEpoch() / 1000L, value);
-			addTags(resultString);
-
-			if (addTagName != null) {
-				addTag(resultString, addTagName, addTagValue);
-			}
-
-			if (getTypeNames().size() > 0) {
-				this.addTypeNamesTags(resultString, result);
-			}
-
-			resultStrings.add(resultString.toString());
-		} else {
-			log.debug("Skipping non-numeric value for metric {}; value={}", metricName, value);
-		}
-	}
-
-	/**
-	 * Add the tag(s) for typeNames.
-	 *
-	 * @param result       - the result of the JMX query.
-	 * @param resultString - current form of the metric string.
-	 * @return String - the updated metric string with the necessary tag(s) added.
-	 */
-	protected void addTypeNamesTags(StringBuilder resultString, Result result) {
-		if (mergeTypeNamesTags) {
-			// Produce a single tag with all the TypeName keys concatenated and all the values joined with '_'.
-			addTag(resultString, StringUtils.join(getTypeNames(), ""), getConcatedTypeNameValues(result.getTypeName()));
-		} else {
-			Map<String, String> typeNameMap = TypeNameValue.extractMap(result.getTypeName());
-			for (String oneTypeName : getTypeNames()) {
-				String value = typeNameMap.get(oneTypeName);
-				if (value == null)
-					value = "";
-				addTag(resultString, oneTypeName, value);
-			}
-		}
+		this.sendOutput(metricLine);
 	}
 
 	/**
@@ -295,13 +190,21 @@ public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 	@Override
 	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
 		this.startOutput();
-		for (Result result : results) {
-			for (String resultString : resultParser(result)) {
-				if (isDebugEnabled())
-					System.out.println(resultString);
-
-				this.sendOutput(resultString);
+		LineBuffer buffer = LineBufferPool.shared().acquire();
+		try {
+			for (Result result : results) {
+				buffer.reset();
+				lineEncoder.encode(result, buffer, NO_PREFIX);
+
+				int start = 0;
+				int end;
+				while ((end = buffer.indexOf(NEWLINE, start)) >= 0) {
+					this.sendOutput(buffer.array(), start, end - start);
+					start = end + 1;
+				}
 			}
+		} finally {
+			LineBufferPool.shared().release(buffer);
 		}
 		this.finishOutput();
 	}
@@ -338,8 +241,6 @@ public abstract class OpenTSDBGenericWriter extends BaseOutputWriter {
 	 * - Replace all other invalid characters with '_'.
 	 */
 	protected String sanitizeString(String unsanitized) {
-		return unsanitized.
-				replaceAll("[\"']", "").
-				replaceAll("[^-_./a-zA-Z0-9]", "_");
+		return OpenTSDBLineEncoder.sanitize(unsanitized);
 	}
 }
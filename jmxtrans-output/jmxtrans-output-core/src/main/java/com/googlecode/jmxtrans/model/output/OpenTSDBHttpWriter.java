@@ -0,0 +1,512 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link com.googlecode.jmxtrans.model.OutputWriter} for the <a href="http://opentsdb.net/docs/build/html/api_http/put.html">
+ * OpenTSDB HTTP API</a>.
+ *
+ * Unlike the telnet <code>put</code> protocol, every batch of datapoints is acknowledged: the TSD answers with the
+ * number of datapoints it failed to store, and a slow TSD slows this writer down instead of silently dropping data.
+ * Datapoints are named and tagged exactly like {@link OpenTSDBWriter} does.
+ *
+ * Settings, on top of the ones of {@link OpenTSDBGenericWriter}:
+ * <ul>
+ * <li>"{@code batchSize}": maximum number of datapoints per request. Optional, default value:
+ * {@value #DEFAULT_BATCH_SIZE}.</li>
+ * <li>"{@code gzip}": compress requests. Optional, default value: <code>true</code>.</li>
+ * <li>"{@code details}": ask the TSD for the error of each failed datapoint, which are then logged. Optional,
+ * default value: <code>false</code>.</li>
+ * <li>"{@code timeoutInMillis}": connect and read timeout of the requests. Optional, default value:
+ * {@value #DEFAULT_TIMEOUT_IN_MILLIS}.</li>
+ * </ul>
+ */
+public class OpenTSDBHttpWriter extends OpenTSDBGenericWriter {
+	private static final Logger log = LoggerFactory.getLogger(OpenTSDBHttpWriter.class);
+
+	public static final String SETTING_BATCH_SIZE = "batchSize";
+	public static final String SETTING_GZIP = "gzip";
+	public static final String SETTING_DETAILS = "details";
+	public static final String SETTING_TIMEOUT_IN_MILLIS = "timeoutInMillis";
+
+	/** As recommended by OpenTSDB to keep the time spent on a single request reasonable. */
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	public static final int DEFAULT_TIMEOUT_IN_MILLIS = 5000;
+
+	private static final byte SPACE = ' ';
+	private static final byte EQUALS = '=';
+
+	private final JsonFactory jsonFactory = new JsonFactory();
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final URL url;
+	private final int batchSize;
+	private final boolean gzip;
+	private final boolean details;
+	private final int timeoutInMillis;
+
+	/** Metric lines, converted into JSON datapoints when they are sent. */
+	private final BatchSender<byte[]> sender;
+
+	/** Request body, reused by flushes. */
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+	@JsonCreator
+	public OpenTSDBHttpWriter(
+			@JsonProperty("typeNames") ImmutableList<String> typeNames,
+			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
+			@JsonProperty("debug") Boolean debugEnabled,
+			@JsonProperty("host") String host,
+			@JsonProperty("port") Integer port,
+			@JsonProperty("tags") Map<String, String> tags,
+			@JsonProperty("tagName") String tagName,
+			@JsonProperty("mergeTypeNamesTags") Boolean mergeTypeNamesTags,
+			@JsonProperty("metricNamingExpression") String metricNamingExpression,
+			@JsonProperty("addHostnameTag") Boolean addHostnameTag,
+			@JsonProperty("batchSize") Integer batchSize,
+			@JsonProperty("gzip") Boolean gzip,
+			@JsonProperty("details") Boolean details,
+			@JsonProperty("timeoutInMillis") Integer timeoutInMillis,
+			@JsonProperty("settings") Map<String, Object> settings)
+			throws LifecycleException, UnknownHostException, MalformedURLException {
+		super(typeNames, booleanAsNumber, debugEnabled, host, port, tags, tagName, mergeTypeNamesTags, metricNamingExpression,
+				addHostnameTag, settings);
+		this.batchSize = firstNonNull(batchSize, Settings.getIntegerSetting(getSettings(), SETTING_BATCH_SIZE, null),
+				DEFAULT_BATCH_SIZE);
+		checkArgument(this.batchSize > 0, "Batch size must be positive");
+		this.gzip = firstNonNull(gzip, Settings.getBooleanSetting(getSettings(), SETTING_GZIP, null), true);
+		this.details = firstNonNull(details, Settings.getBooleanSetting(getSettings(), SETTING_DETAILS, null), false);
+		this.timeoutInMillis = firstNonNull(timeoutInMillis,
+				Settings.getIntegerSetting(getSettings(), SETTING_TIMEOUT_IN_MILLIS, null), DEFAULT_TIMEOUT_IN_MILLIS);
+		this.url = new URL("http", this.host, this.port, this.details ? "/api/put?details" : "/api/put?summary");
+		this.sender = BatchSender.builder("opentsdb-http", new BatchSender.Sink<byte[]>() {
+			@Override
+			public void send(List<byte[]> lines) {
+				for (List<byte[]> batch : Lists.partition(lines, OpenTSDBHttpWriter.this.batchSize)) {
+					post(batch);
+				}
+			}
+		})
+				.setMBeanName(this, "OpenTSDBHttpWriter", "Url", this.url.toString())
+				.build();
+	}
+
+	@Override
+	protected boolean getAddHostnameTagDefault() {
+		return true;
+	}
+
+	@Override
+	protected void prepareSender() throws LifecycleException {
+		sender.start();
+	}
+
+	@Override
+	protected void shutdownSender() throws LifecycleException {
+		sender.stop();
+	}
+
+	/**
+	 * The datapoints of the query are sent once all its results have been converted.
+	 */
+	@Override
+	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		super.internalWrite(server, query, results);
+		sender.afterWrite();
+	}
+
+	@Override
+	protected void sendOutput(String metricLine) throws IOException {
+		byte[] data = metricLine.getBytes(US_ASCII);
+		sendOutput(data, 0, data.length);
+	}
+
+	@Override
+	protected void sendOutput(byte[] data, int offset, int length) throws IOException {
+		int end = offset + length;
+		int metricEnd = indexOf(data, SPACE, offset, end);
+		int timestampEnd = indexOf(data, SPACE, metricEnd + 1, end);
+		int valueEnd = indexOf(data, SPACE, timestampEnd + 1, end);
+
+		String value = new String(data, timestampEnd + 1, valueEnd - timestampEnd - 1, US_ASCII);
+		if (!isJsonNumber(value)) {
+			log.debug("Skipping value which is not a JSON number for metric {}", new String(data, offset, metricEnd - offset, US_ASCII));
+			return;
+		}
+		sender.add(Arrays.copyOfRange(data, offset, end));
+	}
+
+	private void post(List<byte[]> lines) {
+		sender.getCounters().requestStarted();
+		try {
+			body.reset();
+			OutputStream out = gzip ? new GZIPOutputStream(body) : body;
+			JsonGenerator generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8);
+			generator.writeStartArray();
+			for (byte[] line : lines) {
+				writeDatapoint(generator, line);
+			}
+			generator.writeEndArray();
+			// also finishes the gzip stream
+			generator.close();
+
+			Outcome outcome = send();
+			if (outcome.failed > 0) {
+				sender.getCounters().requestFailed(lines.size() - outcome.failed, outcome.failed);
+				log.warn("OpenTSDB at {} failed to store {} of {} datapoints: {}",
+						url, outcome.failed, lines.size(), outcome.error);
+			} else {
+				sender.getCounters().requestSucceeded(lines.size());
+			}
+		} catch (IOException e) {
+			sender.getCounters().requestFailed(0, lines.size());
+			log.warn("Could not send {} datapoints to OpenTSDB at {}", lines.size(), url, e);
+		}
+	}
+
+	/**
+	 * Converts a metric line into a JSON datapoint. Every token of the line has been sanitized by the
+	 * {@link OpenTSDBLineEncoder}, they can be split on spaces and copied as JSON strings without escaping.
+	 */
+	private static void writeDatapoint(JsonGenerator generator, byte[] line) throws IOException {
+		int end = line.length;
+		int metricEnd = indexOf(line, SPACE, 0, end);
+		int timestampEnd = indexOf(line, SPACE, metricEnd + 1, end);
+		int valueEnd = indexOf(line, SPACE, timestampEnd + 1, end);
+
+		generator.writeStartObject();
+		generator.writeFieldName("metric");
+		generator.writeRawUTF8String(line, 0, metricEnd);
+		generator.writeFieldName("timestamp");
+		generator.writeNumber(new String(line, metricEnd + 1, timestampEnd - metricEnd - 1, US_ASCII));
+		generator.writeFieldName("value");
+		generator.writeNumber(new String(line, timestampEnd + 1, valueEnd - timestampEnd - 1, US_ASCII));
+		generator.writeObjectFieldStart("tags");
+		int tagStart = valueEnd + 1;
+		while (tagStart < end) {
+			int tagEnd = indexOf(line, SPACE, tagStart, end);
+			int equals = indexOf(line, EQUALS, tagStart, tagEnd);
+			generator.writeFieldName(new String(line, tagStart, equals - tagStart, US_ASCII));
+			generator.writeRawUTF8String(line, Math.min(equals + 1, tagEnd), Math.max(tagEnd - equals - 1, 0));
+			tagStart = tagEnd + 1;
+		}
+		generator.writeEndObject();
+		generator.writeEndObject();
+	}
+
+	private Outcome send() throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setConnectTimeout(timeoutInMillis);
+		connection.setReadTimeout(timeoutInMillis);
+		connection.setRequestProperty("Content-Type", "application/json");
+		if (gzip) {
+			connection.setRequestProperty("Content-Encoding", "gzip");
+		}
+		connection.setFixedLengthStreamingMode(body.size());
+
+		OutputStream out = connection.getOutputStream();
+		try {
+			body.writeTo(out);
+		} finally {
+			out.close();
+		}
+
+		int responseCode = connection.getResponseCode();
+		InputStream in = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+		byte[] response = new byte[0];
+		if (in != null) {
+			try {
+				response = ByteStreams.toByteArray(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		JsonNode summary = null;
+		if (response.length > 0) {
+			try {
+				summary = mapper.readTree(response);
+			} catch (IOException e) {
+				log.debug("Response of OpenTSDB at {} is not a JSON summary", url, e);
+			}
+		}
+		if (summary == null || !summary.has("failed")) {
+			// 204 without summary when everything is stored
+			if (responseCode / 100 == 2) {
+				return new Outcome(0, "");
+			}
+			throw new IOException("HTTP " + responseCode + " " + connection.getResponseMessage());
+		}
+		JsonNode errors = summary.path("errors");
+		return new Outcome(summary.path("failed").asInt(),
+				errors.size() > 0 ? errors.get(0).path("error").asText() : "set details to log the errors");
+	}
+
+	private static int indexOf(byte[] data, byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == b) {
+				return i;
+			}
+		}
+		return to;
+	}
+
+	/**
+	 * Whether the value follows the JSON number grammar, <code>-?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?</code>.
+	 * NaN, infinities, Java type suffixes, leading zeros and signs, and bare decimal points are rejected.
+	 */
+	@VisibleForTesting
+	static boolean isJsonNumber(String value) {
+		int length = value.length();
+		int i = 0;
+		if (i < length && value.charAt(i) == '-') {
+			i++;
+		}
+		if (i < length && value.charAt(i) == '0') {
+			i++;
+		} else {
+			int start = i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+		if (i < length && value.charAt(i) == '.') {
+			int start = ++i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+				i++;
+			}
+			int start = i;
+			i = skipDigits(value, i);
+			if (i == start) {
+				return false;
+			}
+		}
+		return i == length;
+	}
+
+	private static int skipDigits(String value, int from) {
+		int i = from;
+		while (i < value.length() && value.charAt(i) >= '0' && value.charAt(i) <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	public boolean isDetails() {
+		return details;
+	}
+
+	public int getTimeoutInMillis() {
+		return timeoutInMillis;
+	}
+
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
+	}
+
+	private static final class Outcome {
+		private final int failed;
+		private final String error;
+
+		private Outcome(int failed, String error) {
+			this.failed = failed;
+			this.error = error;
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	public static final class Builder {
+		private final ImmutableList.Builder<String> typeNames = ImmutableList.builder();
+		private boolean booleanAsNumber;
+		private Boolean debugEnabled;
+		private String host;
+		private Integer port;
+		private final ImmutableMap.Builder<String, String> tags = ImmutableMap.builder();
+		private String tagName;
+		private Boolean mergeTypeNamesTags;
+		private String metricNamingExpression;
+		private Boolean addHostnameTag;
+		private Integer batchSize;
+		private Boolean gzip;
+		private Boolean details;
+		private Integer timeoutInMillis;
+
+		private Builder() {}
+
+		public Builder addTypeNames(List<String> typeNames) {
+			this.typeNames.addAll(typeNames);
+			return this;
+		}
+
+		public Builder addTypeName(String typeName) {
+			typeNames.add(typeName);
+			return this;
+		}
+
+		public Builder setBooleanAsNumber(boolean booleanAsNumber) {
+			this.booleanAsNumber = booleanAsNumber;
+			return this;
+		}
+
+		public Builder setDebugEnabled(boolean debugEnabled) {
+			this.debugEnabled = debugEnabled;
+			return this;
+		}
+
+		public Builder setHost(String host) {
+			this.host = host;
+			return this;
+		}
+
+		public Builder setPort(int port) {
+			this.port = port;
+			return this;
+		}
+
+		public Builder addTag(String key, String value) {
+			this.tags.put(key, value);
+			return this;
+		}
+
+		public Builder addTags(Map<String, String> tags) {
+			this.tags.putAll(tags);
+			return this;
+		}
+
+		public Builder setTagName(String tagName) {
+			this.tagName = tagName;
+			return this;
+		}
+
+		public Builder setMergeTypeNamesTags(Boolean mergeTypeNamesTags) {
+			this.mergeTypeNamesTags = mergeTypeNamesTags;
+			return this;
+		}
+
+		public Builder setMetricNamingExpression(String metricNamingExpression) {
+			this.metricNamingExpression = metricNamingExpression;
+			return this;
+		}
+
+		public Builder setAddHostnameTag(Boolean addHostnameTag) {
+			this.addHostnameTag = addHostnameTag;
+			return this;
+		}
+
+		public Builder setBatchSize(int batchSize) {
+			this.batchSize = batchSize;
+			return this;
+		}
+
+		public Builder setGzip(boolean gzip) {
+			this.gzip = gzip;
+			return this;
+		}
+
+		public Builder setDetails(boolean details) {
+			this.details = details;
+			return this;
+		}
+
+		public Builder setTimeoutInMillis(int timeoutInMillis) {
+			this.timeoutInMillis = timeoutInMillis;
+			return this;
+		}
+
+		public OpenTSDBHttpWriter build() throws LifecycleException, UnknownHostException, MalformedURLException {
+			return new OpenTSDBHttpWriter(
+					typeNames.build(),
+					booleanAsNumber,
+					debugEnabled,
+					host,
+					port,
+					tags.build(),
+					tagName,
+					mergeTypeNamesTags,
+					metricNamingExpression,
+					addHostnameTag,
+					batchSize,
+					gzip,
+					details,
+					timeoutInMillis,
+					null
+			);
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.NamingStrategy;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.util.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Map;
+
+/**
+ * Encodes results as OpenTSDB metric lines:
+ *
+ * <pre>[prefix]metric epoch value[ host=...][ constant tags][ tagName=valueKey][ type name tags]\n</pre>
+ *
+ * Everything that does not depend on the result (host tag, constant tags, tag names) is sanitized and encoded once,
+ * at construction time. Values that do depend on the result are sanitized while they are copied into the
+ * {@link LineBuffer}, so that encoding a line does not allocate.
+ */
+@ThreadSafe
+class OpenTSDBLineEncoder {
+
+	private static final Logger log = LoggerFactory.getLogger(OpenTSDBLineEncoder.class);
+
+	private final NamingStrategy metricNameStrategy;
+	private final byte[] constantTags;
+	private final byte[] valueTagName;
+	private final ImmutableList<String> typeNames;
+	private final boolean mergeTypeNamesTags;
+	/** " Name=" for each type name, or a single merged tag name. */
+	private final byte[][] typeNameTagNames;
+
+	OpenTSDBLineEncoder(
+			@Nonnull NamingStrategy metricNameStrategy,
+			@Nullable String hostnameTag,
+			@Nonnull ImmutableMap<String, String> tags,
+			@Nonnull String tagName,
+			@Nonnull ImmutableList<String> typeNames,
+			boolean mergeTypeNamesTags) {
+		this.metricNameStrategy = metricNameStrategy;
+		this.typeNames = typeNames;
+		this.mergeTypeNamesTags = mergeTypeNamesTags;
+
+		LineBuffer buffer = new LineBuffer(256);
+		if (hostnameTag != null) {
+			appendTag(buffer, "host", hostnameTag);
+		}
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			appendTag(buffer, tag.getKey(), tag.getValue());
+		}
+		this.constantTags = toBytes(buffer);
+		this.valueTagName = tagNameBytes(tagName);
+
+		if (typeNames.isEmpty()) {
+			this.typeNameTagNames = new byte[0][];
+		} else if (mergeTypeNamesTags) {
+			StringBuilder merged = new StringBuilder();
+			for (String typeName : typeNames) {
+				merged.append(typeName);
+			}
+			this.typeNameTagNames = new byte[][] {tagNameBytes(merged.toString())};
+		} else {
+			this.typeNameTagNames = new byte[typeNames.size()][];
+			for (int i = 0; i < typeNames.size(); i++) {
+				typeNameTagNames[i] = tagNameBytes(typeNames.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Append one line per numeric value of the result to the buffer. Each line starts with the given prefix and
+	 * ends with a newline character. Non numeric values are skipped since OpenTSDB only supports numeric metrics.
+	 *
+	 * @return the number of lines appended.
+	 */
+	int encode(@Nonnull Result result, @Nonnull LineBuffer buffer, @Nonnull byte[] linePrefix) {
+		Map<String, Object> values = result.getValues();
+		if (values == null || values.isEmpty()) {
+			return 0;
+		}
+
+		String metricName = metricNameStrategy.formatName(result);
+		long epoch = result.getEpoch() / 1000L;
+		String attributeName = result.getAttributeName();
+
+		if (values.size() == 1 && values.containsKey(attributeName)) {
+			return encodeOne(buffer, linePrefix, result, metricName, epoch, values.get(attributeName), null);
+		}
+		int lines = 0;
+		for (Map.Entry<String, Object> valueEntry : values.entrySet()) {
+			lines += encodeOne(buffer, linePrefix, result, metricName, epoch, valueEntry.getValue(), valueEntry.getKey());
+		}
+		return lines;
+	}
+
+	private int encodeOne(LineBuffer buffer, byte[] linePrefix, Result result, String metricName, long epoch,
+			Object value, @Nullable String valueKey) {
+		if (!NumberUtils.isNumeric(value)) {
+			log.debug("Skipping non-numeric value for metric {}; value={}", metricName, value);
+			return 0;
+		}
+
+		buffer.append(linePrefix);
+		appendSanitized(buffer, metricName);
+		buffer.append(' ').append(epoch).append(' ');
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			buffer.append(((Number) value).longValue());
+		} else {
+			appendSanitized(buffer, value.toString());
+		}
+
+		buffer.append(constantTags);
+
+		if (valueKey != null) {
+			buffer.append(valueTagName);
+			appendSanitized(buffer, valueKey);
+		}
+
+		if (!typeNames.isEmpty()) {
+			appendTypeNamesTags(buffer, result);
+		}
+
+		buffer.append('\n');
+		return 1;
+	}
+
+	private void appendTypeNamesTags(LineBuffer buffer, Result result) {
+		Map<String, String> typeNameMap = result.getTypeNameValues().getMap();
+		if (mergeTypeNamesTags) {
+			// A single tag with all the type name keys concatenated and all the values joined with '_'.
+			buffer.append(typeNameTagNames[0]);
+			boolean first = true;
+			for (String typeName : typeNames) {
+				String value = typeNameMap.get(typeName);
+				if (value != null) {
+					if (!first) {
+						buffer.append('_');
+					}
+					appendSanitized(buffer, value);
+					first = false;
+				}
+			}
+		} else {
+			for (int i = 0; i < typeNames.size(); i++) {
+				buffer.append(typeNameTagNames[i]);
+				String value = typeNameMap.get(typeNames.get(i));
+				if (value != null) {
+					appendSanitized(buffer, value);
+				}
+			}
+		}
+	}
+
+	private static void appendTag(LineBuffer buffer, String name, String value) {
+		buffer.append(' ');
+		appendSanitized(buffer, name);
+		buffer.append('=');
+		appendSanitized(buffer, value);
+	}
+
+	private static byte[] tagNameBytes(String tagName) {
+		LineBuffer buffer = new LineBuffer(tagName.length() + 2);
+		buffer.append(' ');
+		appendSanitized(buffer, tagName);
+		buffer.append('=');
+		return toBytes(buffer);
+	}
+
+	private static byte[] toBytes(LineBuffer buffer) {
+		byte[] bytes = new byte[buffer.length()];
+		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/**
+	 * VALID CHARACTERS:
+	 * METRIC, TAGNAME, AND TAG-VALUE:
+	 * [-_./a-zA-Z0-9]+
+	 * <p/>
+	 * SANITIZATION:
+	 * - Discard Quotes.
+	 * - Replace all other invalid characters with '_'.
+	 */
+	static void appendSanitized(LineBuffer buffer, String unsanitized) {
+		int length = unsanitized.length();
+		for (int i = 0; i < length; i++) {
+			char c = unsanitized.charAt(i);
+			if (c == '"' || c == '\'') {
+				continue;
+			}
+			if (isValid(c)) {
+				buffer.append(c);
+			} else {
+				buffer.append('_');
+				i = skipLowSurrogate(unsanitized, i);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #appendSanitized(LineBuffer, String)}, returns the input itself when nothing needs to change.
+	 */
+	static String sanitize(String unsanitized) {
+		int length = unsanitized.length();
+		for (int i = 0; i < length; i++) {
+			char c = unsanitized.charAt(i);
+			if (c == '"' || c == '\'' || !isValid(c)) {
+				StringBuilder sanitized = new StringBuilder(length);
+				sanitized.append(unsanitized, 0, i);
+				for (; i < length; i++) {
+					c = unsanitized.charAt(i);
+					if (c == '"' || c == '\'') {
+						continue;
+					}
+					if (isValid(c)) {
+						sanitized.append(c);
+					} else {
+						sanitized.append('_');
+						i = skipLowSurrogate(unsanitized, i);
+					}
+				}
+				return sanitized.toString();
+			}
+		}
+		return unsanitized;
+	}
+
+	/**
+	 * A surrogate pair is a single invalid character, replaced by a single '_' like the regular expression did.
+	 */
+	private static int skipLowSurrogate(String s, int i) {
+		if (Character.isHighSurrogate(s.charAt(i)) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			return i + 1;
+		}
+		return i;
+	}
+
+	private static boolean isValid(char c) {
+		return (c >= 'a' && c <= 'z')
+				|| (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9')
+				|| c == '-' || c == '_' || c == '.' || c == '/';
+	}
+}
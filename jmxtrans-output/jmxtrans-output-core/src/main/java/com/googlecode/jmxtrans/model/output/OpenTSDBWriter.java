@@ -26,26 +26,27 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.StreamCodecs;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.ConnectException;
 import java.util.List;
 import java.util.Map;
 
-import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Charsets.US_ASCII;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 
 /**
@@ -56,9 +57,17 @@ import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 
 public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 	private static final Logger log = LoggerFactory.getLogger(OpenTSDBWriter.class);
+	private static final byte[] PUT = "put ".getBytes(US_ASCII);
+	private static final byte NEWLINE = '\n';
+	/** Hand the buffer to the transport each time the buffer reaches this size, to keep it small on large batches. */
+	private static final int FLUSH_THRESHOLD = 8192;
 
-	private GenericKeyedObjectPool<InetSocketAddress, Socket> pool;
+	private TcpTransport transport = TcpTransport.shared();
 	private final InetSocketAddress address;
+	@Nullable private final StreamCodec compression;
+
+	private final LineBuffer buffer = new LineBuffer(FLUSH_THRESHOLD + 1024);
+	private TcpEndpoint endpoint;
 
 	@JsonCreator
 	public OpenTSDBWriter(
@@ -72,6 +81,7 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 			@JsonProperty("mergeTypeNamesTags") Boolean mergeTypeNamesTags,
 			@JsonProperty("metricNamingExpression") String metricNamingExpression,
 			@JsonProperty("addHostnameTag") Boolean addHostnameTag,
+			@JsonProperty("compression") String compression,
 			@JsonProperty("settings") Map<String, Object> settings) throws LifecycleException, UnknownHostException {
 		super(typeNames, booleanAsNumber, debugEnabled, host, port, tags, tagName, mergeTypeNamesTags, metricNamingExpression,
 				addHostnameTag, settings);
@@ -89,6 +99,10 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 			throw new NullPointerException("Port cannot be null.");
 		}
 		this.address = new InetSocketAddress(host, port);
+		if (compression == null) {
+			compression = (String) getSettings().get("compression");
+		}
+		this.compression = compression == null ? null : StreamCodecs.forName(compression);
 
 	}
 
@@ -101,45 +115,75 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 		return true;
 	}
 
+	/**
+	 * Batches share the line buffer, they are written one at a time. Sending only queues the lines on the transport,
+	 * so batches do not wait on OpenTSDB.
+	 */
+	@Override
+	public synchronized void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		try {
+			super.internalWrite(server, query, results);
+		} catch (IOException e) {
+			log.error("Error sending metrics to OpenTSDB", e);
+		}
+	}
+
+	@Override
+	protected void startOutput() throws IOException {
+		if (endpoint == null) {
+			endpoint = transport.endpoint(address, compression);
+		}
+		buffer.reset();
+	}
+
+	@Override
+	protected synchronized void shutdownSender() throws LifecycleException {
+		if (endpoint != null) {
+			endpoint.release();
+			endpoint = null;
+		}
+	}
+
 	@Override
 	protected void sendOutput(String metricLine) throws IOException {
+		byte[] data = metricLine.getBytes(US_ASCII);
+		sendOutput(data, 0, data.length);
 	}
 
+	/**
+	 * Add a single metric line to the buffer, straight from the encoding buffer. The buffer is handed to the transport
+	 * each time it reaches {@link #FLUSH_THRESHOLD}.
+	 */
 	@Override
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-	Socket socket = null;
-	PrintWriter writer = null;
-
-	try {
-		socket = pool.borrowObject(address);
-		writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), UTF_8), true);
-
-		for (Result result : results) {
-			log.debug("Query result: {}", result);
-			Map<String, Object> resultValues = result.getValues();
-			if (resultValues != null) {
-				for (String resultString : resultParser(result)) {
-					log.debug("OpenTSDB Message: {}", resultString);
-					writer.write("put " + resultString + "\n");
-				}
-			}
-		}
-
-	} catch (ConnectException e) {
-		log.error("Error while connecting to OpenTSDB");
-	} finally {
-		if (writer != null && writer.checkError()) {
-			log.error("Error writing to OpenTSDB, clearing OpenTSDB socket pool");
-			pool.invalidateObject(address, socket);
-		} else {
-			pool.returnObject(address, socket);
+	protected void sendOutput(byte[] data, int offset, int length) throws IOException {
+		if (log.isDebugEnabled()) {
+			log.debug("OpenTSDB Message: put {}", new String(data, offset, length, US_ASCII));
 		}
+		buffer.append(PUT).append(data, offset, length).appendByte(NEWLINE);
+		if (buffer.length() >= FLUSH_THRESHOLD) {
+			flush();
+		}
+	}
+
+	@Override
+	protected void finishOutput() throws IOException {
+		flush();
 	}
+
+	private void flush() throws IOException {
+		if (buffer.length() == 0) {
+			return;
+		}
+		try {
+			endpoint.send(buffer.array(), 0, buffer.length());
+		} finally {
+			buffer.reset();
+		}
 	}
 
 	@Inject
-	public void setPool(GenericKeyedObjectPool<InetSocketAddress, Socket> pool) {
-		this.pool = pool;
+	public void setTransport(TcpTransport transport) {
+		this.transport = transport;
 	}
 
 	public static Builder builder() {
@@ -152,6 +196,7 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 		private Boolean debugEnabled;
 		private String host;
 		private Integer port;
+		private String compression;
 		private final ImmutableMap.Builder<String, String> tags = ImmutableMap.builder();
 		private String tagName;
 		private Boolean mergeTypeNamesTags;
@@ -190,6 +235,11 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 			return this;
 		}
 
+		public Builder setCompression(String compression) {
+			this.compression = compression;
+			return this;
+		}
+
 		public Builder addTag(String key, String value) {
 			this.tags.put(key, value);
 			return this;
@@ -232,6 +282,7 @@ public class OpenTSDBWriter extends OpenTSDBGenericWriter {
 					mergeTypeNamesTags,
 					metricNamingExpression,
 					addHostnameTag,
+					compression,
 					null
 			);
 		}
@@ -28,21 +28,28 @@ import com.fasterxml.jackson.core.JsonEncoding;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import com.googlecode.jmxtrans.model.naming.KeyUtils;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.LineDialect;
+import com.googlecode.jmxtrans.model.output.support.LineDialects;
 import com.googlecode.jmxtrans.util.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Charsets.US_ASCII;
 
 /**
  * <a href="http://sensuapp.org/docs/0.12/events">Sensu Event Data</a>
@@ -52,9 +59,16 @@ import java.util.concurrent.TimeUnit;
  * Settings:
  * <ul>
  * <li>"{@code host}": Sensu client host. Optional, default value: {@value #DEFAULT_SENSU_HOST}</li>
+ * <li>"{@code port}": Sensu client socket port. Optional, default value: {@value #DEFAULT_SENSU_PORT}</li>
  * <li>"{@code handler}": Sensu handler. Optional, default value: {@value #DEFAULT_SENSU_HANDLER}</li>
+ * <li>"{@code flushIntervalInMillis}": metrics of all queries are sent as a single check result by a
+ * {@link BatchSender} at this interval. 0 sends one check result at the end of each query instead. Optional, default
+ * value: {@value #DEFAULT_FLUSH_INTERVAL_IN_MILLIS}</li>
  * </ul>
  *
+ * The Sensu client closes sockets which stay idle for half a second, so each check result is sent on a connection of
+ * its own, which is closed once the client has acknowledged the check result.
+ *
  * @author <a href="mailto:jhmartin@toger.us">Jason Martin</a>
  */
 public class SensuWriter extends BaseOutputWriter {
@@ -64,14 +78,32 @@ public class SensuWriter extends BaseOutputWriter {
 	private final JsonFactory jsonFactory = new JsonFactory();
 
 	public final static String SETTING_HANDLER = "handler";
+	public final static String SETTING_FLUSH_INTERVAL_IN_MILLIS = "flushIntervalInMillis";
 	public final static String DEFAULT_SENSU_HOST = "localhost";
+	public final static int DEFAULT_SENSU_PORT = 3030;
 	public final static String DEFAULT_SENSU_HANDLER = "graphite";
+	public final static int DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 1000;
+
+	/** Connect and read timeout of the connections to the Sensu client. */
+	private static final int TIMEOUT_IN_MILLIS = 5000;
+	private static final String ACKNOWLEDGEMENT = "ok";
 
 	/**
 	 * Sensu HTTP API URL
 	 */
 	private final String host;
+	private final int port;
 	private final String handler;
+	private final int flushIntervalInMillis;
+	private final InetSocketAddress address;
+	private final CachedKeyStringBuilder keyStringBuilder;
+	private final LineDialect dialect = LineDialects.sensu(System.getProperty("line.separator"));
+
+	/** Metric lines of each query. Jackson escapes supplementary characters, so they are kept as chars. */
+	private final BatchSender<String> sender;
+
+	/** Check result, reused by flushes. */
+	private final ByteArrayOutputStream message = new ByteArrayOutputStream();
 
 	@JsonCreator
 	public SensuWriter(
@@ -79,75 +111,143 @@ public class SensuWriter extends BaseOutputWriter {
 			@JsonProperty("booleanAsNumber") boolean booleanAsNumber,
 			@JsonProperty("debug") Boolean debugEnabled,
 			@JsonProperty("host") String host,
+			@JsonProperty("port") Integer port,
 			@JsonProperty("handler") String handler,
+			@JsonProperty("flushIntervalInMillis") Integer flushIntervalInMillis,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.host = firstNonNull(host, (String) getSettings().get(HOST), DEFAULT_SENSU_HOST);
+		this.port = firstNonNull(port, Settings.getIntegerSetting(getSettings(), PORT, null), DEFAULT_SENSU_PORT);
 		this.handler = firstNonNull(handler, (String) getSettings().get(SETTING_HANDLER), DEFAULT_SENSU_HANDLER);
+		this.flushIntervalInMillis = firstNonNull(
+				flushIntervalInMillis,
+				Settings.getIntegerSetting(getSettings(), SETTING_FLUSH_INTERVAL_IN_MILLIS, null),
+				DEFAULT_FLUSH_INTERVAL_IN_MILLIS);
+		this.address = new InetSocketAddress(this.host, this.port);
+		this.keyStringBuilder = new CachedKeyStringBuilder(getTypeNames(), null, false);
+		this.sender = BatchSender.builder("sensu", new BatchSender.Sink<String>() {
+			@Override
+			public void send(List<String> outputs) {
+				sendCheckResult(outputs);
+			}
+		})
+				.setFlushIntervalInMillis(this.flushIntervalInMillis)
+				.setMBeanName(this, "SensuWriter", "Address", this.host + ":" + this.port)
+				.build();
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
-		logger.info("Start Sensu writer connected to '{}' with handler {}", host, handler);
+		logger.info("Start Sensu writer connected to '{}:{}' with handler {}", host, port, handler);
 	}
 
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		logger.debug("Export to '{}', metrics {}", host, query);
-		writeToSensu(server, query, results);
+	@Override
+	public void start() throws LifecycleException {
+		sender.start();
 	}
 
-	private void serialize(Server server, Query query, List<Result> results, OutputStream outputStream) throws IOException {
-		JsonGenerator g = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8);
-		g.useDefaultPrettyPrinter();
-		g.writeStartObject();
-		g.writeStringField("name", "jmxtrans");
-		g.writeStringField("type", "metric");
-		g.writeStringField("handler", handler);
+	@Override
+	public void stop() throws LifecycleException {
+		sender.stop();
+	}
 
-		StringBuilder jsonoutput = new StringBuilder();
-		List<String> typeNames = getTypeNames();
+	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		logger.debug("Export to '{}', metrics {}", host, query);
+		StringBuilder output = new StringBuilder();
 		for (Result result : results) {
 			Map<String, Object> resultValues = result.getValues();
 			if (resultValues != null) {
 				for (Map.Entry<String, Object> values : resultValues.entrySet()) {
 					if (NumberUtils.isNumeric(values.getValue())) {
-						Object value = values.getValue();
-						jsonoutput.append(KeyUtils.getKeyString(server, query, result, values, typeNames, null)).append(" ")
-								.append(value).append(" ")
-								.append(TimeUnit.SECONDS.convert(result.getEpoch(), TimeUnit.MILLISECONDS))
-								.append(System.getProperty("line.separator"));
+						dialect.append(output, keyStringBuilder.getKeyString(server, query, result, values),
+								values.getValue(), result.getEpoch());
 					}
 				}
 			}
 		}
-		g.writeStringField("output", jsonoutput.toString());
-		g.writeEndObject();
-		g.flush();
-		g.close();
+		if (output.length() > 0) {
+			sender.add(output.toString());
+		}
+		sender.afterWrite();
+	}
+
+	/**
+	 * Sends the metrics accumulated since the last flush as a single check result.
+	 */
+	public void flush() throws Exception {
+		sender.flush();
 	}
 
-	private void writeToSensu(Server server, Query query, List<Result> results) {
-		Socket socketConnection = null;
+	private void sendCheckResult(List<String> outputs) {
+		sender.getCounters().requestStarted();
 		try {
-			socketConnection = new Socket(host, 3030);
-			serialize(server, query, results, socketConnection.getOutputStream());
-		} catch (Exception e) {
+			StringBuilder output = new StringBuilder();
+			for (String lines : outputs) {
+				output.append(lines);
+			}
+			message.reset();
+			serialize(output.toString(), message);
+			send(message);
+			sender.getCounters().requestSucceeded(outputs.size());
+		} catch (IOException e) {
+			sender.getCounters().requestFailed(0, outputs.size());
 			logger.warn("Failure to send result to Sensu server '{}'", host, e);
-		} finally {
-			if (socketConnection != null) {
-				try {
-					socketConnection.close();
-				} catch (IOException e) {
-					logger.warn("Exception closing Sensu connection", e);
-				}
+		}
+	}
+
+	private void send(ByteArrayOutputStream checkResult) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, TIMEOUT_IN_MILLIS);
+			socket.setSoTimeout(TIMEOUT_IN_MILLIS);
+			OutputStream out = socket.getOutputStream();
+			checkResult.writeTo(out);
+			out.flush();
+
+			// the client answers as soon as it has parsed the check result, but only closes the socket once idle
+			InputStream in = socket.getInputStream();
+			byte[] reply = new byte[64];
+			int length = in.read(reply);
+			if (length < 0) {
+				throw new IOException("Sensu client closed the connection without acknowledging the check result");
 			}
+			String answer = new String(reply, 0, length, US_ASCII).trim();
+			if (!answer.startsWith(ACKNOWLEDGEMENT)) {
+				throw new IOException("Sensu client rejected the check result: " + answer);
+			}
+		} finally {
+			socket.close();
 		}
 	}
 
+	private void serialize(String output, OutputStream outputStream) throws IOException {
+		JsonGenerator g = jsonFactory.createGenerator(outputStream, JsonEncoding.UTF8);
+		g.writeStartObject();
+		g.writeStringField("name", "jmxtrans");
+		g.writeStringField("type", "metric");
+		g.writeStringField("handler", handler);
+		g.writeStringField("output", output);
+		g.writeEndObject();
+		g.flush();
+		g.close();
+	}
+
 	public String getHost() {
 		return host;
 	}
 
+	public int getPort() {
+		return port;
+	}
+
 	public String getHandler() {
 		return handler;
 	}
+
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
+	}
 }
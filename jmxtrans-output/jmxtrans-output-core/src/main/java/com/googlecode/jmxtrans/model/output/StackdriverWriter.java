@@ -29,21 +29,26 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.naming.typename.TypeNameValuesStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.HttpUrlConnections;
 import com.googlecode.jmxtrans.util.NumberUtils;
+import com.googlecode.jmxtrans.util.ObjectToDouble;
+import org.apache.commons.io.output.TeeOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
@@ -55,6 +60,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import static com.google.common.base.Charsets.ISO_8859_1;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Strings.isNullOrEmpty;
 import static org.apache.commons.lang.StringUtils.isAlphanumeric;
 
@@ -76,7 +82,15 @@ import static org.apache.commons.lang.StringUtils.isAlphanumeric;
  * <li>"{@code timeoutInMillis}": read timeout of the calls to Stackdriver HTTP API. Optional, default
  * value: {@value #DEFAULT_STACKDRIVER_API_TIMEOUT_IN_MILLIS}.</li>
  * <li>"{@code enabled}": flag to enable/disable the writer. Optional, default value: <code>true</code>.</li>
+ * <li>"{@code flushIntervalInMillis}": interval of the {@link BatchSender} sending the data points of all queries, 0
+ * to send them at the end of each query. Optional, default value: {@value #DEFAULT_FLUSH_INTERVAL_IN_MILLIS}.</li>
+ * <li>"{@code maxDataPointsPerRequest}": data points are split in gateway messages of at most this size. Optional,
+ * default value: {@value #DEFAULT_MAX_DATA_POINTS_PER_REQUEST}.</li>
+ * <li>"{@code maxPendingDataPoints}": maximum number of pending data points. Optional, default value:
+ * {@value #DEFAULT_MAX_PENDING_DATA_POINTS}.</li>
  * </ul>
+ *
+ * Gateway messages are only logged, at debug level, when the {@code debug} flag of the writer is set.
  * 
  * @author <a href="mailto:eric@stackdriver.com">Eric Kilby</a>
  */
@@ -91,6 +105,12 @@ public class StackdriverWriter extends BaseOutputWriter {
 	public static final int DEFAULT_STACKDRIVER_API_TIMEOUT_IN_MILLIS = 1000;
 	
 	public static final String DEFAULT_STACKDRIVER_API_URL = "https://custom-gateway.stackdriver.com/v1/custom";
+
+	public static final int DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 1000;
+
+	public static final int DEFAULT_MAX_DATA_POINTS_PER_REQUEST = 100;
+
+	public static final int DEFAULT_MAX_PENDING_DATA_POINTS = 100000;
 	
 	// names of settings
 	public static final String SETTING_STACKDRIVER_API_URL = "url";
@@ -108,11 +128,19 @@ public class StackdriverWriter extends BaseOutputWriter {
 	public static final String SETTING_STACKDRIVER_API_TIMEOUT_IN_MILLIS = "stackdriverApiTimeoutInMillis";
 	
 	public static final String SETTING_PREFIX = "prefix";
+
+	public static final String SETTING_FLUSH_INTERVAL_IN_MILLIS = "flushIntervalInMillis";
+
+	public static final String SETTING_MAX_DATA_POINTS_PER_REQUEST = "maxDataPointsPerRequest";
+
+	public static final String SETTING_MAX_PENDING_DATA_POINTS = "maxPendingDataPoints";
 	
 	/**
 	 * The instance ID that metrics from this writer should be associated with in Stackdriver, an example of this
 	 * would be an EC2 instance ID in the form i-00000000 that is present in your environment.
 	 */
+	private final ObjectToDouble toDoubleConverter = new ObjectToDouble();
+
 	private final String instanceId;
 	private final String source;
 	private final String detectInstance;
@@ -149,6 +177,12 @@ public class StackdriverWriter extends BaseOutputWriter {
 
 	private JsonFactory jsonFactory = new JsonFactory();
 
+	private final int flushIntervalInMillis;
+	private final int maxDataPointsPerRequest;
+	private final int maxPendingDataPoints;
+
+	private final BatchSender<DataPoint> sender;
+
 	@JsonCreator
 	public StackdriverWriter(
 			@JsonProperty("typeNames") ImmutableList<String> typeNames,
@@ -162,6 +196,9 @@ public class StackdriverWriter extends BaseOutputWriter {
 			@JsonProperty("timeoutInMillis") Integer timeoutInMillis,
 			@JsonProperty("source") String source,
 			@JsonProperty("detectInstance") String detectInstance,
+			@JsonProperty("flushIntervalInMillis") Integer flushIntervalInMillis,
+			@JsonProperty("maxDataPointsPerRequest") Integer maxDataPointsPerRequest,
+			@JsonProperty("maxPendingDataPoints") Integer maxPendingDataPoints,
 			@JsonProperty("settings") Map<String, Object> settings) throws MalformedURLException {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.gatewayUrl = new URL(firstNonNull(
@@ -201,6 +238,20 @@ public class StackdriverWriter extends BaseOutputWriter {
 				Settings.getIntegerSetting(getSettings(), SETTING_STACKDRIVER_API_TIMEOUT_IN_MILLIS, null),
 				DEFAULT_STACKDRIVER_API_TIMEOUT_IN_MILLIS);
 
+		this.flushIntervalInMillis = firstNonNull(
+				flushIntervalInMillis,
+				Settings.getIntegerSetting(getSettings(), SETTING_FLUSH_INTERVAL_IN_MILLIS, null),
+				DEFAULT_FLUSH_INTERVAL_IN_MILLIS);
+		this.maxDataPointsPerRequest = firstNonNull(
+				maxDataPointsPerRequest,
+				Settings.getIntegerSetting(getSettings(), SETTING_MAX_DATA_POINTS_PER_REQUEST, null),
+				DEFAULT_MAX_DATA_POINTS_PER_REQUEST);
+		checkArgument(this.maxDataPointsPerRequest > 0, "maxDataPointsPerRequest must be positive");
+		this.maxPendingDataPoints = firstNonNull(
+				maxPendingDataPoints,
+				Settings.getIntegerSetting(getSettings(), SETTING_MAX_PENDING_DATA_POINTS, null),
+				DEFAULT_MAX_PENDING_DATA_POINTS);
+
 		// try to get and instance ID
 		if (source == null) {
 			source = (String) getSettings().get(SETTING_SOURCE_INSTANCE);
@@ -211,6 +262,18 @@ public class StackdriverWriter extends BaseOutputWriter {
 		}
 		this.detectInstance = detectInstance;
 		this.instanceId = computeInstanceId(this.source, this.detectInstance);
+		this.sender = BatchSender.builder("stackdriver", new BatchSender.Sink<DataPoint>() {
+			@Override
+			public void send(List<DataPoint> dataPoints) {
+				for (List<DataPoint> request : Lists.partition(dataPoints, StackdriverWriter.this.maxDataPointsPerRequest)) {
+					doSend(request);
+				}
+			}
+		})
+				.setFlushIntervalInMillis(this.flushIntervalInMillis)
+				.setMaxPendingItems(this.maxPendingDataPoints)
+				.setMBeanName(this, "StackdriverWriter", "Url", this.gatewayUrl.toString())
+				.build();
 	}
 
 	/**
@@ -254,43 +317,24 @@ public class StackdriverWriter extends BaseOutputWriter {
 		return result;
 	}
 
-	/**
-	 * Implementation of the base writing method.  Operates in two stages:
-	 * <br/>
-	 * First turns the query result into a JSON message in Stackdriver format
-	 * <br/>
-	 * Second posts the message to the Stackdriver gateway via HTTP
-	 */
 	@Override
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		String gatewayMessage = getGatewayMessage(results);
-		
-		// message won't be returned if there are no numeric values in the query results
-		if (gatewayMessage != null) {
-			logger.info(gatewayMessage);
-			doSend(gatewayMessage);
-		}
+	public void start() throws LifecycleException {
+		sender.start();
+	}
+
+	@Override
+	public void stop() throws LifecycleException {
+		sender.stop();
 	}
 
 	/**
-	 * Take query results, make a JSON String
-	 * 
-	 * @param results List of Result objects
-	 * @return a String containing a JSON message, or null if there are no values to report
-	 * 
-	 * @throws IOException if there is some problem generating the JSON, should be uncommon
+	 * Implementation of the base writing method. Turns the query results into data points, which are sent to the
+	 * Stackdriver gateway by the next flush.
 	 */
-	private String getGatewayMessage(final List<Result> results) throws IOException {
-		int valueCount = 0;
-		Writer writer = new StringWriter();
-		JsonGenerator g = jsonFactory.createGenerator(writer);
-		g.writeStartObject();
-		g.writeNumberField("timestamp", System.currentTimeMillis() / 1000);
-		g.writeNumberField("proto_version", STACKDRIVER_PROTOCOL_VERSION);
-		g.writeArrayFieldStart("data");
-
+	@Override
+	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
 		List<String> typeNames = this.getTypeNames();
-		
+
 		for (Result metric : results) {
 			Map<String, Object> values = metric.getValues();
 			if (values != null) {
@@ -342,45 +386,66 @@ public class StackdriverWriter extends BaseOutputWriter {
 							logger.info("Metric value for " + nameBuilder.toString() + " is NaN, skipping");
 							continue;
 						}
-						
-						valueCount++;
-						g.writeStartObject();
-						
-						g.writeStringField("name", nameBuilder.toString());
-						
-						g.writeNumberField("value", Double.valueOf(entry.getValue().toString()));
-						
-						// if the metric is attached to an instance, include that in the message
-						if (instanceId != null && !instanceId.isEmpty()) {
-							g.writeStringField("instance", instanceId);
-						}
-						g.writeNumberField("collected_at", metric.getEpoch() / 1000);
-						g.writeEndObject();
+
+						sender.add(new DataPoint(nameBuilder.toString(), toDoubleConverter.apply(entry.getValue()),
+								metric.getEpoch() / 1000));
 					}
 				}
 			}
 		}
-		
+
+		sender.afterWrite();
+	}
+
+	/**
+	 * Sends all the pending data points.
+	 */
+	public void flush() throws Exception {
+		sender.flush();
+	}
+
+	/**
+	 * Write the data points as a JSON message in Stackdriver format
+	 *
+	 * @throws IOException if there is some problem writing the JSON, usually a network error
+	 */
+	private void writeGatewayMessage(final List<DataPoint> dataPoints, OutputStream out) throws IOException {
+		// Stackdriver's own implementation does not specify char encoding
+		// to use. Let's take the simplest approach and at lest ensure that
+		// if we have problems they can be reproduced in consistant ways.
+		// See https://github.com/Stackdriver/stackdriver-custommetrics-java/blob/master/src/main/java/com/stackdriver/api/custommetrics/CustomMetricsPoster.java#L262
+		// for details.
+		JsonGenerator g = jsonFactory.createGenerator(new OutputStreamWriter(out, ISO_8859_1));
+		g.writeStartObject();
+		g.writeNumberField("timestamp", System.currentTimeMillis() / 1000);
+		g.writeNumberField("proto_version", STACKDRIVER_PROTOCOL_VERSION);
+		g.writeArrayFieldStart("data");
+
+		for (DataPoint dataPoint : dataPoints) {
+			g.writeStartObject();
+			g.writeStringField("name", dataPoint.name);
+			g.writeNumberField("value", dataPoint.value);
+			// if the metric is attached to an instance, include that in the message
+			if (instanceId != null && !instanceId.isEmpty()) {
+				g.writeStringField("instance", instanceId);
+			}
+			g.writeNumberField("collected_at", dataPoint.collectedAt);
+			g.writeEndObject();
+		}
+
 		g.writeEndArray();
 		g.writeEndObject();
 		g.flush();
 		g.close();
-		
-		// return the message if there are any values to report
-		if (valueCount > 0) {
-			return writer.toString();
-		} else {
-			return null;
-		}
 	}
 	
 	/**
-	 * Post the formatted results to the gateway URL over HTTP 
-	 * 
-	 * @param gatewayMessage String in the Stackdriver custom metrics JSON format containing the data points
+	 * Post the data points to the gateway URL over HTTP. The message is streamed to the connection as it is
+	 * generated.
 	 */
-	private void doSend(final String gatewayMessage) {
+	private void doSend(final List<DataPoint> dataPoints) {
 		HttpURLConnection urlConnection = null;
+		sender.getCounters().requestStarted();
 
 		try {
 			if (proxy == null) {
@@ -394,30 +459,33 @@ public class StackdriverWriter extends BaseOutputWriter {
 			urlConnection.setReadTimeout(timeoutInMillis);
 			urlConnection.setRequestProperty("content-type", "application/json; charset=utf-8");
 			urlConnection.setRequestProperty("x-stackdriver-apikey", apiKey);
+			urlConnection.setChunkedStreamingMode(0);
 
-			// Stackdriver's own implementation does not specify char encoding
-			// to use. Let's take the simplest approach and at lest ensure that
-			// if we have problems they can be reproduced in consistant ways.
-			// See https://github.com/Stackdriver/stackdriver-custommetrics-java/blob/master/src/main/java/com/stackdriver/api/custommetrics/CustomMetricsPoster.java#L262
-			// for details.
-			urlConnection.getOutputStream().write(gatewayMessage.getBytes(ISO_8859_1));
+			ByteArrayOutputStream logged = null;
+			OutputStream out = urlConnection.getOutputStream();
+			if (isDebugEnabled() && logger.isDebugEnabled()) {
+				logged = new ByteArrayOutputStream();
+				out = new TeeOutputStream(out, logged);
+			}
+			writeGatewayMessage(dataPoints, out);
+			if (logged != null) {
+				logger.debug(new String(logged.toByteArray(), ISO_8859_1));
+			}
 			
 			int responseCode = urlConnection.getResponseCode();
 			if (responseCode != 200 && responseCode != 201) {
 				logger.warn("Failed to send results to Stackdriver server: responseCode=" + responseCode + " message=" + urlConnection.getResponseMessage());
+				sender.getCounters().requestFailed(0, dataPoints.size());
+				return;
 			}
+			sender.getCounters().requestSucceeded(dataPoints.size());
 		} catch (Exception e) {
 			logger.warn("Failure to send result to Stackdriver server", e);
+			sender.getCounters().requestFailed(0, dataPoints.size());
 		} finally {
 			if (urlConnection != null) {
 				try {
-					InputStream in = urlConnection.getInputStream();
-					in.close();
-					InputStream err = urlConnection.getErrorStream();
-					if (err != null) {
-						err.close();
-					}
-					urlConnection.disconnect();
+					HttpUrlConnections.drain(urlConnection);
 				} catch (IOException e) {
 					logger.warn("Error flushing http connection for one result, continuing");
 					logger.debug("Stack trace for the http connection, usually a network timeout", e);
@@ -488,4 +556,32 @@ public class StackdriverWriter extends BaseOutputWriter {
 	public String getDetectInstance() {
 		return detectInstance;
 	}
+
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	public int getMaxDataPointsPerRequest() {
+		return maxDataPointsPerRequest;
+	}
+
+	public int getMaxPendingDataPoints() {
+		return maxPendingDataPoints;
+	}
+
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
+	}
+
+	private static final class DataPoint {
+		private final String name;
+		private final double value;
+		private final long collectedAt;
+
+		private DataPoint(String name, double value, long collectedAt) {
+			this.name = name;
+			this.value = value;
+			this.collectedAt = collectedAt;
+		}
+	}
 }
@@ -25,31 +25,28 @@ package com.googlecode.jmxtrans.model.output;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.ImmutableList;
-import com.googlecode.jmxtrans.connections.DatagramSocketFactory;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import com.googlecode.jmxtrans.model.naming.KeyUtils;
-import com.googlecode.jmxtrans.monitoring.ManagedGenericKeyedObjectPool;
-import com.googlecode.jmxtrans.monitoring.ManagedObject;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.Datagrams;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import com.googlecode.jmxtrans.model.output.support.LineBufferPool;
+import com.googlecode.jmxtrans.model.output.support.LineDialect;
+import com.googlecode.jmxtrans.model.output.support.LineDialects;
+import com.googlecode.jmxtrans.monitoring.MBeanRegistration;
 import com.googlecode.jmxtrans.util.NumberUtils;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.management.MBeanServer;
 import java.io.IOException;
-import java.lang.management.ManagementFactory;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -57,30 +54,35 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * This output writer sends data to a host/port combination in the StatsD
  * format.
  *
+ * Metrics of a batch are packed in as few datagrams as possible, separated by
+ * <code>\n</code>. The size of a datagram is bounded by the <code>mtu</code>
+ * setting, minus the worst case IP and UDP headers, so that packets are not
+ * fragmented. A metric which does not fit in an empty datagram is sent on its
+ * own.
+ *
  * @author neilh
  */
 public class StatsDWriter extends BaseOutputWriter {
 
 	private static final Logger log = LoggerFactory.getLogger(StatsDWriter.class);
 	public static final String ROOT_PREFIX = "rootPrefix";
-	private final ByteBuffer sendBuffer;
+	public static final String MTU = "mtu";
 
 	private final String bucketType;
+	private final LineDialect dialect;
 	private final String rootPrefix;
+	private final CachedKeyStringBuilder keyStringBuilder;
 	private final InetSocketAddress address;
-	private final DatagramChannel channel;
+	/** Closed when the writer stops, and opened again if it is restarted. */
+	private volatile DatagramChannel channel;
+	private final int mtu;
+	private final int maxPacketSize;
 
 	private static final String BUCKET_TYPE = "bucketType";
 
-	private GenericKeyedObjectPool<SocketAddress, DatagramSocket> pool;
-	private ManagedObject mbean;
-
+	private final Counters counters = new Counters();
+	private final MBeanRegistration registration;
 
-	/**
-	 * Uses JmxUtils.getDefaultPoolMap()
-	 *
-	 * @throws IOException
-	 */
 	@JsonCreator
 	public StatsDWriter(
 			@JsonProperty("typeNames") ImmutableList<String> typeNames,
@@ -90,14 +92,18 @@ public class StatsDWriter extends BaseOutputWriter {
 			@JsonProperty("port") Integer port,
 			@JsonProperty("bucketType") String bucketType,
 			@JsonProperty("rootPrefix") String rootPrefix,
+			@JsonProperty("mtu") Integer mtu,
 			@JsonProperty("settings") Map<String, Object> settings) throws IOException {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		channel = DatagramChannel.open();
-		sendBuffer = ByteBuffer.allocate((short) 1500);
 
 		// bucketType defaults to c == counter
 		this.bucketType = firstNonNull(bucketType, (String) getSettings().get(BUCKET_TYPE), "c");
+		this.dialect = LineDialects.statsD(this.bucketType);
 		this.rootPrefix = firstNonNull(rootPrefix, (String) getSettings().get(ROOT_PREFIX), "servers");
+		this.keyStringBuilder = new CachedKeyStringBuilder(getTypeNames(), this.rootPrefix, false);
+		this.mtu = firstNonNull(mtu, Settings.getIntegerSetting(getSettings(), MTU, null), Datagrams.DEFAULT_MTU);
+		this.maxPacketSize = Datagrams.maxPayloadSize(this.mtu);
 
 		if (host == null) {
 			host = (String) getSettings().get(HOST);
@@ -109,6 +115,8 @@ public class StatsDWriter extends BaseOutputWriter {
 		checkNotNull(host, "Host cannot be null");
 		checkNotNull(port, "Port cannot be null");
 		this.address = new InetSocketAddress(host, port);
+		this.registration = new MBeanRegistration(counters, this, "StatsDWriter", "Address",
+				this.address.getHostName() + ":" + this.address.getPort());
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
@@ -116,113 +124,88 @@ public class StatsDWriter extends BaseOutputWriter {
 
 
 	@Override
-	public void start() throws LifecycleException {
-		try {
-			pool = new GenericKeyedObjectPool<SocketAddress, DatagramSocket>(new DatagramSocketFactory());
-			pool.setTestOnBorrow(true);
-			pool.setMaxActive(-1);
-			pool.setMaxIdle(-1);
-			pool.setTimeBetweenEvictionRunsMillis(1000 * 60 * 5);
-			pool.setMinEvictableIdleTimeMillis(1000 * 60 * 5);
-
-			this.mbean = new ManagedGenericKeyedObjectPool((GenericKeyedObjectPool) pool, "StatsdConnectionPool");
-			ManagementFactory.getPlatformMBeanServer()
-					.registerMBean(this.mbean, this.mbean.getObjectName());
-		} catch (Exception e) {
-			throw new LifecycleException(e);
+	public synchronized void start() throws LifecycleException {
+		if (!channel.isOpen()) {
+			try {
+				channel = DatagramChannel.open();
+			} catch (IOException e) {
+				throw new LifecycleException(e);
+			}
 		}
+		registration.register();
 	}
 
 	@Override
-	public void stop() throws LifecycleException {
+	public synchronized void stop() throws LifecycleException {
 		try {
-			if (this.mbean != null) {
-				MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-				mbs.unregisterMBean(this.mbean.getObjectName());
-				this.mbean = null;
-			}
-			if (this.pool != null) {
-				pool.close();
-				this.pool = null;
-			}
-		} catch (Exception e) {
-			throw new LifecycleException(e);
+			channel.close();
+		} catch (IOException e) {
+			log.warn("Could not close StatsD channel to {}", address, e);
 		}
+		registration.unregister();
 	}
 
 	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		// Each batch is packed in buffers of its own, so that concurrent queries never contend on a shared packet.
+		LineBuffer line = LineBufferPool.shared().acquire();
+		LineBuffer packet = LineBufferPool.shared().acquire();
+		try {
+			for (Result result : results) {
+				if (isDebugEnabled()) {
+					log.debug(result.toString());
+				}
 
-		List<String> typeNames = this.getTypeNames();
-
-		for (Result result : results) {
-			if (isDebugEnabled()) {
-				log.debug(result.toString());
-			}
-
-			Map<String, Object> resultValues = result.getValues();
-			if (resultValues != null) {
-				for (Entry<String, Object> values : resultValues.entrySet()) {
-					if (NumberUtils.isNumeric(values.getValue())) {
+				Map<String, Object> resultValues = result.getValues();
+				if (resultValues != null) {
+					for (Entry<String, Object> values : resultValues.entrySet()) {
+						if (NumberUtils.isNumeric(values.getValue())) {
+							line.reset();
+							dialect.append(line, keyStringBuilder.getKeyString(server, query, result, values), values.getValue(),
+									result.getEpoch());
+							line.trim(0);
 
-						String line = KeyUtils.getKeyString(server, query, result, values, typeNames, rootPrefix)
-								+ ":" + values.getValue().toString() + "|" + bucketType + "\n";
+							if (isDebugEnabled()) {
+								log.debug("StatsD Message: " + line);
+							}
 
-						if (isDebugEnabled()) {
-							log.debug("StatsD Message: " + line.trim());
+							append(packet, line);
 						}
-
-						doSend(line.trim());
 					}
 				}
 			}
+			send(packet);
+		} finally {
+			LineBufferPool.shared().release(packet);
+			LineBufferPool.shared().release(line);
 		}
 	}
 
-	private synchronized boolean doSend(String stat) {
-		try {
-			final byte[] data = stat.getBytes("utf-8");
-
-			// If we're going to go past the threshold of the buffer then flush.
-			// the +1 is for the potential '\n' in multi_metrics below
-			if (sendBuffer.remaining() < (data.length + 1)) {
-				flush();
-			}
-
-			if (sendBuffer.position() > 0) { // multiple metrics are separated
-				// by '\n'
-				sendBuffer.put((byte) '\n');
-			}
-
-			sendBuffer.put(data); // append the data
-
-			flush();
-			return true;
-
-		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+	private void append(LineBuffer packet, LineBuffer stat) {
+		// the +1 is for the '\n' separating multiple metrics
+		if (packet.length() > 0 && packet.length() + 1 + stat.length() > maxPacketSize) {
+			send(packet);
+		}
+		if (packet.length() > 0) {
+			packet.appendByte('\n');
 		}
+		packet.append(stat.array(), 0, stat.length());
+		counters.metricsSent.incrementAndGet();
 	}
 
-	public synchronized boolean flush() {
+	private void send(LineBuffer packet) {
+		if (packet.length() == 0) {
+			return;
+		}
 		try {
-			final int sizeOfBuffer = sendBuffer.position();
-
-			if (sizeOfBuffer <= 0) {
-				return false;
-			} // empty buffer
-
-			// send and reset the buffer
-			sendBuffer.flip();
-			final int nbSentBytes = channel.send(sendBuffer, this.address);
-			sendBuffer.limit(sendBuffer.capacity());
-			sendBuffer.rewind();
-
-			return sizeOfBuffer == nbSentBytes;
-
+			// DatagramChannel serializes concurrent sends and, being blocking, always sends the whole packet
+			int sent = channel.send(packet.asByteBuffer(), address);
+			counters.packetsSent.incrementAndGet();
+			counters.bytesSent.addAndGet(sent);
 		} catch (IOException e) {
-			e.printStackTrace();
-			return false;
+			counters.sendErrors.incrementAndGet();
+			log.warn("Could not send StatsD packet to {}", address, e);
+		} finally {
+			packet.reset();
 		}
 	}
 
@@ -237,4 +220,39 @@ public class StatsDWriter extends BaseOutputWriter {
 	public int getPort() {
 		return address.getPort();
 	}
+
+	public int getMtu() {
+		return mtu;
+	}
+
+	StatsDWriterMXBean getCounters() {
+		return counters;
+	}
+
+	private static final class Counters implements StatsDWriterMXBean {
+		private final AtomicLong metricsSent = new AtomicLong();
+		private final AtomicLong packetsSent = new AtomicLong();
+		private final AtomicLong bytesSent = new AtomicLong();
+		private final AtomicLong sendErrors = new AtomicLong();
+
+		@Override
+		public long getMetricsSent() {
+			return metricsSent.get();
+		}
+
+		@Override
+		public long getPacketsSent() {
+			return packetsSent.get();
+		}
+
+		@Override
+		public long getBytesSent() {
+			return bytesSent.get();
+		}
+
+		@Override
+		public long getSendErrors() {
+			return sendErrors.get();
+		}
+	}
 }
@@ -24,38 +24,49 @@ package com.googlecode.jmxtrans.model.output;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.googlecode.jmxtrans.model.Query;
-import com.googlecode.jmxtrans.model.Result;
-import com.googlecode.jmxtrans.model.Server;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.model.output.support.Datagrams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.List;
 import java.util.Map;
 
+import static com.google.common.base.Charsets.UTF_8;
 
 /**
  * {@link com.googlecode.jmxtrans.model.OutputWriter} for the <a href="https://github.com/OpenTSDB/tcollector/blob/master/collectors/0/udp_bridge.py">TCollector udp_bridge</a>.
  * Largely based on StatsDWriter and OpenTSDBWriter
  *
+ * The udp_bridge accepts several newline separated lines per datagram: the lines of a batch are packed in datagrams
+ * bounded by the <code>mtu</code> setting and sent once the batch is complete.
+ *
  * @author Kieren Hynd
  * @author Arthur Naseef
  */
 public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 	private static final Logger log = LoggerFactory.getLogger(TCollectorUDPWriter.class);
 
+	public static final String MTU = "mtu";
+	private static final byte NEWLINE = '\n';
+
+	private final int mtu;
+
 	protected SocketAddress address;
-	protected DatagramSocket dgSocket;
+	protected DatagramChannel channel;
+	/** Lines of the current batch, guarded by the writer lock. */
+	private final ByteBuffer packet;
 
 	@JsonCreator
 	public TCollectorUDPWriter(
@@ -69,9 +80,12 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 			@JsonProperty("mergeTypeNamesTags") Boolean mergeTypeNamesTags,
 			@JsonProperty("metricNamingExpression") String metricNamingExpression,
 			@JsonProperty("addHostnameTag") Boolean addHostnameTag,
+			@JsonProperty("mtu") Integer mtu,
 			@JsonProperty("settings") Map<String, Object> settings) throws LifecycleException, UnknownHostException {
 		super(typeNames, booleanAsNumber, debugEnabled, host, port, tags, tagName, mergeTypeNamesTags, metricNamingExpression,
 				addHostnameTag, settings);
+		this.mtu = firstNonNull(mtu, Settings.getIntegerSetting(getSettings(), MTU, null), Datagrams.DEFAULT_MTU);
+		this.packet = ByteBuffer.allocateDirect(Datagrams.maxPayloadSize(this.mtu));
 	}
 
 	/**
@@ -82,26 +96,6 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 	protected boolean getAddHostnameTagDefault() {
 		return false;
 	}
-	/**
-	* Write the results of the query.
-	 *
-	 * @param server
-	 * @param query   - the query and its results.
-	 * @param results
-	*/
-	@Override
-	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		this.startOutput();
-		for (Result result : results) {
-			for (String resultString : resultParser(result)) {
-				if (isDebugEnabled())
-				log.debug("TCollectorUDP Message: {}", resultString);
-				this.sendOutput(resultString);
-			}
-		}
-		this.finishOutput();
-	}
-
 	/**
 	 * Setup at start of the writer.
 	 */
@@ -113,14 +107,38 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 		}
 
 		try {
-			this.dgSocket = new DatagramSocket();
+			this.channel = DatagramChannel.open();
 			this.address = new InetSocketAddress(host, port);
-		} catch (SocketException sockExc) {
-			log.error("Failed to create a datagram socket", sockExc);
-			throw new LifecycleException(sockExc);
+		} catch (IOException ioExc) {
+			log.error("Failed to create a datagram channel", ioExc);
+			throw new LifecycleException(ioExc);
+		}
+	}
+
+	@Override
+	protected void shutdownSender() throws LifecycleException {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioExc) {
+				throw new LifecycleException(ioExc);
+			}
 		}
 	}
 
+	/**
+	 * Batches share the packet buffer, they are written one at a time.
+	 */
+	@Override
+	public synchronized void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		super.internalWrite(server, query, results);
+	}
+
+	@Override
+	protected void startOutput() throws IOException {
+		packet.clear();
+	}
+
 	/**
 	 * Send a single metric to TCollector.
 	 *
@@ -129,13 +147,52 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 	 */
 	@Override
 	protected void sendOutput(String metricLine) throws IOException {
-		DatagramPacket packet;
-		byte[] data;
+		byte[] data = metricLine.getBytes(UTF_8);
+		sendOutput(data, 0, data.length);
+	}
+
+	/**
+	 * Add a single metric to the current datagram, straight from the encoding buffer. The datagram is sent when the
+	 * metric does not fit in it anymore; a metric larger than a datagram is sent on its own.
+	 */
+	@Override
+	protected void sendOutput(byte[] data, int offset, int length) throws IOException {
+		if (isDebugEnabled() && log.isDebugEnabled()) {
+			log.debug("TCollectorUDP Message: {}", new String(data, offset, length, UTF_8));
+		}
+		// the +1 is for the '\n' separating multiple metrics
+		if (packet.position() > 0 && packet.remaining() < length + 1) {
+			flush();
+		}
+		if (length > packet.remaining()) {
+			channel.send(ByteBuffer.wrap(data, offset, length), address);
+			return;
+		}
+		if (packet.position() > 0) {
+			packet.put(NEWLINE);
+		}
+		packet.put(data, offset, length);
+	}
+
+	@Override
+	protected void finishOutput() throws IOException {
+		flush();
+	}
 
-		data = metricLine.getBytes("UTF-8");
-		packet = new DatagramPacket(data, 0, data.length, this.address);
+	private void flush() throws IOException {
+		if (packet.position() == 0) {
+			return;
+		}
+		packet.flip();
+		try {
+			channel.send(packet, address);
+		} finally {
+			packet.clear();
+		}
+	}
 
-		this.dgSocket.send(packet);
+	public int getMtu() {
+		return mtu;
 	}
 
 	public static Builder builder() {
@@ -153,6 +210,7 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 		private Boolean mergeTypeNamesTags;
 		private String metricNamingExpression;
 		private Boolean addHostnameTag;
+		private Integer mtu;
 
 		private Builder() {}
 
@@ -216,6 +274,11 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 			return this;
 		}
 
+		public Builder setMtu(int mtu) {
+			this.mtu = mtu;
+			return this;
+		}
+
 		public TCollectorUDPWriter build() throws LifecycleException, UnknownHostException {
 			return new TCollectorUDPWriter(
 					typeNames.build(),
@@ -228,6 +291,7 @@ public class TCollectorUDPWriter extends OpenTSDBGenericWriter {
 					mergeTypeNamesTags,
 					metricNamingExpression,
 					addHostnameTag,
+					mtu,
 					null
 			);
 		}
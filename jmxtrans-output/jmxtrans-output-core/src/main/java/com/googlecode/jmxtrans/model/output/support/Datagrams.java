@@ -0,0 +1,47 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Sizing of the datagrams sent by UDP based writers.
+ */
+public final class Datagrams {
+
+	public static final int DEFAULT_MTU = 1500;
+
+	/** IPv6 header (40 bytes) and UDP header (8 bytes). */
+	private static final int HEADERS_SIZE = 48;
+
+	private Datagrams() {}
+
+	/**
+	 * @return the largest payload which fits in a single datagram on a link with the given MTU, whatever the IP
+	 * version, so that datagrams are not fragmented.
+	 */
+	public static int maxPayloadSize(int mtu) {
+		checkArgument(mtu > HEADERS_SIZE, "MTU must be greater than %s", HEADERS_SIZE);
+		return mtu - HEADERS_SIZE;
+	}
+}
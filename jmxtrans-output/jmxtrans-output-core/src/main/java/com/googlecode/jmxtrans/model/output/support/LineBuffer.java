@@ -0,0 +1,256 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Growable byte buffer for line based text protocols.
+ *
+ * Characters are encoded as UTF-8 as they are appended, with the same replacement of malformed surrogates as
+ * {@link String#getBytes(java.nio.charset.Charset)}, and integral numbers are formatted without going through
+ * {@link Object#toString()}. Output writers borrow those buffers from a {@link LineBufferPool} and reuse them
+ * between batches, so that encoding a metric line does not allocate intermediate Strings or byte arrays.
+ */
+@NotThreadSafe
+public final class LineBuffer implements Appendable {
+
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(US_ASCII);
+
+	private byte[] bytes;
+	private int length;
+
+	public LineBuffer(int initialCapacity) {
+		this.bytes = new byte[initialCapacity];
+	}
+
+	@Override
+	public LineBuffer append(char c) {
+		if (c < 0x80) {
+			ensureCapacity(length + 1);
+			bytes[length++] = (byte) c;
+		} else {
+			ensureCapacity(length + 3);
+			appendNonAscii(c);
+		}
+		return this;
+	}
+
+	/**
+	 * Appends a raw byte, for protocols framing text with binary headers.
+	 */
+	public LineBuffer appendByte(int b) {
+		ensureCapacity(length + 1);
+		bytes[length++] = (byte) b;
+		return this;
+	}
+
+	/**
+	 * Overwrites a byte already written, typically a length header reserved before the content was known.
+	 */
+	public void setByte(int index, int b) {
+		if (index < 0 || index >= length) {
+			throw new IndexOutOfBoundsException("Index " + index + " is out of [0, " + length + "[");
+		}
+		bytes[index] = (byte) b;
+	}
+
+	public LineBuffer append(byte[] src) {
+		return append(src, 0, src.length);
+	}
+
+	public LineBuffer append(byte[] src, int offset, int count) {
+		ensureCapacity(length + count);
+		System.arraycopy(src, offset, bytes, length, count);
+		length += count;
+		return this;
+	}
+
+	@Override
+	public LineBuffer append(CharSequence s) {
+		return append(s, 0, s.length());
+	}
+
+	@Override
+	public LineBuffer append(CharSequence s, int start, int end) {
+		// worst case is 3 bytes per char, surrogate pairs only need 4 bytes for 2 chars
+		ensureCapacity(length + 3 * (end - start));
+		for (int i = start; i < end; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes[length++] = (byte) c;
+			} else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, s.charAt(++i));
+				bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+			} else {
+				appendNonAscii(c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation of the value, same as {@link Long#toString(long)} but without allocating.
+	 */
+	public LineBuffer append(long value) {
+		if (value == Long.MIN_VALUE) {
+			return append(MIN_LONG);
+		}
+		if (value < 0) {
+			append('-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v > 0; v /= 10) {
+			digits++;
+		}
+		ensureCapacity(length + digits);
+		for (int i = length + digits - 1; i >= length; i--) {
+			bytes[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		length += digits;
+		return this;
+	}
+
+	/**
+	 * Appends the value exactly as <code>value.toString()</code> would. Integral numbers are formatted directly,
+	 * anything else (floating point numbers in particular) still goes through <code>toString()</code> so that the
+	 * output stays the same.
+	 */
+	public LineBuffer appendNumber(Object value) {
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte
+				|| value instanceof AtomicLong || value instanceof AtomicInteger) {
+			return append(((Number) value).longValue());
+		}
+		if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+			return append(((BigInteger) value).longValue());
+		}
+		return append(String.valueOf(value));
+	}
+
+	/**
+	 * Removes leading and trailing whitespace of the content written since <code>from</code>, same as
+	 * {@link String#trim()} would.
+	 */
+	public void trim(int from) {
+		int start = from;
+		while (start < length && (bytes[start] & 0xff) <= ' ') {
+			start++;
+		}
+		int end = length;
+		while (end > start && (bytes[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		if (start > from) {
+			System.arraycopy(bytes, start, bytes, from, end - start);
+		}
+		length = from + (end - start);
+	}
+
+	/**
+	 * @return the index of the first occurrence of the byte at or after <code>from</code>, or -1 if not found.
+	 */
+	public int indexOf(byte b, int from) {
+		for (int i = from; i < length; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes, 0, length);
+	}
+
+	/**
+	 * A view of the content of this buffer, ready to be written to a channel. The view is only valid until the next
+	 * modification of the buffer.
+	 */
+	public ByteBuffer asByteBuffer() {
+		return ByteBuffer.wrap(bytes, 0, length);
+	}
+
+	public void reset() {
+		length = 0;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public int capacity() {
+		return bytes.length;
+	}
+
+	/**
+	 * Direct access to the underlying array, only the first {@link #length()} bytes are meaningful. The array is
+	 * overwritten on the next use of the buffer.
+	 */
+	public byte[] array() {
+		return bytes;
+	}
+
+	public String toString(int from, int to) {
+		return new String(bytes, from, to - from, UTF_8);
+	}
+
+	@Override
+	public String toString() {
+		return toString(0, length);
+	}
+
+	private void appendNonAscii(char c) {
+		if (c < 0x800) {
+			bytes[length++] = (byte) (0xc0 | (c >> 6));
+			bytes[length++] = (byte) (0x80 | (c & 0x3f));
+		} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+			// malformed surrogate, replaced like the JDK encoder does
+			bytes[length++] = (byte) '?';
+		} else {
+			bytes[length++] = (byte) (0xe0 | (c >> 12));
+			bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			bytes[length++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > bytes.length) {
+			bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small pool of {@link LineBuffer}s shared by output writers.
+ *
+ * Buffers are reset when acquired. Buffers that grew larger than the retained capacity (a huge batch) are dropped
+ * when released instead of pinning that memory, as are buffers released when the pool is already full.
+ */
+@ThreadSafe
+public class LineBufferPool {
+
+	private static final LineBufferPool shared = new LineBufferPool(64, 4096, 256 * 1024);
+
+	private final Queue<LineBuffer> buffers = new ConcurrentLinkedQueue<LineBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final int maxPooled;
+	private final int initialCapacity;
+	private final int maxRetainedCapacity;
+
+	public LineBufferPool(int maxPooled, int initialCapacity, int maxRetainedCapacity) {
+		this.maxPooled = maxPooled;
+		this.initialCapacity = initialCapacity;
+		this.maxRetainedCapacity = maxRetainedCapacity;
+	}
+
+	public static LineBufferPool shared() {
+		return shared;
+	}
+
+	@Nonnull
+	public LineBuffer acquire() {
+		LineBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			return new LineBuffer(initialCapacity);
+		}
+		pooled.decrementAndGet();
+		buffer.reset();
+		return buffer;
+	}
+
+	public void release(@Nonnull LineBuffer buffer) {
+		if (buffer.capacity() > maxRetainedCapacity) {
+			return;
+		}
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	public int size() {
+		return pooled.get();
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * {@link Writer} appending to a {@link LineBuffer}, for output writers producing text through a {@link Writer}.
+ */
+@NotThreadSafe
+final class LineBufferWriter extends Writer {
+
+	@Nonnull private final LineBuffer buffer;
+
+	private LineBufferWriter(@Nonnull LineBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * UTF-8 is encoded directly by the {@link LineBuffer}, other charsets go through an {@link OutputStreamWriter},
+	 * which needs to be flushed before the buffer is read.
+	 */
+	static Writer create(@Nonnull final LineBuffer buffer, @Nonnull Charset charset) {
+		if (UTF_8.equals(charset)) {
+			return new LineBufferWriter(buffer);
+		}
+		return new OutputStreamWriter(new OutputStream() {
+			@Override
+			public void write(int b) {
+				buffer.appendByte(b);
+			}
+
+			@Override
+			public void write(@Nonnull byte[] b, int off, int len) {
+				buffer.append(b, off, len);
+			}
+		}, charset);
+	}
+
+	@Override
+	public void write(int c) {
+		buffer.append((char) c);
+	}
+
+	@Override
+	public void write(@Nonnull char[] cbuf, int off, int len) {
+		buffer.append(CharBuffer.wrap(cbuf, off, len));
+	}
+
+	@Override
+	public void write(@Nonnull String str, int off, int len) {
+		buffer.append(str, off, off + len);
+	}
+
+	@Override
+	public Writer append(CharSequence csq) {
+		buffer.append(csq == null ? "null" : csq);
+		return this;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Line formats of the text protocols supported by jmxtrans. Output of each dialect is byte for byte identical to
+ * what the corresponding writer used to produce by String concatenation.
+ */
+public final class LineDialects {
+
+	private static final LineDialect GRAPHITE = new Graphite();
+
+	private LineDialects() {}
+
+	/**
+	 * <code>key value epochSeconds\n</code>
+	 */
+	@Nonnull
+	public static LineDialect graphite() {
+		return GRAPHITE;
+	}
+
+	/**
+	 * <code>key:value|bucketType</code>, lines are separated by the caller.
+	 */
+	@Nonnull
+	public static LineDialect statsD(@Nonnull String bucketType) {
+		return new StatsD(bucketType);
+	}
+
+	/**
+	 * <code>key[delimiter]value[delimiter]epochMillis</code>, lines are separated by the logging framework.
+	 */
+	@Nonnull
+	public static LineDialect keyOut(@Nonnull String delimiter) {
+		return new KeyOut(delimiter);
+	}
+
+	/**
+	 * <code>key value epochSeconds[lineSeparator]</code>, as found in the output field of Sensu checks.
+	 */
+	@Nonnull
+	public static LineDialect sensu(@Nonnull String lineSeparator) {
+		return new Sensu(lineSeparator);
+	}
+
+	static void appendValue(Appendable out, Object value) throws IOException {
+		if (out instanceof LineBuffer) {
+			((LineBuffer) out).appendNumber(value);
+		} else {
+			out.append(value.toString());
+		}
+	}
+
+	static void appendLong(Appendable out, long value) throws IOException {
+		if (out instanceof LineBuffer) {
+			((LineBuffer) out).append(value);
+		} else {
+			out.append(Long.toString(value));
+		}
+	}
+
+	@Immutable
+	private static final class Graphite implements LineDialect {
+		@Override
+		public void append(@Nonnull Appendable out, @Nonnull String key, @Nonnull Object value, long epochMillis)
+				throws IOException {
+			out.append(key).append(' ');
+			appendValue(out, value);
+			out.append(' ');
+			appendLong(out, epochMillis / 1000);
+			out.append('\n');
+		}
+	}
+
+	@Immutable
+	private static final class StatsD implements LineDialect {
+		@Nonnull private final String bucketType;
+
+		private StatsD(@Nonnull String bucketType) {
+			this.bucketType = checkNotNull(bucketType);
+		}
+
+		@Override
+		public void append(@Nonnull Appendable out, @Nonnull String key, @Nonnull Object value, long epochMillis)
+				throws IOException {
+			out.append(key).append(':');
+			appendValue(out, value);
+			out.append('|').append(bucketType);
+		}
+	}
+
+	@Immutable
+	private static final class KeyOut implements LineDialect {
+		@Nonnull private final String delimiter;
+
+		private KeyOut(@Nonnull String delimiter) {
+			this.delimiter = checkNotNull(delimiter);
+		}
+
+		@Override
+		public void append(@Nonnull Appendable out, @Nonnull String key, @Nonnull Object value, long epochMillis)
+				throws IOException {
+			out.append(key).append(delimiter);
+			appendValue(out, value);
+			out.append(delimiter);
+			appendLong(out, epochMillis);
+		}
+	}
+
+	@Immutable
+	private static final class Sensu implements LineDialect {
+		@Nonnull private final String lineSeparator;
+
+		private Sensu(@Nonnull String lineSeparator) {
+			this.lineSeparator = checkNotNull(lineSeparator);
+		}
+
+		@Override
+		public void append(@Nonnull Appendable out, @Nonnull String key, @Nonnull Object value, long epochMillis)
+				throws IOException {
+			out.append(key).append(' ');
+			appendValue(out, value);
+			out.append(' ');
+			appendLong(out, epochMillis / 1000);
+			out.append(lineSeparator);
+		}
+	}
+}
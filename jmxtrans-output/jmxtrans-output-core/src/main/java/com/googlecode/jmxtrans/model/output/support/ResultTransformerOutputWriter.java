@@ -32,14 +32,14 @@ import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.results.BooleanAsNumberValueTransformer;
 import com.googlecode.jmxtrans.model.results.IdentityValueTransformer;
 import com.googlecode.jmxtrans.model.results.ResultValuesTransformer;
+import com.googlecode.jmxtrans.model.results.TransformingOutputWriter;
+import com.googlecode.jmxtrans.model.results.ValueTransformer;
 
 import javax.annotation.Nonnull;
 import java.util.Collections;
 import java.util.Map;
 
-import static com.google.common.collect.FluentIterable.from;
-
-public class ResultTransformerOutputWriter<T extends OutputWriter> implements OutputWriter {
+public class ResultTransformerOutputWriter<T extends OutputWriter> implements TransformingOutputWriter {
 
 	@Nonnull private final ResultValuesTransformer resultValuesTransformer;
 	@Nonnull private final T target;
@@ -51,18 +51,28 @@ public class ResultTransformerOutputWriter<T extends OutputWriter> implements Ou
 
 	@Override
 	public void start() throws LifecycleException {
+		target.start();
 	}
 
 	@Override
 	public void stop() throws LifecycleException {
+		target.stop();
 	}
 
 	@Override
 	public void doWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		target.doWrite(
-				server,
-				query,
-				from(results).transform(resultValuesTransformer).toList());
+		target.doWrite(server, query, resultValuesTransformer.transformAll(results));
+	}
+
+	@Nonnull
+	@Override
+	public ValueTransformer getValueTransformer() {
+		return resultValuesTransformer.getValueTransformer();
+	}
+
+	@Override
+	public void doWriteTransformed(Server server, Query query, ImmutableList<Result> transformedResults) throws Exception {
+		target.doWrite(server, query, transformedResults);
 	}
 
 	@Override
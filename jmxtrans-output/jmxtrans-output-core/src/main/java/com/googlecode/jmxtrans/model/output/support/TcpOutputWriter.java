@@ -24,38 +24,58 @@ package com.googlecode.jmxtrans.model.output.support;
 
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.OutputWriter;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import com.googlecode.jmxtrans.model.output.support.pool.SocketAllocator;
-import com.googlecode.jmxtrans.model.output.support.pool.SocketExpiration;
-import com.googlecode.jmxtrans.model.output.support.pool.SocketPoolable;
 import lombok.Setter;
 import lombok.experimental.Accessors;
-import stormpot.BlazePool;
-import stormpot.Config;
-import stormpot.Pool;
-import stormpot.Timeout;
 
 import javax.annotation.Nonnull;
-import java.io.IOException;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Writer;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.Map;
 
-import static java.util.concurrent.TimeUnit.SECONDS;
-
+/**
+ * Renders results with a {@link WriterBasedOutputWriter} into a pooled buffer, and hands the whole batch to a
+ * {@link TcpEndpoint}. No socket is held while rendering, and writers sharing the same server share the same
+ * connection.
+ *
+ * The endpoint is taken from the transport on first write and given back on {@link #stop()}, so a writer which is
+ * never stopped keeps its connection open: factories should create it once, not on every query run.
+ */
+@ThreadSafe
 public class TcpOutputWriter<T extends WriterBasedOutputWriter> implements OutputWriter {
 
 	@Nonnull private final T target;
-	@Nonnull private final Pool<SocketPoolable> socketPool;
+	@Nonnull private final TcpTransport transport;
+	@Nonnull private final InetSocketAddress server;
+	@Nullable private final StreamCodec compression;
+	@Nonnull private final Charset charset;
+
+	@GuardedBy("this")
+	@Nullable private TcpEndpoint endpoint;
 
-	public TcpOutputWriter(@Nonnull T target, @Nonnull Pool<SocketPoolable> socketPool) {
+	public TcpOutputWriter(
+			@Nonnull T target,
+			@Nonnull TcpTransport transport,
+			@Nonnull InetSocketAddress server,
+			@Nullable StreamCodec compression,
+			@Nonnull Charset charset) {
 		this.target = target;
-		this.socketPool = socketPool;
+		this.transport = transport;
+		this.server = server;
+		this.compression = compression;
+		this.charset = charset;
 	}
 
 	@Override
@@ -64,24 +84,31 @@ public class TcpOutputWriter<T extends WriterBasedOutputWriter> implements Outpu
 	}
 
 	@Override
-	public void stop() throws LifecycleException {
+	public synchronized void stop() throws LifecycleException {
+		if (endpoint != null) {
+			endpoint.release();
+			endpoint = null;
+		}
+	}
 
+	private synchronized TcpEndpoint endpoint() {
+		if (endpoint == null) {
+			endpoint = transport.endpoint(server, compression);
+		}
+		return endpoint;
 	}
 
 	@Override
 	public void doWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
+		TcpEndpoint endpoint = endpoint();
+		LineBuffer buffer = LineBufferPool.shared().acquire();
 		try {
-			SocketPoolable socketPoolable = socketPool.claim(new Timeout(1, SECONDS));
-			try {
-				target.write(socketPoolable.getWriter(), server, query, results);
-			} catch (IOException ioe) {
-				socketPoolable.invalidate();
-				throw ioe;
-			} finally {
-				socketPoolable.release();
-			}
-		} catch (InterruptedException e) {
-			throw new IllegalStateException("Could not get socket from pool, please check is the server is available");
+			Writer writer = LineBufferWriter.create(buffer, charset);
+			target.write(writer, server, query, results);
+			writer.flush();
+			endpoint.send(buffer.array(), 0, buffer.length());
+		} finally {
+			LineBufferPool.shared().release(buffer);
 		}
 	}
 
@@ -111,8 +138,8 @@ public class TcpOutputWriter<T extends WriterBasedOutputWriter> implements Outpu
 		@Nonnull private final InetSocketAddress server;
 		@Nonnull private final T target;
 		@Nonnull @Setter private Charset charset = Charsets.UTF_8;
-		@Setter private int socketTimeoutMillis = 200;
-		@Setter private int poolSize = 1;
+		@Nonnull @Setter private TcpTransport transport = TcpTransport.shared();
+		@Nullable @Setter private StreamCodec compression;
 
 		public Builder(@Nonnull InetSocketAddress server, @Nonnull T target) {
 			this.server = server;
@@ -120,15 +147,7 @@ public class TcpOutputWriter<T extends WriterBasedOutputWriter> implements Outpu
 		}
 
 		public TcpOutputWriter<T> build() {
-			Config<SocketPoolable> config = new Config<SocketPoolable>()
-					.setAllocator(new SocketAllocator(
-							server,
-							socketTimeoutMillis,
-							charset))
-					.setExpiration(new SocketExpiration())
-					.setSize(poolSize);
-			Pool<SocketPoolable> pool = new BlazePool<SocketPoolable>(config);
-			return new TcpOutputWriter<T>(target, pool);
+			return new TcpOutputWriter<T>(target, transport, server, compression, charset);
 		}
 	}
 }
@@ -0,0 +1,102 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GraphitePickleEncoderTest {
+
+	private final GraphitePickleEncoder encoder = new GraphitePickleEncoder(16);
+
+	@Test
+	public void frameStartsWithPayloadLength() {
+		encoder.add("servers.host.metric", 1234L, 10);
+
+		LineBuffer frame = encoder.finish();
+
+		ByteBuffer buffer = ByteBuffer.wrap(frame.array(), 0, frame.length());
+		assertThat(buffer.getInt()).isEqualTo(frame.length() - 4);
+	}
+
+	@Test
+	public void datapointsAreUnpickled() {
+		encoder.add("servers.host.int", 1234L, 10);
+		encoder.add("servers.host.long", 1234L, 10000000000L);
+		encoder.add("servers.host.negative", 1234L, -42L);
+		encoder.add("servers.host.double", 1234L, 3.5);
+		encoder.add("servers.host.float", 1234L, 3.14f);
+		encoder.add("servers.host.decimal", 1234L, new BigDecimal("0.1"));
+		encoder.add("servers.host.bigInteger", 1234L, BigInteger.valueOf(Long.MIN_VALUE));
+		encoder.add("servers.host.string", 1234L, "42");
+		encoder.add("servers.hôte.unicode", 1234L, 1);
+
+		assertThat(encoder.size()).isEqualTo(9);
+		assertThat(unpickle(encoder.finish())).containsExactly(
+				asList((Object) "servers.host.int", 1234L, 10L),
+				asList((Object) "servers.host.long", 1234L, 10000000000L),
+				asList((Object) "servers.host.negative", 1234L, -42L),
+				asList((Object) "servers.host.double", 1234L, 3.5),
+				asList((Object) "servers.host.float", 1234L, 3.14),
+				asList((Object) "servers.host.decimal", 1234L, 0.1),
+				asList((Object) "servers.host.bigInteger", 1234L, Long.MIN_VALUE),
+				asList((Object) "servers.host.string", 1234L, 42L),
+				asList((Object) "servers.hôte.unicode", 1234L, 1L));
+	}
+
+	@Test
+	public void nonNumericValuesAreIgnored() {
+		assertThat(encoder.add("servers.host.text", 1234L, "value")).isFalse();
+		assertThat(encoder.add("servers.host.bool", 1234L, true)).isFalse();
+
+		assertThat(encoder.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void newFrameIsStartedAfterFinish() {
+		encoder.add("servers.host.first", 1234L, 1);
+		encoder.finish();
+
+		encoder.add("servers.host.second", 1235L, 2);
+
+		assertThat(encoder.size()).isEqualTo(1);
+		assertThat(unpickle(encoder.finish())).containsExactly(asList((Object) "servers.host.second", 1235L, 2L));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void emptyFrameCannotBeFinished() {
+		encoder.finish();
+	}
+
+	private static List<List<Object>> unpickle(LineBuffer frame) {
+		return PickleFrameReader.unpickle(ByteBuffer.wrap(frame.array(), 4, frame.length() - 4));
+	}
+}
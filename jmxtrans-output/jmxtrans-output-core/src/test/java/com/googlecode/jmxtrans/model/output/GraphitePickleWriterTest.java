@@ -0,0 +1,117 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.model.OutputWriter;
+import com.googlecode.jmxtrans.model.Result;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResult;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GraphitePickleWriterTest {
+
+	private ServerSocket receiver;
+
+	@Before
+	public void startReceiver() throws IOException {
+		receiver = new ServerSocket(0);
+		receiver.setSoTimeout(5000);
+	}
+
+	@After
+	public void stopReceiver() throws IOException {
+		receiver.close();
+	}
+
+	@Test
+	public void createReturnsTheSameWriter() {
+		GraphitePickleWriter writerFactory = writerFactory(2, 0L);
+
+		assertThat(writerFactory.create()).isSameAs(writerFactory.create());
+	}
+
+	@Test
+	public void datapointsAreSentInFramesOfLimitedSize() throws Exception {
+		OutputWriter outputWriter = writerFactory(2, 0L).create();
+		outputWriter.start();
+		try {
+			Result result = numericResult();
+			outputWriter.doWrite(dummyServer(), dummyQuery(), ImmutableList.of(result, result, result));
+
+			Socket socket = receiver.accept();
+			try {
+				socket.setSoTimeout(5000);
+				PickleFrameReader reader = new PickleFrameReader(socket.getInputStream());
+				List<List<Object>> first = reader.readFrame();
+				List<List<Object>> second = reader.readFrame();
+
+				assertThat(first).hasSize(2);
+				assertThat(second).hasSize(1);
+				assertThat(second.get(0).get(0).toString())
+						.startsWith("servers.")
+						.contains("example_net_4321");
+				assertThat(second.get(0).get(1)).isEqualTo(0L);
+				assertThat(second.get(0).get(2)).isEqualTo(10L);
+			} finally {
+				socket.close();
+			}
+		} finally {
+			outputWriter.stop();
+		}
+	}
+
+	@Test
+	public void incompleteFramesAreSentByFlusher() throws Exception {
+		OutputWriter outputWriter = writerFactory(100, 50L).create();
+		outputWriter.start();
+		try {
+			outputWriter.doWrite(dummyServer(), dummyQuery(), ImmutableList.of(numericResult()));
+
+			Socket socket = receiver.accept();
+			try {
+				socket.setSoTimeout(5000);
+				assertThat(new PickleFrameReader(socket.getInputStream()).readFrame()).hasSize(1);
+			} finally {
+				socket.close();
+			}
+		} finally {
+			outputWriter.stop();
+		}
+	}
+
+	private GraphitePickleWriter writerFactory(int maxDatapointsPerFrame, long flushIntervalMillis) {
+		return new GraphitePickleWriter(ImmutableList.<String>of(), false, null,
+				"localhost", receiver.getLocalPort(), maxDatapointsPerFrame, flushIntervalMillis);
+	}
+}
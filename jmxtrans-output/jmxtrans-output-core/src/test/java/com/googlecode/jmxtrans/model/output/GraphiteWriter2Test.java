@@ -26,8 +26,12 @@ import com.google.common.collect.ImmutableList;
 import com.googlecode.jmxtrans.model.output.support.WriterBasedOutputWriter;
 import org.junit.Test;
 
+import javax.management.ObjectName;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 
 import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
 import static com.googlecode.jmxtrans.model.ResultFixtures.dummyResults;
@@ -36,6 +40,28 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class GraphiteWriter2Test {
 
+	@Test
+	public void endpointIsClosedOnStopWhateverTheNumberOfQueryRuns() throws Exception {
+		ServerSocket graphite = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		try {
+			GraphiteWriter2 factory = new GraphiteWriter2(
+					ImmutableList.<String>of(), false, "servers", "localhost", graphite.getLocalPort(), null);
+			ObjectName endpoints = new ObjectName("com.googlecode.jmxtrans:Type=TcpEndpoint,Address="
+					+ ObjectName.quote("localhost:" + graphite.getLocalPort()) + ",*");
+
+			factory.create().start();
+			for (int i = 0; i < 3; i++) {
+				factory.create().doWrite(dummyServer(), dummyQuery(), dummyResults());
+			}
+			assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(endpoints, null)).hasSize(1);
+
+			factory.create().stop();
+			assertThat(ManagementFactory.getPlatformMBeanServer().queryNames(endpoints, null)).isEmpty();
+		} finally {
+			graphite.close();
+		}
+	}
+
 	@Test
 	public void correctFormatIsSentToGraphite() throws IOException {
 		WriterBasedOutputWriter outputWriter = new GraphiteWriter2.W(ImmutableList.<String>of(), "servers");
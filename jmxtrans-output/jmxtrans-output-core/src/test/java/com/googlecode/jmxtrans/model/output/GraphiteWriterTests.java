@@ -25,11 +25,14 @@ package com.googlecode.jmxtrans.model.output;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.ConfigurationParser;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import com.googlecode.jmxtrans.model.output.support.OutputStreamTcpEndpoint;
 import org.assertj.core.api.Assertions;
 import org.junit.Test;
 import org.mockito.Matchers;
@@ -40,7 +43,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -77,18 +79,15 @@ public class GraphiteWriterTests {
 	}
 
 	private static GraphiteWriter getGraphiteWriter(OutputStream out, List<String> typeNames) throws Exception {
-		GenericKeyedObjectPool<InetSocketAddress, Socket> pool = Mockito.mock(GenericKeyedObjectPool.class);
-		Socket socket = Mockito.mock(Socket.class);
-		Mockito.when(pool.borrowObject(Matchers.any(InetSocketAddress.class))).thenReturn(socket);
-
-		Mockito.when(socket.getOutputStream()).thenReturn(out);
+		TcpTransport transport = Mockito.mock(TcpTransport.class);
+		Mockito.when(transport.endpoint(Matchers.any(InetSocketAddress.class), Matchers.any(StreamCodec.class))).thenReturn(new OutputStreamTcpEndpoint(out));
 
 		GraphiteWriter writer = GraphiteWriter.builder()
 				.setHost("localhost")
 				.setPort(2003)
 				.addTypeNames(typeNames)
 				.build();
-		writer.setPool(pool);
+		writer.setTransport(transport);
 
 		return writer;
 	}
@@ -166,16 +165,13 @@ public class GraphiteWriterTests {
 
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 
-		GenericKeyedObjectPool<InetSocketAddress, Socket> pool = Mockito.mock(GenericKeyedObjectPool.class);
-		Socket socket = Mockito.mock(Socket.class);
-		Mockito.when(pool.borrowObject(Matchers.any(InetSocketAddress.class))).thenReturn(socket);
-
-		Mockito.when(socket.getOutputStream()).thenReturn(out);
+		TcpTransport transport = Mockito.mock(TcpTransport.class);
+		Mockito.when(transport.endpoint(Matchers.any(InetSocketAddress.class), Matchers.any(StreamCodec.class))).thenReturn(new OutputStreamTcpEndpoint(out));
 
 		Server server = ((Server)servers.get(0));
 		Query query = server.getQueries().asList().get(0);
 		GraphiteWriter writer = (GraphiteWriter) (query.getOutputWriters().get(0));
-		writer.setPool(pool);
+		writer.setTransport(transport);
 
 		writer.doWrite(server, query, of(result));
 
@@ -238,34 +234,24 @@ public class GraphiteWriterTests {
 	}
 
 	@Test
-	public void socketInvalidatedWhenError() throws Exception {
-		// a lot of setup for not much of a test ...
+	public void sendErrorsAreNotPropagated() throws Exception {
 		Server server = Server.builder().setHost("host").setPort("123").build();
 		Query query = Query.builder().build();
 		Result result = new Result(System.currentTimeMillis(), "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)1));
 
-		GenericKeyedObjectPool<InetSocketAddress, Socket> pool = Mockito.mock(GenericKeyedObjectPool.class);
-		Socket socket = Mockito.mock(Socket.class);
-		Mockito.when(pool.borrowObject(Matchers.any(InetSocketAddress.class))).thenReturn(socket);
-		UnflushableByteArrayOutputStream out = new UnflushableByteArrayOutputStream();
-		Mockito.when(socket.getOutputStream()).thenReturn(out);
+		TcpEndpoint endpoint = Mockito.mock(TcpEndpoint.class);
+		Mockito.doThrow(IOException.class).when(endpoint).send(Matchers.any(byte[].class), Matchers.anyInt(), Matchers.anyInt());
+		TcpTransport transport = Mockito.mock(TcpTransport.class);
+		Mockito.when(transport.endpoint(Matchers.any(InetSocketAddress.class), Matchers.any(StreamCodec.class))).thenReturn(endpoint);
 
 		GraphiteWriter writer = GraphiteWriter.builder()
 				.setHost("localhost")
 				.setPort(2003)
 				.build();
-		writer.setPool(pool);
+		writer.setTransport(transport);
 
 		writer.doWrite(server, query, of(result));
-		Mockito.verify(pool).invalidateObject(Matchers.any(InetSocketAddress.class), Matchers.eq(socket));
-		Mockito.verify(pool, Mockito.never()).returnObject(Matchers.any(InetSocketAddress.class), Matchers.eq(socket));
-	}
-
-	private static class UnflushableByteArrayOutputStream extends ByteArrayOutputStream {
-		@Override
-		public void flush() throws IOException {
-			throw new IOException();
-		}
+		Mockito.verify(endpoint).send(Matchers.any(byte[].class), Matchers.anyInt(), Matchers.anyInt());
 	}
 
 }
@@ -22,16 +22,35 @@
  */
 package com.googlecode.jmxtrans.model.output;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.output.support.HttpStandIn;
 import org.assertj.core.api.Assertions;
+import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResults;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.is;
 
 public class LibratoWriterTest {
 
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Rule public final HttpStandIn librato = new HttpStandIn();
+
 	@Test
 	public void httpUserAgentContainsAppropriateInformation() throws MalformedURLException {
 		LibratoWriter writer = new LibratoWriter(
@@ -44,6 +63,10 @@ public class LibratoWriterTest {
 				"token",
 				null,
 				null,
+				null,
+				null,
+				null,
+				null,
 				ImmutableMap.<String, Object>of()
 		);
 
@@ -55,6 +78,125 @@ public class LibratoWriterTest {
 				.contains(System.getProperty("java.vm.name"))
 				.contains(System.getProperty("java.version"));
 	}
-	
+
+	@Test
+	public void gaugesOfSeveralQueriesAreSentInOneRequest() throws Exception {
+		LibratoWriter writer = writer(60000, 300, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+		assertThat(librato.getRequests()).isEmpty();
+		writer.flush();
+
+		List<HttpStandIn.Request> requests = librato.getRequests();
+		assertThat(requests).hasSize(1);
+		assertThat(requests.get(0).getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+		assertThat(requests.get(0).getHeaders().getFirst("Authorization")).startsWith("Basic ");
+		JsonNode gauges = body(0).get("gauges");
+		assertThat(gauges.size()).isEqualTo(3);
+		assertThat(gauges.get(0).get("source").asText()).isEqualTo("host_example_net");
+		assertThat(gauges.get(0).get("value").asInt()).isEqualTo(10);
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(3);
+		assertThat(writer.getCounters().getFlushes()).isEqualTo(1);
+	}
+
+	@Test
+	public void requestsRespectMeasurementsLimit() throws Exception {
+		LibratoWriter writer = writer(60000, 2, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+		writer.flush();
+
+		List<HttpStandIn.Request> requests = librato.getRequests();
+		assertThat(requests).hasSize(3);
+		assertThat(body(0).get("gauges").size()).isEqualTo(2);
+		assertThat(body(2).get("gauges").size()).isEqualTo(1);
+		assertThat(requests.get(2).getRemotePort()).isEqualTo(requests.get(0).getRemotePort());
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(3);
+	}
+
+	@Test
+	public void gaugesAreSentAtTheEndOfEachQueryWithoutFlushInterval() throws Exception {
+		LibratoWriter writer = writer(0, 300, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		assertThat(librato.getRequests()).hasSize(1);
+	}
+
+	@Test
+	public void gaugesAreSentByBackgroundFlusher() throws Exception {
+		LibratoWriter writer = writer(50, 300, 1000);
+		writer.start();
+		try {
+			writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+			await().atMost(5, SECONDS).until(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return librato.getRequests().size();
+				}
+			}, is(1));
+		} finally {
+			writer.stop();
+		}
+	}
+
+	@Test
+	public void pendingGaugesAreSentWhenStopping() throws Exception {
+		LibratoWriter writer = writer(60000, 300, 1000);
+		writer.start();
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		writer.stop();
+
+		assertThat(librato.getRequests()).hasSize(1);
+	}
+
+	@Test
+	public void gaugesBeyondPendingLimitAreDropped() throws Exception {
+		LibratoWriter writer = writer(60000, 300, 2);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+		writer.flush();
+
+		assertThat(body(0).get("gauges").size()).isEqualTo(2);
+		assertThat(writer.getCounters().getItemsDropped()).isEqualTo(3);
+	}
+
+	@Test
+	public void failedRequestsAreCounted() throws Exception {
+		librato.respondWith(500, "{\"errors\":{}}");
+		LibratoWriter writer = writer(60000, 300, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+		writer.flush();
+
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(0);
+	}
+
+	private LibratoWriter writer(int flushIntervalInMillis, int maxMeasurementsPerRequest, int maxPendingMeasurements)
+			throws MalformedURLException {
+		return new LibratoWriter(
+				ImmutableList.<String>of(),
+				false,
+				false,
+				new URL(librato.getUrl("/v1/metrics")),
+				1000,
+				"username",
+				"token",
+				null,
+				null,
+				flushIntervalInMillis,
+				maxMeasurementsPerRequest,
+				maxPendingMeasurements,
+				null,
+				ImmutableMap.<String, Object>of());
+	}
+
+	private JsonNode body(int request) throws IOException {
+		return mapper.readTree(librato.getRequests().get(request).getBody());
+	}
 
 }
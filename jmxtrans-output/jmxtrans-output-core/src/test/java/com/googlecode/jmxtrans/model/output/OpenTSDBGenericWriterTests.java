@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.naming.typename.TypeNameValues;
 import org.assertj.core.api.Assertions;
 import org.junit.Assert;
 import org.junit.Before;
@@ -88,6 +89,8 @@ public class OpenTSDBGenericWriterTests {
 		Mockito.when(this.mockResult.getClassName()).thenReturn("X-DOMAIN.PKG.CLASS-X");
 		Mockito.when(this.mockResult.getTypeName()).
 				thenReturn("Type=x-type-x,Group=x-group-x,Other=x-other-x,Name=x-name-x");
+		Mockito.when(this.mockResult.getTypeNameValues()).
+				thenReturn(TypeNameValues.of("Type=x-type-x,Group=x-group-x,Other=x-other-x,Name=x-name-x"));
 
 	}
 
@@ -0,0 +1,150 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.googlecode.jmxtrans.model.output.support.HttpStandIn;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResults;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OpenTSDBHttpWriterTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Rule public final HttpStandIn openTSDB = new HttpStandIn();
+
+	@Test
+	public void datapointsArePostedAsJson() throws Exception {
+		openTSDB.respondWith(204, "");
+		OpenTSDBHttpWriter writer = writer().build();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+
+		List<HttpStandIn.Request> requests = openTSDB.getRequests();
+		assertThat(requests).hasSize(1);
+		assertThat(requests.get(0).getUri().getPath()).isEqualTo("/api/put");
+		assertThat(requests.get(0).getUri().getQuery()).isEqualTo("summary");
+		assertThat(requests.get(0).getHeaders().getFirst("Content-Encoding")).isEqualTo("gzip");
+		assertThat(body(0)).isEqualTo(mapper.readTree(
+				"[{\"metric\":\"ObjectPendingFinalizationCount.ObjectPendingFinalizationCount\","
+						+ "\"timestamp\":0,\"value\":10,\"tags\":{\"env\":\"test\"}}]"));
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(1);
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(1);
+	}
+
+	@Test
+	public void uncompressedRequestsAreSupported() throws Exception {
+		openTSDB.respondWith(204, "");
+		OpenTSDBHttpWriter writer = writer().setGzip(false).build();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+
+		assertThat(openTSDB.getRequests().get(0).getHeaders().getFirst("Content-Encoding")).isNull();
+		assertThat(body(0).get(0).get("value").asInt()).isEqualTo(10);
+	}
+
+	@Test
+	public void batchesAreSplitAndSentOnTheSameConnection() throws Exception {
+		openTSDB.respondWith(204, "");
+		OpenTSDBHttpWriter writer = writer().setBatchSize(2).build();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+
+		List<HttpStandIn.Request> requests = openTSDB.getRequests();
+		assertThat(requests).hasSize(3);
+		assertThat(body(0).size()).isEqualTo(2);
+		assertThat(body(1).size()).isEqualTo(2);
+		assertThat(body(2).size()).isEqualTo(1);
+		assertThat(requests.get(1).getRemotePort()).isEqualTo(requests.get(0).getRemotePort());
+		assertThat(requests.get(2).getRemotePort()).isEqualTo(requests.get(0).getRemotePort());
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(3);
+	}
+
+	@Test
+	public void failedDatapointsAreCountedFromSummary() throws Exception {
+		openTSDB.respondWith(400,
+				"{\"failed\":1,\"success\":2,\"errors\":[{\"datapoint\":{},\"error\":\"Unknown metric\"}]}");
+		OpenTSDBHttpWriter writer = writer().setDetails(true).build();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(3));
+
+		assertThat(openTSDB.getRequests().get(0).getUri().getQuery()).isEqualTo("details");
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(2);
+		assertThat(writer.getCounters().getItemsFailed()).isEqualTo(1);
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+	}
+
+	@Test
+	public void serverErrorFailsTheWholeBatch() throws Exception {
+		openTSDB.respondWith(500, "");
+		OpenTSDBHttpWriter writer = writer().build();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(3));
+
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(0);
+		assertThat(writer.getCounters().getItemsFailed()).isEqualTo(3);
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+	}
+
+	@Test
+	public void onlyJsonNumbersAreAccepted() {
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("0")).isTrue();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("-12")).isTrue();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("0.5")).isTrue();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("1.5E-3")).isTrue();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("2e+10")).isTrue();
+
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("-")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber(".5")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("5.")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("+1")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("007")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("1e")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("1.0f")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("NaN")).isFalse();
+		assertThat(OpenTSDBHttpWriter.isJsonNumber("Infinity")).isFalse();
+	}
+
+	private OpenTSDBHttpWriter.Builder writer() {
+		return OpenTSDBHttpWriter.builder()
+				.setHost("localhost")
+				.setPort(openTSDB.getPort())
+				.setAddHostnameTag(false)
+				.addTag("env", "test");
+	}
+
+	private JsonNode body(int request) throws IOException {
+		return mapper.readTree(openTSDB.getRequests().get(request).getBody());
+	}
+
+}
@@ -0,0 +1,125 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.naming.ClassAttributeNamingStrategy;
+import com.googlecode.jmxtrans.model.output.support.LineBuffer;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OpenTSDBLineEncoderTest {
+
+	private static final byte[] NO_PREFIX = new byte[0];
+
+	@Test
+	public void sanitizingIsSameAsRegularExpressions() {
+		String[] samples = {
+				"simple",
+				"with space",
+				"\"quoted\" 'single'",
+				"a:b,c=d",
+				"path/to-some_thing.x",
+				"unicode é中",
+				"surrogate 😀 pair",
+				"",
+		};
+		for (String sample : samples) {
+			String expected = sample.replaceAll("[\"']", "").replaceAll("[^-_./a-zA-Z0-9]", "_");
+			assertThat(OpenTSDBLineEncoder.sanitize(sample)).isEqualTo(expected);
+
+			LineBuffer buffer = new LineBuffer(1);
+			OpenTSDBLineEncoder.appendSanitized(buffer, sample);
+			assertThat(buffer.toString()).isEqualTo(expected);
+		}
+	}
+
+	@Test
+	public void validStringsAreNotCopied() {
+		String valid = "already-valid.name_1/2";
+		assertThat(OpenTSDBLineEncoder.sanitize(valid)).isSameAs(valid);
+	}
+
+	@Test
+	public void encodesLinesWithAllTags() {
+		OpenTSDBLineEncoder encoder = new OpenTSDBLineEncoder(
+				new ClassAttributeNamingStrategy(),
+				"my host",
+				ImmutableMap.of("env", "prod 1"),
+				"type",
+				ImmutableList.of("type", "name"),
+				false);
+
+		Result result = new Result(120000L, "HeapMemoryUsage", "sun.management.MemoryImpl", "java.lang", null,
+				"type=Memory", ImmutableMap.<String, Object>of("used", 42L, "max", 1.5, "text", "n/a"));
+		LineBuffer buffer = new LineBuffer(16);
+
+		int lines = encoder.encode(result, buffer, "put ".getBytes(US_ASCII));
+
+		assertThat(lines).isEqualTo(2);
+		assertThat(buffer.toString()).isEqualTo(
+				"put sun.management.MemoryImpl.HeapMemoryUsage 120 42 host=my_host env=prod_1 type=used type=Memory name=\n"
+				+ "put sun.management.MemoryImpl.HeapMemoryUsage 120 1.5 host=my_host env=prod_1 type=max type=Memory name=\n");
+	}
+
+	@Test
+	public void mergesTypeNameTags() {
+		OpenTSDBLineEncoder encoder = new OpenTSDBLineEncoder(
+				new ClassAttributeNamingStrategy(),
+				null,
+				ImmutableMap.<String, String>of(),
+				"type",
+				ImmutableList.of("Type", "Missing", "Name"),
+				true);
+
+		Result result = new Result(0L, "Count", "Class", "domain", null,
+				"Type=a b,Name=c", ImmutableMap.<String, Object>of("Count", -7));
+		LineBuffer buffer = new LineBuffer(16);
+
+		encoder.encode(result, buffer, NO_PREFIX);
+
+		assertThat(buffer.toString()).isEqualTo("Class.Count 0 -7 TypeMissingName=a_b_c\n");
+	}
+
+	@Test
+	public void nonNumericValuesAreSkipped() {
+		OpenTSDBLineEncoder encoder = new OpenTSDBLineEncoder(
+				new ClassAttributeNamingStrategy(),
+				null,
+				ImmutableMap.<String, String>of(),
+				"type",
+				ImmutableList.<String>of(),
+				true);
+
+		Result result = new Result(0L, "Name", "Class", "domain", null,
+				"type=x", ImmutableMap.<String, Object>of("Name", "not a number"));
+		LineBuffer buffer = new LineBuffer(16);
+
+		assertThat(encoder.encode(result, buffer, NO_PREFIX)).isEqualTo(0);
+		assertThat(buffer.length()).isEqualTo(0);
+	}
+}
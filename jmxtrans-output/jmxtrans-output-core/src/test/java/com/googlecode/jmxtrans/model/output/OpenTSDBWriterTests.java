@@ -23,10 +23,13 @@
 package com.googlecode.jmxtrans.model.output;
 
 import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.connections.StreamCodec;
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+import com.googlecode.jmxtrans.connections.TcpTransport;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
-import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import com.googlecode.jmxtrans.model.output.support.OutputStreamTcpEndpoint;
 import org.junit.Test;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
@@ -75,27 +78,24 @@ public class OpenTSDBWriterTests {
 				.build();
 	}
 	@Test
-	public void socketInvalidatedWhenError() throws Exception {
-		// a lot of setup for not much of a test ...
+	public void sendErrorsAreNotPropagated() throws Exception {
 		Server server = Server.builder().setHost("host").setPort("123").build();
 		Query query = Query.builder().build();
 		Result result = new Result(System.currentTimeMillis(), "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)1));
 
-		GenericKeyedObjectPool<InetSocketAddress, Socket> pool = Mockito.mock(GenericKeyedObjectPool.class);
-		Socket socket = Mockito.mock(Socket.class);
-		Mockito.when(pool.borrowObject(Matchers.any(InetSocketAddress.class))).thenReturn(socket);
-		UnflushableByteArrayOutputStream out = new UnflushableByteArrayOutputStream();
-		Mockito.when(socket.getOutputStream()).thenReturn(out);
+		TcpEndpoint endpoint = Mockito.mock(TcpEndpoint.class);
+		Mockito.doThrow(IOException.class).when(endpoint).send(Matchers.any(byte[].class), Matchers.anyInt(), Matchers.anyInt());
+		TcpTransport transport = Mockito.mock(TcpTransport.class);
+		Mockito.when(transport.endpoint(Matchers.any(InetSocketAddress.class), Matchers.any(StreamCodec.class))).thenReturn(endpoint);
 
 		OpenTSDBWriter writer = OpenTSDBWriter.builder()
 				.setHost("localhost")
 				.setPort(4243)
 				.build();
-		writer.setPool(pool);
+		writer.setTransport(transport);
 
 		writer.doWrite(server, query, of(result));
-		Mockito.verify(pool).invalidateObject(Matchers.any(InetSocketAddress.class), Matchers.eq(socket));
-		Mockito.verify(pool, Mockito.never()).returnObject(Matchers.any(InetSocketAddress.class), Matchers.eq(socket));
+		Mockito.verify(endpoint).send(Matchers.any(byte[].class), Matchers.anyInt(), Matchers.anyInt());
 	}
 
 	
@@ -104,18 +104,15 @@ public class OpenTSDBWriterTests {
 	}
 
 	private static OpenTSDBWriter getOpenTSDBWriter(OutputStream out, List<String> typeNames) throws Exception {
-		GenericKeyedObjectPool<InetSocketAddress, Socket> pool = Mockito.mock(GenericKeyedObjectPool.class);
-		Socket socket = Mockito.mock(Socket.class);
-		Mockito.when(pool.borrowObject(Matchers.any(InetSocketAddress.class))).thenReturn(socket);
-
-		Mockito.when(socket.getOutputStream()).thenReturn(out);
+		TcpTransport transport = Mockito.mock(TcpTransport.class);
+		Mockito.when(transport.endpoint(Matchers.any(InetSocketAddress.class), Matchers.any(StreamCodec.class))).thenReturn(new OutputStreamTcpEndpoint(out));
 
 		OpenTSDBWriter writer = OpenTSDBWriter.builder()
 				.setHost("localhost")
 				.setPort(4243)
 				.addTypeNames(typeNames)
 				.build();
-		writer.setPool(pool);
+		writer.setTransport(transport);
 
 		return writer;
 	}
@@ -138,11 +135,4 @@ public class OpenTSDBWriterTests {
 			.endsWith("\n");
 	}
 
-	private static class UnflushableByteArrayOutputStream extends ByteArrayOutputStream {
-		@Override
-		public void flush() throws IOException {
-			throw new IOException();
-		}
-	}
-
 }
@@ -0,0 +1,120 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Minimal stand-in for the carbon pickle receiver: reads frames and unpickles the few opcodes used by
+ * {@link GraphitePickleEncoder}.
+ */
+class PickleFrameReader {
+
+	private static final Object MARK = new Object();
+
+	private final DataInputStream in;
+
+	PickleFrameReader(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	/**
+	 * @return the datapoints of the next frame, as <code>[path, timestamp, value]</code> lists.
+	 */
+	List<List<Object>> readFrame() throws IOException {
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		return unpickle(ByteBuffer.wrap(payload));
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<List<Object>> unpickle(ByteBuffer buffer) {
+		Deque<Object> stack = new ArrayDeque<Object>();
+		while (true) {
+			int opcode = buffer.get() & 0xff;
+			switch (opcode) {
+				case 0x80:
+					if (buffer.get() != 2) throw new IllegalStateException("Unexpected protocol");
+					break;
+				case ']':
+					stack.push(new ArrayList<Object>());
+					break;
+				case '(':
+					stack.push(MARK);
+					break;
+				case 'X':
+					byte[] utf8 = new byte[buffer.order(ByteOrder.LITTLE_ENDIAN).getInt()];
+					buffer.order(ByteOrder.BIG_ENDIAN).get(utf8);
+					stack.push(new String(utf8, UTF_8));
+					break;
+				case 'J':
+					stack.push((long) buffer.order(ByteOrder.LITTLE_ENDIAN).getInt());
+					buffer.order(ByteOrder.BIG_ENDIAN);
+					break;
+				case 0x8a:
+					if (buffer.get() != 8) throw new IllegalStateException("Unexpected long length");
+					stack.push(buffer.order(ByteOrder.LITTLE_ENDIAN).getLong());
+					buffer.order(ByteOrder.BIG_ENDIAN);
+					break;
+				case 'G':
+					stack.push(buffer.getDouble());
+					break;
+				case 0x86:
+					Object second = stack.pop();
+					Object first = stack.pop();
+					stack.push(ImmutableList.of(first, second));
+					break;
+				case 'e':
+					List<Object> items = new ArrayList<Object>();
+					for (Object item = stack.pop(); item != MARK; item = stack.pop()) {
+						items.add(0, item);
+					}
+					((List<Object>) stack.peek()).addAll(items);
+					break;
+				case '.':
+					List<List<Object>> datapoints = new ArrayList<List<Object>>();
+					for (Object tuple : (List<Object>) stack.pop()) {
+						List<Object> pathAndPoint = (List<Object>) tuple;
+						List<Object> point = (List<Object>) pathAndPoint.get(1);
+						datapoints.add(ImmutableList.of(pathAndPoint.get(0), point.get(0), point.get(1)));
+					}
+					if (buffer.hasRemaining()) throw new IllegalStateException("Trailing bytes after STOP");
+					return datapoints;
+				default:
+					throw new IllegalStateException("Unexpected opcode " + opcode);
+			}
+		}
+	}
+}
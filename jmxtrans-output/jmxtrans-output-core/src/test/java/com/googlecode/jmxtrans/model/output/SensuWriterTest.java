@@ -0,0 +1,129 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.output.support.SensuClientStandIn;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResults;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SensuWriterTest {
+
+	@Rule public final SensuClientStandIn sensuClient = new SensuClientStandIn();
+
+	@Test
+	public void metricsOfSeveralQueriesAreSentAsOneCompactCheckResult() throws Exception {
+		SensuWriter writer = writer(60000, sensuClient.getPort());
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+		assertThat(sensuClient.getCheckResults()).isEmpty();
+		writer.flush();
+
+		assertThat(sensuClient.getCheckResults()).hasSize(1);
+		JsonNode checkResult = sensuClient.getCheckResults().get(0);
+		assertThat(checkResult.get("name").asText()).isEqualTo("jmxtrans");
+		assertThat(checkResult.get("type").asText()).isEqualTo("metric");
+		assertThat(checkResult.get("handler").asText()).isEqualTo("graphite");
+		String[] lines = checkResult.get("output").asText().split(System.getProperty("line.separator"));
+		assertThat(lines).hasSize(3);
+		assertThat(lines[0]).endsWith("ObjectPendingFinalizationCount 10 0");
+	}
+
+	@Test
+	public void checkResultIsSentAtTheEndOfEachQueryWithoutFlushInterval() throws Exception {
+		SensuWriter writer = writer(0, sensuClient.getPort());
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		assertThat(sensuClient.getCheckResults()).hasSize(1);
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(1);
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(0);
+	}
+
+	@Test
+	public void pendingMetricsAreSentWhenStopping() throws Exception {
+		SensuWriter writer = writer(60000, sensuClient.getPort());
+		writer.start();
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		writer.stop();
+
+		assertThat(sensuClient.getCheckResults()).hasSize(1);
+	}
+
+	@Test
+	public void eachCheckResultIsSentOnAConnectionOfItsOwn() throws Exception {
+		SensuWriter writer = writer(0, sensuClient.getPort());
+
+		for (int i = 0; i < 3; i++) {
+			writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+			// longer than the idle timeout of the client
+			Thread.sleep(600);
+		}
+
+		assertThat(sensuClient.getCheckResults()).hasSize(3);
+		assertThat(sensuClient.getConnections()).isEqualTo(3);
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(0);
+	}
+
+	@Test
+	public void checkResultsNotAcknowledgedAreCountedAsFailed() throws Exception {
+		SensuWriter writer = writer(0, sensuClient.getPort());
+
+		sensuClient.setAcknowledge(false);
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+		sensuClient.setAcknowledge(true);
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+
+		assertThat(sensuClient.getCheckResults()).hasSize(2);
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(1);
+	}
+
+	@Test
+	public void sendErrorsAreNotPropagated() throws Exception {
+		ServerSocket closed = new ServerSocket(0);
+		int port = closed.getLocalPort();
+		closed.close();
+		SensuWriter writer = writer(0, port);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+	}
+
+	private static SensuWriter writer(int flushIntervalInMillis, int port) {
+		return new SensuWriter(ImmutableList.<String>of(), false, false, "localhost", port, null,
+				flushIntervalInMillis, ImmutableMap.<String, Object>of());
+	}
+}
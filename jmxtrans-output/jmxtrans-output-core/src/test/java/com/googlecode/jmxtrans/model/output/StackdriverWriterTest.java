@@ -0,0 +1,176 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.googlecode.jmxtrans.model.output.support.HttpStandIn;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResults;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class StackdriverWriterTest {
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Rule public final HttpStandIn gateway = new HttpStandIn();
+
+	@Test
+	public void dataPointsOfSeveralQueriesAreSentInOneMessage() throws Exception {
+		StackdriverWriter writer = writer(60000, 100, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+		assertThat(gateway.getRequests()).isEmpty();
+		writer.flush();
+
+		List<HttpStandIn.Request> requests = gateway.getRequests();
+		assertThat(requests).hasSize(1);
+		assertThat(requests.get(0).getHeaders().getFirst("x-stackdriver-apikey")).isEqualTo("apiKey");
+		JsonNode message = body(0);
+		assertThat(message.get("proto_version").asInt()).isEqualTo(1);
+		JsonNode data = message.get("data");
+		assertThat(data.size()).isEqualTo(3);
+		assertThat(data.get(0).get("name").asText())
+				.isEqualTo("prefix.ObjectPendingFinalizationCount.ObjectPendingFinalizationCount");
+		assertThat(data.get(0).get("value").asInt()).isEqualTo(10);
+		assertThat(data.get(0).get("instance").asText()).isEqualTo("instance");
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(3);
+		assertThat(writer.getCounters().getFlushes()).isEqualTo(1);
+	}
+
+	@Test
+	public void messagesRespectDataPointsLimit() throws Exception {
+		StackdriverWriter writer = writer(60000, 2, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+		writer.flush();
+
+		List<HttpStandIn.Request> requests = gateway.getRequests();
+		assertThat(requests).hasSize(3);
+		assertThat(body(0).get("data").size()).isEqualTo(2);
+		assertThat(body(2).get("data").size()).isEqualTo(1);
+		assertThat(requests.get(2).getRemotePort()).isEqualTo(requests.get(0).getRemotePort());
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(3);
+	}
+
+	@Test
+	public void dataPointsAreSentAtTheEndOfEachQueryWithoutFlushInterval() throws Exception {
+		StackdriverWriter writer = writer(0, 100, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		assertThat(gateway.getRequests()).hasSize(1);
+	}
+
+	@Test
+	public void dataPointsAreSentByBackgroundFlusher() throws Exception {
+		StackdriverWriter writer = writer(50, 100, 1000);
+		writer.start();
+		try {
+			writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+			await().atMost(5, SECONDS).until(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					return gateway.getRequests().size();
+				}
+			}, is(1));
+		} finally {
+			writer.stop();
+		}
+	}
+
+	@Test
+	public void pendingDataPointsAreSentWhenStopping() throws Exception {
+		StackdriverWriter writer = writer(60000, 100, 1000);
+		writer.start();
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		writer.stop();
+
+		assertThat(gateway.getRequests()).hasSize(1);
+	}
+
+	@Test
+	public void dataPointsBeyondPendingLimitAreDropped() throws Exception {
+		StackdriverWriter writer = writer(60000, 100, 2);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+		writer.flush();
+
+		assertThat(body(0).get("data").size()).isEqualTo(2);
+		assertThat(writer.getCounters().getItemsDropped()).isEqualTo(3);
+	}
+
+	@Test
+	public void failedRequestsAreCounted() throws Exception {
+		gateway.respondWith(500, "error");
+		StackdriverWriter writer = writer(60000, 100, 1000);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+		writer.flush();
+
+		assertThat(writer.getCounters().getRequestsFailed()).isEqualTo(1);
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(0);
+	}
+
+	private StackdriverWriter writer(int flushIntervalInMillis, int maxDataPointsPerRequest, int maxPendingDataPoints)
+			throws MalformedURLException {
+		return new StackdriverWriter(
+				ImmutableList.<String>of(),
+				false,
+				true,
+				gateway.getUrl("/v1/custom"),
+				"apiKey",
+				null,
+				null,
+				"prefix",
+				1000,
+				"instance",
+				null,
+				flushIntervalInMillis,
+				maxDataPointsPerRequest,
+				maxPendingDataPoints,
+				ImmutableMap.<String, Object>of());
+	}
+
+	private JsonNode body(int request) throws IOException {
+		return mapper.readTree(gateway.getRequests().get(request).getBody());
+	}
+
+}
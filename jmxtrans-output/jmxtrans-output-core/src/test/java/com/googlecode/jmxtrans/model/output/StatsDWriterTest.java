@@ -0,0 +1,143 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
+import static com.googlecode.jmxtrans.model.ResultFixtures.numericResults;
+import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StatsDWriterTest {
+
+	private static final String METRIC = "servers.host_example_net_4321.ObjectPendingFinalizationCount.ObjectPendingFinalizationCount:10|c";
+
+	private DatagramSocket server;
+
+	@Before
+	public void startServer() throws IOException {
+		server = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		server.setSoTimeout(1000);
+	}
+
+	@After
+	public void stopServer() {
+		server.close();
+	}
+
+	@Test
+	public void metricsOfABatchArePackedInASingleDatagram() throws Exception {
+		StatsDWriter writer = writer(null);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(10));
+
+		String packet = receive();
+		assertThat(packet.split("\n")).hasSize(10).containsOnly(METRIC);
+		assertNothingElseReceived();
+		assertThat(writer.getCounters().getMetricsSent()).isEqualTo(10);
+		assertThat(writer.getCounters().getPacketsSent()).isEqualTo(1);
+		assertThat(writer.getCounters().getBytesSent()).isEqualTo(packet.length());
+	}
+
+	@Test
+	public void datagramsDoNotExceedMtu() throws Exception {
+		// room for two metrics and their separator
+		StatsDWriter writer = writer(48 + 2 * METRIC.length() + 1);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(5));
+
+		assertThat(receive()).isEqualTo(METRIC + "\n" + METRIC);
+		assertThat(receive()).isEqualTo(METRIC + "\n" + METRIC);
+		assertThat(receive()).isEqualTo(METRIC);
+		assertNothingElseReceived();
+		assertThat(writer.getCounters().getPacketsSent()).isEqualTo(3);
+	}
+
+	@Test
+	public void metricLargerThanMtuIsSentOnItsOwn() throws Exception {
+		StatsDWriter writer = writer(50);
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(2));
+
+		assertThat(receive()).isEqualTo(METRIC);
+		assertThat(receive()).isEqualTo(METRIC);
+		assertNothingElseReceived();
+	}
+
+	@Test
+	public void channelIsClosedOnStopAndReopenedOnStart() throws Exception {
+		StatsDWriter writer = writer(null);
+		writer.start();
+		writer.stop();
+
+		writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+		assertNothingElseReceived();
+		assertThat(writer.getCounters().getSendErrors()).isEqualTo(1);
+
+		writer.start();
+		try {
+			writer.doWrite(dummyServer(), dummyQuery(), numericResults(1));
+			assertThat(receive()).isEqualTo(METRIC);
+		} finally {
+			writer.stop();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void mtuMustLeaveRoomForHeaders() throws Exception {
+		writer(48);
+	}
+
+	private StatsDWriter writer(Integer mtu) throws IOException {
+		return new StatsDWriter(ImmutableList.<String>of(), false, false,
+				"localhost", server.getLocalPort(), null, null, mtu, null);
+	}
+
+
+	private String receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+		server.receive(packet);
+		return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+	}
+
+	private void assertNothingElseReceived() throws IOException {
+		server.setSoTimeout(100);
+		try {
+			receive();
+			throw new AssertionError("Unexpected datagram");
+		} catch (SocketTimeoutException expected) {
+			// nothing else was sent
+		}
+	}
+}
@@ -27,12 +27,13 @@ import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.naming.typename.TypeNameValues;
 import org.hamcrest.Matchers;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
@@ -40,11 +41,15 @@ import org.powermock.modules.junit4.PowerMockRunner;
 import org.powermock.reflect.Whitebox;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
 import java.util.Map;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.collect.Maps.newHashMap;
 import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
@@ -54,12 +59,14 @@ import static org.mockito.Matchers.eq;
  * Tests for {@link TCollectorUDPWriter}.
  */
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({TCollectorUDPWriter.class, DatagramSocket.class})
+@PrepareForTest(TCollectorUDPWriter.class)
 public class TCollectorUDPWriterTests {
+	private static final String LINE = "X-DOMAIN.PKG.CLASS-X.X-ATT-X 0 120021 type=x-att1-x";
+
 	protected TCollectorUDPWriter writer;
 	protected Query mockQuery;
 	protected Result mockResult;
-	protected DatagramSocket mockDgSocket;
+	protected DatagramSocket server;
 	protected Logger mockLog;
 	protected ImmutableMap<String, Object> testValues;
 
@@ -67,12 +74,10 @@ public class TCollectorUDPWriterTests {
 	public void setupTest() throws Exception {
 		this.mockQuery = Mockito.mock(Query.class);
 		this.mockResult = Mockito.mock(Result.class);
-		this.mockDgSocket = Mockito.mock(DatagramSocket.class);
 		this.mockLog = Mockito.mock(Logger.class);
 
-
-		// Setup common mock interactions.
-		PowerMockito.whenNew(DatagramSocket.class).withAnyArguments().thenReturn(this.mockDgSocket);
+		this.server = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		this.server.setSoTimeout(1000);
 
 		// When results are needed.
 		testValues = ImmutableMap.<String, Object>of("x-att1-x", "120021");
@@ -80,6 +85,7 @@ public class TCollectorUDPWriterTests {
 		Mockito.when(this.mockResult.getAttributeName()).thenReturn("X-ATT-X");
 		Mockito.when(this.mockResult.getClassName()).thenReturn("X-DOMAIN.PKG.CLASS-X");
 		Mockito.when(this.mockResult.getTypeName()).thenReturn("Type=x-type-x");
+		Mockito.when(this.mockResult.getTypeNameValues()).thenReturn(TypeNameValues.of("Type=x-type-x"));
 
 
 		// Prepare the object under test and test data.
@@ -90,42 +96,86 @@ public class TCollectorUDPWriterTests {
 		this.writer = TCollectorUDPWriter.builder()
 				.setDebugEnabled(false)
 				.setHost("localhost")
-				.setPort(1234)
+				.setPort(server.getLocalPort())
 				.build();
 
 		// Inject the mock logger
 		Whitebox.setInternalState(TCollectorUDPWriter.class, Logger.class, this.mockLog);
 	}
 
+	@After
+	public void stopServer() {
+		this.server.close();
+	}
+
 	@Test
 	public void successfullySendMessageToTCollector() throws Exception {
-		// Prepare
-		ArgumentCaptor<DatagramPacket> packetCapture = ArgumentCaptor.forClass(DatagramPacket.class);
-
 		// Execute
 		this.writer.start();
 		this.writer.doWrite(null, this.mockQuery, ImmutableList.of(this.mockResult));
 		this.writer.stop();
 
 		// Verifications
-		Mockito.verify(this.mockDgSocket).send(packetCapture.capture());
-
-		String sentString = new String(packetCapture.getValue().getData(),
-				packetCapture.getValue().getOffset(),
-				packetCapture.getValue().getLength());
+		String sentString = receive();
 
 		Assert.assertThat(sentString, Matchers.startsWith("X-DOMAIN.PKG.CLASS-X.X-ATT-X 0 120021"));
 		Assert.assertThat(sentString, Matchers.not(Matchers.containsString("host=")));
 	}
 
+	@Test
+	public void linesOfABatchArePackedInASingleDatagram() throws Exception {
+		this.writer.start();
+		this.writer.doWrite(null, this.mockQuery, ImmutableList.of(this.mockResult, this.mockResult, this.mockResult));
+		this.writer.stop();
+
+		Assert.assertEquals(LINE + "\n" + LINE + "\n" + LINE, receive());
+		assertNothingElseReceived();
+	}
+
+	@Test
+	public void datagramsDoNotExceedMtu() throws Exception {
+		// room for two lines and their separator
+		this.writer = TCollectorUDPWriter.builder()
+				.setHost("localhost")
+				.setPort(server.getLocalPort())
+				.setMtu(48 + 2 * LINE.length() + 1)
+				.build();
+
+		this.writer.start();
+		this.writer.doWrite(null, this.mockQuery, ImmutableList.of(this.mockResult, this.mockResult, this.mockResult));
+		this.writer.stop();
+
+		Assert.assertEquals(LINE + "\n" + LINE, receive());
+		Assert.assertEquals(LINE, receive());
+		assertNothingElseReceived();
+	}
+
+	@Test
+	public void lineLargerThanMtuIsSentOnItsOwn() throws Exception {
+		this.writer = TCollectorUDPWriter.builder()
+				.setHost("localhost")
+				.setPort(server.getLocalPort())
+				.setMtu(50)
+				.build();
+
+		this.writer.start();
+		this.writer.doWrite(null, this.mockQuery, ImmutableList.of(this.mockResult, this.mockResult));
+		this.writer.stop();
+
+		Assert.assertEquals(LINE, receive());
+		Assert.assertEquals(LINE, receive());
+		assertNothingElseReceived();
+	}
+
 	/**
-	 * Test a socket exception when creating the DatagramSocket.
+	 * Test an exception when opening the DatagramChannel.
 	 */
 	@Test
 	public void testSocketException() throws Exception {
 		// Prepare
-		SocketException sockExc = new SocketException("X-SOCK-EXC-X");
-		PowerMockito.whenNew(DatagramSocket.class).withNoArguments().thenThrow(sockExc);
+		IOException ioExc = new IOException("X-SOCK-EXC-X");
+		PowerMockito.mockStatic(DatagramChannel.class);
+		PowerMockito.when(DatagramChannel.open()).thenThrow(ioExc);
 
 		try {
 			// Execute
@@ -134,8 +184,8 @@ public class TCollectorUDPWriterTests {
 			Assert.fail("LifecycleException missing");
 		} catch (LifecycleException lcExc) {
 			// Verify
-			Assert.assertSame(sockExc, lcExc.getCause());
-			Mockito.verify(this.mockLog).error(contains("create a datagram socket"), eq(sockExc));
+			Assert.assertSame(ioExc, lcExc.getCause());
+			Mockito.verify(this.mockLog).error(contains("create a datagram channel"), eq(ioExc));
 		}
 	}
 
@@ -152,4 +202,20 @@ public class TCollectorUDPWriterTests {
 				.setHost("localhost")
 				.build();
 	}
+
+	private String receive() throws IOException {
+		DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+		this.server.receive(packet);
+		return new String(packet.getData(), 0, packet.getLength(), UTF_8);
+	}
+
+	private void assertNothingElseReceived() throws IOException {
+		this.server.setSoTimeout(100);
+		try {
+			receive();
+			Assert.fail("Unexpected datagram");
+		} catch (SocketTimeoutException expected) {
+			// nothing else was sent
+		}
+	}
 }
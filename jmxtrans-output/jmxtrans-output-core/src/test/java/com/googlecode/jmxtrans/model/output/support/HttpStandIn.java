@@ -0,0 +1,122 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import org.junit.rules.ExternalResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Local stand-in for the HTTP APIs of metric backends: records the requests it receives and answers all of them
+ * with the same response.
+ */
+public class HttpStandIn extends ExternalResource {
+
+	private HttpServer server;
+	@Getter private final List<Request> requests = new CopyOnWriteArrayList<Request>();
+	private volatile int responseCode = 200;
+	private volatile String responseBody = "";
+
+	@Override
+	protected void before() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				// the whole body must be read for the connection to be kept alive
+				byte[] raw = ByteStreams.toByteArray(exchange.getRequestBody());
+				InputStream in = new ByteArrayInputStream(raw);
+				if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+					in = new GZIPInputStream(in);
+				}
+				requests.add(new Request(
+						exchange.getRequestMethod(),
+						exchange.getRequestURI(),
+						exchange.getRequestHeaders(),
+						exchange.getRemoteAddress().getPort(),
+						new String(ByteStreams.toByteArray(in), UTF_8)));
+
+				byte[] response = responseBody.getBytes(UTF_8);
+				exchange.sendResponseHeaders(responseCode, response.length == 0 ? -1 : response.length);
+				OutputStream out = exchange.getResponseBody();
+				if (response.length > 0) {
+					// writing to a response declared without body closes the connection
+					out.write(response);
+				}
+				out.close();
+			}
+		});
+		server.start();
+	}
+
+	@Override
+	protected void after() {
+		server.stop(0);
+	}
+
+	public void respondWith(int code, String body) {
+		this.responseCode = code;
+		this.responseBody = body;
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public String getUrl(String path) {
+		return "http://localhost:" + getPort() + path;
+	}
+
+	@Getter
+	public static final class Request {
+		private final String method;
+		private final URI uri;
+		private final Headers headers;
+		private final int remotePort;
+		private final String body;
+
+		private Request(String method, URI uri, Headers headers, int remotePort, String body) {
+			this.method = method;
+			this.uri = uri;
+			this.headers = headers;
+			this.remotePort = remotePort;
+			this.body = body;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineBufferPoolTest {
+
+	@Test
+	public void buffersAreReusedAndReset() {
+		LineBufferPool pool = new LineBufferPool(2, 16, 1024);
+		LineBuffer buffer = pool.acquire();
+		buffer.append("some content");
+		pool.release(buffer);
+
+		assertThat(pool.size()).isEqualTo(1);
+		LineBuffer reused = pool.acquire();
+		assertThat(reused).isSameAs(buffer);
+		assertThat(reused.length()).isEqualTo(0);
+		assertThat(pool.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void largeBuffersAreDropped() {
+		LineBufferPool pool = new LineBufferPool(2, 16, 32);
+		LineBuffer buffer = pool.acquire();
+		buffer.append(new byte[64]);
+		pool.release(buffer);
+
+		assertThat(pool.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void poolIsBounded() {
+		LineBufferPool pool = new LineBufferPool(2, 16, 1024);
+		pool.release(new LineBuffer(16));
+		pool.release(new LineBuffer(16));
+		pool.release(new LineBuffer(16));
+
+		assertThat(pool.size()).isEqualTo(2);
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LineBufferTest {
+
+	@Test
+	public void longsAreFormattedLikeLongToString() {
+		long[] samples = {0, 1, -1, 9, 10, 99, 100, 123456789L, -987654321L, Long.MAX_VALUE, Long.MIN_VALUE};
+		for (long sample : samples) {
+			LineBuffer buffer = new LineBuffer(1);
+			buffer.append(sample);
+			assertThat(buffer.toString()).isEqualTo(Long.toString(sample));
+		}
+	}
+
+	@Test
+	public void bufferGrowsAndIsReused() throws IOException {
+		LineBuffer buffer = new LineBuffer(2);
+		buffer.append("put ").append(42L).append(' ').append(new byte[] {'a', 'b'}).append('\n');
+		assertThat(buffer.toString()).isEqualTo("put 42 ab\n");
+		assertThat(buffer.indexOf((byte) '\n', 0)).isEqualTo(9);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		buffer.writeTo(out);
+		assertThat(out.toString("US-ASCII")).isEqualTo("put 42 ab\n");
+
+		buffer.reset();
+		buffer.append("x");
+		assertThat(buffer.length()).isEqualTo(1);
+		assertThat(buffer.toString()).isEqualTo("x");
+	}
+
+	@Test
+	public void charactersAreEncodedAsUtf8() {
+		String[] samples = {"café", "名前", "\uD83D\uDE00", "lone \uD800 high", "lone \uDC00 low", "end \uD83D"};
+		for (String sample : samples) {
+			LineBuffer buffer = new LineBuffer(1);
+			buffer.append(sample);
+			byte[] actual = new byte[buffer.length()];
+			System.arraycopy(buffer.array(), 0, actual, 0, actual.length);
+			assertThat(actual).isEqualTo(sample.getBytes(UTF_8));
+
+		}
+	}
+
+	@Test
+	public void singleCharactersAreEncodedAsUtf8() {
+		for (char c : new char[] {'a', 'é', '名', '\uD800'}) {
+			LineBuffer buffer = new LineBuffer(1);
+			buffer.append(c);
+			assertThat(buffer.toString()).isEqualTo(new String(String.valueOf(c).getBytes(UTF_8), UTF_8));
+		}
+	}
+
+	@Test
+	public void trimIsSameAsStringTrim() {
+		String[] samples = {"", " ", "abc", "  abc", "abc \n", " \t a b \r\n", "é "};
+		for (String sample : samples) {
+			LineBuffer buffer = new LineBuffer(1);
+			buffer.append("prefix|").append(sample);
+			buffer.trim(7);
+			assertThat(buffer.toString()).isEqualTo("prefix|" + sample.trim());
+		}
+	}
+
+	@Test
+	public void numbersAreFormattedLikeToString() {
+		Object[] samples = {42, -7L, (short) 3, (byte) 1, 1.5, 2.5f, new BigInteger("123456789012345678901"),
+				BigInteger.TEN, new AtomicLong(5), "12"};
+		for (Object sample : samples) {
+			LineBuffer buffer = new LineBuffer(1);
+			buffer.appendNumber(sample);
+			assertThat(buffer.toString()).isEqualTo(sample.toString());
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Makes sure that each dialect produces exactly the bytes writers used to produce by String concatenation.
+ */
+public class LineDialectsTest {
+
+	private static final ImmutableList<String> KEYS = ImmutableList.of(
+			"servers.host_123.java.lang.Memory.HeapMemoryUsage_used",
+			"unicode.clé.名前",
+			"emoji.😀.key",
+			"lone.\uD800.surrogate",
+			" leading and trailing\t",
+			"");
+
+	private static final ImmutableList<Object> VALUES = ImmutableList.<Object>of(
+			0, -1, 42L, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, (short) 7, (byte) -3,
+			1.5, -0.0, 1e21, Double.NaN, 3.14f,
+			new BigDecimal("1E+3"), new BigInteger("12345678901234567890123"), BigInteger.valueOf(-42),
+			new AtomicLong(99),
+			"123", "4.56");
+
+	private static final long[] EPOCHS = {0L, 999L, 1234567L, 1450000000123L, -1500L};
+
+	@Test
+	public void graphite() throws IOException {
+		for (String key : KEYS) {
+			for (Object value : VALUES) {
+				for (long epoch : EPOCHS) {
+					String legacy = key + " " + value.toString() + " " + epoch / 1000 + "\n";
+					assertSameOutput(LineDialects.graphite(), key, value, epoch, legacy, false);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void statsD() throws IOException {
+		for (String key : KEYS) {
+			for (Object value : VALUES) {
+				for (String bucketType : new String[]{"c", "g", "ms "}) {
+					String legacy = (key + ":" + value.toString() + "|" + bucketType + "\n").trim();
+					assertSameOutput(LineDialects.statsD(bucketType), key, value, 0L, legacy, true);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void keyOut() throws IOException {
+		for (String key : KEYS) {
+			for (Object value : VALUES) {
+				for (long epoch : EPOCHS) {
+					String legacy = key + "\t" + value.toString() + "\t" + epoch;
+					assertSameOutput(LineDialects.keyOut("\t"), key, value, epoch, legacy, false);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void sensu() throws IOException {
+		for (String key : KEYS) {
+			for (Object value : VALUES) {
+				for (long epoch : EPOCHS) {
+					String legacy = new StringBuilder().append(key).append(" ").append(value).append(" ")
+							.append(TimeUnit.SECONDS.convert(epoch, TimeUnit.MILLISECONDS)).append("\r\n").toString();
+					assertSameOutput(LineDialects.sensu("\r\n"), key, value, epoch, legacy, false);
+				}
+			}
+		}
+	}
+
+	private static void assertSameOutput(LineDialect dialect, String key, Object value, long epoch, String legacy,
+			boolean trim) throws IOException {
+		// bytes, as sent by writers using a LineBuffer
+		LineBuffer buffer = new LineBuffer(4);
+		buffer.append('#');
+		dialect.append(buffer, key, value, epoch);
+		if (trim) {
+			buffer.trim(1);
+		}
+		byte[] expected = ("#" + legacy).getBytes(UTF_8);
+		byte[] actual = new byte[buffer.length()];
+		System.arraycopy(buffer.array(), 0, actual, 0, actual.length);
+		assertThat(actual).as(legacy).isEqualTo(expected);
+
+		// bytes, as sent by writers using a Writer
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Writer writer = new OutputStreamWriter(out, UTF_8);
+		writer.write('#');
+		dialect.append(writer, key, value, epoch);
+		writer.close();
+		if (!trim) {
+			assertThat(out.toByteArray()).as(legacy).isEqualTo(expected);
+		}
+
+		// chars
+		StringBuilder sb = new StringBuilder();
+		dialect.append(sb, key, value, epoch);
+		assertThat(trim ? sb.toString().trim() : sb.toString()).isEqualTo(legacy);
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import com.googlecode.jmxtrans.connections.TcpEndpoint;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+/**
+ * {@link TcpEndpoint} writing synchronously to an {@link OutputStream}.
+ */
+public class OutputStreamTcpEndpoint implements TcpEndpoint {
+
+	@Nonnull private final OutputStream out;
+	private long bytesSent = 0;
+
+	public OutputStreamTcpEndpoint(@Nonnull OutputStream out) {
+		this.out = out;
+	}
+
+	@Nonnull
+	@Override
+	public InetSocketAddress getAddress() {
+		return InetSocketAddress.createUnresolved("localhost", 0);
+	}
+
+	@Override
+	public synchronized void send(@Nonnull byte[] data, int offset, int length) throws IOException {
+		out.write(data, offset, length);
+		bytesSent += length;
+	}
+
+	@Override
+	public boolean awaitEmpty(long timeoutMillis) {
+		return true;
+	}
+
+	@Override
+	public void release() {
+	}
+
+	@Override
+	public long getPendingBytes() {
+		return 0;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return true;
+	}
+
+	@Override
+	public synchronized long getRawBytesSent() {
+		return bytesSent;
+	}
+
+	@Override
+	public synchronized long getEncodedBytesSent() {
+		return bytesSent;
+	}
+}
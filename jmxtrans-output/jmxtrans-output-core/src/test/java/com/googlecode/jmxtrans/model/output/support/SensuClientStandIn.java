@@ -0,0 +1,142 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.support;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Getter;
+import org.junit.rules.ExternalResource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Charsets.US_ASCII;
+
+/**
+ * Local stand-in for the socket of the Sensu client: records the check results it receives, acknowledges them and,
+ * like the client, closes connections which stay idle for half a second.
+ */
+public class SensuClientStandIn extends ExternalResource {
+
+	private static final int IDLE_TIMEOUT_IN_MILLIS = 500;
+	private static final byte[] ACK = "ok".getBytes(US_ASCII);
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private ServerSocket server;
+	private Thread acceptor;
+	@Getter private final List<JsonNode> checkResults = new CopyOnWriteArrayList<JsonNode>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile boolean acknowledge = true;
+
+	@Override
+	protected void before() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						Socket socket = server.accept();
+						connections.incrementAndGet();
+						serve(socket);
+					} catch (IOException e) {
+						// closed
+					}
+				}
+			}
+		}, "sensu-client-stand-in");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT_IN_MILLIS);
+			InputStream in = socket.getInputStream();
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int length;
+			while ((length = in.read(buffer)) >= 0) {
+				received.write(buffer, 0, length);
+				JsonNode checkResult = parse(received.toByteArray());
+				if (checkResult == null) {
+					continue;
+				}
+				received.reset();
+				checkResults.add(checkResult);
+				if (!acknowledge) {
+					return;
+				}
+				socket.getOutputStream().write(ACK);
+			}
+		} catch (SocketTimeoutException e) {
+			// idle
+		} finally {
+			socket.close();
+		}
+	}
+
+	private JsonNode parse(byte[] data) {
+		try {
+			return mapper.readTree(data);
+		} catch (IOException e) {
+			// not complete yet
+			return null;
+		}
+	}
+
+	@Override
+	protected void after() {
+		try {
+			server.close();
+			acceptor.join();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Whether check results are acknowledged, or the connection closed as soon as they are received.
+	 */
+	public void setAcknowledge(boolean acknowledge) {
+		this.acknowledge = acknowledge;
+	}
+
+	public int getConnections() {
+		return connections.get();
+	}
+
+	public int getPort() {
+		return server.getLocalPort();
+	}
+}
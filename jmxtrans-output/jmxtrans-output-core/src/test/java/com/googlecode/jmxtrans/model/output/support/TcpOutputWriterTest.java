@@ -23,102 +23,114 @@
 package com.googlecode.jmxtrans.model.output.support;
 
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.connections.TcpTransport;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Server;
-import com.googlecode.jmxtrans.model.output.support.pool.SocketPoolable;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
 import org.mockito.Mock;
-import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
-import stormpot.Allocator;
-import stormpot.BlazePool;
-import stormpot.Config;
-import stormpot.LifecycledPool;
-import stormpot.Slot;
+import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
-import java.util.concurrent.Callable;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 
+import static com.google.common.base.Charsets.ISO_8859_1;
+import static com.google.common.base.Charsets.UTF_8;
 import static com.googlecode.jmxtrans.model.QueryFixtures.dummyQuery;
 import static com.googlecode.jmxtrans.model.ResultFixtures.dummyResults;
 import static com.googlecode.jmxtrans.model.ServerFixtures.dummyServer;
-import static com.jayway.awaitility.Awaitility.await;
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class TcpOutputWriterTest {
 
-	private LifecycledPool<SocketPoolable> pool;
-	@Spy private DummyAllocator allocator = new DummyAllocator();
 	@Mock private WriterBasedOutputWriter target;
-	private Writer writer = new StringWriter();
-	@Captor private ArgumentCaptor<Writer> writerCaptor;
+	@Mock private TcpTransport transport;
+	private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	private final OutputStreamTcpEndpoint endpoint = spy(new OutputStreamTcpEndpoint(out));
+	private final InetSocketAddress server = InetSocketAddress.createUnresolved("localhost", 2003);
 
 	@Before
-	public void setupPool() {
-		Config<SocketPoolable> config = new Config<SocketPoolable>()
-				.setAllocator(allocator);
-		pool = new BlazePool<SocketPoolable>(config);
+	public void returnEndpoint() {
+		when(transport.endpoint(server, null)).thenReturn(endpoint);
 	}
 
 	@Test
-	public void writerIsPassedToTargetOutputWriter() throws Exception {
-		TcpOutputWriter<WriterBasedOutputWriter> outputWriter = new TcpOutputWriter<WriterBasedOutputWriter>(target, pool);
+	public void targetOutputIsSentToEndpoint() throws Exception {
+		writes("servers.host.metric 10 0\n");
+		TcpOutputWriter<WriterBasedOutputWriter> outputWriter = writer(UTF_8);
 
 		outputWriter.doWrite(dummyServer(), dummyQuery(), dummyResults());
+		outputWriter.doWrite(dummyServer(), dummyQuery(), dummyResults());
+
+		assertThat(out.toString("UTF-8")).isEqualTo("servers.host.metric 10 0\nservers.host.metric 10 0\n");
+	}
+
+	@Test
+	public void outputIsEncodedWithCharset() throws Exception {
+		writes("hôte 10 0\n");
 
-		verify(target).write(writerCaptor.capture(), any(Server.class), any(Query.class), any(ImmutableList.class));
+		writer(ISO_8859_1)
+				.doWrite(dummyServer(), dummyQuery(), dummyResults());
 
-		assertThat(writerCaptor.getValue()).isSameAs(writer);
+		assertThat(out.toByteArray()).isEqualTo("hôte 10 0\n".getBytes(ISO_8859_1));
 	}
 
-	@Test(expected = IOException.class)
-	public void socketIsReleasedOnIOException() throws Exception {
+	@Test
+	public void nothingIsSentOnIOException() throws Exception {
 		doThrow(IOException.class).when(target).write(any(Writer.class), any(Server.class), any(Query.class), any(ImmutableList.class));
 
-		TcpOutputWriter<WriterBasedOutputWriter> outputWriter = new TcpOutputWriter<WriterBasedOutputWriter>(target, pool);
+		TcpOutputWriter<WriterBasedOutputWriter> outputWriter = writer(UTF_8);
 		try {
 			outputWriter.doWrite(dummyServer(), dummyQuery(), dummyResults());
-		} finally {
-			await()
-					.atMost(500, MILLISECONDS)
-					.until(socketDeallocated());
+		} catch (IOException expected) {
+			assertThat(out.toByteArray()).isEmpty();
+			return;
 		}
+		throw new AssertionError("IOException should have been propagated");
 	}
 
-	private Callable<Boolean> socketDeallocated() {
-		return new Callable<Boolean>() {
-			@Override
-			public Boolean call() throws Exception {
-				try {
-					verify(allocator).deallocate(any(SocketPoolable.class));
-				} catch (IOException e) {
-					return false;
-				}
-				return true;
-			}
-		};
-	}
+	@Test
+	public void endpointIsTakenOnceAndReleasedOnStop() throws Exception {
+		writes("servers.host.metric 10 0\n");
+		TcpOutputWriter<WriterBasedOutputWriter> outputWriter = writer(UTF_8);
 
+		outputWriter.start();
+		verify(transport, never()).endpoint(server, null);
+		outputWriter.doWrite(dummyServer(), dummyQuery(), dummyResults());
+		outputWriter.doWrite(dummyServer(), dummyQuery(), dummyResults());
+		outputWriter.stop();
+		outputWriter.stop();
 
-	private class DummyAllocator implements Allocator<SocketPoolable> {
-		@Override
-		public SocketPoolable allocate(Slot slot) throws Exception {
-			return new SocketPoolable(slot, null, writer);
-		}
+		verify(transport, times(1)).endpoint(server, null);
+		verify(endpoint, times(1)).release();
+	}
 
-		@Override
-		public void deallocate(SocketPoolable poolable) throws Exception {
-		}
+	private TcpOutputWriter<WriterBasedOutputWriter> writer(Charset charset) {
+		return new TcpOutputWriter<WriterBasedOutputWriter>(target, transport, server, null, charset);
+	}
+
+	private void writes(final String output) throws IOException {
+		doAnswer(new Answer<Void>() {
+			@Override
+			public Void answer(InvocationOnMock invocation) throws Throwable {
+				((Writer) invocation.getArguments()[0]).write(output);
+				return null;
+			}
+		}).when(target).write(any(Writer.class), any(Server.class), any(Query.class), any(ImmutableList.class));
 	}
 }
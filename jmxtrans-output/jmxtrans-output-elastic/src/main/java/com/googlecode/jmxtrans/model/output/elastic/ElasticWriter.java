@@ -24,9 +24,16 @@ package com.googlecode.jmxtrans.model.output.elastic;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Utf8;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
@@ -34,10 +41,18 @@ import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.naming.StringUtils;
 import com.googlecode.jmxtrans.model.output.BaseOutputWriter;
+import com.googlecode.jmxtrans.model.output.BatchSender;
+import com.googlecode.jmxtrans.model.output.BatchSenderMXBean;
+import com.googlecode.jmxtrans.model.output.DocumentLayout;
+import com.googlecode.jmxtrans.model.output.Settings;
+import com.googlecode.jmxtrans.util.ObjectToDouble;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
 import io.searchbox.client.config.HttpClientConfig;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.BulkResult.BulkResultItem;
 import io.searchbox.core.Index;
 import io.searchbox.indices.CreateIndex;
 import io.searchbox.indices.IndicesExists;
@@ -45,23 +60,55 @@ import io.searchbox.indices.mapping.PutMapping;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
 import static com.googlecode.jmxtrans.util.NumberUtils.isNumeric;
 
 /**
  * Feed data directly into elastic.
  *
+ * Documents of all queries are accumulated and sent with the <code>_bulk</code> API:
+ * <ul>
+ * <li>"{@code flushIntervalInMillis}": interval of the background flusher, 0 to send the documents at the end of each
+ * query. Optional, default value: {@value #DEFAULT_FLUSH_INTERVAL_IN_MILLIS}.</li>
+ * <li>"{@code maxBulkActions}" and "{@code maxBulkSizeInBytes}": a bulk request is closed once it holds this many
+ * documents or this many bytes of documents, measured in UTF-8. Optional, default values: {@value #DEFAULT_MAX_BULK_ACTIONS} and
+ * {@value #DEFAULT_MAX_BULK_SIZE_IN_BYTES}.</li>
+ * <li>"{@code bulkConcurrency}": number of bulk requests sent in parallel by the background flusher. Optional,
+ * default value: {@value #DEFAULT_BULK_CONCURRENCY}.</li>
+ * <li>"{@code maxRetries}": documents rejected with a transient error (429 or 5xx), or sent in a request that failed
+ * as a whole, are sent again with the next flush, at most this many times. Optional, default value:
+ * {@value #DEFAULT_MAX_RETRIES}.</li>
+ * <li>"{@code maxPendingDocuments}": maximum number of pending documents, retried documents included; documents
+ * beyond it are dropped. Optional, default value: {@value #DEFAULT_MAX_PENDING_DOCUMENTS}.</li>
+ * </ul>
+ *
+ * Documents are accumulated by a {@link BatchSender}, which exposes the bulk request and document counters.
+ * <p/>
+ * "{@code documentShape}" and "{@code fieldNames}" select the shape and the field names of the documents, see
+ * {@link DocumentLayout}. Renamed fields are renamed in the mapping as well. As the mapping is only created with the
+ * index, switching an existing setup to another layout is best done with another "{@code rootPrefix}".
+ *
  * @author Peter Paul Bakker - pp@stokpop.nl
  */
 
-@NotThreadSafe
+@ThreadSafe
 public class ElasticWriter extends BaseOutputWriter {
 	
 	private static final Logger log = LoggerFactory.getLogger(ElasticWriter.class);
@@ -69,14 +116,39 @@ public class ElasticWriter extends BaseOutputWriter {
 	private static final String DEFAULT_ROOT_PREFIX = "jmxtrans";
 	private static final String ELASTIC_TYPE_NAME = "jmx-entry";
 
+	public static final int DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 1000;
+	public static final int DEFAULT_MAX_BULK_ACTIONS = 1000;
+	public static final int DEFAULT_MAX_BULK_SIZE_IN_BYTES = 5 * 1024 * 1024;
+	public static final int DEFAULT_BULK_CONCURRENCY = 1;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+	public static final int DEFAULT_MAX_PENDING_DOCUMENTS = 100000;
+
+	private static final int TOO_MANY_REQUESTS = 429;
+	private static final int SERVER_ERROR = 500;
+
 	private static final Object CREATE_MAPPING_LOCK = new Object();
 
 	// injected for mockito unit tests: do not make final
 	private JestClient jestClient;
 
+	private final ObjectToDouble toDoubleConverter = new ObjectToDouble();
+	private final Gson gson = new Gson();
+
 	private final String rootPrefix;
 	private final String connectionUrl;
 	private final String indexName;
+	private final DocumentLayout layout;
+
+	private final int flushIntervalInMillis;
+	private final int maxBulkActions;
+	private final int maxBulkSizeInBytes;
+	private final int bulkConcurrency;
+	private final int maxRetries;
+	private final int maxPendingDocuments;
+
+	private final BatchSender<Document> sender;
+	@GuardedBy("this")
+	private ExecutorService senders;
 
 	@JsonCreator
 	public ElasticWriter(
@@ -85,6 +157,14 @@ public class ElasticWriter extends BaseOutputWriter {
 			@JsonProperty("rootPrefix") String rootPrefix,
 			@JsonProperty("debug") Boolean debugEnabled,
 			@JsonProperty("connectionUrl") String connectionUrl,
+			@JsonProperty("flushIntervalInMillis") Integer flushIntervalInMillis,
+			@JsonProperty("maxBulkActions") Integer maxBulkActions,
+			@JsonProperty("maxBulkSizeInBytes") Integer maxBulkSizeInBytes,
+			@JsonProperty("bulkConcurrency") Integer bulkConcurrency,
+			@JsonProperty("maxRetries") Integer maxRetries,
+			@JsonProperty("maxPendingDocuments") Integer maxPendingDocuments,
+			@JsonProperty("documentShape") String documentShape,
+			@JsonProperty("fieldNames") Map<String, String> fieldNames,
 			@JsonProperty("settings") Map<String, Object> settings) throws IOException {
 
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
@@ -97,7 +177,32 @@ public class ElasticWriter extends BaseOutputWriter {
 
 		this.connectionUrl = connectionUrl;
 		this.indexName = this.rootPrefix + "_jmx-entries";
+		this.layout = new DocumentLayout(
+				firstNonNull(documentShape, (String) getSettings().get("documentShape"), DocumentLayout.PER_VALUE),
+				fieldNames);
+		this.flushIntervalInMillis = intSetting(flushIntervalInMillis, "flushIntervalInMillis", DEFAULT_FLUSH_INTERVAL_IN_MILLIS);
+		this.maxBulkActions = intSetting(maxBulkActions, "maxBulkActions", DEFAULT_MAX_BULK_ACTIONS);
+		this.maxBulkSizeInBytes = intSetting(maxBulkSizeInBytes, "maxBulkSizeInBytes", DEFAULT_MAX_BULK_SIZE_IN_BYTES);
+		this.bulkConcurrency = intSetting(bulkConcurrency, "bulkConcurrency", DEFAULT_BULK_CONCURRENCY);
+		this.maxRetries = intSetting(maxRetries, "maxRetries", DEFAULT_MAX_RETRIES);
+		this.maxPendingDocuments = intSetting(maxPendingDocuments, "maxPendingDocuments", DEFAULT_MAX_PENDING_DOCUMENTS);
+		checkArgument(this.maxBulkActions > 0, "maxBulkActions must be positive");
+		checkArgument(this.bulkConcurrency > 0, "bulkConcurrency must be positive");
 		this.jestClient = createJestClient(connectionUrl);
+		this.sender = BatchSender.builder("elastic", new BatchSender.Sink<Document>() {
+			@Override
+			public void send(List<Document> documents) throws Exception {
+				sendAll(split(documents));
+			}
+		})
+				.setFlushIntervalInMillis(this.flushIntervalInMillis)
+				.setMaxPendingItems(this.maxPendingDocuments)
+				.setMBeanName(this, "ElasticWriter", "Index", this.indexName)
+				.build();
+	}
+
+	private int intSetting(Integer value, String key, int defaultValue) {
+		return firstNonNull(value, Settings.getIntegerSetting(getSettings(), key, null), defaultValue);
 	}
 
 	private JestClient createJestClient(String connectionUrl) {
@@ -115,35 +220,219 @@ public class ElasticWriter extends BaseOutputWriter {
 
 		for (Result result : results) {
 			log.debug("Query result: [{}]", result);
-			Map<String, Object> resultValues = result.getValues();
-			for (Entry<String, Object> values : resultValues.entrySet()) {
-				Object value = values.getValue();
-				if (isNumeric(value)) {
-
-					Map<String, Object> map = new HashMap<String, Object>();
-					map.put("serverAlias", server.getAlias());
-					map.put("server", server.getHost());
-					map.put("port", server.getPort());
-					map.put("objDomain", result.getObjDomain());
-					map.put("className", result.getClassName());
-					map.put("typeName", result.getTypeName());
-					map.put("attributeName", result.getAttributeName());
-					map.put("key", values.getKey());
-					map.put("keyAlias", result.getKeyAlias());
-					map.put("value", Double.parseDouble(value.toString()));
-					map.put("timestamp", result.getEpoch());
-
-					log.debug("Insert into Elastic: Index: [{}] Type: [{}] Map: [{}]", indexName, ELASTIC_TYPE_NAME, map);
-					Index index = new Index.Builder(map).index(indexName).type(ELASTIC_TYPE_NAME).build();
-					JestResult addToIndex = jestClient.execute(index);
-					if (!addToIndex.isSucceeded()) {
-						throw new ElasticWriterException(String.format("Unable to write entry to elastic: %s", addToIndex.getErrorMessage()));
-					}
-				} else {
-					log.warn("Unable to submit non-numeric value to Elastic: [{}] from result [{}]", value, result);
+			if (layout.isPerResult()) {
+				addResultDocument(server, result);
+			} else {
+				addValueDocuments(server, result);
+			}
+		}
+
+		sender.afterWrite();
+	}
+
+	private void addValueDocuments(Server server, Result result) {
+		Map<String, Object> resultValues = result.getValues();
+		for (Entry<String, Object> values : resultValues.entrySet()) {
+			Object value = values.getValue();
+			if (isNumeric(value)) {
+				Map<String, Object> map = resultDocument(server, result);
+				map.put(layout.field("key"), values.getKey());
+				map.put(layout.field("value"), toDoubleConverter.apply(value));
+				add(map);
+			} else {
+				log.warn("Unable to submit non-numeric value to Elastic: [{}] from result [{}]", value, result);
+			}
+		}
+	}
+
+	private void addResultDocument(Server server, Result result) {
+		Map<String, Object> numericValues = new HashMap<String, Object>();
+		for (Entry<String, Object> values : result.getValues().entrySet()) {
+			Object value = values.getValue();
+			if (isNumeric(value)) {
+				numericValues.put(values.getKey(), toDoubleConverter.apply(value));
+			} else {
+				log.warn("Unable to submit non-numeric value to Elastic: [{}] from result [{}]", value, result);
+			}
+		}
+		if (!numericValues.isEmpty()) {
+			Map<String, Object> map = resultDocument(server, result);
+			map.put(layout.field(DocumentLayout.VALUES), numericValues);
+			add(map);
+		}
+	}
+
+	/**
+	 * Fields identifying the result, shared by all the documents of the result.
+	 */
+	private Map<String, Object> resultDocument(Server server, Result result) {
+		Map<String, Object> map = new HashMap<String, Object>();
+		map.put(layout.field("serverAlias"), server.getAlias());
+		map.put(layout.field("server"), server.getHost());
+		map.put(layout.field("port"), server.getPort());
+		map.put(layout.field("objDomain"), result.getObjDomain());
+		map.put(layout.field("className"), result.getClassName());
+		map.put(layout.field("typeName"), result.getTypeName());
+		map.put(layout.field("attributeName"), result.getAttributeName());
+		map.put(layout.field("keyAlias"), result.getKeyAlias());
+		map.put(layout.field("timestamp"), result.getEpoch());
+		return map;
+	}
+
+	private void add(Map<String, Object> map) {
+		log.debug("Insert into Elastic: Index: [{}] Type: [{}] Map: [{}]", indexName, ELASTIC_TYPE_NAME, map);
+		sender.add(new Document(gson.toJson(map)));
+	}
+
+	/**
+	 * Sends all the pending documents. Bulk requests are sent in parallel by the background senders once the writer
+	 * is started with a flush interval, and from the calling thread otherwise.
+	 *
+	 * @throws IOException if elastic could not be reached, when sending from the calling thread.
+	 * @throws ElasticWriterException if documents were rejected, when sending from the calling thread.
+	 */
+	public void flush() throws Exception {
+		sender.flush();
+	}
+
+	private List<List<Document>> split(List<Document> documents) {
+		List<List<Document>> bulks = new ArrayList<List<Document>>();
+		List<Document> bulk = new ArrayList<Document>();
+		long bulkSize = 0;
+		for (Document document : documents) {
+			if (!bulk.isEmpty() && (bulk.size() >= maxBulkActions || bulkSize + document.size() > maxBulkSizeInBytes)) {
+				bulks.add(bulk);
+				bulk = new ArrayList<Document>();
+				bulkSize = 0;
+			}
+			bulk.add(document);
+			bulkSize += document.size();
+		}
+		bulks.add(bulk);
+		return bulks;
+	}
+
+	private void sendAll(List<List<Document>> bulks) throws IOException, ElasticWriterException {
+		ExecutorService executor;
+		synchronized (this) {
+			executor = senders;
+		}
+		if (executor != null) {
+			submitAll(executor, bulks);
+			return;
+		}
+		IOException ioException = null;
+		ElasticWriterException writerException = null;
+		for (List<Document> bulk : bulks) {
+			try {
+				send(bulk);
+			} catch (IOException e) {
+				ioException = e;
+			} catch (ElasticWriterException e) {
+				writerException = e;
+			}
+		}
+		if (ioException != null) {
+			throw ioException;
+		}
+		if (writerException != null) {
+			throw writerException;
+		}
+	}
+
+	private void submitAll(ExecutorService executor, List<List<Document>> bulks) {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(bulks.size());
+		for (final List<Document> bulk : bulks) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					send(bulk);
+					return null;
 				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				log.warn("Failure to send bulk request to elastic: {}", e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private void send(List<Document> documents) throws IOException, ElasticWriterException {
+		Bulk.Builder builder = new Bulk.Builder().defaultIndex(indexName).defaultType(ELASTIC_TYPE_NAME);
+		for (Document document : documents) {
+			builder.addAction(new Index.Builder(document.source).build());
+		}
+
+		BatchSender.Counters counters = sender.getCounters();
+		counters.requestStarted();
+		BulkResult result;
+		try {
+			result = jestClient.execute(builder.build());
+		} catch (IOException e) {
+			counters.requestFailed(0, 0);
+			retry(documents);
+			throw e;
+		}
+
+		if (result.isSucceeded()) {
+			counters.requestSucceeded(documents.size());
+			return;
+		}
+
+		List<BulkResultItem> items = items(result);
+		if (items.size() != documents.size()) {
+			counters.requestFailed(0, 0);
+			retry(documents);
+			throw new ElasticWriterException(String.format("Unable to write entries to elastic: %s", result.getErrorMessage()));
+		}
+
+		List<Document> retried = new ArrayList<Document>();
+		int indexed = 0;
+		int rejected = 0;
+		String firstError = null;
+		for (int i = 0; i < items.size(); i++) {
+			BulkResultItem item = items.get(i);
+			if (item.error == null) {
+				indexed++;
+				continue;
+			}
+			if (firstError == null) {
+				firstError = item.error;
 			}
+			if (item.status == TOO_MANY_REQUESTS || item.status >= SERVER_ERROR) {
+				retried.add(documents.get(i));
+			} else {
+				rejected++;
+			}
+		}
+		counters.requestFailed(indexed, rejected);
+		retry(retried);
+		throw new ElasticWriterException(String.format("Unable to write %d of %d entries to elastic, %d will be retried: %s",
+				rejected + retried.size(), documents.size(), retried.size(), firstError));
+	}
+
+	private static List<BulkResultItem> items(BulkResult result) {
+		if (result.getJsonObject() == null || !result.getJsonObject().has("items")) {
+			return Collections.emptyList();
 		}
+		return result.getItems();
+	}
+
+	private void retry(List<Document> documents) {
+		List<Document> retried = new ArrayList<Document>(documents.size());
+		for (Document document : documents) {
+			if (document.attempts++ < maxRetries) {
+				retried.add(document);
+			}
+		}
+		sender.getCounters().itemsFailed(documents.size() - retried.size());
+		sender.retry(retried);
 	}
 
 	private String createAlias(Server server) {
@@ -158,7 +447,7 @@ public class ElasticWriter extends BaseOutputWriter {
 	}
 
 
-	private static void createMappingIfNeeded(JestClient jestClient, String indexName, String typeName) throws ElasticWriterException, IOException {
+	private static void createMappingIfNeeded(JestClient jestClient, String indexName, String typeName, DocumentLayout layout) throws ElasticWriterException, IOException {
 		synchronized (CREATE_MAPPING_LOCK) {
 			IndicesExists indicesExists = new IndicesExists.Builder(indexName).build();
 			boolean indexExists = jestClient.execute(indicesExists).isSucceeded();
@@ -169,7 +458,7 @@ public class ElasticWriter extends BaseOutputWriter {
 				jestClient.execute(createIndex);
 
 				URL url = ElasticWriter.class.getResource("/elastic-mapping.json");
-				String mapping = Resources.toString(url, Charsets.UTF_8);
+				String mapping = renameFields(Resources.toString(url, Charsets.UTF_8), typeName, layout);
 
 				PutMapping putMapping = new PutMapping.Builder(indexName, typeName,mapping).build();
 
@@ -184,18 +473,49 @@ public class ElasticWriter extends BaseOutputWriter {
 		}
 	}
 
+	@VisibleForTesting
+	static String renameFields(String mapping, String typeName, DocumentLayout layout) {
+		if (layout.getFieldNames().isEmpty()) {
+			return mapping;
+		}
+		JsonObject root = new JsonParser().parse(mapping).getAsJsonObject();
+		JsonObject type = root.getAsJsonObject(typeName);
+		JsonObject renamed = new JsonObject();
+		for (Entry<String, JsonElement> property : type.getAsJsonObject("properties").entrySet()) {
+			renamed.add(layout.field(property.getKey()), property.getValue());
+		}
+		type.add("properties", renamed);
+		return root.toString();
+	}
+
 	@Override
 	public void start() throws LifecycleException {
 		super.start();
 		try {
-			createMappingIfNeeded(jestClient, indexName, ELASTIC_TYPE_NAME);
+			createMappingIfNeeded(jestClient, indexName, ELASTIC_TYPE_NAME, layout);
 		} catch (Exception e) {
 			throw new LifecycleException("Failed to create elastic mapping.", e);
 		}
+		synchronized (this) {
+			if (flushIntervalInMillis > 0 && senders == null) {
+				senders = Executors.newFixedThreadPool(bulkConcurrency, new ThreadFactoryBuilder()
+						.setNameFormat("elastic-bulk-%d")
+						.setDaemon(true)
+						.build());
+			}
+		}
+		sender.start();
 	}
 
 	@Override
 	public void stop() throws LifecycleException {
+		sender.stop();
+		synchronized (this) {
+			if (senders != null) {
+				senders.shutdown();
+				senders = null;
+			}
+		}
 		super.stop();
 		jestClient.shutdownClient();
 	}
@@ -205,6 +525,47 @@ public class ElasticWriter extends BaseOutputWriter {
 		// no validations
 	}
 
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
+	public int getMaxBulkActions() {
+		return maxBulkActions;
+	}
+
+	public int getMaxBulkSizeInBytes() {
+		return maxBulkSizeInBytes;
+	}
+
+	public int getBulkConcurrency() {
+		return bulkConcurrency;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public int getMaxPendingDocuments() {
+		return maxPendingDocuments;
+	}
+
+	public String getDocumentShape() {
+		return layout.getShape();
+	}
+
+	public Map<String, String> getFieldNames() {
+		return layout.getFieldNames();
+	}
+
+	BatchSenderMXBean getCounters() {
+		return sender.getCounters();
+	}
+
+	@VisibleForTesting
+	void setJestClient(JestClient jestClient) {
+		this.jestClient = jestClient;
+	}
+
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder("ElasticWriter{");
@@ -214,4 +575,25 @@ public class ElasticWriter extends BaseOutputWriter {
 		sb.append('}');
 		return sb.toString();
 	}
+
+	/**
+	 * Source of a document, serialized once so that bulk requests can be sized by bytes.
+	 */
+	@VisibleForTesting
+	static final class Document {
+		private final String source;
+		/** Size of the source once encoded in UTF-8, as sent to elastic. */
+		private final int size;
+		/** Only changed by the bulk request holding the document. */
+		private int attempts;
+
+		Document(String source) {
+			this.source = source;
+			this.size = Utf8.encodedLength(source);
+		}
+
+		int size() {
+			return size;
+		}
+	}
 }
@@ -25,15 +25,19 @@ package com.googlecode.jmxtrans.model.output.elastic;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
+import com.googlecode.jmxtrans.model.output.DocumentLayout;
 import io.searchbox.action.Action;
 import io.searchbox.client.JestClient;
 import io.searchbox.client.JestResult;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
 import io.searchbox.core.DocumentResult;
-import io.searchbox.core.Index;
 import io.searchbox.indices.IndicesExists;
 import io.searchbox.indices.mapping.PutMapping;
 import org.junit.Assert;
@@ -42,12 +46,20 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.*;
@@ -89,8 +101,8 @@ public class ElasticWriterTests {
 		// return for call, is index created
 		when(mockClient.execute(isA(PutMapping.class))).thenReturn(jestResultTrue);
 
-		// return for call, add index entry
-		when(mockClient.execute(isA(Index.class))).thenReturn(jestResultTrue);
+		// return for call, add index entries
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
 
         // creates the index if needed
         writer.start();
@@ -128,9 +140,8 @@ public class ElasticWriterTests {
 	@Test(expected = ElasticWriterException.class)
 	public void sendMessageToElasticWriteResultNotSucceeded() throws Exception {
 
-		// return for call, is index created
-		when(mockClient.execute(isA(Action.class))).thenReturn(jestResultFalse);
-		when(jestResultFalse.getErrorMessage()).thenReturn("Failed to add index entry to elastic.");
+		// return for call, add index entries
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(false, null));
 
 		writer.doWrite(server, query, ImmutableList.of(result));
 
@@ -158,15 +169,15 @@ public class ElasticWriterTests {
 
         Result resultWithKnownValues = new Result(epoch, attributeName, className, objDomain, classNameAlias, typeName, ImmutableMap.of(key, (Object) value));
 
-        ArgumentCaptor<Index> argument = ArgumentCaptor.forClass(Index.class);
+        ArgumentCaptor<Bulk> argument = ArgumentCaptor.forClass(Bulk.class);
 
-		// return for call, add index entry
-		when(mockClient.execute(isA(Index.class))).thenReturn(jestResultTrue);
+		// return for call, add index entries
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
 
         writer.doWrite(serverWithKnownValues, query, ImmutableList.of(resultWithKnownValues));
 
         verify(mockClient).execute(argument.capture());
-        assertEquals(PREFIX + "_jmx-entries", argument.getValue().getIndex());
+        assertTrue("Sent to the index", argument.getValue().getURI().startsWith(PREFIX + "_jmx-entries/"));
 
         Gson gson = new Gson();
         String data = argument.getValue().getData(gson);
@@ -210,13 +221,226 @@ public class ElasticWriterTests {
 		ElasticWriter writer;
 
 		try {
-			writer = new ElasticWriter(typenames, true, PREFIX, true, connectionUrl, settings);
+			writer = new ElasticWriter(typenames, true, PREFIX, true, connectionUrl, 0, null, null, null, null, null, null, null, settings);
 		} catch (IOException e) {
 			throw new RuntimeException("Unexpected failure to creare elastic writer for test", e);
 		}
 		return writer;
 	}
 
+	@Test
+	public void documentsOfSeveralQueriesAreSentInOneBulk() throws Exception {
+		ElasticWriter writer = writer(60000, 1000, 1);
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
+
+		writer.doWrite(server, query, ImmutableList.of(result(1)));
+		writer.doWrite(server, query, ImmutableList.of(result(2)));
+		verifyZeroInteractions(mockClient);
+		writer.flush();
+
+		List<Bulk> bulks = sentBulks(1);
+		assertThat(documents(bulks.get(0))).isEqualTo(2);
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(2);
+		assertThat(writer.getCounters().getRequestsSent()).isEqualTo(1);
+	}
+
+	@Test
+	public void bulksAreLimitedByActions() throws Exception {
+		ElasticWriter writer = writer(60000, 2, 1);
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
+
+		writer.doWrite(server, query, ImmutableList.of(result(1), result(2), result(3)));
+		writer.flush();
+
+		List<Bulk> bulks = sentBulks(2);
+		assertThat(documents(bulks.get(0))).isEqualTo(2);
+		assertThat(documents(bulks.get(1))).isEqualTo(1);
+	}
+
+	@Test
+	public void onlyDocumentsWithTransientErrorsAreRetried() throws Exception {
+		ElasticWriter writer = writer(60000, 1000, 1);
+		when(mockClient.execute(isA(Bulk.class)))
+				.thenReturn(bulkResult(false, "{\"errors\":true,\"items\":["
+						+ "{\"index\":{\"_index\":\"i\",\"_type\":\"t\",\"_id\":\"1\",\"status\":201}},"
+						+ "{\"index\":{\"_index\":\"i\",\"_type\":\"t\",\"_id\":\"2\",\"status\":429,\"error\":\"EsRejectedExecutionException\"}},"
+						+ "{\"index\":{\"_index\":\"i\",\"_type\":\"t\",\"_id\":\"3\",\"status\":400,\"error\":\"MapperParsingException\"}}"
+						+ "]}"))
+				.thenReturn(bulkResult(true, null));
+
+		writer.doWrite(server, query, ImmutableList.of(result(111), result(222), result(333)));
+		try {
+			writer.flush();
+			fail("Rejected documents should be reported");
+		} catch (ElasticWriterException expected) {
+			assertThat(expected.getMessage()).contains("EsRejectedExecutionException");
+		}
+		writer.flush();
+
+		List<Bulk> bulks = sentBulks(2);
+		assertThat(documents(bulks.get(1))).isEqualTo(1);
+		assertThat(bulks.get(1).getData(new Gson())).contains("222.0").doesNotContain("111.0").doesNotContain("333.0");
+		assertThat(writer.getCounters().getItemsSent()).isEqualTo(2);
+		assertThat(writer.getCounters().getItemsRetried()).isEqualTo(1);
+		assertThat(writer.getCounters().getItemsFailed()).isEqualTo(1);
+	}
+
+	@Test
+	public void documentsOfFailedRequestsAreRetriedAtMostMaxRetriesTimes() throws Exception {
+		ElasticWriter writer = writer(60000, 1000, 1);
+		when(mockClient.execute(isA(Bulk.class))).thenThrow(new IOException("Connection refused"));
+
+		writer.doWrite(server, query, ImmutableList.of(result(1)));
+		for (int i = 0; i < ElasticWriter.DEFAULT_MAX_RETRIES + 2; i++) {
+			try {
+				writer.flush();
+			} catch (IOException expected) {
+				// elastic is down
+			}
+		}
+
+		sentBulks(ElasticWriter.DEFAULT_MAX_RETRIES + 1);
+		assertThat(writer.getCounters().getItemsRetried()).isEqualTo(ElasticWriter.DEFAULT_MAX_RETRIES);
+		assertThat(writer.getCounters().getItemsFailed()).isEqualTo(1);
+	}
+
+	@Test
+	public void retriedDocumentsBeyondMaxPendingDocumentsAreDropped() throws Exception {
+		final ElasticWriter writer = new ElasticWriter(ImmutableList.<String>of(), true, PREFIX, true, "http://localhost",
+				60000, 1000, null, 1, null, 2, null, null, new HashMap<String, Object>());
+		writer.setJestClient(mockClient);
+		when(mockClient.execute(isA(Bulk.class))).thenAnswer(new Answer<BulkResult>() {
+			@Override
+			public BulkResult answer(InvocationOnMock invocation) throws Throwable {
+				// documents of the next queries fill the queue while the bulk is on its way
+				writer.doWrite(server, query, ImmutableList.of(result(3), result(4)));
+				throw new IOException("Connection refused");
+			}
+		});
+
+		writer.doWrite(server, query, ImmutableList.of(result(1), result(2)));
+		try {
+			writer.flush();
+			fail("flush should have failed");
+		} catch (IOException expected) {
+			// elastic is down
+		}
+
+		assertThat(writer.getCounters().getItemsRetried()).isEqualTo(0);
+		assertThat(writer.getCounters().getItemsDropped()).isEqualTo(2);
+		assertThat(writer.getCounters().getPendingItems()).isEqualTo(2);
+	}
+
+	@Test
+	public void documentsAreSizedInUtf8Bytes() {
+		assertThat(new ElasticWriter.Document("abc").size()).isEqualTo(3);
+		assertThat(new ElasticWriter.Document("\u00e9t\u00e9").size()).isEqualTo(5);
+		assertThat(new ElasticWriter.Document("\u20ac").size()).isEqualTo(3);
+	}
+
+	@Test
+	public void documentsAreSentByBackgroundFlusher() throws Exception {
+		final ElasticWriter writer = writer(50, 1, 2);
+		when(mockClient.execute(isA(IndicesExists.class))).thenReturn(jestResultTrue);
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
+		writer.start();
+		try {
+			writer.doWrite(server, query, ImmutableList.of(result(1), result(2), result(3)));
+
+			await().atMost(5, SECONDS).until(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return writer.getCounters().getItemsSent();
+				}
+			}, is(3L));
+		} finally {
+			writer.stop();
+		}
+	}
+
+	@Test
+	public void documentPerResultHoldsAllTheValuesOfTheResult() throws Exception {
+		ElasticWriter writer = writer(DocumentLayout.PER_RESULT, null);
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
+		Result composite = new Result(1, "HeapMemoryUsage", "className", "objDomain", "classNameAlias", "typeName",
+				ImmutableMap.<String, Object>of("committed", 10, "used", 5, "text", "abc"));
+
+		writer.doWrite(server, query, ImmutableList.of(composite));
+
+		Bulk bulk = sentBulks(1).get(0);
+		assertThat(documents(bulk)).isEqualTo(1);
+		String document = bulk.getData(new Gson()).split("\n")[1];
+		JsonObject values = new JsonParser().parse(document).getAsJsonObject().getAsJsonObject("values");
+		assertThat(values.entrySet()).hasSize(2);
+		assertThat(values.get("committed").getAsDouble()).isEqualTo(10.0);
+		assertThat(document).contains("\"attributeName\":\"HeapMemoryUsage\"").doesNotContain("\"key\"");
+	}
+
+	@Test
+	public void fieldsCanBeRenamed() throws Exception {
+		ElasticWriter writer = writer(null, ImmutableMap.of("server", "host", "value", "metric"));
+		when(mockClient.execute(isA(Bulk.class))).thenReturn(bulkResult(true, null));
+
+		writer.doWrite(server, query, ImmutableList.of(result));
+
+		assertThat(sentBulks(1).get(0).getData(new Gson()))
+				.contains("\"host\":\"host\"")
+				.contains("\"metric\":1.0")
+				.contains("\"port\":\"123\"");
+	}
+
+	@Test
+	public void renamedFieldsAreRenamedInTheMapping() {
+		String mapping = "{\"jmx-entry\":{\"properties\":{\"server\":{\"type\":\"string\"},\"port\":{\"type\":\"string\"}}}}";
+
+		String renamed = ElasticWriter.renameFields(mapping, "jmx-entry",
+				new DocumentLayout(null, ImmutableMap.of("server", "host")));
+
+		assertThat(renamed).contains("\"host\":{\"type\":\"string\"}").contains("\"port\"").doesNotContain("\"server\"");
+		assertThat(ElasticWriter.renameFields(mapping, "jmx-entry", new DocumentLayout(null, null))).isSameAs(mapping);
+	}
+
+	private ElasticWriter writer(int flushIntervalInMillis, int maxBulkActions, int bulkConcurrency) throws IOException {
+		ElasticWriter writer = new ElasticWriter(ImmutableList.<String>of(), true, PREFIX, true, "http://localhost",
+				flushIntervalInMillis, maxBulkActions, null, bulkConcurrency, null, null, null, null, new HashMap<String, Object>());
+		writer.setJestClient(mockClient);
+		return writer;
+	}
+
+	private ElasticWriter writer(String documentShape, Map<String, String> fieldNames) throws IOException {
+		ElasticWriter writer = new ElasticWriter(ImmutableList.<String>of(), true, PREFIX, true, "http://localhost",
+				0, null, null, null, null, null, documentShape, fieldNames, new HashMap<String, Object>());
+		writer.setJestClient(mockClient);
+		return writer;
+	}
+
+	private Result result(int value) {
+		return new Result(1, "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object) value));
+	}
+
+	private List<Bulk> sentBulks(int count) throws IOException {
+		ArgumentCaptor<Bulk> bulks = ArgumentCaptor.forClass(Bulk.class);
+		verify(mockClient, times(count)).execute(bulks.capture());
+		return bulks.getAllValues();
+	}
+
+	private static int documents(Bulk bulk) {
+		// each document is an action line followed by a source line
+		return bulk.getData(new Gson()).split("\n").length / 2;
+	}
+
+	private static BulkResult bulkResult(boolean succeeded, String json) {
+		BulkResult result = new BulkResult(new Gson());
+		result.setSucceeded(succeeded);
+		if (json != null) {
+			result.setJsonString(json);
+			result.setJsonObject(new JsonParser().parse(json).getAsJsonObject());
+		} else {
+			result.setErrorMessage("Bulk request failed");
+		}
+		return result;
+	}
+
 	@Test
 	public void checkToString() throws Exception {
 		assertTrue(writer.toString().contains("ElasticWriter"));
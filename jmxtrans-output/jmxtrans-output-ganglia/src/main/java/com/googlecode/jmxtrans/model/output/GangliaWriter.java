@@ -26,6 +26,7 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
@@ -33,9 +34,11 @@ import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.model.naming.KeyUtils;
 import com.googlecode.jmxtrans.model.results.CPrecisionValueTransformer;
 import com.googlecode.jmxtrans.model.results.ValueTransformer;
-import info.ganglia.gmetric4j.gmetric.GMetric;
 import info.ganglia.gmetric4j.gmetric.GMetricSlope;
 import info.ganglia.gmetric4j.gmetric.GMetricType;
+import info.ganglia.gmetric4j.gmetric.Protocol;
+import info.ganglia.gmetric4j.gmetric.Protocolv30x;
+import info.ganglia.gmetric4j.gmetric.Protocolv31x;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,16 +46,24 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static info.ganglia.gmetric4j.gmetric.GMetric.UDPAddressingMode;
 
 /**
  * {@link com.googlecode.jmxtrans.model.OutputWriter} for <a href="http://ganglia.sourceforge.net">Ganglia</a>.
  *
+ * A single UDP channel is kept per spoofed host name for the lifetime of the writer. With the v3.1 protocol, the
+ * metadata packet of a metric is only sent with its first announce and then every "{@code metadataInterval}"
+ * announces (default value: {@value #DEFAULT_METADATA_INTERVAL}), instead of with every value.
+ *
  * @author Julien Nicoulaud <http://github.com/nicoulaj>
  * @author jon
  */
@@ -75,6 +86,7 @@ public class GangliaWriter extends BaseOutputWriter {
 	public static final String DMAX = "dmax";
 	public static final String GROUP_NAME = "groupName";
 	public static final String SPOOF_NAME = "spoofedHostName";
+	public static final String METADATA_INTERVAL = "metadataInterval";
 
 	/* Settings default values. */
 	public static final int DEFAULT_PORT = 8649;
@@ -86,6 +98,7 @@ public class GangliaWriter extends BaseOutputWriter {
 	public static final int DEFAULT_DMAX = 0;
 	public static final int DEFAULT_TMAX = 60;
 	public static final String DEFAULT_GROUP_NAME = "JMX";
+	public static final int DEFAULT_METADATA_INTERVAL = 10;
 
 	/* Settings run-time values. */
 	private final String host;
@@ -98,9 +111,13 @@ public class GangliaWriter extends BaseOutputWriter {
 	private final int tmax;
 	private final int dmax;
 	private final String groupName;
+	private final int metadataInterval;
 
 	private String spoofedHostName = null;
 
+	/** Channels to gmond, by spoofed host name. */
+	private final ConcurrentMap<String, Protocol> protocols = new ConcurrentHashMap<String, Protocol>();
+
 	private final ValueTransformer valueTransformer = new CPrecisionValueTransformer();
 
 	@JsonCreator
@@ -118,6 +135,7 @@ public class GangliaWriter extends BaseOutputWriter {
 			@JsonProperty("tmax") Integer tmax,
 			@JsonProperty("dmax") Integer dmax,
 			@JsonProperty("groupName") String groupName,
+			@JsonProperty("metadataInterval") Integer metadataInterval,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.host = MoreObjects.firstNonNull(host, (String) getSettings().get(HOST));
@@ -144,6 +162,10 @@ public class GangliaWriter extends BaseOutputWriter {
 				(String) getSettings().get(GROUP_NAME),
 				DEFAULT_GROUP_NAME
 		);
+		this.metadataInterval = MoreObjects.firstNonNull(
+				metadataInterval,
+				Settings.getIntegerSetting(getSettings(), METADATA_INTERVAL, DEFAULT_METADATA_INTERVAL));
+		checkArgument(this.metadataInterval > 0, "metadataInterval must be positive");
 	}
 
 	/**
@@ -165,7 +187,23 @@ public class GangliaWriter extends BaseOutputWriter {
 				TMAX + ": " + tmax + ", " +
 				DMAX + ": " + dmax + ", " +
 				SPOOF_NAME + ": " + spoofedHostName + ", " +
-				GROUP_NAME + ": '" + groupName + "']");
+				GROUP_NAME + ": '" + groupName + "', " +
+				METADATA_INTERVAL + ": " + metadataInterval + "]");
+	}
+
+	@Override
+	public void stop() throws LifecycleException {
+		List<Protocol> closing = new ArrayList<Protocol>(protocols.values());
+		protocols.clear();
+		IOException failure = null;
+		for (Protocol protocol : closing) {
+			try {
+				protocol.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) throw new LifecycleException(failure);
 	}
 
 	private UDPAddressingMode computeAddressingMode(String mode, String host) {
@@ -197,13 +235,48 @@ public class GangliaWriter extends BaseOutputWriter {
 
 					GMetricType dataType = getType(resultValue.getValue());
 					log.debug("Sending Ganglia metric {}={} [type={}]", name, transformedValue, dataType);
-					new GMetric(host, port, addressingMode, ttl, v31, null, spoofedHostName)
-							.announce(name, transformedValue.toString(), dataType, units, slope, tmax, dmax, groupName);
+					announce(name, transformedValue.toString(), dataType);
 				}
 			}
 		}
 	}
 
+	private void announce(String name, String value, GMetricType dataType) throws Exception {
+		Protocol protocol = getProtocol(spoofedHostName);
+		try {
+			// protocols reuse a single encoding buffer
+			synchronized (protocol) {
+				protocol.announce(name, value, dataType, units, slope, tmax, dmax, groupName);
+			}
+		} catch (IOException e) {
+			// the channel will be opened again on next announce
+			if (protocols.remove(keyOf(spoofedHostName), protocol)) protocol.close();
+			throw e;
+		}
+	}
+
+	private Protocol getProtocol(String spoofedHostName) throws IOException {
+		String key = keyOf(spoofedHostName);
+		Protocol protocol = protocols.get(key);
+		if (protocol != null) return protocol;
+
+		if (v31) {
+			protocol = new Protocolv31x(host, port, addressingMode, ttl, metadataInterval, null, spoofedHostName);
+		} else {
+			protocol = new Protocolv30x(host, port, addressingMode, ttl);
+		}
+		Protocol existing = protocols.putIfAbsent(key, protocol);
+		if (existing != null) {
+			protocol.close();
+			return existing;
+		}
+		return protocol;
+	}
+
+	private static String keyOf(String spoofedHostName) {
+		return spoofedHostName == null ? "" : spoofedHostName;
+	}
+
 	/**
 	 * Determines the spoofed host name to be used when emitting metrics to a
 	 * gmond process. Spoofed host names are of the form IP:hostname.
@@ -321,6 +394,10 @@ public class GangliaWriter extends BaseOutputWriter {
 		return groupName;
 	}
 
+	public int getMetadataInterval() {
+		return metadataInterval;
+	}
+
 	public static Builder builder() {
 		return new Builder();
 	}
@@ -339,6 +416,7 @@ public class GangliaWriter extends BaseOutputWriter {
 		private Integer tmax;
 		private Integer dmax;
 		private String groupName;
+		private Integer metadataInterval;
 
 		private Builder() {
 		}
@@ -413,6 +491,11 @@ public class GangliaWriter extends BaseOutputWriter {
 			return this;
 		}
 
+		public Builder setMetadataInterval(Integer metadataInterval) {
+			this.metadataInterval = metadataInterval;
+			return this;
+		}
+
 		public GangliaWriter build() {
 			return new GangliaWriter(
 					typeNames.build(),
@@ -428,6 +511,7 @@ public class GangliaWriter extends BaseOutputWriter {
 					tmax,
 					dmax,
 					groupName,
+					metadataInterval,
 					null);
 		}
 
@@ -22,7 +22,10 @@
  */
 package com.googlecode.jmxtrans.model.output;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import info.ganglia.gmetric4j.gmetric.GMetric;
@@ -30,6 +33,13 @@ import info.ganglia.gmetric4j.gmetric.GMetricSlope;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Tests for {@link GangliaWriter}.
  *
@@ -97,4 +107,49 @@ public class GangliaWriterTests {
         Assert.assertEquals(24, writer.getDmax());
         Assert.assertEquals("dummy", writer.getGroupName());
     }
+
+	/** Test that values go through a single channel and that metadata is only sent every metadataInterval. */
+	@Test
+	public void metadataIsThrottledOnASingleChannel() throws Exception {
+		DatagramSocket gmond = new DatagramSocket(0, InetAddress.getByName("localhost"));
+		try {
+			gmond.setSoTimeout(500);
+			GangliaWriter writer = GangliaWriter.builder()
+					.setHost("localhost")
+					.setPort(gmond.getLocalPort())
+					.setAddressingMode("UNICAST")
+					.setMetadataInterval(5)
+					.build();
+			Query query = Query.builder()
+					.setObj("test")
+					.build();
+			Server server = Server.builder().setHost("localhost").setPort("123").build();
+			writer.validateSetup(server, query);
+
+			for (int cycle = 0; cycle < 10; cycle++) {
+				writer.doWrite(server, query, ImmutableList.of(new Result(cycle, "attributeName", "className", "objDomain",
+						null, "typeName", ImmutableMap.<String, Object>of("first", cycle, "second", 2.5))));
+			}
+			writer.stop();
+
+			Set<Integer> sourcePorts = new HashSet<Integer>();
+			int packets = 0;
+			DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+			try {
+				while (true) {
+					gmond.receive(packet);
+					sourcePorts.add(packet.getPort());
+					packets++;
+				}
+			} catch (SocketTimeoutException e) {
+				// all packets received
+			}
+
+			// 20 values, and 2 metadata packets for each of the 2 metrics
+			Assert.assertEquals(24, packets);
+			Assert.assertEquals(1, sourcePorts.size());
+		} finally {
+			gmond.close();
+		}
+	}
 }
@@ -24,9 +24,12 @@ package com.googlecode.jmxtrans.model.output;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.Closer;
+import com.google.common.net.HostAndPort;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
@@ -48,6 +51,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -55,6 +59,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -66,6 +71,21 @@ import static com.google.common.base.Preconditions.checkState;
  * This method exec's out to use the command line version of rrdtool. You need
  * to specify the path to the directory where the binary rrdtool lives.
  * 
+ * Updates are sent in one of three ways:
+ * <ul>
+ * <li>if "{@code rrdcached}" is set to the <code>host:port</code> (or
+ * <code>[address]:port</code> for IPv6) of an
+ * rrdcached daemon, over its text protocol. Updates of all the writers are
+ * batched and sent every "{@code flushIntervalInMillis}" (default value:
+ * {@value #DEFAULT_FLUSH_INTERVAL_IN_MILLIS}, 0 sends them right away).
+ * Updates sent, failed and dropped are counted by the
+ * <code>RrdCachedClient</code> MBean. Databases are still created with
+ * rrdtool.</li>
+ * <li>otherwise, through a long lived <code>rrdtool -</code> process shared by
+ * the writers, unless "{@code remoteControl}" is false.</li>
+ * <li>otherwise, by running <code>rrdtool update</code> for each write.</li>
+ * </ul>
+ * 
  * @author jon
  */
 public class RRDToolWriter extends BaseOutputWriter {
@@ -73,11 +93,19 @@ public class RRDToolWriter extends BaseOutputWriter {
 
 	public static final String GENERATE = "generate";
 	private static final char[] INITIALS = { ' ', '.' };
+	public static final int DEFAULT_FLUSH_INTERVAL_IN_MILLIS = 1000;
 
 	private final File outputFile;
 	private final File templateFile;
 	private final File binaryPath;
 	private final boolean generate;
+	private final InetSocketAddress rrdcachedAddress;
+	private final boolean remoteControl;
+	private final int flushIntervalInMillis;
+
+	private volatile RrdDef databaseTemplateSpec;
+	private RrdCachedClient rrdcached;
+	private RrdToolProcess rrdtool;
 
 	@JsonCreator
 	public RRDToolWriter(
@@ -88,6 +116,9 @@ public class RRDToolWriter extends BaseOutputWriter {
 			@JsonProperty("templateFile") String templateFile,
 			@JsonProperty("binaryPath") String binaryPath,
 			@JsonProperty("generate") Boolean generate,
+			@JsonProperty("rrdcached") String rrdcached,
+			@JsonProperty("remoteControl") Boolean remoteControl,
+			@JsonProperty("flushIntervalInMillis") Integer flushIntervalInMillis,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.outputFile = new File(MoreObjects.firstNonNull(outputFile, (String) getSettings().get(OUTPUT_FILE)));
@@ -98,6 +129,28 @@ public class RRDToolWriter extends BaseOutputWriter {
 		checkState(this.outputFile.exists(), "Output file must exist");
 		checkState(this.templateFile.exists(), "Template file must exist");
 		checkState(this.binaryPath.exists(), "RRD Binary must exist");
+
+		this.rrdcachedAddress = parseAddress(rrdcached != null ? rrdcached : (String) getSettings().get("rrdcached"));
+		this.remoteControl = MoreObjects.firstNonNull(
+				remoteControl,
+				Settings.getBooleanSetting(getSettings(), "remoteControl", Boolean.TRUE));
+		this.flushIntervalInMillis = MoreObjects.firstNonNull(
+				flushIntervalInMillis,
+				Settings.getIntegerSetting(getSettings(), "flushIntervalInMillis", DEFAULT_FLUSH_INTERVAL_IN_MILLIS));
+		checkArgument(this.flushIntervalInMillis >= 0, "flushIntervalInMillis cannot be negative");
+	}
+
+	/**
+	 * Parses <code>host</code>, <code>host:port</code> or <code>[address]:port</code>. An IPv6 address without
+	 * brackets is taken as a whole, with the default port.
+	 */
+	@VisibleForTesting
+	static InetSocketAddress parseAddress(String address) {
+		if (address == null || address.isEmpty()) return null;
+		checkArgument(!address.startsWith("unix:") && !address.startsWith("/"),
+				"rrdcached can only be reached over TCP, not on %s", address);
+		HostAndPort hostAndPort = HostAndPort.fromString(address).withDefaultPort(RrdCachedClient.DEFAULT_PORT);
+		return new InetSocketAddress(hostAndPort.getHostText(), hostAndPort.getPort());
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
@@ -158,7 +211,11 @@ public class RRDToolWriter extends BaseOutputWriter {
 		doGenerate(results);
 
 		if (dataMap.keySet().size() > 0 && dataMap.values().size() > 0) {
-			rrdToolUpdate(StringUtils.join(dataMap.keySet(), ':'), StringUtils.join(dataMap.values(), ':'));
+			if (rrdcachedAddress != null) {
+				rrdCachedUpdate(def, dataMap);
+			} else {
+				rrdToolUpdate(StringUtils.join(dataMap.keySet(), ':'), StringUtils.join(dataMap.values(), ':'));
+			}
 		} else {
 			log.error("Nothing was logged for query: " + query);
 		}
@@ -194,31 +251,92 @@ public class RRDToolWriter extends BaseOutputWriter {
 		}
 	}
 
+	@Override
+	public void stop() throws LifecycleException {
+		RrdCachedClient client;
+		RrdToolProcess process;
+		synchronized (this) {
+			client = rrdcached;
+			process = rrdtool;
+			rrdcached = null;
+			rrdtool = null;
+		}
+		if (process != null) process.release();
+		if (client != null) client.release();
+	}
+
+	/**
+	 * Sends an update to rrdcached, which expects the values of all the
+	 * datasources, in order.
+	 */
+	private void rrdCachedUpdate(RrdDef def, Map<String, String> dataMap) throws Exception {
+		StringBuilder values = new StringBuilder();
+		values.append(System.currentTimeMillis() / 1000);
+		for (DsDef dsDef : def.getDsDefs()) {
+			String value = dataMap.get(dsDef.getDsName());
+			values.append(':').append(value == null ? "U" : value);
+		}
+		getRrdCachedClient().update(outputFile.getCanonicalPath(), values.toString());
+	}
+
+	private synchronized RrdCachedClient getRrdCachedClient() throws LifecycleException {
+		if (rrdcached == null) rrdcached = RrdCachedClient.acquire(rrdcachedAddress, flushIntervalInMillis);
+		return rrdcached;
+	}
+
+	private synchronized RrdToolProcess getRrdToolProcess() {
+		if (rrdtool == null) rrdtool = RrdToolProcess.acquire(new File(binaryPath, "rrdtool").getPath());
+		return rrdtool;
+	}
+
 	/**
 	 * Executes the rrdtool update command.
 	 */
 	protected void rrdToolUpdate(String template, String data) throws Exception {
 		List<String> commands = new ArrayList<String>();
-		commands.add(binaryPath + "/rrdtool");
 		commands.add("update");
 		commands.add(outputFile.getCanonicalPath());
 		commands.add("-t");
 		commands.add(template);
 		commands.add("N:" + data);
+		rrdTool(commands);
+	}
+
+	/**
+	 * Runs an rrdtool command, in the shared remote control process if enabled.
+	 */
+	private void rrdTool(List<String> arguments) throws Exception {
+		if (remoteControl) {
+			getRrdToolProcess().execute(arguments);
+			return;
+		}
+		List<String> commands = new ArrayList<String>();
+		commands.add(binaryPath + "/rrdtool");
+		commands.addAll(arguments);
 
 		ProcessBuilder pb = new ProcessBuilder(commands);
 		Process process = pb.start();
-		checkErrorStream(process);
+		try {
+			checkErrorStream(process);
+		} finally {
+			IOUtils.closeQuietly(process.getInputStream());
+			IOUtils.closeQuietly(process.getOutputStream());
+			IOUtils.closeQuietly(process.getErrorStream());
+		}
 	}
 
 	/**
 	 * If the database file doesn't exist, it'll get created, otherwise, it'll
-	 * be returned in r/w mode.
+	 * be returned in r/w mode. The template is only parsed once.
 	 */
 	protected RrdDef getDatabaseTemplateSpec() throws Exception {
-		RrdDefTemplate t = new RrdDefTemplate(templateFile);
-		t.setVariable("database", this.outputFile.getCanonicalPath());
-		RrdDef def = t.getRrdDef();
+		RrdDef def = databaseTemplateSpec;
+		if (def == null) {
+			RrdDefTemplate t = new RrdDefTemplate(templateFile);
+			t.setVariable("database", this.outputFile.getCanonicalPath());
+			def = t.getRrdDef();
+			databaseTemplateSpec = def;
+		}
 		if (!this.outputFile.exists()) {
 			FileUtils.forceMkdir(this.outputFile.getParentFile());
 			rrdToolCreateDatabase(def);
@@ -231,7 +349,6 @@ public class RRDToolWriter extends BaseOutputWriter {
 	 */
 	protected void rrdToolCreateDatabase(RrdDef def) throws Exception {
 		List<String> commands = new ArrayList<String>();
-		commands.add(this.binaryPath + "/rrdtool");
 		commands.add("create");
 		commands.add(this.outputFile.getCanonicalPath());
 		commands.add("-s");
@@ -245,15 +362,7 @@ public class RRDToolWriter extends BaseOutputWriter {
 			commands.add(getRraStr(adef));
 		}
 
-		ProcessBuilder pb = new ProcessBuilder(commands);
-		Process process = pb.start();
-		try {
-			checkErrorStream(process);
-		} finally {
-			IOUtils.closeQuietly(process.getInputStream());
-			IOUtils.closeQuietly(process.getOutputStream());
-			IOUtils.closeQuietly(process.getErrorStream());
-		}
+		rrdTool(commands);
 	}
 
 	/**
@@ -335,6 +444,14 @@ public class RRDToolWriter extends BaseOutputWriter {
 		return binaryPath.getPath();
 	}
 
+	public boolean isRemoteControl() {
+		return remoteControl;
+	}
+
+	public int getFlushIntervalInMillis() {
+		return flushIntervalInMillis;
+	}
+
 	public static Builder builder() {
 		return new Builder();
 	}
@@ -347,6 +464,9 @@ public class RRDToolWriter extends BaseOutputWriter {
 		private File templateFile;
 		private File binaryPath;
 		private Boolean generate;
+		private String rrdcached;
+		private Boolean remoteControl;
+		private Integer flushIntervalInMillis;
 
 		private Builder() {}
 
@@ -390,6 +510,21 @@ public class RRDToolWriter extends BaseOutputWriter {
 			return this;
 		}
 
+		public Builder setRrdcached(String rrdcached) {
+			this.rrdcached = rrdcached;
+			return this;
+		}
+
+		public Builder setRemoteControl(Boolean remoteControl) {
+			this.remoteControl = remoteControl;
+			return this;
+		}
+
+		public Builder setFlushIntervalInMillis(Integer flushIntervalInMillis) {
+			this.flushIntervalInMillis = flushIntervalInMillis;
+			return this;
+		}
+
 		public RRDToolWriter build() {
 			return new RRDToolWriter(
 					typeNames.build(),
@@ -399,6 +534,9 @@ public class RRDToolWriter extends BaseOutputWriter {
 					templateFile.getPath(),
 					binaryPath.getPath(),
 					generate,
+					rrdcached,
+					remoteControl,
+					flushIntervalInMillis,
 					null
 			);
 		}
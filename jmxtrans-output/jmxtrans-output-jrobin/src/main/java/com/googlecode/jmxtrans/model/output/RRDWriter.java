@@ -26,23 +26,28 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.ImmutableList;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
 import com.googlecode.jmxtrans.util.NumberUtils;
+import com.googlecode.jmxtrans.util.ObjectToDouble;
 import org.apache.commons.io.FileUtils;
+import org.jrobin.core.RrdBackendFactory;
 import org.jrobin.core.RrdDb;
 import org.jrobin.core.RrdDef;
 import org.jrobin.core.RrdDefTemplate;
+import org.jrobin.core.RrdException;
 import org.jrobin.core.Sample;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.List;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -54,12 +59,28 @@ import static com.google.common.base.Preconditions.checkState;
  * This uses the JRobin rrd format and is incompatible with the C version of
  * rrd.
  * 
+ * Databases are kept open between writes in a cache shared by all the writers,
+ * see {@link RrdDbCache}. Settings:
+ * <ul>
+ * <li>"{@code backend}": JRobin storage backend of the databases, "NIO"
+ * (memory mapped), "FILE" or "SAFE" (with file locking). Optional, JRobin's
+ * default backend is used if absent, which is "NIO".</li>
+ * <li>"{@code maxOpenDatabases}": number of databases kept open, as the cache
+ * is shared the largest value of all the writers is used. Optional, default
+ * value: {@value RrdDbCache#DEFAULT_CAPACITY}.</li>
+ * </ul>
+ * 
  * @author jon
  */
 public class RRDWriter extends BaseOutputWriter {
 
+	private final ObjectToDouble toDoubleConverter = new ObjectToDouble();
+
 	private final File outputFile;
 	private final File templateFile;
+	private final String backend;
+	private final RrdBackendFactory backendFactory;
+	private final RrdDbCache databases = RrdDbCache.shared();
 
 	@JsonCreator
 	public RRDWriter(
@@ -68,23 +89,41 @@ public class RRDWriter extends BaseOutputWriter {
 			@JsonProperty("debug") Boolean debugEnabled,
 			@JsonProperty("outputFile") String outputFile,
 			@JsonProperty("templateFile") String templateFile,
+			@JsonProperty("backend") String backend,
+			@JsonProperty("maxOpenDatabases") Integer maxOpenDatabases,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.outputFile = new File(MoreObjects.firstNonNull(outputFile, (String) getSettings().get(OUTPUT_FILE)));
 		this.templateFile = new File(MoreObjects.firstNonNull(templateFile, (String) getSettings().get(TEMPLATE_FILE)));
 		checkState(this.outputFile.exists(), "Output file must exist");
 		checkState(this.templateFile.exists(), "Template file must exist");
+		this.backend = backend != null ? backend : (String) getSettings().get("backend");
+		try {
+			this.backendFactory = this.backend == null
+					? RrdBackendFactory.getDefaultFactory()
+					: RrdBackendFactory.getFactory(this.backend);
+		} catch (RrdException e) {
+			throw new IllegalArgumentException("Unknown RRD backend " + this.backend, e);
+		}
+		Integer capacity = MoreObjects.firstNonNull(
+				maxOpenDatabases,
+				Settings.getIntegerSetting(getSettings(), "maxOpenDatabases", RrdDbCache.DEFAULT_CAPACITY));
+		checkArgument(capacity > 0, "maxOpenDatabases must be positive");
+		databases.ensureCapacity(capacity);
 	}
 
 	public void validateSetup(Server server, Query query) throws ValidationException {
 	}
 
 	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		RrdDb db = null;
+		RrdDbCache.Handle handle = databases.acquire(outputFile.getCanonicalPath(), backendFactory, new Callable<RrdDb>() {
+			@Override
+			public RrdDb call() throws Exception {
+				return createOrOpenDatabase();
+			}
+		});
 		try {
-			db = createOrOpenDatabase();
-			Sample sample = db.createSample();
-			List<String> dsNames = Arrays.asList(db.getDsNames());
+			Sample sample = handle.getDb().createSample();
 
 			// go over all the results and look for datasource names that map to
 			// keys from the result values
@@ -92,17 +131,29 @@ public class RRDWriter extends BaseOutputWriter {
 				Map<String, Object> values = res.getValues();
 				if (values != null) {
 					for (Entry<String, Object> entry : values.entrySet()) {
-						if (dsNames.contains(entry.getKey()) && NumberUtils.isNumeric(entry.getValue())) {
-							sample.setValue(entry.getKey(), Double.valueOf(entry.getValue().toString()));
+						Integer dsIndex = handle.getDsIndex(entry.getKey());
+						if (dsIndex != null && NumberUtils.isNumeric(entry.getValue())) {
+							sample.setValue(dsIndex, toDoubleConverter.apply(entry.getValue()));
 						}
 					}
 				}
 			}
 			sample.update();
+		} catch (IOException e) {
+			// the database will be opened again on next write
+			databases.invalidate(outputFile.getCanonicalPath());
+			throw e;
 		} finally {
-			if (db != null) {
-				db.close();
-			}
+			databases.release(handle);
+		}
+	}
+
+	@Override
+	public void stop() throws LifecycleException {
+		try {
+			databases.invalidate(outputFile.getCanonicalPath());
+		} catch (IOException e) {
+			throw new LifecycleException(e);
 		}
 	}
 
@@ -117,9 +168,9 @@ public class RRDWriter extends BaseOutputWriter {
 			RrdDefTemplate t = new RrdDefTemplate(this.templateFile);
 			t.setVariable("database", this.outputFile.getCanonicalPath());
 			RrdDef def = t.getRrdDef();
-			result = new RrdDb(def);
+			result = new RrdDb(def, backendFactory);
 		} else {
-			result = new RrdDb(this.outputFile.getCanonicalPath());
+			result = new RrdDb(this.outputFile.getCanonicalPath(), backendFactory);
 		}
 		return result;
 	}
@@ -131,4 +182,8 @@ public class RRDWriter extends BaseOutputWriter {
 	public String getOutputFile() {
 		return outputFile.getPath();
 	}
+
+	public String getBackend() {
+		return backend;
+	}
 }
@@ -0,0 +1,252 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Charsets.US_ASCII;
+
+/**
+ * Client of the <a href="http://oss.oetiker.ch/rrdtool/doc/rrdcached.en.html">rrdcached</a> text protocol over TCP.
+ *
+ * One client is shared by all the writers sending to the same daemon. Updates are accumulated by a
+ * {@link BatchSender} and sent several at a time in <code>BATCH</code> mode, or right away when the flush interval is
+ * 0. Updates beyond {@value #MAX_PENDING_UPDATES} pending ones are dropped, and updates of a batch which could not be
+ * sent are given up on: both are counted by the MBean of the sender.
+ */
+@ThreadSafe
+class RrdCachedClient {
+
+	private static final Logger log = LoggerFactory.getLogger(RrdCachedClient.class);
+
+	public static final int DEFAULT_PORT = 42217;
+	private static final int TIMEOUT_IN_MILLIS = 10000;
+	public static final int MAX_PENDING_UPDATES = 100000;
+
+	@GuardedBy("RrdCachedClient.class")
+	private static final Map<InetSocketAddress, RrdCachedClient> clients = new HashMap<InetSocketAddress, RrdCachedClient>();
+
+	private final InetSocketAddress address;
+	private final BatchSender<String> sender;
+
+	@GuardedBy("RrdCachedClient.class") private int references;
+
+	@GuardedBy("this") private Socket socket;
+	@GuardedBy("this") private Writer out;
+	@GuardedBy("this") private BufferedReader in;
+
+	RrdCachedClient(InetSocketAddress address, long flushIntervalInMillis) {
+		this.address = address;
+		this.sender = BatchSender.builder("rrdcached", new BatchSender.Sink<String>() {
+			@Override
+			public void send(List<String> commands) throws IOException {
+				sendAll(commands);
+			}
+		})
+				.setFlushIntervalInMillis((int) flushIntervalInMillis)
+				.setMaxPendingItems(MAX_PENDING_UPDATES)
+				.setMBeanName(this, "RrdCachedClient", "Address", address.getHostName() + ":" + address.getPort())
+				.build();
+	}
+
+	/**
+	 * Returns the client of this daemon, the flush interval of the first writer wins. Each client must be given back
+	 * with {@link #release()}.
+	 */
+	static RrdCachedClient acquire(InetSocketAddress address, long flushIntervalInMillis) throws LifecycleException {
+		synchronized (RrdCachedClient.class) {
+			RrdCachedClient client = clients.get(address);
+			if (client == null) {
+				client = new RrdCachedClient(address, flushIntervalInMillis);
+				clients.put(address, client);
+			}
+			if (client.references == 0) client.sender.start();
+			client.references++;
+			return client;
+		}
+	}
+
+	void release() throws LifecycleException {
+		synchronized (RrdCachedClient.class) {
+			if (--references > 0) return;
+			clients.remove(address);
+		}
+		try {
+			sender.stop();
+		} finally {
+			synchronized (this) {
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Queues an update, <code>values</code> being the timestamp and the values of all the datasources of the file,
+	 * separated by colons.
+	 */
+	void update(String file, String values) throws Exception {
+		if (!sender.add("UPDATE " + file + " " + values)) {
+			log.warn("Too many updates pending for rrdcached at {}, dropping update of {}", address, file);
+			return;
+		}
+		sender.afterWrite();
+	}
+
+	void flush() throws Exception {
+		sender.flush();
+	}
+
+	BatchSender.Counters getCounters() {
+		return sender.getCounters();
+	}
+
+	private synchronized void sendAll(List<String> commands) throws IOException {
+		BatchSender.Counters counters = sender.getCounters();
+		counters.requestStarted();
+		int refused;
+		try {
+			refused = send(commands);
+		} catch (IOException e) {
+			// updates are not sent again: rrdcached may have applied some of them, and refuses updates older than
+			// the last one of a file
+			counters.requestFailed(0, commands.size());
+			// connection will be opened again on next flush
+			disconnect();
+			throw e;
+		}
+		if (refused == 0) {
+			counters.requestSucceeded(commands.size());
+		} else {
+			counters.requestFailed(commands.size() - refused, refused);
+		}
+	}
+
+	/**
+	 * @return the number of updates refused by rrdcached.
+	 */
+	@GuardedBy("this")
+	private int send(List<String> commands) throws IOException {
+		if (socket == null) connect();
+
+		if (commands.size() == 1) {
+			out.write(commands.get(0));
+			out.write('\n');
+			out.flush();
+			String status = readResponse();
+			if (status.startsWith("-")) {
+				log.error("rrdcached refused {}: {}", commands.get(0), status);
+				return 1;
+			}
+			return 0;
+		}
+
+		out.write("BATCH\n");
+		out.flush();
+		String status = readResponse();
+		if (status.startsWith("-")) throw new IOException("rrdcached refused batch: " + status);
+		for (String command : commands) {
+			out.write(command);
+			out.write('\n');
+		}
+		out.write(".\n");
+		out.flush();
+		// "<n> errors", followed by one line per failed command
+		String errors = in.readLine();
+		if (errors == null) throw new IOException("Connection to rrdcached closed");
+		int count = parseStatus(errors);
+		for (int i = 0; i < count; i++) {
+			String error = in.readLine();
+			if (error == null) throw new IOException("Connection to rrdcached closed");
+			log.error("rrdcached refused update: {}", error);
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a status line and the lines which follow it, returns the status line.
+	 */
+	@GuardedBy("this")
+	private String readResponse() throws IOException {
+		String status = in.readLine();
+		if (status == null) throw new IOException("Connection to rrdcached closed");
+		int count = parseStatus(status);
+		for (int i = 0; i < count; i++) {
+			if (in.readLine() == null) throw new IOException("Connection to rrdcached closed");
+		}
+		return status;
+	}
+
+	private static int parseStatus(String line) throws IOException {
+		int end = line.indexOf(' ');
+		try {
+			return Integer.parseInt(end < 0 ? line : line.substring(0, end));
+		} catch (NumberFormatException e) {
+			throw new IOException("Unexpected response from rrdcached: " + line);
+		}
+	}
+
+	@GuardedBy("this")
+	private void connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, TIMEOUT_IN_MILLIS);
+			socket.setSoTimeout(TIMEOUT_IN_MILLIS);
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), US_ASCII));
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+			this.socket = socket;
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@GuardedBy("this")
+	private void disconnect() {
+		if (socket == null) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warn("Could not close connection to rrdcached at {}", address, e);
+		} finally {
+			socket = null;
+			out = null;
+			in = null;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableMap;
+import org.jrobin.core.RrdBackendFactory;
+import org.jrobin.core.RrdDb;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.util.concurrent.Futures.getUnchecked;
+
+/**
+ * Keeps RRD databases open between writes, so that files are not opened and parsed again for every sample.
+ *
+ * Databases are keyed by canonical path and shared by all the writers of the JVM. When more than the capacity of the
+ * cache are open, the least recently used ones which are not in use are closed. Databases are opened outside of the
+ * lock of the cache: a slow file only holds up the writers of that file.
+ */
+@ThreadSafe
+class RrdDbCache {
+
+	private static final Logger log = LoggerFactory.getLogger(RrdDbCache.class);
+
+	public static final int DEFAULT_CAPACITY = 128;
+
+	private static final RrdDbCache SHARED = new RrdDbCache(DEFAULT_CAPACITY);
+
+	@GuardedBy("this")
+	private final LinkedHashMap<String, Handle> handles = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+	@GuardedBy("this")
+	private int capacity;
+
+	RrdDbCache(int capacity) {
+		checkArgument(capacity > 0, "capacity must be positive");
+		this.capacity = capacity;
+	}
+
+	static RrdDbCache shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the database at this path, opening it with the loader if it is not open yet. Each handle must be given
+	 * back with {@link #release(Handle)} once the write is done.
+	 *
+	 * A database is opened with a single backend: asking for the same path with another backend while it is open is
+	 * rejected rather than opening the file twice.
+	 */
+	Handle acquire(String canonicalPath, RrdBackendFactory backend, Callable<RrdDb> loader) throws Exception {
+		Handle handle;
+		boolean load = false;
+		synchronized (this) {
+			handle = handles.get(canonicalPath);
+			if (handle == null) {
+				handle = new Handle(canonicalPath, backend, loader);
+				handles.put(canonicalPath, handle);
+				load = true;
+			} else if (handle.backend != backend) {
+				throw new IllegalArgumentException("RRD database " + canonicalPath + " is already open with backend "
+						+ handle.backend.getFactoryName() + ", cannot open it with backend " + backend.getFactoryName());
+			}
+			handle.references++;
+		}
+
+		if (load) handle.database.run();
+		try {
+			handle.database.get();
+			return handle;
+		} catch (ExecutionException e) {
+			release(handle);
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) throw (Exception) cause;
+			throw (Error) cause;
+		} catch (InterruptedException e) {
+			release(handle);
+			throw e;
+		}
+	}
+
+	synchronized void release(Handle handle) {
+		handle.references--;
+		if (handle.failed()) {
+			// the next writer opens the file again
+			if (handles.get(handle.canonicalPath) == handle) handles.remove(handle.canonicalPath);
+			handle.evicted = true;
+			return;
+		}
+		if (handle.evicted) {
+			if (handle.references == 0) close(handle);
+			return;
+		}
+		evict();
+	}
+
+	/**
+	 * Raises the number of databases kept open, the cache being shared the largest requested capacity wins.
+	 */
+	synchronized void ensureCapacity(int capacity) {
+		checkArgument(capacity > 0, "capacity must be positive");
+		this.capacity = Math.max(this.capacity, capacity);
+	}
+
+	/**
+	 * Closes the database at this path, as soon as it is not in use anymore.
+	 */
+	synchronized void invalidate(String canonicalPath) {
+		Handle handle = handles.remove(canonicalPath);
+		if (handle == null) return;
+		handle.evicted = true;
+		if (handle.references == 0) close(handle);
+	}
+
+	synchronized int size() {
+		return handles.size();
+	}
+
+	@GuardedBy("this")
+	private void evict() {
+		Iterator<Map.Entry<String, Handle>> leastRecentlyUsed = handles.entrySet().iterator();
+		while (handles.size() > capacity && leastRecentlyUsed.hasNext()) {
+			Handle handle = leastRecentlyUsed.next().getValue();
+			if (handle.references == 0) {
+				leastRecentlyUsed.remove();
+				handle.evicted = true;
+				close(handle);
+			}
+		}
+	}
+
+	/**
+	 * Only called once the handle is not in use, the database has been loaded by then.
+	 */
+	private static void close(Handle handle) {
+		if (handle.failed()) return;
+		try {
+			handle.getDb().close();
+		} catch (IOException e) {
+			log.warn("Could not close RRD database {}", handle.canonicalPath, e);
+		}
+	}
+
+	static final class Handle {
+		private final String canonicalPath;
+		private final RrdBackendFactory backend;
+		/** Run by the writer which created the handle, awaited by the others. */
+		private final FutureTask<Database> database;
+		// guarded by the cache
+		private int references;
+		private boolean evicted;
+
+		private Handle(String canonicalPath, RrdBackendFactory backend, final Callable<RrdDb> loader) {
+			this.canonicalPath = canonicalPath;
+			this.backend = backend;
+			this.database = new FutureTask<Database>(new Callable<Database>() {
+				@Override
+				public Database call() throws Exception {
+					RrdDb db = loader.call();
+					try {
+						return new Database(db);
+					} catch (IOException e) {
+						db.close();
+						throw e;
+					}
+				}
+			});
+		}
+
+		private boolean failed() {
+			if (!database.isDone()) return false;
+			try {
+				database.get();
+				return false;
+			} catch (Exception e) {
+				return true;
+			}
+		}
+
+		RrdDb getDb() {
+			return getUnchecked(database).db;
+		}
+
+		@Nullable
+		Integer getDsIndex(String dsName) {
+			return getUnchecked(database).dsIndexes.get(dsName);
+		}
+	}
+
+	private static final class Database {
+		private final RrdDb db;
+		/** Index of each datasource, by name. */
+		private final ImmutableMap<String, Integer> dsIndexes;
+
+		private Database(RrdDb db) throws IOException {
+			this.db = db;
+			ImmutableMap.Builder<String, Integer> dsIndexes = ImmutableMap.builder();
+			String[] dsNames = db.getDsNames();
+			for (int i = 0; i < dsNames.length; i++) {
+				dsIndexes.put(dsNames[i], i);
+			}
+			this.dsIndexes = dsIndexes.build();
+		}
+	}
+}
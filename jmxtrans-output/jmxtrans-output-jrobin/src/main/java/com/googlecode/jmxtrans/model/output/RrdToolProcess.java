@@ -0,0 +1,209 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An <code>rrdtool -</code> process in remote control mode, which runs the commands written to its standard input
+ * and answers each of them with an <code>OK</code> or an <code>ERROR:</code> line.
+ *
+ * One process is shared by all the writers using the same rrdtool binary, and started again if it dies. A process
+ * which does not answer a command within {@value #DEFAULT_TIMEOUT_IN_MILLIS} ms is killed by a watchdog thread, so
+ * that the writers waiting for it are not held up for ever, and started again on the next command.
+ */
+@ThreadSafe
+class RrdToolProcess {
+
+	private static final Logger log = LoggerFactory.getLogger(RrdToolProcess.class);
+
+	public static final long DEFAULT_TIMEOUT_IN_MILLIS = 10000;
+
+	@GuardedBy("RrdToolProcess.class")
+	private static final Map<String, RrdToolProcess> processes = new HashMap<String, RrdToolProcess>();
+
+	private final String binary;
+	private final long timeoutInMillis;
+
+	@GuardedBy("RrdToolProcess.class") private int references;
+
+	@GuardedBy("this") private Process process;
+	@GuardedBy("this") private Writer in;
+	@GuardedBy("this") private BufferedReader out;
+	@GuardedBy("this") private Thread watchdog;
+
+	/** Time after which the running command is given up, 0 when no command is running. */
+	private volatile long deadline;
+	private volatile boolean timedOut;
+
+	RrdToolProcess(String binary, long timeoutInMillis) {
+		this.binary = binary;
+		this.timeoutInMillis = timeoutInMillis;
+	}
+
+	/**
+	 * Returns the process of this binary. Each process must be given back with {@link #release()}.
+	 */
+	static RrdToolProcess acquire(String binary) {
+		synchronized (RrdToolProcess.class) {
+			RrdToolProcess process = processes.get(binary);
+			if (process == null) {
+				process = new RrdToolProcess(binary, DEFAULT_TIMEOUT_IN_MILLIS);
+				processes.put(binary, process);
+			}
+			process.references++;
+			return process;
+		}
+	}
+
+	void release() {
+		synchronized (RrdToolProcess.class) {
+			if (--references > 0) return;
+			processes.remove(binary);
+		}
+		synchronized (this) {
+			destroy();
+		}
+	}
+
+	/**
+	 * Runs a command, its arguments being quoted when needed.
+	 *
+	 * @throws RuntimeException with the message of rrdtool if the command failed
+	 */
+	synchronized void execute(List<String> arguments) throws IOException {
+		if (process == null) start();
+		StringBuilder command = new StringBuilder();
+		for (String argument : arguments) {
+			if (command.length() > 0) command.append(' ');
+			appendQuoted(command, argument);
+		}
+		deadline = System.currentTimeMillis() + timeoutInMillis;
+		try {
+			in.write(command.toString());
+			in.write('\n');
+			in.flush();
+			String line;
+			while ((line = out.readLine()) != null) {
+				if (line.startsWith("OK")) return;
+				if (line.startsWith("ERROR")) throw new RuntimeException(line);
+			}
+			throw new IOException("rrdtool exited");
+		} catch (IOException e) {
+			// process will be started again on next command
+			destroy();
+			if (timedOut) throw new IOException("rrdtool did not answer within " + timeoutInMillis + " ms", e);
+			throw e;
+		} finally {
+			deadline = 0;
+		}
+	}
+
+	private static void appendQuoted(StringBuilder command, String argument) {
+		boolean quote = argument.isEmpty();
+		for (int i = 0; i < argument.length() && !quote; i++) {
+			quote = Character.isWhitespace(argument.charAt(i)) || argument.charAt(i) == '"' || argument.charAt(i) == '\'';
+		}
+		if (!quote) {
+			command.append(argument);
+			return;
+		}
+		// rrdtool has no escaping, only single or double quotes
+		char quoteChar = argument.indexOf('"') >= 0 ? '\'' : '"';
+		command.append(quoteChar).append(argument).append(quoteChar);
+	}
+
+	@GuardedBy("this")
+	private void start() throws IOException {
+		log.info("Starting {} in remote control mode", binary);
+		process = new ProcessBuilder(binary, "-")
+				.redirectErrorStream(true)
+				.start();
+		// rrdtool should use platform encoding, see RRDToolWriter
+		in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), Charset.defaultCharset()));
+		out = new BufferedReader(new InputStreamReader(process.getInputStream(), Charset.defaultCharset()));
+		timedOut = false;
+		watchdog = new Watchdog(process);
+		watchdog.start();
+	}
+
+	@GuardedBy("this")
+	private void destroy() {
+		if (process == null) return;
+		IOUtils.closeQuietly(in);
+		IOUtils.closeQuietly(out);
+		process.destroy();
+		watchdog.interrupt();
+		process = null;
+		in = null;
+		out = null;
+		watchdog = null;
+	}
+
+	/**
+	 * Kills the process once the running command is past its deadline, which ends the read of its answer.
+	 */
+	private final class Watchdog extends Thread {
+		private final Process process;
+
+		private Watchdog(Process process) {
+			super("rrdtool-watchdog");
+			setDaemon(true);
+			this.process = process;
+		}
+
+		@Override
+		public void run() {
+			long checkInterval = Math.max(10, timeoutInMillis / 10);
+			try {
+				while (!isInterrupted()) {
+					Thread.sleep(checkInterval);
+					long commandDeadline = deadline;
+					if (commandDeadline != 0 && System.currentTimeMillis() > commandDeadline) {
+						log.warn("{} did not answer within {} ms, killing it", binary, timeoutInMillis);
+						timedOut = true;
+						process.destroy();
+						return;
+					}
+				}
+			} catch (InterruptedException e) {
+				// process destroyed
+			}
+		}
+	}
+}
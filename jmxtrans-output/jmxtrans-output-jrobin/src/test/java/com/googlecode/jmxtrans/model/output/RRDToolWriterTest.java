@@ -0,0 +1,306 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.googlecode.jmxtrans.model.Query;
+import com.googlecode.jmxtrans.model.Result;
+import com.googlecode.jmxtrans.model.Server;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Charsets.US_ASCII;
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class RRDToolWriterTest {
+
+	@Rule public TemporaryFolder folder = new TemporaryFolder();
+
+	private RrdCachedStandIn rrdcached;
+	private File binaryPath;
+	private File outputFile;
+	private File templateFile;
+	private Server server;
+	private Query query;
+	private String firstDs;
+	private String secondDs;
+
+	@Before
+	public void createFiles() throws IOException {
+		binaryPath = folder.newFolder("bin");
+		outputFile = folder.newFile("output.rrd");
+		templateFile = folder.newFile("template.xml");
+		server = Server.builder().setHost("localhost").setPort("123").build();
+		query = Query.builder().setObj("test").build();
+
+		RRDToolWriter names = builder().build();
+		firstDs = names.getDataSourceName(names.getConcatedTypeNameValues("type=Memory"), "attributeName", "first");
+		secondDs = names.getDataSourceName(names.getConcatedTypeNameValues("type=Memory"), "attributeName", "second");
+		Files.write("<rrd_def><path>${database}</path><step>60</step>"
+				+ datasource(firstDs) + datasource(secondDs)
+				+ "<archive><cf>AVERAGE</cf><xff>0.5</xff><steps>1</steps><rows>10</rows></archive>"
+				+ "</rrd_def>", templateFile, UTF_8);
+	}
+
+	@Before
+	public void startRrdCached() throws IOException {
+		rrdcached = new RrdCachedStandIn();
+		rrdcached.start();
+	}
+
+	@After
+	public void stopRrdCached() throws IOException {
+		rrdcached.close();
+	}
+
+	@Test
+	public void updateIsSentToRrdCached() throws Exception {
+		RRDToolWriter writer = builder()
+				.setRrdcached("localhost:" + rrdcached.getPort())
+				.setFlushIntervalInMillis(0)
+				.build();
+
+		writer.doWrite(server, query, ImmutableList.of(result(ImmutableMap.<String, Object>of("first", 42))));
+		writer.stop();
+
+		List<String> commands = rrdcached.getCommands();
+		assertEquals(1, commands.size());
+		String prefix = "UPDATE " + outputFile.getCanonicalPath() + " ";
+		assertTrue(commands.get(0), commands.get(0).startsWith(prefix));
+		// values of all datasources in order, unknown ones included
+		assertTrue(commands.get(0), commands.get(0).endsWith(":42:U"));
+	}
+
+	@Test
+	public void updatesOfAllWritersAreBatched() throws Exception {
+		RRDToolWriter first = builder()
+				.setRrdcached("localhost:" + rrdcached.getPort())
+				.setFlushIntervalInMillis(60000)
+				.build();
+		RRDToolWriter second = builder()
+				.setRrdcached("localhost:" + rrdcached.getPort())
+				.setFlushIntervalInMillis(60000)
+				.build();
+
+		first.doWrite(server, query, ImmutableList.of(result(ImmutableMap.<String, Object>of("first", 1))));
+		second.doWrite(server, query, ImmutableList.of(result(ImmutableMap.<String, Object>of("second", 2))));
+		assertEquals(0, rrdcached.getCommands().size());
+
+		first.stop();
+		second.stop();
+
+		List<String> commands = rrdcached.getCommands();
+		assertEquals(4, commands.size());
+		assertEquals("BATCH", commands.get(0));
+		assertTrue(commands.get(1), commands.get(1).endsWith(":1:U"));
+		assertTrue(commands.get(2), commands.get(2).endsWith(":U:2"));
+		assertEquals(".", commands.get(3));
+	}
+
+	@Test
+	public void rrdcachedUpdatesThatCouldNotBeSentAreCounted() throws Exception {
+		ServerSocket closed = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+		closed.close();
+		RrdCachedClient client = RrdCachedClient.acquire(new InetSocketAddress("localhost", closed.getLocalPort()), 0);
+		ObjectName mbeans = new ObjectName("com.googlecode.jmxtrans:Type=RrdCachedClient,*");
+		assertEquals(1, ManagementFactory.getPlatformMBeanServer().queryNames(mbeans, null).size());
+
+		try {
+			client.update("/tmp/a.rrd", "N:1");
+			fail("rrdcached is down");
+		} catch (IOException expected) {
+			// the update is given up on
+		}
+		client.release();
+
+		assertEquals(0, client.getCounters().getItemsSent());
+		assertEquals(1, client.getCounters().getItemsFailed());
+		assertEquals(1, client.getCounters().getRequestsFailed());
+		assertEquals(0, ManagementFactory.getPlatformMBeanServer().queryNames(mbeans, null).size());
+	}
+
+	@Test
+	public void updatesGoThroughASingleRrdToolProcess() throws Exception {
+		assumeTrue(new File("/bin/sh").exists());
+		File log = new File(binaryPath, "commands.log");
+		File rrdtool = new File(binaryPath, "rrdtool");
+		Files.write("#!/bin/sh\n"
+				+ "echo \"started $$\" >> '" + log.getPath() + "'\n"
+				+ "while read line; do\n"
+				+ "  echo \"$line\" >> '" + log.getPath() + "'\n"
+				+ "  echo 'OK u:0.00 s:0.00 r:0.00'\n"
+				+ "done\n", rrdtool, UTF_8);
+		assertTrue(rrdtool.setExecutable(true));
+
+		RRDToolWriter writer = builder().build();
+		writer.doWrite(server, query, ImmutableList.of(result(ImmutableMap.<String, Object>of("first", 1))));
+		writer.doWrite(server, query, ImmutableList.of(result(ImmutableMap.<String, Object>of("first", 2, "second", 3))));
+		writer.stop();
+
+		List<String> lines = Files.readLines(log, UTF_8);
+		assertEquals(3, lines.size());
+		assertTrue(lines.get(0), lines.get(0).startsWith("started "));
+		assertEquals("update " + outputFile.getCanonicalPath() + " -t " + firstDs + " N:1", lines.get(1));
+		assertTrue(lines.get(2), lines.get(2).startsWith("update " + outputFile.getCanonicalPath() + " -t "));
+	}
+
+	@Test
+	public void rrdtoolNotAnsweringIsStartedAgain() throws Exception {
+		assumeTrue(new File("/bin/sh").exists());
+		File log = new File(binaryPath, "commands.log");
+		File rrdtool = new File(binaryPath, "rrdtool");
+		Files.write("#!/bin/sh\n"
+				+ "echo \"started $$\" >> '" + log.getPath() + "'\n"
+				+ "while read line; do\n"
+				+ "  echo \"$line\" >> '" + log.getPath() + "'\n"
+				+ "  if [ \"$line\" != 'hang' ]; then echo 'OK u:0.00 s:0.00 r:0.00'; fi\n"
+				+ "done\n", rrdtool, UTF_8);
+		assertTrue(rrdtool.setExecutable(true));
+
+		RrdToolProcess process = new RrdToolProcess(rrdtool.getPath(), 200);
+		try {
+			process.execute(Arrays.asList("hang"));
+			fail("rrdtool should have been given up");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains("did not answer"));
+		}
+		process.execute(Arrays.asList("update"));
+		process.release();
+
+		List<String> lines = Files.readLines(log, UTF_8);
+		assertEquals(4, lines.size());
+		assertTrue(lines.get(2), lines.get(2).startsWith("started "));
+		assertEquals("update", lines.get(3));
+	}
+
+	@Test
+	public void rrdcachedAddressesCanBeIPv6() {
+		assertEquals(new InetSocketAddress("::1", 42217), RRDToolWriter.parseAddress("[::1]:42217"));
+		assertEquals(new InetSocketAddress("::1", RrdCachedClient.DEFAULT_PORT), RRDToolWriter.parseAddress("[::1]"));
+		assertEquals(new InetSocketAddress("::1", RrdCachedClient.DEFAULT_PORT), RRDToolWriter.parseAddress("::1"));
+		assertEquals(new InetSocketAddress("127.0.0.1", 1234), RRDToolWriter.parseAddress("127.0.0.1:1234"));
+		assertEquals(new InetSocketAddress("127.0.0.1", RrdCachedClient.DEFAULT_PORT), RRDToolWriter.parseAddress("127.0.0.1"));
+	}
+
+	private RRDToolWriter.Builder builder() {
+		return RRDToolWriter.builder()
+				.setOutputFile(outputFile)
+				.setTemplateFile(templateFile)
+				.setBinaryPath(binaryPath);
+	}
+
+	private static Result result(ImmutableMap<String, Object> values) {
+		return new Result(0, "attributeName", "className", "objDomain", null, "type=Memory", values);
+	}
+
+	private static String datasource(String name) {
+		return "<datasource><name>" + name + "</name><type>GAUGE</type><heartbeat>120</heartbeat>"
+				+ "<min>U</min><max>U</max></datasource>";
+	}
+
+	/**
+	 * Answers the rrdcached protocol as if every command succeeded, and records them.
+	 */
+	private static final class RrdCachedStandIn extends Thread {
+		private final ServerSocket serverSocket;
+		private final List<String> commands = new CopyOnWriteArrayList<String>();
+
+		private RrdCachedStandIn() throws IOException {
+			serverSocket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Socket socket = serverSocket.accept();
+					try {
+						serve(socket);
+					} finally {
+						socket.close();
+					}
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void serve(Socket socket) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), US_ASCII));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), US_ASCII);
+			boolean batch = false;
+			String line;
+			while ((line = in.readLine()) != null) {
+				commands.add(line);
+				if (line.equals("BATCH")) {
+					batch = true;
+					out.write("0 Go ahead.  End with dot '.' on its own line.\n");
+				} else if (line.equals(".")) {
+					batch = false;
+					out.write("0 errors\n");
+				} else if (!batch) {
+					out.write("0 errors, enqueued 1 value(s).\n");
+				}
+				out.flush();
+			}
+		}
+
+		private int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		private List<String> getCommands() {
+			return commands;
+		}
+
+		private void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output;
+
+import org.jrobin.core.RrdBackendFactory;
+import org.jrobin.core.RrdDb;
+import org.jrobin.core.RrdDef;
+import org.jrobin.core.RrdException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RrdDbCacheTest {
+
+	private final AtomicInteger opened = new AtomicInteger();
+	private final RrdBackendFactory memory;
+
+	public RrdDbCacheTest() throws RrdException {
+		memory = RrdBackendFactory.getFactory("MEMORY");
+	}
+
+	@Test
+	public void databaseIsOpenedOnlyOnce() throws Exception {
+		RrdDbCache cache = new RrdDbCache(2);
+
+		RrdDbCache.Handle first = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		cache.release(first);
+		RrdDbCache.Handle second = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		cache.release(second);
+
+		assertSame(first, second);
+		assertEquals(1, opened.get());
+		assertFalse(second.getDb().isClosed());
+	}
+
+	@Test
+	public void datasourcesAreIndexedByName() throws Exception {
+		RrdDbCache cache = new RrdDbCache(2);
+
+		RrdDbCache.Handle handle = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+
+		assertEquals(Integer.valueOf(0), handle.getDsIndex("first"));
+		assertEquals(Integer.valueOf(1), handle.getDsIndex("second"));
+		assertNull(handle.getDsIndex("unknown"));
+	}
+
+	@Test
+	public void leastRecentlyUsedDatabaseIsClosed() throws Exception {
+		RrdDbCache cache = new RrdDbCache(2);
+
+		RrdDbCache.Handle a = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		cache.release(a);
+		RrdDbCache.Handle b = cache.acquire("/b.rrd", memory, loader("/b.rrd"));
+		cache.release(b);
+		cache.release(cache.acquire("/a.rrd", memory, loader("/a.rrd")));
+		RrdDbCache.Handle c = cache.acquire("/c.rrd", memory, loader("/c.rrd"));
+		cache.release(c);
+
+		assertEquals(2, cache.size());
+		assertFalse(a.getDb().isClosed());
+		assertTrue(b.getDb().isClosed());
+		assertFalse(c.getDb().isClosed());
+	}
+
+	@Test
+	public void databaseInUseIsNotClosed() throws Exception {
+		RrdDbCache cache = new RrdDbCache(1);
+
+		RrdDbCache.Handle a = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		cache.invalidate("/a.rrd");
+		assertFalse(a.getDb().isClosed());
+
+		cache.release(a);
+		assertTrue(a.getDb().isClosed());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void slowDatabaseDoesNotHoldUpTheOthers() throws Exception {
+		final RrdDbCache cache = new RrdDbCache(2);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch unblock = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Future<RrdDbCache.Handle> slow = executor.submit(new Callable<RrdDbCache.Handle>() {
+				@Override
+				public RrdDbCache.Handle call() throws Exception {
+					return cache.acquire("/a.rrd", memory, new Callable<RrdDb>() {
+						@Override
+						public RrdDb call() throws Exception {
+							loading.countDown();
+							unblock.await();
+							return loader("/a.rrd").call();
+						}
+					});
+				}
+			});
+			assertTrue(loading.await(5, SECONDS));
+			Future<RrdDbCache.Handle> waiting = executor.submit(new Callable<RrdDbCache.Handle>() {
+				@Override
+				public RrdDbCache.Handle call() throws Exception {
+					return cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+				}
+			});
+
+			cache.release(cache.acquire("/b.rrd", memory, loader("/b.rrd")));
+			assertFalse(slow.isDone());
+			assertFalse(waiting.isDone());
+
+			unblock.countDown();
+			assertSame(slow.get(5, SECONDS), waiting.get(5, SECONDS));
+			assertEquals(2, opened.get());
+		} finally {
+			unblock.countDown();
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void databaseIsOpenedAgainAfterAFailure() throws Exception {
+		RrdDbCache cache = new RrdDbCache(2);
+
+		try {
+			cache.acquire("/a.rrd", memory, new Callable<RrdDb>() {
+				@Override
+				public RrdDb call() throws Exception {
+					throw new IOException("cannot open");
+				}
+			});
+			fail("the failure should be reported");
+		} catch (IOException expected) {
+			assertEquals(0, cache.size());
+		}
+
+		RrdDbCache.Handle handle = cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		assertFalse(handle.getDb().isClosed());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void databaseCannotBeOpenedWithTwoBackends() throws Exception {
+		RrdDbCache cache = new RrdDbCache(2);
+
+		cache.acquire("/a.rrd", memory, loader("/a.rrd"));
+		cache.acquire("/a.rrd", RrdBackendFactory.getFactory("FILE"), loader("/a.rrd"));
+	}
+
+	private Callable<RrdDb> loader(final String path) {
+		return new Callable<RrdDb>() {
+			@Override
+			public RrdDb call() throws Exception {
+				opened.incrementAndGet();
+				RrdDef def = new RrdDef(path, 60);
+				def.addDatasource("first", "GAUGE", 120, Double.NaN, Double.NaN);
+				def.addDatasource("second", "GAUGE", 120, Double.NaN, Double.NaN);
+				def.addArchive("AVERAGE", 0.5, 1, 10);
+				return new RrdDb(def, memory);
+			}
+		};
+	}
+}
@@ -28,55 +28,100 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
-import com.google.common.io.Closer;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.googlecode.jmxtrans.exceptions.LifecycleException;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.naming.StringUtils;
 import com.googlecode.jmxtrans.model.output.BaseOutputWriter;
+import com.googlecode.jmxtrans.model.output.DocumentLayout;
 import com.googlecode.jmxtrans.model.output.Settings;
-
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.annotation.concurrent.NotThreadSafe;
-
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 import java.util.Map.Entry;
 
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
-import kafka.producer.ProducerConfig;
 import static com.fasterxml.jackson.core.JsonEncoding.UTF8;
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.googlecode.jmxtrans.model.PropertyResolver.resolveProps;
-import static com.googlecode.jmxtrans.model.naming.KeyUtils.getKeyString;
 import static com.googlecode.jmxtrans.util.NumberUtils.isNumeric;
 import static java.util.Arrays.asList;
 
 /**
- * This low latency and thread safe output writer sends data to a kafka topics in JSON format.
+ * This low latency and thread safe output writer sends data to a kafka topics.
  * Kafka Topics can be passed as separated by commas such as kafka01,kafka02.
  *
+ * Messages go through the batching Kafka producer and are keyed by server alias (or host and port), so that all the
+ * metrics of a server land in the same partition, in order.
+ *
+ * <ul>
+ *   <li>"{@code format}": {@value #FORMAT_JSON} sends one small JSON document per metric, {@value #FORMAT_PACKED}
+ *   sends all the metrics of a result batch in a single binary message, see {@link PackedBatch}. Optional, default
+ *   value: {@value #FORMAT_JSON}.</li>
+ *   <li>"{@code producerConfig}": configuration of the Kafka producer, added to the defaults: "{@code linger.ms}"
+ *   {@value #DEFAULT_LINGER_MS}, "{@code batch.size}" {@value #DEFAULT_BATCH_SIZE} and "{@code compression.type}"
+ *   {@value #DEFAULT_COMPRESSION_TYPE}. "{@code bootstrap.servers}" defaults to the "{@code metadata.broker.list}"
+ *   setting of the former producer.</li>
+ *   <li>"{@code documentShape}" and "{@code fieldNames}": shape and field names of the JSON documents, see
+ *   {@link DocumentLayout}. With {@value DocumentLayout#PER_RESULT}, the keyspace of a document is the one of the
+ *   attribute and the values are in a {@value DocumentLayout#VALUES} object. Not used by the packed format.</li>
+ * </ul>
+ *
  * @author : utkarsh bhatnagar
  * @github user : utkarshcmu
  * @email : utkarsh.cmu@gmail.com
  */
 
-@NotThreadSafe
+@ThreadSafe
 public class KafkaWriter extends BaseOutputWriter {
 	
 	private static final Logger log = LoggerFactory.getLogger(KafkaWriter.class);
 	
 	private static final String DEFAULT_ROOT_PREFIX = "servers";
+
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_PACKED = "packed";
+
+	public static final String DEFAULT_LINGER_MS = "100";
+	public static final String DEFAULT_BATCH_SIZE = "65536";
+	public static final String DEFAULT_COMPRESSION_TYPE = "gzip";
+
 	private final JsonFactory jsonFactory;
 
-	private Producer<String,String> producer;
+	@GuardedBy("this")
+	private Producer<byte[], byte[]> producer;
 	private final Iterable<String> topics;
 	private final String rootPrefix;
+	private final String format;
+	private final ImmutableMap<String, Object> producerConfig;
+	private final DocumentLayout layout;
+	private final CachedKeyStringBuilder keyStringBuilder;
+	private final Callback sendCallback = new Callback() {
+		@Override
+		public void onCompletion(RecordMetadata metadata, Exception exception) {
+			if (exception != null) {
+				log.warn("Failed to send metrics to Kafka: {}", exception.getMessage());
+			}
+		}
+	};
 
 	@JsonCreator
 	public KafkaWriter(
@@ -85,40 +130,87 @@ public class KafkaWriter extends BaseOutputWriter {
 			@JsonProperty("rootPrefix") String rootPrefix,
 			@JsonProperty("debug") Boolean debugEnabled,
 			@JsonProperty("topics") String topics,
+			@JsonProperty("format") String format,
+			@JsonProperty("producerConfig") Map<String, Object> producerConfig,
+			@JsonProperty("documentShape") String documentShape,
+			@JsonProperty("fieldNames") Map<String, String> fieldNames,
 			@JsonProperty("settings") Map<String, Object> settings) {
 		super(typeNames, booleanAsNumber, debugEnabled, settings);
 		this.rootPrefix = resolveProps(
 				firstNonNull(
 						rootPrefix,
 						(String) getSettings().get("rootPrefix"),
-						DEFAULT_ROOT_PREFIX));		
+						DEFAULT_ROOT_PREFIX));
+		this.keyStringBuilder = new CachedKeyStringBuilder(getTypeNames(), this.rootPrefix, true);
+		this.topics = asList(firstNonNull(topics, Settings.getStringSetting(getSettings(), "topics", null), "").split(","));
+		this.format = firstNonNull(format, Settings.getStringSetting(getSettings(), "format", null), FORMAT_JSON);
+		checkArgument(FORMAT_JSON.equals(this.format) || FORMAT_PACKED.equals(this.format),
+				"Kafka message format must be %s or %s", FORMAT_JSON, FORMAT_PACKED);
+		this.layout = new DocumentLayout(
+				firstNonNull(documentShape, Settings.getStringSetting(getSettings(), "documentShape", null), DocumentLayout.PER_VALUE),
+				fieldNames);
+
 		// Setting all the required Kafka Properties
-		Properties kafkaProperties =  new Properties();
-		kafkaProperties.setProperty("metadata.broker.list", Settings.getStringSetting(settings, "metadata.broker.list", null));
-		kafkaProperties.setProperty("zk.connect", Settings.getStringSetting(settings, "zk.connect", null));
-		kafkaProperties.setProperty("serializer.class", Settings.getStringSetting(settings, "serializer.class", null));
-		this.producer= new Producer<String,String>(new ProducerConfig(kafkaProperties));
-		this.topics = asList(Settings.getStringSetting(settings, "topics", "").split(","));
+		Map<String, Object> config = new HashMap<String, Object>();
+		String brokerList = Settings.getStringSetting(getSettings(), "metadata.broker.list", null);
+		if (brokerList != null) {
+			config.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, brokerList);
+		}
+		config.put(ProducerConfig.LINGER_MS_CONFIG, DEFAULT_LINGER_MS);
+		config.put(ProducerConfig.BATCH_SIZE_CONFIG, DEFAULT_BATCH_SIZE);
+		config.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, DEFAULT_COMPRESSION_TYPE);
+		if (producerConfig != null) {
+			config.putAll(producerConfig);
+		}
+		this.producerConfig = ImmutableMap.copyOf(config);
 		jsonFactory = new JsonFactory();
 	}
 	
 	public void validateSetup(Server server, Query query) throws ValidationException {
 	}
 
+	@Override
+	public synchronized void start() throws LifecycleException {
+		if (producer == null) {
+			producer = new KafkaProducer<byte[], byte[]>(producerConfig, new ByteArraySerializer(), new ByteArraySerializer());
+		}
+	}
+
+	/**
+	 * Closing the producer waits for the batches it still holds to be sent.
+	 */
+	@Override
+	public synchronized void stop() throws LifecycleException {
+		if (producer != null) {
+			producer.close();
+			producer = null;
+		}
+	}
+
 	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		List<String> typeNames = this.getTypeNames();
+		Producer<byte[], byte[]> producer = getProducer();
+		byte[] key = messageKey(server);
+		if (FORMAT_PACKED.equals(format)) {
+			writePacked(producer, key, server, query, results);
+		} else if (layout.isPerResult()) {
+			writeJsonPerResult(producer, key, server, query, results);
+		} else {
+			writeJson(producer, key, server, query, results);
+		}
+	}
 
+	private void writeJson(Producer<byte[], byte[]> producer, byte[] key, Server server, Query query,
+			ImmutableList<Result> results) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		for (Result result : results) {
 			log.debug("Query result: [{}]", result);
 			Map<String, Object> resultValues = result.getValues();
 			for (Entry<String, Object> values : resultValues.entrySet()) {
 				Object value = values.getValue();
 				if (isNumeric(value)) {
-					String message = createJsonMessage(server, query, typeNames, result, values, value);
-					for(String topic : this.topics) {
-						log.debug("Topic: [{}] ; Kafka Message: [{}]", topic, message);
-						producer.send(new KeyedMessage<String, String>(topic, message));
-					}
+					out.reset();
+					writeJsonMessage(server, query, result, values, value, out);
+					send(producer, key, out.toByteArray());
 				} else {
 					log.warn("Unable to submit non-numeric value to Kafka: [{}] from result [{}]", value, result);
 				}
@@ -126,30 +218,132 @@ public class KafkaWriter extends BaseOutputWriter {
 		}
 	}
 
-	private String createJsonMessage(Server server, Query query, List<String> typeNames, Result result, Entry<String, Object> values, Object value) throws IOException {
-		String keyString = getKeyString(server, query, result, values, typeNames, this.rootPrefix);
-		String cleanKeyString = keyString.replaceAll("[()]", "_");
+	private void writeJsonPerResult(Producer<byte[], byte[]> producer, byte[] key, Server server, Query query,
+			ImmutableList<Result> results) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Result result : results) {
+			log.debug("Query result: [{}]", result);
+			out.reset();
+			if (writeJsonResultMessage(server, query, result, out)) {
+				send(producer, key, out.toByteArray());
+			}
+		}
+	}
+
+	private void send(Producer<byte[], byte[]> producer, byte[] key, byte[] message) {
+		for (String topic : this.topics) {
+			if (log.isDebugEnabled()) {
+				log.debug("Topic: [{}] ; Kafka Message: [{}]", topic, new String(message, UTF_8));
+			}
+			producer.send(new ProducerRecord<byte[], byte[]>(topic, key, message), sendCallback);
+		}
+	}
+
+	private void writePacked(Producer<byte[], byte[]> producer, byte[] key, Server server, Query query,
+			ImmutableList<Result> results) throws IOException {
+		PackedBatch batch = new PackedBatch();
+		for (Result result : results) {
+			log.debug("Query result: [{}]", result);
+			Map<String, Object> resultValues = result.getValues();
+			for (Entry<String, Object> values : resultValues.entrySet()) {
+				Object value = values.getValue();
+				if (!isNumeric(value)
+						|| !batch.add(keyStringBuilder.getKeyString(server, query, result, values), result.getEpoch(), value)) {
+					log.warn("Unable to submit non-numeric value to Kafka: [{}] from result [{}]", value, result);
+				}
+			}
+		}
+		if (batch.size() == 0) {
+			return;
+		}
+		byte[] message = batch.toByteArray();
+		for (String topic : this.topics) {
+			log.debug("Topic: [{}] ; Kafka Message: [{} metrics, {} bytes]", topic, batch.size(), message.length);
+			producer.send(new ProducerRecord<byte[], byte[]>(topic, key, message), sendCallback);
+		}
+	}
+
+	private void writeJsonMessage(Server server, Query query, Result result, Entry<String, Object> values, Object value,
+			ByteArrayOutputStream out) throws IOException {
+		String cleanKeyString = keyStringBuilder.getKeyString(server, query, result, values);
 
-		Closer closer = Closer.create();
-		try {
-			ByteArrayOutputStream out = closer.register(new ByteArrayOutputStream());
-			JsonGenerator generator = closer.register(jsonFactory.createGenerator(out, UTF8));
-			generator.writeStartObject();
-			generator.writeStringField("keyspace", cleanKeyString);
-			generator.writeStringField("value", value.toString());
-			generator.writeNumberField("timestamp", result.getEpoch() / 1000);
-			generator.writeEndObject();
-			generator.close();
-			return out.toString("UTF-8");
-		} catch (Throwable t) {
-			throw closer.rethrow(t);
-		} finally {
-			closer.close();
+		JsonGenerator generator = jsonFactory.createGenerator(out, UTF8);
+		generator.writeStartObject();
+		generator.writeStringField(layout.field("keyspace"), cleanKeyString);
+		generator.writeStringField(layout.field("value"), value.toString());
+		generator.writeNumberField(layout.field("timestamp"), result.getEpoch() / 1000);
+		generator.writeEndObject();
+		generator.close();
+	}
+
+	/**
+	 * @return false if the result has no numeric value, nothing is written then.
+	 */
+	private boolean writeJsonResultMessage(Server server, Query query, Result result, ByteArrayOutputStream out)
+			throws IOException {
+		JsonGenerator generator = null;
+		for (Entry<String, Object> values : result.getValues().entrySet()) {
+			Object value = values.getValue();
+			if (!isNumeric(value)) {
+				log.warn("Unable to submit non-numeric value to Kafka: [{}] from result [{}]", value, result);
+				continue;
+			}
+			if (generator == null) {
+				// the keyspace of the attribute itself, without any value key
+				String cleanKeyString = keyStringBuilder.getKeyString(server, query, result,
+						Maps.immutableEntry(result.getAttributeName(), value));
+				generator = jsonFactory.createGenerator(out, UTF8);
+				generator.writeStartObject();
+				generator.writeStringField(layout.field("keyspace"), cleanKeyString);
+				generator.writeObjectFieldStart(layout.field(DocumentLayout.VALUES));
+			}
+			generator.writeStringField(values.getKey(), value.toString());
 		}
+		if (generator == null) {
+			return false;
+		}
+		generator.writeEndObject();
+		generator.writeNumberField(layout.field("timestamp"), result.getEpoch() / 1000);
+		generator.writeEndObject();
+		generator.close();
+		return true;
+	}
+
+	/**
+	 * Same server identification as the keyspace: the alias, or the host and port.
+	 */
+	private static byte[] messageKey(Server server) {
+		if (server.getAlias() != null) {
+			return server.getAlias().getBytes(UTF_8);
+		}
+		return StringUtils.cleanupStr(server.getHost() + "_" + server.getPort()).getBytes(UTF_8);
+	}
+
+	private synchronized Producer<byte[], byte[]> getProducer() throws LifecycleException {
+		if (producer == null) {
+			start();
+		}
+		return producer;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public Map<String, Object> getProducerConfig() {
+		return producerConfig;
+	}
+
+	public String getDocumentShape() {
+		return layout.getShape();
+	}
+
+	public Map<String, String> getFieldNames() {
+		return layout.getFieldNames();
 	}
 
 	@VisibleForTesting
-	void setProducer(Producer<String, String> producer) {
+	synchronized void setProducer(Producer<byte[], byte[]> producer) {
 		this.producer = producer;
 	}
 
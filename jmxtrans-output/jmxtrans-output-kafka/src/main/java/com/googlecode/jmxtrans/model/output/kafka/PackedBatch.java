@@ -0,0 +1,133 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.model.output.kafka;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Packs the metrics of a whole result batch in a single Kafka message.
+ *
+ * The message is written with a {@link DataOutputStream}, so it can be read back with a
+ * {@link java.io.DataInputStream}:
+ *
+ * <ul>
+ *   <li>a version byte, {@value #VERSION};</li>
+ *   <li>the number of metrics, as an int;</li>
+ *   <li>for each metric: the keyspace (<code>writeUTF</code>), the epoch in milliseconds (long), a type byte,
+ *   {@value #TYPE_LONG} or {@value #TYPE_DOUBLE}, then the value as a long or a double.</li>
+ * </ul>
+ */
+@NotThreadSafe
+final class PackedBatch {
+
+	static final byte VERSION = 1;
+	static final char TYPE_LONG = 'J';
+	static final char TYPE_DOUBLE = 'D';
+
+	private static final int COUNT_OFFSET = 1;
+
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	private final DataOutputStream out = new DataOutputStream(bytes);
+	private int count;
+
+	PackedBatch() {
+		reset();
+	}
+
+	void reset() {
+		bytes.reset();
+		count = 0;
+		try {
+			out.writeByte(VERSION);
+			out.writeInt(0);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot write to a byte array", e);
+		}
+	}
+
+	/**
+	 * @return false if the value could not be converted to a number, nothing is written then.
+	 */
+	boolean add(String keyspace, long epochMillis, Object value) throws IOException {
+		if (isIntegral(value)) {
+			writeHeader(keyspace, epochMillis, TYPE_LONG);
+			out.writeLong(((Number) value).longValue());
+		} else if (value instanceof Number) {
+			writeHeader(keyspace, epochMillis, TYPE_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else {
+			String text = value.toString();
+			try {
+				long longValue = Long.parseLong(text);
+				writeHeader(keyspace, epochMillis, TYPE_LONG);
+				out.writeLong(longValue);
+			} catch (NumberFormatException notALong) {
+				double doubleValue;
+				try {
+					doubleValue = Double.parseDouble(text);
+				} catch (NumberFormatException notANumber) {
+					return false;
+				}
+				writeHeader(keyspace, epochMillis, TYPE_DOUBLE);
+				out.writeDouble(doubleValue);
+			}
+		}
+		count++;
+		return true;
+	}
+
+	int size() {
+		return count;
+	}
+
+	byte[] toByteArray() {
+		byte[] message = bytes.toByteArray();
+		message[COUNT_OFFSET] = (byte) (count >>> 24);
+		message[COUNT_OFFSET + 1] = (byte) (count >>> 16);
+		message[COUNT_OFFSET + 2] = (byte) (count >>> 8);
+		message[COUNT_OFFSET + 3] = (byte) count;
+		return message;
+	}
+
+	private void writeHeader(String keyspace, long epochMillis, char type) throws IOException {
+		out.writeUTF(keyspace);
+		out.writeLong(epochMillis);
+		out.writeByte(type);
+	}
+
+	private static boolean isIntegral(Object value) {
+		return value instanceof Long
+				|| value instanceof Integer
+				|| value instanceof Short
+				|| value instanceof Byte
+				|| value instanceof AtomicLong
+				|| value instanceof AtomicInteger
+				|| (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64);
+	}
+}
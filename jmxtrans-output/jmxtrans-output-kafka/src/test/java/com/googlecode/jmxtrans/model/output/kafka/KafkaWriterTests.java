@@ -22,11 +22,14 @@
  */
 package com.googlecode.jmxtrans.model.output.kafka;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-import kafka.javaapi.producer.Producer;
-import kafka.producer.KeyedMessage;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
 import org.junit.Test;
 
 import com.google.common.collect.ImmutableList;
@@ -34,47 +37,131 @@ import com.google.common.collect.ImmutableMap;
 import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
-import org.junit.runner.RunWith;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
-import org.mockito.Mock;
-import org.mockito.runners.MockitoJUnitRunner;
+import com.googlecode.jmxtrans.model.output.DocumentLayout;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Mockito.verify;
 
-@RunWith(MockitoJUnitRunner.class)
 public class KafkaWriterTests {
 
-	@Mock private Producer<String, String> producer;
-	@Captor private ArgumentCaptor<KeyedMessage<String, String>> messageCaptor;
+	private final MockProducer producer = new MockProducer(true);
+
+	private final Server server = Server.builder().setHost("host").setPort("123").build();
+	private final Query query = Query.builder().build();
+	private final Result result = new Result(1, "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)1));
 
 	@Test public void
 	kafkaWriterNotNull() throws Exception {
-		assertThat(getTestKafkaWriter()).isNotNull();
+		assertThat(getTestKafkaWriter(null, null)).isNotNull();
 	}
 
 	@Test public void
 	messagesAreSentToKafka() throws Exception {
-		Server server = Server.builder().setHost("host").setPort("123").build();
-		Query query = Query.builder().build();
-		Result result = new Result(1, "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)1));
-
-		KafkaWriter writer = getTestKafkaWriter();
+		KafkaWriter writer = getTestKafkaWriter(null, null);
 		writer.setProducer(producer);
 		writer.doWrite(server, query, ImmutableList.of(result));
 
-		verify(producer).send(messageCaptor.capture());
-		KeyedMessage<String, String> message = messageCaptor.getValue();
+		List<ProducerRecord<byte[], byte[]>> records = producer.history();
+		assertThat(records).hasSize(1);
+		ProducerRecord<byte[], byte[]> record = records.get(0);
 
-		assertThat(message.topic()).isEqualTo("myTopic");
-		assertThat(message.message())
+		assertThat(record.topic()).isEqualTo("myTopic");
+		assertThat(new String(record.key(), UTF_8)).isEqualTo("host_123");
+		assertThat(new String(record.value(), UTF_8))
 				.contains("\"keyspace\":\"rootPrefix.host_123.classNameAlias.attributeName_key\"")
 				.contains("\"value\":\"1\"")
 				.contains("\"timestamp\":0");
 	}
-	
-	private static KafkaWriter getTestKafkaWriter() {
+
+	@Test public void
+	messagesAreKeyedByServerAlias() throws Exception {
+		Server aliased = Server.builder(server).setAlias("alias").build();
+
+		KafkaWriter writer = getTestKafkaWriter(null, null);
+		writer.setProducer(producer);
+		writer.doWrite(aliased, query, ImmutableList.of(result));
+
+		assertThat(new String(producer.history().get(0).key(), UTF_8)).isEqualTo("alias");
+	}
+
+	@Test public void
+	packedFormatSendsOneMessagePerBatch() throws Exception {
+		Result doubleResult = new Result(2000, "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)1.5));
+		Result textResult = new Result(2000, "attributeName", "className", "objDomain", "classNameAlias", "typeName", ImmutableMap.of("key", (Object)"text"));
+
+		KafkaWriter writer = getTestKafkaWriter(KafkaWriter.FORMAT_PACKED, null);
+		writer.setProducer(producer);
+		writer.doWrite(server, query, ImmutableList.of(result, doubleResult, textResult));
+
+		List<ProducerRecord<byte[], byte[]>> records = producer.history();
+		assertThat(records).hasSize(1);
+		assertThat(new String(records.get(0).key(), UTF_8)).isEqualTo("host_123");
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(records.get(0).value()));
+		assertThat(in.readByte()).isEqualTo(PackedBatch.VERSION);
+		assertThat(in.readInt()).isEqualTo(2);
+		assertThat(in.readUTF()).isEqualTo("rootPrefix.host_123.classNameAlias.attributeName_key");
+		assertThat(in.readLong()).isEqualTo(1L);
+		assertThat((char) in.readByte()).isEqualTo(PackedBatch.TYPE_LONG);
+		assertThat(in.readLong()).isEqualTo(1L);
+		assertThat(in.readUTF()).isEqualTo("rootPrefix.host_123.classNameAlias.attributeName_key");
+		assertThat(in.readLong()).isEqualTo(2000L);
+		assertThat((char) in.readByte()).isEqualTo(PackedBatch.TYPE_DOUBLE);
+		assertThat(in.readDouble()).isEqualTo(1.5);
+		assertThat(in.available()).isEqualTo(0);
+	}
+
+	@Test public void
+	producerIsConfiguredForBatching() throws Exception {
+		KafkaWriter writer = getTestKafkaWriter(null, ImmutableMap.<String, Object>of("linger.ms", "500"));
+
+		assertThat(writer.getProducerConfig())
+				.containsEntry("bootstrap.servers", "10.231.1.1:9180")
+				.containsEntry("linger.ms", "500")
+				.containsEntry("batch.size", KafkaWriter.DEFAULT_BATCH_SIZE)
+				.containsEntry("compression.type", KafkaWriter.DEFAULT_COMPRESSION_TYPE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFormatIsRejected() {
+		getTestKafkaWriter("xml", null);
+	}
+
+	@Test public void
+	documentPerResultHoldsAllTheValuesOfTheResult() throws Exception {
+		Result composite = new Result(1000, "HeapMemoryUsage", "className", "objDomain", "classNameAlias", "typeName",
+				ImmutableMap.<String, Object>of("committed", 10, "used", 5, "text", "abc"));
+
+		KafkaWriter writer = getTestKafkaWriter(null, null, DocumentLayout.PER_RESULT, ImmutableMap.of("keyspace", "metric"));
+		writer.setProducer(producer);
+		writer.doWrite(server, query, ImmutableList.of(composite));
+
+		List<ProducerRecord<byte[], byte[]>> records = producer.history();
+		assertThat(records).hasSize(1);
+		assertThat(new String(records.get(0).value(), UTF_8)).isEqualTo(
+				"{\"metric\":\"rootPrefix.host_123.classNameAlias.HeapMemoryUsage\","
+						+ "\"values\":{\"committed\":\"10\",\"used\":\"5\"},"
+						+ "\"timestamp\":1}");
+	}
+
+	@Test public void
+	resultsWithoutNumericValuesAreNotSent() throws Exception {
+		Result text = new Result(1000, "attributeName", "className", "objDomain", "classNameAlias", "typeName",
+				ImmutableMap.<String, Object>of("text", "abc"));
+
+		KafkaWriter writer = getTestKafkaWriter(null, null, DocumentLayout.PER_RESULT, null);
+		writer.setProducer(producer);
+		writer.doWrite(server, query, ImmutableList.of(text));
+
+		assertThat(producer.history()).isEmpty();
+	}
+
+	private static KafkaWriter getTestKafkaWriter(String format, Map<String, Object> producerConfig) {
+		return getTestKafkaWriter(format, producerConfig, null, null);
+	}
+
+	private static KafkaWriter getTestKafkaWriter(String format, Map<String, Object> producerConfig,
+			String documentShape, Map<String, String> fieldNames) {
 		ImmutableList typenames = ImmutableList.of();
 		Map<String,Object> settings = new HashMap<String,Object>();
 		settings.put("zk.connect", "host:2181");
@@ -83,7 +170,7 @@ public class KafkaWriterTests {
 		settings.put("debug", false);
 		settings.put("booleanAsNumber", true);
 		settings.put("topics", "myTopic");
-		return new KafkaWriter(typenames, true, "rootPrefix", true, "myTopic", settings);
+		return new KafkaWriter(typenames, true, "rootPrefix", true, "myTopic", format, producerConfig, documentShape, fieldNames, settings);
 	}
 	
 }
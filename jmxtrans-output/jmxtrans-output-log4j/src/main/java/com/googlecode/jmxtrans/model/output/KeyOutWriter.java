@@ -30,7 +30,9 @@ import com.googlecode.jmxtrans.model.Query;
 import com.googlecode.jmxtrans.model.Result;
 import com.googlecode.jmxtrans.model.Server;
 import com.googlecode.jmxtrans.model.ValidationException;
-import com.googlecode.jmxtrans.model.naming.KeyUtils;
+import com.googlecode.jmxtrans.model.naming.CachedKeyStringBuilder;
+import com.googlecode.jmxtrans.model.output.support.LineDialect;
+import com.googlecode.jmxtrans.model.output.support.LineDialects;
 import com.googlecode.jmxtrans.util.NumberUtils;
 import org.apache.log4j.Appender;
 import org.apache.log4j.LogManager;
@@ -41,7 +43,6 @@ import org.slf4j.Logger;
 import org.slf4j.impl.Log4jLoggerFactory;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -76,6 +77,8 @@ public class KeyOutWriter extends BaseOutputWriter {
 	private final String maxLogFileSize;
 	private final int maxLogBackupFiles;
 	private final String delimiter;
+	private final CachedKeyStringBuilder keyStringBuilder;
+	private final LineDialect dialect;
 
 	@JsonCreator
 	public KeyOutWriter(
@@ -104,6 +107,8 @@ public class KeyOutWriter extends BaseOutputWriter {
 				(String) getSettings().get(SETTING_DELIMITER),
 				DEFAULT_DELIMITER
 		);
+		this.keyStringBuilder = new CachedKeyStringBuilder(getTypeNames(), null, false);
+		this.dialect = LineDialects.keyOut(this.delimiter);
 	}
 
 	/**
@@ -130,16 +135,17 @@ public class KeyOutWriter extends BaseOutputWriter {
 	 */
 	@Override
 	public void internalWrite(Server server, Query query, ImmutableList<Result> results) throws Exception {
-		List<String> typeNames = getTypeNames();
-
+		// log4j needs a String anyway, build all lines in the same StringBuilder
+		StringBuilder line = new StringBuilder(256);
 		for (Result result : results) {
 			Map<String, Object> resultValues = result.getValues();
 			if (resultValues != null) {
 				for (Entry<String, Object> values : resultValues.entrySet()) {
 					if (NumberUtils.isNumeric(values.getValue())) {
-
-						logger.info(KeyUtils.getKeyString(server, query, result, values, typeNames, null) + delimiter
-								+ values.getValue().toString() + delimiter + result.getEpoch());
+						line.setLength(0);
+						dialect.append(line, keyStringBuilder.getKeyString(server, query, result, values), values.getValue(),
+								result.getEpoch());
+						logger.info(line.toString());
 					}
 				}
 			}
@@ -24,10 +24,19 @@ package com.googlecode.jmxtrans.util;
 
 import org.apache.commons.lang.StringUtils;
 
-import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class NumberUtils {
-	private static final Pattern IS_NUMERIC_PAT = Pattern.compile("\\d*(?:[.]\\d+)?");
+
+	/** Longer digit sequences might not fit in a long and are parsed as doubles. */
+	private static final int MAX_LONG_DIGITS = 18;
+
+	private static final int NOT_NUMERIC = -2;
+	private static final int NO_DECIMAL_POINT = -1;
 
 	private NumberUtils() {}
 
@@ -70,6 +79,94 @@ public final class NumberUtils {
 		if (StringUtils.isEmpty(str)) {
 			return str != null; // Null = false, empty = true
 		}
-		return IS_NUMERIC_PAT.matcher(str).matches();
+		return decimalPointIndex(str) != NOT_NUMERIC;
+	}
+
+	/**
+	 * Parses a String accepted by {@link #isNumeric(String)} into a {@link Long} when it has no decimal part, or into
+	 * a {@link Double} otherwise.
+	 *
+	 * @return the parsed number, or <code>null</code> if the String is null, empty or not numeric
+	 */
+	@Nullable
+	public static Number parseNumber(@Nullable String str) {
+		if (str == null || str.isEmpty()) return null;
+
+		int decimalPointIndex = decimalPointIndex(str);
+		if (decimalPointIndex == NOT_NUMERIC) return null;
+		if (decimalPointIndex == NO_DECIMAL_POINT && str.length() <= MAX_LONG_DIGITS) {
+			long value = 0;
+			for (int i = 0; i < str.length(); i++) {
+				value = value * 10 + (str.charAt(i) - '0');
+			}
+			return value;
+		}
+		return Double.parseDouble(str);
+	}
+
+	/**
+	 * Converts a value to the simplest representation writers have to deal with: integral numbers which are not
+	 * already primitive wrappers become {@link Long}, other numbers become {@link Double} and numeric Strings are
+	 * parsed with {@link #parseNumber(String)}. Primitive wrappers, {@link BigDecimal}s, booleans and non numeric
+	 * values are returned as is.
+	 *
+	 * Nothing is converted if it changes text output: numeric Strings are only parsed when the number prints back to
+	 * the same text ("1.10", "007" or digit sequences too long for a long are kept as Strings), {@link BigDecimal}s
+	 * keep their scale and other numbers only become a {@link Double} if they hold a fractional value.
+	 */
+	@Nullable
+	public static Object normalize(@Nullable Object value) {
+		if (value == null
+				|| value instanceof Long
+				|| value instanceof Double
+				|| value instanceof Integer
+				|| value instanceof Boolean
+				|| value instanceof Float
+				|| value instanceof Short
+				|| value instanceof Byte) {
+			return value;
+		}
+		if (value instanceof String) {
+			Number number = parseNumber((String) value);
+			return number != null && number.toString().equals(value) ? number : value;
+		}
+		if (value instanceof AtomicLong || value instanceof AtomicInteger) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof BigInteger) {
+			BigInteger bigInteger = (BigInteger) value;
+			return bigInteger.bitLength() < Long.SIZE ? (Object) bigInteger.longValue() : (Object) bigInteger.doubleValue();
+		}
+		if (value instanceof BigDecimal) {
+			return value;
+		}
+		if (value instanceof Number) {
+			// LongAdder, or any other Number an MBean may expose
+			Number number = (Number) value;
+			double doubleValue = number.doubleValue();
+			return doubleValue == (double) number.longValue() ? (Object) number.longValue() : (Object) doubleValue;
+		}
+		return value;
+	}
+
+	/**
+	 * Scans a String of the form <code>\d*(?:[.]\d+)?</code>.
+	 *
+	 * @return the index of the decimal point, {@link #NO_DECIMAL_POINT} if there is none or {@link #NOT_NUMERIC} if
+	 * the String does not have the expected form
+	 */
+	private static int decimalPointIndex(String str) {
+		int decimalPointIndex = NO_DECIMAL_POINT;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '.') {
+				if (decimalPointIndex != NO_DECIMAL_POINT) return NOT_NUMERIC;
+				decimalPointIndex = i;
+			} else if (c < '0' || c > '9') {
+				return NOT_NUMERIC;
+			}
+		}
+		if (decimalPointIndex == str.length() - 1) return NOT_NUMERIC;
+		return decimalPointIndex;
 	}
 }
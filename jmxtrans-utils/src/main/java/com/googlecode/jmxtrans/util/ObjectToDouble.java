@@ -32,6 +32,10 @@ public class ObjectToDouble implements Function<Object, Double> {
 	public Double apply(Object input) {
 		if (input instanceof Double) return (Double) input;
 		if (input instanceof Number) return ((Number) input).doubleValue();
+		if (input instanceof String) {
+			Number number = NumberUtils.parseNumber((String) input);
+			if (number != null) return number.doubleValue();
+		}
 
 		throw new IllegalArgumentException(format("There is no converter from [%s] to Double ", input.getClass().getName()));
 	}
@@ -0,0 +1,81 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded interning table for strings which are seen again and again, like the class names, domains, type names
+ * and attribute names of MBeans which are queried at every cycle.
+ *
+ * Unlike {@link String#intern()}, the table is limited in size and entries which have not been used for a while are
+ * evicted, so strings of MBeans which have disappeared do not stay in memory forever.
+ */
+@ThreadSafe
+public class StringInterner {
+
+	public static final int DEFAULT_MAXIMUM_SIZE = 256 * 1024;
+	public static final long DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES = 60;
+
+	private static final StringInterner SHARED = new StringInterner(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_ACCESS_MINUTES, TimeUnit.MINUTES);
+
+	private final Cache<String, String> strings;
+
+	public StringInterner(long maximumSize, long expireAfterAccess, TimeUnit unit) {
+		strings = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterAccess(expireAfterAccess, unit)
+				.build();
+	}
+
+	/**
+	 * The interner shared by all the queries of this JVM.
+	 */
+	public static StringInterner shared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns a canonical instance of the string, which is the string itself the first time it is seen.
+	 */
+	@Nullable
+	public String intern(@Nullable String value) {
+		if (value == null) return null;
+
+		String interned = strings.getIfPresent(value);
+		if (interned != null) return interned;
+
+		interned = strings.asMap().putIfAbsent(value, value);
+		return interned != null ? interned : value;
+	}
+
+	public long size() {
+		return strings.size();
+	}
+
+}
@@ -25,8 +25,17 @@ package com.googlecode.jmxtrans.util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
 import static com.googlecode.jmxtrans.util.NumberUtils.isNumeric;
+import static com.googlecode.jmxtrans.util.NumberUtils.normalize;
+import static com.googlecode.jmxtrans.util.NumberUtils.parseNumber;
 import static java.lang.Boolean.FALSE;
+import static org.assertj.core.api.Assertions.assertThat;
 
 public class NumberUtilsTest {
 	@Test
@@ -50,4 +59,41 @@ public class NumberUtilsTest {
 		Assert.assertFalse(isNumeric((Object) "abc"));
 		Assert.assertFalse(isNumeric(FALSE));
 	}
+
+	@Test
+	public void testParseNumber() {
+		assertThat(parseNumber(null)).isNull();
+		assertThat(parseNumber("")).isNull();
+		assertThat(parseNumber("12 3")).isNull();
+		assertThat(parseNumber("3.")).isNull();
+		assertThat(parseNumber("123")).isEqualTo(123L);
+		assertThat(parseNumber("12.3")).isEqualTo(12.3);
+		assertThat(parseNumber(".2")).isEqualTo(0.2);
+		assertThat(parseNumber("12345678901234567890")).isEqualTo(12345678901234567890d);
+	}
+
+	@Test
+	public void testNormalize() {
+		Integer integer = 10;
+		assertThat(normalize(integer)).isSameAs(integer);
+		assertThat(normalize(FALSE)).isSameAs(FALSE);
+		assertThat(normalize("abc")).isEqualTo("abc");
+		assertThat(normalize("42")).isEqualTo(42L);
+		assertThat(normalize("4.2")).isEqualTo(4.2);
+		assertThat(normalize("1.10")).isEqualTo("1.10");
+		assertThat(normalize("007")).isEqualTo("007");
+		assertThat(normalize("12345678901234567890")).isEqualTo("12345678901234567890");
+		assertThat(normalize(new AtomicLong(7))).isEqualTo(7L);
+		assertThat(normalize(BigInteger.TEN)).isEqualTo(10L);
+		assertThat(normalize(BigInteger.TEN.pow(20))).isEqualTo(1e20);
+		assertThat(normalize(new BigDecimal("1.5"))).isEqualTo(new BigDecimal("1.5"));
+		assertThat(normalize(new BigDecimal("100")).toString()).isEqualTo("100");
+		LongAdder adder = new LongAdder();
+		adder.add((1L << 53) + 1);
+		assertThat(normalize(adder)).isEqualTo((1L << 53) + 1);
+		DoubleAdder fractional = new DoubleAdder();
+		fractional.add(2.5);
+		assertThat(normalize(fractional)).isEqualTo(2.5);
+		assertThat(normalize(null)).isNull();
+	}
 }
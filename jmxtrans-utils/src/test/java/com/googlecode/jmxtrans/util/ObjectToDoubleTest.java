@@ -51,4 +51,16 @@ public class ObjectToDoubleTest {
         converter.apply("");
     }
 
+    @Test
+    public void numericStringIsConvertedToDouble() {
+        Double output = converter.apply("12.5");
+
+        assertThat(output).isEqualTo(12.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nonNumericStringIsNotConverted() {
+        converter.apply("abc");
+    }
+
 }
@@ -0,0 +1,61 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 JmxTrans team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.googlecode.jmxtrans.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StringInternerTest {
+
+	@Test
+	public void equalStringsAreInternedToTheSameInstance() {
+		StringInterner interner = new StringInterner(10, 1, TimeUnit.HOURS);
+		String first = new String("type=Memory");
+		String second = new String("type=Memory");
+
+		assertThat(interner.intern(first)).isSameAs(first);
+		assertThat(interner.intern(second)).isSameAs(first);
+	}
+
+	@Test
+	public void nullIsNotInterned() {
+		StringInterner interner = new StringInterner(10, 1, TimeUnit.HOURS);
+
+		assertThat(interner.intern(null)).isNull();
+		assertThat(interner.size()).isEqualTo(0);
+	}
+
+	@Test
+	public void sizeIsBounded() {
+		StringInterner interner = new StringInterner(10, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 100; i++) {
+			interner.intern("attribute" + i);
+		}
+
+		assertThat(interner.size()).isLessThanOrEqualTo(10);
+	}
+
+}